@@ -0,0 +1,413 @@
+package com.example.glassstrava.api;
+
+import android.content.SharedPreferences;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local HTTP/1.1 server standing in for Strava in tests.
+ *
+ * Every request is recorded and answered by a {@link Handler}.
+ * Connections are kept alive as a real server would, so tests can tell
+ * whether the client reuses them.
+ */
+public class StandInServer {
+    public static final String ACCESS_TOKEN = "stand-in-token";
+
+    public interface Handler {
+        /**
+         * The reply to send; null is answered with a 500
+         */
+        Reply handle(Request request) throws IOException;
+    }
+
+    public static class Request {
+        public final String method;
+        // Including the query
+        public final String path;
+        public final byte[] body;
+        // Which connection it arrived on, counting from 0
+        public final int connection;
+        private final Map<String, String> mHeaders;
+
+        Request(String method, String path, Map<String, String> headers, byte[] body,
+                int connection) {
+            this.method = method;
+            this.path = path;
+            this.body = body;
+            this.connection = connection;
+            mHeaders = headers;
+        }
+
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        /**
+         * Value of a query parameter, or null
+         */
+        public String getParameter(String name) {
+            int query = path.indexOf('?');
+            if (query < 0) return null;
+            for (String pair : path.substring(query + 1).split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                    return pair.substring(equals + 1);
+                }
+            }
+            return null;
+        }
+    }
+
+    public static class Reply {
+        final int code;
+        final byte[] body;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        boolean gzip;
+
+        public Reply(int code, String body) {
+            this(code, bytes(body));
+        }
+
+        public Reply(int code, byte[] body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        public Reply header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * Compressed if the request accepts gzip
+         */
+        public Reply gzip() {
+            gzip = true;
+            return this;
+        }
+    }
+
+    private final ServerSocket mSocket;
+    private final List<Request> mRequests = new ArrayList<>();
+    private final Preferences mPreferences = new Preferences();
+    private volatile Handler mHandler;
+    private int mConnections = 0;
+
+    public StandInServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mPreferences.mValues.put("strava_access_token", ACCESS_TOKEN);
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread accept = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = mSocket.accept();
+                        final int connection;
+                        synchronized (StandInServer.this) {
+                            connection = mConnections++;
+                        }
+                        Thread serve = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket, connection);
+                            }
+                        }, "StandInServer connection " + connection);
+                        serve.setDaemon(true);
+                        serve.start();
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }, "StandInServer");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    public void setHandler(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Stands in for {@link StravaClient#API_BASE}
+     */
+    public String getBase() {
+        return "http://127.0.0.1:" + mSocket.getLocalPort();
+    }
+
+    /**
+     * A signed-in client talking to this server
+     */
+    public StravaClient client(File cacheDir) {
+        return client(cacheDir, new RequestScheduler());
+    }
+
+    StravaClient client(File cacheDir, RequestScheduler scheduler) {
+        return new StravaClient(getBase(), mPreferences, cacheDir, scheduler);
+    }
+
+    /**
+     * The preferences every client of this server reads its access token
+     * from, starting with {@link #ACCESS_TOKEN}
+     */
+    public SharedPreferences getPreferences() {
+        return mPreferences;
+    }
+
+    public synchronized List<Request> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequests.size();
+    }
+
+    public synchronized int getConnectionCount() {
+        return mConnections;
+    }
+
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    private void serve(Socket socket, int connection) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                String[] parts = line.split(" ");
+                Map<String, String> headers = new HashMap<>();
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+                }
+                String length = headers.get("content-length");
+                byte[] body = new byte[length != null ? Integer.parseInt(length) : 0];
+                for (int read = 0; read < body.length; ) {
+                    int count = in.read(body, read, body.length - read);
+                    if (count < 0) throw new IOException("Body cut short");
+                    read += count;
+                }
+
+                Request request = new Request(parts[0], parts[1], headers, body, connection);
+                synchronized (this) {
+                    mRequests.add(request);
+                }
+                Reply reply;
+                try {
+                    reply = mHandler.handle(request);
+                } catch (RuntimeException e) {
+                    reply = new Reply(500, String.valueOf(e));
+                }
+                if (reply == null) {
+                    // A handler that forgot a case, not a server that hangs up
+                    reply = new Reply(500, "No reply for " + request.method + " " + request.path);
+                }
+                write(out, request, reply);
+                if ("close".equalsIgnoreCase(headers.get("connection"))) break;
+            }
+        } catch (IOException e) {
+            // Client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Done with it
+            }
+        }
+    }
+
+    private static void write(OutputStream out, Request request, Reply reply)
+            throws IOException {
+        byte[] body = reply.body;
+        String accept = request.getHeader("Accept-Encoding");
+        boolean gzip = reply.gzip && accept != null && accept.contains("gzip");
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream zip = new GZIPOutputStream(compressed);
+            zip.write(body);
+            zip.close();
+            body = compressed.toByteArray();
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(reply.code).append(' ')
+            .append(reply.code < 400 ? "OK" : "Error").append("\r\n");
+        // A 304 has no body, whatever length the representation has
+        boolean hasBody = reply.code != 304 && reply.code != 204;
+        if (hasBody) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        if (gzip) {
+            head.append("Content-Encoding: gzip\r\n");
+        }
+        for (Map.Entry<String, String> header : reply.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(bytes(head.toString()));
+        if (hasBody) out.write(body);
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) return null;
+                throw new IOException("Line cut short");
+            }
+            if (b != '\r') line.write(b);
+        }
+        return line.toString("UTF-8");
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * In-memory preferences holding the access token
+     */
+    private static class Preferences implements SharedPreferences, SharedPreferences.Editor {
+        final Map<String, Object> mValues = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return mValues;
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return this;
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            mValues.put(key, values);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mValues.remove(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mValues.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return true;
+        }
+
+        @Override
+        public void apply() {
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.glassstrava.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Talks to a local stand-in for Strava.
+ * Runs on the device, since requests are timed with SystemClock
+ */
+public class StravaClientTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private StandInServer mServer;
+    private StravaClient mClient;
+
+    /**
+     * Answers with whatever the test sets next
+     */
+    private volatile StandInServer.Reply mReply;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer(new StandInServer.Handler() {
+            @Override
+            public StandInServer.Reply handle(StandInServer.Request request) {
+                return mReply;
+            }
+        });
+        mClient = mServer.client(mFolder.newFolder("http"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    /**
+     * Compressible, like the JSON the API returns
+     */
+    private static String json(int segments) {
+        StringBuilder sb = new StringBuilder("{\"segments\":[");
+        for (int i = 0; i < segments; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":").append(1000 + i).append(",\"name\":\"Hill climb ").append(i)
+                .append("\",\"distance\":1234.5,\"average_grade\":4.2}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private String get(String path) throws IOException {
+        StravaClient.Response response = mClient.get(path, StravaClient.PRIORITY_BROWSE);
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, response.getCode());
+            return response.readString();
+        } finally {
+            response.close();
+        }
+    }
+
+    private StravaClient.EndpointStats stats(String endpoint) {
+        for (StravaClient.EndpointStats stats : mClient.getStats()) {
+            if (stats.endpoint.equals(endpoint)) return stats;
+        }
+        return null;
+    }
+
+    private StandInServer.Request lastRequest() {
+        List<StandInServer.Request> requests = mServer.getRequests();
+        return requests.get(requests.size() - 1);
+    }
+
+    @Test
+    public void asksForGzipAndCountsBothSizes() throws IOException {
+        String body = json(200);
+        mReply = new StandInServer.Reply(200, body).gzip();
+        assertEquals(body, get("/segments/explore?bounds=1,2,3,4"));
+
+        StandInServer.Request request = lastRequest();
+        assertEquals("GET", request.method);
+        assertEquals("/segments/explore?bounds=1,2,3,4", request.path);
+        assertEquals("Bearer " + StandInServer.ACCESS_TOKEN, request.getHeader("Authorization"));
+        assertTrue(request.getHeader("Accept-Encoding").contains("gzip"));
+
+        StravaClient.EndpointStats stats = stats("/segments/explore");
+        assertEquals(1, stats.requests);
+        assertEquals(body.length(), stats.bodyBytes);
+        assertTrue(stats.wireBytes > 0);
+        assertTrue(stats.wireBytes * 5 < stats.bodyBytes);
+    }
+
+    @Test
+    public void reusesOneConnection() throws IOException {
+        mReply = new StandInServer.Reply(200, json(50)).gzip();
+        for (int i = 0; i < 5; i++) {
+            get("/routes/" + i);
+        }
+        // Closed part way through, or without reading at all
+        StravaClient.Response response = mClient.get("/routes/5", StravaClient.PRIORITY_BROWSE);
+        response.getBody().read(new byte[10]);
+        response.close();
+        mClient.get("/routes/6", StravaClient.PRIORITY_BROWSE).close();
+        get("/routes/7");
+
+        assertEquals(8, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+        assertEquals(8, stats("/routes/{id}").requests);
+    }
+
+    @Test
+    public void revalidatesWithTheETag() throws IOException {
+        String body = json(20);
+        mReply = new StandInServer.Reply(200, body).header("ETag", "\"v1\"").gzip();
+        assertEquals(body, get("/routes/1"));
+        assertNull(lastRequest().getHeader("If-None-Match"));
+
+        mReply = new StandInServer.Reply(304, "");
+        StravaClient.Response response = mClient.get("/routes/1", StravaClient.PRIORITY_BROWSE);
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, response.getCode());
+            assertTrue(response.isNotModified());
+            assertEquals(body, response.readString());
+        } finally {
+            response.close();
+        }
+        assertEquals("\"v1\"", lastRequest().getHeader("If-None-Match"));
+        assertEquals(1, stats("/routes/{id}").notModified);
+
+        // Changed on the server
+        String changed = json(21);
+        mReply = new StandInServer.Reply(200, changed).header("ETag", "\"v2\"").gzip();
+        assertEquals(changed, get("/routes/1"));
+        mReply = new StandInServer.Reply(304, "");
+        assertEquals(changed, get("/routes/1"));
+        assertEquals("\"v2\"", lastRequest().getHeader("If-None-Match"));
+
+        // Other URLs aren't conditional
+        mReply = new StandInServer.Reply(200, body);
+        get("/routes/2");
+        assertNull(lastRequest().getHeader("If-None-Match"));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void responsesWithoutAnETagDropTheCachedOne() throws IOException {
+        mReply = new StandInServer.Reply(200, json(5)).header("ETag", "\"v1\"");
+        get("/routes/1");
+        mReply = new StandInServer.Reply(200, json(6));
+        get("/routes/1");
+        assertEquals("\"v1\"", lastRequest().getHeader("If-None-Match"));
+        get("/routes/1");
+        assertNull(lastRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void abandonedBodiesAreNotCached() throws IOException {
+        // Too long to drain on close, and incompressible
+        byte[] body = new byte[256 * 1024];
+        new Random(1).nextBytes(body);
+        mReply = new StandInServer.Reply(200, body).header("ETag", "\"v1\"").gzip();
+        StravaClient.Response response = mClient.get("/routes/1", StravaClient.PRIORITY_BROWSE);
+        response.getBody().read(new byte[100]);
+        response.close();
+
+        get("/routes/1");
+        assertNull(lastRequest().getHeader("If-None-Match"));
+        // The rest of the first body wasn't worth reading to keep its connection
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void streamsPostBodies() throws IOException {
+        byte[] upload = new byte[100 * 1024];
+        new Random(2).nextBytes(upload);
+        mReply = new StandInServer.Reply(201, "{\"id\":42}");
+        StravaClient.Response response = mClient.post("/uploads",
+            StravaClient.PRIORITY_BACKGROUND, "application/octet-stream", upload);
+        try {
+            assertEquals(201, response.getCode());
+            assertEquals("{\"id\":42}", response.readString());
+        } finally {
+            response.close();
+        }
+
+        StandInServer.Request request = lastRequest();
+        assertEquals("POST", request.method);
+        assertEquals("application/octet-stream", request.getHeader("Content-Type"));
+        assertArrayEquals(upload, request.body);
+    }
+
+    @Test
+    public void errorBodiesCanBeRead() throws IOException {
+        mReply = new StandInServer.Reply(404, "{\"message\":\"Record Not Found\"}").gzip();
+        StravaClient.Response response = mClient.get("/routes/9", StravaClient.PRIORITY_BROWSE);
+        try {
+            assertEquals(404, response.getCode());
+            assertEquals("{\"message\":\"Record Not Found\"}", response.readString());
+        } finally {
+            response.close();
+        }
+        mReply = new StandInServer.Reply(200, "{}");
+        get("/routes/9");
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void absoluteUrlsGoWithoutTheToken() throws IOException {
+        mReply = new StandInServer.Reply(200, "<gpx/>");
+        StravaClient.Response response = mClient.get(mServer.getBase() + "/files/route.gpx?x=1",
+            StravaClient.PRIORITY_BACKGROUND);
+        try {
+            assertEquals("<gpx/>", response.readString());
+        } finally {
+            response.close();
+        }
+        assertEquals("/files/route.gpx?x=1", lastRequest().path);
+        assertNull(lastRequest().getHeader("Authorization"));
+        assertEquals(1, stats("/files/route.gpx").requests);
+    }
+
+    // A slot kept by a failure would leave the last requests waiting forever
+    @Test(timeout = 10000)
+    public void failuresAreCountedAndFreeTheirSlot() throws IOException {
+        mServer.close();
+        // More failures than there are dispatch slots
+        for (int i = 0; i < 6; i++) {
+            try {
+                mClient.get("/routes/1", StravaClient.PRIORITY_BROWSE);
+                fail();
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+        assertEquals(6, stats("/routes/{id}").failures);
+        assertEquals(0, stats("/routes/{id}").requests);
+    }
+
+    /**
+     * Like Strava: 20 requests per 15 minutes, reset on the clock, then 429s
+     */
+    private static class LimitingHandler implements StandInServer.Handler {
+        static final long WINDOW = 15 * 60 * 1000;
+        static final int LIMIT = 20;
+        long window;
+        int usage;
+        int refused;
+
+        @Override
+        public synchronized StandInServer.Reply handle(StandInServer.Request request) {
+            long now = System.currentTimeMillis() / WINDOW;
+            if (now != window) {
+                window = now;
+                usage = 0;
+            }
+            usage++;
+            StandInServer.Reply reply;
+            if (usage > LIMIT) {
+                refused++;
+                reply = new StandInServer.Reply(429, "{\"message\":\"Rate Limit Exceeded\"}");
+            } else {
+                reply = new StandInServer.Reply(200, "{}");
+            }
+            return reply.header("X-RateLimit-Limit", LIMIT + ",1000")
+                .header("X-RateLimit-Usage", usage + "," + usage);
+        }
+    }
+
+    /**
+     * Sends requests until the first is held back
+     *
+     * @return how many were sent
+     */
+    private int sendUntilHeldBack(int priority, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            try {
+                mClient.get("/segments/" + i, priority).close();
+            } catch (RateLimitedException e) {
+                return i;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void holdsBackLowPrioritiesBeforeTheServerRefuses() throws Exception {
+        // Not so close to the server's reset that it happens part way through
+        long untilReset = LimitingHandler.WINDOW
+            - System.currentTimeMillis() % LimitingHandler.WINDOW;
+        if (untilReset < 5000) Thread.sleep(untilReset + 100);
+        LimitingHandler handler = new LimitingHandler();
+        mServer.setHandler(handler);
+
+        // Background work stops with 40% of the window left, browsing with a
+        // quarter and live segments with a tenth
+        assertEquals(12, sendUntilHeldBack(StravaClient.PRIORITY_BACKGROUND, 30));
+        assertEquals(0, sendUntilHeldBack(StravaClient.PRIORITY_BACKGROUND, 30));
+        assertEquals(3, sendUntilHeldBack(StravaClient.PRIORITY_BROWSE, 10));
+        assertEquals(3, sendUntilHeldBack(StravaClient.PRIORITY_LIVE_SEGMENT, 10));
+        // Leaving navigation the rest
+        assertEquals(2, sendUntilHeldBack(StravaClient.PRIORITY_NAVIGATION, 2));
+
+        assertEquals(LimitingHandler.LIMIT, mServer.getRequestCount());
+        assertEquals(0, handler.refused);
+        assertEquals(4, stats("/segments/{id}").rateLimited);
+    }
+
+    @Test
+    public void endpointsFoldIdsAndDropTheQuery() {
+        assertEquals("/segments/{id}/leaderboard",
+            StravaClient.endpoint("/segments/229781/leaderboard?per_page=10"));
+        assertEquals("/segments/explore", StravaClient.endpoint("/segments/explore?bounds=1,2"));
+        assertEquals("/athlete", StravaClient.endpoint("/athlete"));
+        assertEquals("/oauth/token",
+            StravaClient.endpoint("https://www.strava.com/oauth/token?code=abc"));
+    }
+
+    @Test
+    public void bodiesCanBeReadAByteAtATime() throws IOException {
+        String body = json(3);
+        mReply = new StandInServer.Reply(200, body).header("ETag", "\"v1\"").gzip();
+        StravaClient.Response response = mClient.get("/routes/1", StravaClient.PRIORITY_BROWSE);
+        StringBuilder sb = new StringBuilder();
+        try {
+            InputStream in = response.getBody();
+            int b;
+            while ((b = in.read()) != -1) {
+                sb.append((char) b);
+            }
+        } finally {
+            response.close();
+        }
+        assertEquals(body, sb.toString());
+
+        // And stored whole
+        mReply = new StandInServer.Reply(304, "");
+        assertEquals(body, get("/routes/1"));
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.glassstrava.route;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs on the device, since route distances come from Location.distanceBetween
+ */
+public class ElevationProfileTest {
+
+    /**
+     * Straight north with a vertex every {@code step} meters at each height
+     */
+    private static ElevationProfile profile(double step, float... elevation) {
+        double[][] points = new double[elevation.length][];
+        for (int i = 0; i < elevation.length; i++) {
+            points[i] = new double[] {i * step, 0};
+        }
+        return new ElevationProfile(RouteTest.route(points), elevation);
+    }
+
+    @Test
+    public void aClimbCanBeFollowedByADescentBelowItsStart() {
+        ElevationProfile profile = profile(1000, 0, 100, 0);
+        assertEquals(1, profile.getClimbCount());
+        assertEquals(0, profile.getClimbStart(0), 1);
+        assertEquals(1000, profile.getClimbEnd(0), 10);
+        assertEquals(100, profile.getClimbGain(0), 0.01);
+        assertEquals(0.1, profile.getClimbGrade(0), 0.002);
+
+        // Or by a deep valley
+        assertEquals(1, profile(1000, 50, 150, -200).getClimbCount());
+    }
+
+    @Test
+    public void aClimbCanEndOnAPlateau() {
+        ElevationProfile profile = profile(1000, 0, 100, 95);
+        assertEquals(1, profile.getClimbCount());
+        assertEquals(1000, profile.getClimbEnd(0), 10);
+
+        profile = profile(1000, 0, 100, 100, 100);
+        assertEquals(1, profile.getClimbCount());
+        assertEquals(1000, profile.getClimbEnd(0), 10);
+    }
+
+    @Test
+    public void findsRepeatedClimbs() {
+        ElevationProfile profile = profile(1000, 0, 100, 0, 100, 0, 200);
+        assertEquals(3, profile.getClimbCount());
+        assertEquals(2000, profile.getClimbStart(1), 20);
+        assertEquals(4000, profile.getClimbStart(2), 40);
+        assertEquals(200, profile.getClimbGain(2), 0.01);
+
+        assertEquals(0, profile.advance(0, 500));
+        assertEquals(1, profile.advance(0, 1500));
+        assertEquals(2, profile.find(3500));
+        assertEquals(3, profile.find(6000));
+    }
+
+    @Test
+    public void smallDipsArePartOfTheClimb() {
+        ElevationProfile profile = profile(100, 0, 50, 45, 100);
+        assertEquals(1, profile.getClimbCount());
+        assertEquals(0, profile.getClimbStart(0), 1);
+        assertEquals(300, profile.getClimbEnd(0), 3);
+    }
+
+    @Test
+    public void dragsAndLowRisesAreNotClimbs() {
+        // A steady 1% and a short 10 m bump
+        assertEquals(0, profile(1000, 0, 10, 20, 30).getClimbCount());
+        assertEquals(0, profile(100, 0, 10, 0).getClimbCount());
+        assertEquals(30, profile(1000, 0, 10, 20, 30).getTotalGain(), 0.5);
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.glassstrava.route;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.example.glassstrava.route.RouteTest.route;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays simulated rides with known finish times through the predictor.
+ * Runs on the device, since route distances come from Location.distanceBetween
+ */
+public class EtaPredictorTest {
+    private static final int VERTICES = 201;
+    private static final double SPACING = 50;
+
+    /**
+     * 10 km east: flat, a 2 km climb at 5% from 5 km, then flat again
+     */
+    private static Route route10k() {
+        double[][] points = new double[VERTICES][];
+        for (int i = 0; i < VERTICES; i++) {
+            points[i] = new double[] {0, i * SPACING};
+        }
+        return route(points);
+    }
+
+    private static float[] climb(Route route) {
+        float[] elevation = new float[route.size()];
+        for (int i = 0; i < route.size(); i++) {
+            double along = route.getDistanceFromStart(i);
+            elevation[i] = (float) (100 + 0.05 * Math.max(0, Math.min(2000, along - 5000)));
+        }
+        return elevation;
+    }
+
+    private static void match(Route route, double along, RouteMatch match) {
+        int segment = 0;
+        while (segment < route.size() - 2 && route.getDistanceFromStart(segment + 1) <= along) {
+            segment++;
+        }
+        double start = route.getDistanceFromStart(segment);
+        double length = route.getDistanceFromStart(segment + 1) - start;
+        match.segment = segment;
+        match.fraction = Math.max(0, Math.min(1, (along - start) / length));
+        match.alongDistance = along;
+        match.crossTrackDistance = 0;
+    }
+
+    /**
+     * A ride at one fix per second: position and whether the last second was moving
+     */
+    private static class Ride {
+        final double[] along = new double[20000];
+        final boolean[] moving = new boolean[20000];
+        int length;
+
+        /**
+         * @param power  meters of flat-road speed, m/s, varied by up to 10% a minute
+         * @param stopAt distance of a five minute stop, or negative for none
+         */
+        Ride(Route route, ElevationProfile profile, double power, double stopAt, long seed) {
+            Random random = new Random(seed);
+            RouteMatch match = new RouteMatch();
+            double position = 0;
+            double speedFactor = 1;
+            int stopped = stopAt >= 0 ? 0 : Integer.MAX_VALUE;
+            while (position < route.getTotalDistance()) {
+                if (length % 60 == 0) {
+                    speedFactor = 1 + (random.nextDouble() - 0.5) * 0.2;
+                }
+                boolean move = true;
+                if (stopped < 300 && position >= stopAt) {
+                    stopped++;
+                    move = false;
+                }
+                if (move) {
+                    match(route, position, match);
+                    double grade = profile.getGrade(match.segment);
+                    // Effort per meter as the predictor models it
+                    double effort = grade >= 0 ? 1 + 12 * grade : Math.max(0.6, 1 + 4 * grade);
+                    position = Math.min(route.getTotalDistance(),
+                        position + power * speedFactor / effort);
+                }
+                along[length] = position;
+                moving[length] = move;
+                length++;
+            }
+        }
+
+        /**
+         * Moving seconds after fix {@code index} until the finish
+         */
+        long remainingMillis(int index) {
+            long seconds = 0;
+            for (int i = index + 1; i < length; i++) {
+                if (moving[i]) seconds++;
+            }
+            return seconds * 1000;
+        }
+
+        int indexAt(double distance) {
+            int i = 0;
+            while (along[i] < distance) i++;
+            return i;
+        }
+    }
+
+    private static EtaPredictor replay(Route route, ElevationProfile profile, Ride ride,
+                                       int until) {
+        EtaPredictor predictor = new EtaPredictor(route, profile);
+        RouteMatch match = new RouteMatch();
+        for (int i = 0; i <= until; i++) {
+            match(route, ride.along[i], match);
+            predictor.update(1000L * i, match);
+        }
+        return predictor;
+    }
+
+    @Test
+    public void predictsTheFinishOfARideOverAClimb() {
+        Route route = route10k();
+        ElevationProfile profile = new ElevationProfile(route, climb(route));
+        for (long seed = 1; seed <= 5; seed++) {
+            Ride ride = new Ride(route, profile, 8, 3000, seed);
+            for (int km = 2; km <= 9; km++) {
+                int index = ride.indexAt(km * 1000);
+                long predicted = replay(route, profile, ride, index).getRemainingMillis();
+                long truth = ride.remainingMillis(index);
+                assertEquals("seed " + seed + " at km " + km, truth, predicted, truth * 0.1);
+            }
+        }
+    }
+
+    @Test
+    public void theClimbAheadIsAccountedFor() {
+        Route route = route10k();
+        ElevationProfile profile = new ElevationProfile(route, climb(route));
+        Ride ride = new Ride(route, profile, 8, -1, 6);
+        int index = ride.indexAt(4000);
+        long truth = ride.remainingMillis(index);
+
+        long withProfile = replay(route, profile, ride, index).getRemainingMillis();
+        long flat = replay(route, null, ride, index).getRemainingMillis();
+        // Judged from flat riding alone, the climb looks as fast as the flat
+        assertTrue(Math.abs(withProfile - truth) * 3 < Math.abs(flat - truth));
+        assertTrue(flat < truth);
+    }
+
+    @Test
+    public void stopsDontSlowThePrediction() {
+        Route route = route10k();
+        ElevationProfile profile = new ElevationProfile(route, climb(route));
+        Ride ride = new Ride(route, profile, 8, 3000, 7);
+
+        // Just after a five minute stop at 3 km
+        int index = ride.indexAt(3000) + 300 + 30;
+        long truth = ride.remainingMillis(index);
+        long predicted = replay(route, profile, ride, index).getRemainingMillis();
+        assertEquals(truth, predicted, truth * 0.1);
+    }
+
+    @Test
+    public void needsAMinuteOfMovingFirst() {
+        Route route = route10k();
+        ElevationProfile profile = new ElevationProfile(route, climb(route));
+        Ride ride = new Ride(route, profile, 8, -1, 8);
+
+        assertEquals(-1, new EtaPredictor(route, profile).getRemainingMillis());
+        assertEquals(-1, replay(route, profile, ride, 30).getRemainingMillis());
+        assertTrue(replay(route, profile, ride, 61).getRemainingMillis() > 0);
+    }
+
+    @Test
+    public void shortcutWhileOffRouteIsntProgress() {
+        Route route = route10k();
+        EtaPredictor predictor = new EtaPredictor(route, null);
+        RouteMatch match = new RouteMatch();
+        // Two minutes at 5 m/s
+        for (int i = 0; i <= 120; i++) {
+            match(route, 5.0 * i, match);
+            predictor.update(1000L * i, match);
+        }
+        // Off route for twenty seconds, then rejoining 2.4 km further on
+        predictor.reset();
+        assertEquals(-1, predictor.getRemainingMillis());
+        match(route, 3000, match);
+        predictor.update(141000, match);
+
+        long expected = (long) ((route.getTotalDistance() - 3000) / 5.0 * 1000);
+        assertEquals(expected, predictor.getRemainingMillis(), expected * 0.01);
+    }
+
+    @Test
+    public void requiredSpeedCoversTheRestByTheDeadline() {
+        Route route = route10k();
+        EtaPredictor predictor = new EtaPredictor(route, null);
+        RouteMatch match = new RouteMatch();
+        match(route, 4000, match);
+        predictor.update(0, match);
+
+        double remaining = route.getTotalDistance() - 4000;
+        assertEquals(remaining / 600, predictor.getRequiredSpeed(0, 600000), 1e-9);
+        assertEquals(Double.POSITIVE_INFINITY, predictor.getRequiredSpeed(600000, 600000), 0);
+    }
+}
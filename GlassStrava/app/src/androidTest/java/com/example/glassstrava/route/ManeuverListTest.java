@@ -0,0 +1,202 @@
+package com.example.glassstrava.route;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on the device, since route distances come from Location.distanceBetween
+ */
+public class ManeuverListTest {
+    /**
+     * Builds a route by walking from the origin, in {north, east} meters
+     */
+    private static class Walk {
+        final List<double[]> points = new ArrayList<>();
+        double north = 0;
+        double east = 0;
+        double heading = 0;
+
+        Walk() {
+            points.add(new double[] {0, 0});
+        }
+
+        /**
+         * Straight on at {@code heading} degrees for {@code length} meters,
+         * a vertex every {@code spacing} meters
+         */
+        Walk straight(double heading, double length, double spacing) {
+            this.heading = heading;
+            for (double done = spacing; done <= length + 1e-9; done += spacing) {
+                step(spacing);
+            }
+            return this;
+        }
+
+        /**
+         * Turns {@code degrees} (negative for left) along an arc of the given
+         * radius, in {@code steps} vertices
+         */
+        Walk arc(double degrees, double radius, int steps) {
+            double turn = degrees / steps;
+            double chord = 2 * radius * Math.sin(Math.toRadians(Math.abs(turn)) / 2);
+            for (int i = 0; i < steps; i++) {
+                heading += turn / 2;
+                step(chord);
+                heading += turn / 2;
+            }
+            return this;
+        }
+
+        private void step(double length) {
+            north += length * Math.cos(Math.toRadians(heading));
+            east += length * Math.sin(Math.toRadians(heading));
+            points.add(new double[] {north, east});
+        }
+
+        Route route() {
+            return RouteTest.route(points.toArray(new double[points.size()][]));
+        }
+    }
+
+    /**
+     * 200 m north, then 200 m at {@code heading}, a vertex every 10 m
+     */
+    private static ManeuverList corner(double heading) {
+        return ManeuverList.build(new Walk()
+            .straight(0, 200, 10)
+            .straight(heading, 200, 10)
+            .route());
+    }
+
+    private static void assertArrivalOnly(ManeuverList list, Route route) {
+        assertEquals(1, list.size());
+        assertEquals(ManeuverList.ARRIVE, list.getType(0));
+        assertEquals(route.getTotalDistance(), list.getDistance(0), 1e-9);
+    }
+
+    @Test
+    public void collinearVerticesAreNotTurns() {
+        Route straight = new Walk().straight(30, 500, 5).route();
+        assertArrivalOnly(ManeuverList.build(straight), straight);
+
+        // Repeated vertices have no heading of their own
+        double[][] repeated = {{0, 0}, {50, 0}, {50, 0}, {50, 0}, {100, 0}, {150, 0}, {150, 0}};
+        Route stutter = RouteTest.route(repeated);
+        assertArrivalOnly(ManeuverList.build(stutter), stutter);
+    }
+
+    @Test
+    public void headingChangeIsClassified() {
+        double[] headings = {45, 90, 135, -45, -90, -150, 175, -175};
+        int[] types = {
+            ManeuverList.SLIGHT_RIGHT, ManeuverList.RIGHT, ManeuverList.SHARP_RIGHT,
+            ManeuverList.SLIGHT_LEFT, ManeuverList.LEFT, ManeuverList.SHARP_LEFT,
+            ManeuverList.U_TURN, ManeuverList.U_TURN
+        };
+        for (int i = 0; i < headings.length; i++) {
+            ManeuverList list = corner(headings[i]);
+            assertEquals(2, list.size());
+            assertEquals(types[i], list.getType(0));
+            // Reported at the corner itself, not a neighbouring vertex inside the window
+            assertEquals(headings[i], list.getAngle(0), 1);
+            assertEquals(200, list.getDistance(0), 1);
+            assertEquals(ManeuverList.ARRIVE, list.getType(1));
+        }
+        assertEquals("Turn left", corner(-90).getInstruction(0));
+        assertEquals("Bear right", corner(45).getInstruction(0));
+
+        // Too gentle to announce
+        assertEquals(1, corner(20).size());
+        assertEquals(1, corner(-25).size());
+    }
+
+    @Test
+    public void curvesAreOneManeuver() {
+        // A quarter circle of 30 m radius in 24 vertices, under 4 degrees apiece
+        Route curve = new Walk()
+            .straight(0, 100, 10)
+            .arc(90, 30, 24)
+            .straight(90, 100, 10)
+            .route();
+        ManeuverList list = ManeuverList.build(curve);
+        assertEquals(2, list.size());
+        assertEquals(ManeuverList.RIGHT, list.getType(0));
+        double arcLength = Math.PI / 2 * 30;
+        assertTrue(list.getDistance(0) > 100 && list.getDistance(0) < 100 + arcLength);
+
+        // An S-bend is two maneuvers, one each way
+        Route bend = new Walk()
+            .straight(0, 100, 10)
+            .arc(-90, 20, 20)
+            .straight(-90, 100, 10)
+            .arc(90, 20, 20)
+            .straight(0, 100, 10)
+            .route();
+        list = ManeuverList.build(bend);
+        assertEquals(3, list.size());
+        assertEquals(ManeuverList.LEFT, list.getType(0));
+        assertEquals(ManeuverList.RIGHT, list.getType(1));
+        assertTrue(list.getDistance(0) < list.getDistance(1));
+    }
+
+    @Test
+    public void noisyStraightRoadHasNoTurns() {
+        // Zig-zagging 1.5 m either side every 5 m: over 60 degrees between
+        // adjacent segments, but straight over the window
+        double[][] points = new double[200][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new double[] {i * 5, i % 2 == 0 ? -1.5 : 1.5};
+        }
+        Route noisy = RouteTest.route(points);
+        assertArrivalOnly(ManeuverList.build(noisy), noisy);
+
+        // Gentle winding over thousands of vertices
+        Route winding = RouteTest.winding(2000);
+        assertArrivalOnly(ManeuverList.build(winding), winding);
+    }
+
+    @Test
+    public void cursorMovesForwardByProgress() {
+        ManeuverList list = ManeuverList.build(new Walk()
+            .straight(0, 200, 10)
+            .straight(90, 200, 10)
+            .straight(0, 200, 10)
+            .route());
+        assertEquals(3, list.size());
+        assertEquals(ManeuverList.RIGHT, list.getType(0));
+        assertEquals(ManeuverList.LEFT, list.getType(1));
+        assertEquals(ManeuverList.ARRIVE, list.getType(2));
+        double first = list.getDistance(0);
+        double second = list.getDistance(1);
+        double arrival = list.getDistance(2);
+
+        assertEquals(0, list.advance(0, 0));
+        assertEquals(0, list.advance(0, first - 1));
+        // Passed once the rider reaches it
+        assertEquals(1, list.advance(0, first));
+        assertEquals(2, list.advance(0, (second + arrival) / 2));
+        // Stops at the arrival, even beyond the end
+        assertEquals(2, list.advance(0, arrival + 100));
+        // Never moves back
+        assertEquals(2, list.advance(2, 0));
+        assertEquals(1, list.advance(1, first - 1));
+
+        assertEquals(0, list.find(-10));
+        assertEquals(0, list.find(first - 1));
+        assertEquals(1, list.find(first));
+        assertEquals(1, list.find((first + second) / 2));
+        assertEquals(2, list.find(second));
+        assertEquals(2, list.find(arrival));
+        assertEquals(2, list.find(arrival + 100));
+
+        // Both agree wherever the rider is
+        for (double progress = 0; progress <= arrival; progress += 7) {
+            assertEquals(list.find(progress), list.advance(0, progress));
+        }
+    }
+}
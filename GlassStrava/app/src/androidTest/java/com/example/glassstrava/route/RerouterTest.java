@@ -0,0 +1,221 @@
+package com.example.glassstrava.route;
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static com.example.glassstrava.route.RouteTest.LATITUDE;
+import static com.example.glassstrava.route.RouteTest.LONGITUDE;
+import static com.example.glassstrava.route.RouteTest.METERS_PER_DEGREE;
+import static com.example.glassstrava.route.RouteTest.METERS_PER_DEGREE_LON;
+import static com.example.glassstrava.route.RouteTest.route;
+import static com.example.glassstrava.route.RouteTest.winding;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on the device, since route distances come from Location.distanceBetween
+ */
+public class RerouterTest {
+    private static final String TAG = "RerouterTest";
+    // As weighted by the Rerouter
+    private static final double AHEAD_WEIGHT = 0.25;
+    private static final double BEHIND_WEIGHT = 2.0;
+
+    /**
+     * 1000 m north, 100 m east and 1000 m back south
+     */
+    private static Route hairpin() {
+        return route(new double[][] {{0, 0}, {1000, 0}, {1000, 100}, {0, 100}});
+    }
+
+    private static double latitude(double north) {
+        return LATITUDE + north / METERS_PER_DEGREE;
+    }
+
+    private static double longitude(double east) {
+        return LONGITUDE + east / METERS_PER_DEGREE_LON;
+    }
+
+    private static double cost(double distance, double along, double progress) {
+        progress = Math.max(0, progress);
+        return distance + (along >= progress
+            ? AHEAD_WEIGHT * (along - progress) : BEHIND_WEIGHT * (progress - along));
+    }
+
+    /**
+     * Cheapest rejoin cost found by trying every {@code step} meters of the route
+     */
+    private static double bruteForce(Route route, double x, double y, double progress,
+                                     double step) {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i + 1 < route.size(); i++) {
+            double ax = route.getX(i);
+            double ay = route.getY(i);
+            double dx = route.getX(i + 1) - ax;
+            double dy = route.getY(i + 1) - ay;
+            double length = Math.sqrt(dx * dx + dy * dy);
+            double startAlong = route.getDistanceFromStart(i);
+            double segmentAlong = route.getDistanceFromStart(i + 1) - startAlong;
+            int samples = Math.max(1, (int) Math.ceil(length / step));
+            for (int k = 0; k <= samples; k++) {
+                double t = (double) k / samples;
+                double ex = ax + t * dx - x;
+                double ey = ay + t * dy - y;
+                best = Math.min(best, cost(Math.sqrt(ex * ex + ey * ey),
+                    startAlong + t * segmentAlong, progress));
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void prefersRejoiningAheadOfProgress() {
+        Route route = hairpin();
+        Rerouter rerouter = new Rerouter(new RouteIndex(route));
+
+        // Left the way out at 300 m; the way back is nearer but a kilometer further on
+        RouteMatch rejoin = rerouter.reroute(latitude(300), longitude(60), 300);
+        assertTrue(rejoin.isValid());
+        assertEquals(0, rejoin.segment);
+        assertEquals(300, rejoin.alongDistance, 1);
+        assertEquals(60, rejoin.crossTrackDistance, 0.5);
+
+        // Having ridden on to 500 m, it's cheaper to cut forward than go back
+        rejoin = rerouter.reroute(latitude(300), longitude(-50), 500);
+        assertEquals(0, rejoin.segment);
+        assertEquals(500, rejoin.alongDistance, 1);
+        // Route distances are on the ellipsoid, a few tenths of a percent off the test's offsets
+        assertEquals(Math.sqrt(50 * 50 + 200 * 200), rejoin.crossTrackDistance, 2);
+
+        // Past the hairpin, the way back is where the rider belongs
+        rejoin = rerouter.reroute(latitude(300), longitude(60), 1500);
+        assertEquals(2, rejoin.segment);
+        assertTrue(rejoin.alongDistance > 1500);
+        assertTrue(rejoin.alongDistance < 1800);
+
+        // Not joined yet: anywhere counts as ahead, so the nearest cheap point from the start
+        rejoin = rerouter.reroute(latitude(-200), longitude(50), -1);
+        assertEquals(0, rejoin.segment);
+        assertEquals(0, rejoin.alongDistance, 1);
+
+        // Out of range
+        assertFalse(rerouter.reroute(latitude(20000), longitude(0), 300).isValid());
+    }
+
+    @Test
+    public void rejoinPointIsOnTheRoute() {
+        Route route = hairpin();
+        Rerouter rerouter = new Rerouter(new RouteIndex(route));
+        // Beyond the first corner, drawn back towards it a little by the cost of skipping
+        RouteMatch rejoin = rerouter.reroute(latitude(1040), longitude(30), 1000);
+        assertEquals(1, rejoin.segment);
+        double east = rejoin.fraction * 100;
+        assertTrue(east > 0 && east < 30);
+        assertEquals(latitude(1000), rerouter.getLatitude(), 1e-7);
+        assertEquals(longitude(east), rerouter.getLongitude(), 1e-7);
+        assertEquals(Math.sqrt(40 * 40 + (30 - east) * (30 - east)),
+            rejoin.crossTrackDistance, 0.5);
+    }
+
+    @Test
+    public void maneuverCursorFollowsTheRejoinPoint() {
+        Route route = hairpin();
+        ManeuverList maneuvers = ManeuverList.build(route);
+        assertEquals(3, maneuvers.size());
+        Rerouter rerouter = new Rerouter(new RouteIndex(route));
+
+        // As navigation does: the next maneuver after the rejoin point
+        RouteMatch rejoin = rerouter.reroute(latitude(300), longitude(60), 300);
+        assertEquals(0, maneuvers.find(rejoin.alongDistance));
+        assertEquals(ManeuverList.RIGHT, maneuvers.getType(maneuvers.find(rejoin.alongDistance)));
+
+        // Rejoining on the far side of both corners skips them
+        rejoin = rerouter.reroute(latitude(300), longitude(60), 1500);
+        int cursor = maneuvers.find(rejoin.alongDistance);
+        assertEquals(2, cursor);
+        assertEquals(ManeuverList.ARRIVE, maneuvers.getType(cursor));
+
+        // Back to the first corner's approach if that's where the rider rejoins
+        rejoin = rerouter.reroute(latitude(900), longitude(-30), 900);
+        assertEquals(0, maneuvers.find(rejoin.alongDistance));
+    }
+
+    @Test
+    public void findsTheCheapestRejoinPoint() {
+        Route route = winding(2000);
+        Rerouter rerouter = new Rerouter(new RouteIndex(route));
+        Random random = new Random(17);
+
+        for (int i = 0; i < 200; i++) {
+            int vertex = random.nextInt(route.size());
+            double north = route.getY(vertex) + random.nextGaussian() * 300;
+            double east = route.getX(vertex) + random.nextGaussian() * 300;
+            double progress = random.nextInt(10) == 0 ? -1
+                : random.nextDouble() * route.getTotalDistance();
+            RouteMatch rejoin = rerouter.reroute(latitude(north), longitude(east), progress);
+            assertTrue(rejoin.isValid());
+
+            double found = cost(rejoin.crossTrackDistance, rejoin.alongDistance, progress);
+            double expected = bruteForce(route, route.projectX(longitude(east)),
+                route.projectY(latitude(north)), progress, 0.5);
+            // Never worse than sampling, and sampling is within a step of the optimum
+            assertTrue(found <= expected + 1e-6);
+            assertTrue(found >= expected - 0.5 * BEHIND_WEIGHT - 0.5);
+        }
+    }
+
+    /**
+     * Rerouting latency on a long route, against trying every point on it
+     */
+    @Test
+    public void benchmarkReroute() {
+        Route route = winding(50000);
+        Rerouter rerouter = new Rerouter(new RouteIndex(route));
+        Random random = new Random(50000);
+        int queries = 1000;
+        double[] lat = new double[queries];
+        double[] lon = new double[queries];
+        double[] progress = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            int vertex = random.nextInt(route.size());
+            lat[i] = latitude(route.getY(vertex) + random.nextGaussian() * 200);
+            lon[i] = longitude(route.getX(vertex) + random.nextGaussian() * 200);
+            // Left the route somewhere near here
+            progress[i] = Math.max(0, route.getDistanceFromStart(vertex)
+                + random.nextGaussian() * 500);
+        }
+
+        int bruteQueries = 5;
+        long rerouteNanos = Long.MAX_VALUE;
+        long bruteNanos = Long.MAX_VALUE;
+        double sink = 0;
+        // Best of several rounds, so both are compiled by the last
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                sink += rerouter.reroute(lat[i], lon[i], progress[i]).alongDistance;
+            }
+            rerouteNanos = Math.min(rerouteNanos, (System.nanoTime() - start) / queries);
+
+            start = System.nanoTime();
+            for (int i = 0; i < bruteQueries; i++) {
+                sink += bruteForce(route, route.projectX(lon[i]), route.projectY(lat[i]),
+                    progress[i], 10);
+            }
+            bruteNanos = Math.min(bruteNanos, (System.nanoTime() - start) / bruteQueries);
+        }
+
+        Log.i(TAG, String.format(Locale.US,
+            "50000 points: reroute %d us per fix; trying every point %d us per fix",
+            rerouteNanos / 1000, bruteNanos / 1000));
+        assertTrue(sink > 0);
+        // Well inside the one second between fixes
+        assertTrue(rerouteNanos < 3000000);
+        assertTrue(rerouteNanos * 5 < bruteNanos);
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.glassstrava.route;
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static com.example.glassstrava.route.RouteTest.LATITUDE;
+import static com.example.glassstrava.route.RouteTest.LONGITUDE;
+import static com.example.glassstrava.route.RouteTest.METERS_PER_DEGREE;
+import static com.example.glassstrava.route.RouteTest.METERS_PER_DEGREE_LON;
+import static com.example.glassstrava.route.RouteTest.route;
+import static com.example.glassstrava.route.RouteTest.winding;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on the device, since route distances come from Location.distanceBetween
+ */
+public class RouteIndexTest {
+    private static final String TAG = "RouteIndexTest";
+
+    /**
+     * Distance from a projected point to the closest segment, checking every one
+     */
+    private static double bruteForce(Route route, double x, double y) {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i + 1 < route.size(); i++) {
+            double ax = route.getX(i);
+            double ay = route.getY(i);
+            double dx = route.getX(i + 1) - ax;
+            double dy = route.getY(i + 1) - ay;
+            double lengthSquared = dx * dx + dy * dy;
+            double t = lengthSquared > 0 ? ((x - ax) * dx + (y - ay) * dy) / lengthSquared : 0;
+            t = Math.max(0, Math.min(1, t));
+            double ex = ax + t * dx - x;
+            double ey = ay + t * dy - y;
+            best = Math.min(best, Math.sqrt(ex * ex + ey * ey));
+        }
+        return best;
+    }
+
+    private static double latitude(double north) {
+        return LATITUDE + north / METERS_PER_DEGREE;
+    }
+
+    private static double longitude(double east) {
+        return LONGITUDE + east / METERS_PER_DEGREE_LON;
+    }
+
+    @Test
+    public void findsTheSameSegmentAsABruteForceSearch() {
+        Route route = winding(3000);
+        RouteIndex index = new RouteIndex(route);
+        RouteMatch match = new RouteMatch();
+        Random random = new Random(11);
+
+        for (int i = 0; i < 2000; i++) {
+            int vertex = random.nextInt(route.size());
+            double north = route.getY(vertex) + random.nextGaussian() * 150;
+            double east = route.getX(vertex) + random.nextGaussian() * 150;
+            double lat = latitude(north);
+            double lon = longitude(east);
+            index.findNearest(lat, lon, 2000, -1, 0, match);
+
+            double expected = bruteForce(route, route.projectX(lon), route.projectY(lat));
+            assertTrue(match.isValid());
+            assertEquals(expected, match.crossTrackDistance, 1e-6);
+        }
+    }
+
+    @Test
+    public void projectsOntoTheSegment() {
+        Route route = route(new double[][] {{0, 0}, {0, 100}, {100, 100}});
+        RouteIndex index = new RouteIndex(route);
+        RouteMatch match = new RouteMatch();
+
+        index.findNearest(latitude(-10), longitude(25), 100, -1, 0, match);
+        assertEquals(0, match.segment);
+        assertEquals(0.25, match.fraction, 1e-3);
+        assertEquals(10, match.crossTrackDistance, 0.01);
+        assertEquals(route.getTotalDistance() * 0.125, match.alongDistance, 0.5);
+
+        // Past the corner, on the second segment
+        index.findNearest(latitude(60), longitude(105), 100, -1, 0, match);
+        assertEquals(1, match.segment);
+        assertEquals(0.6, match.fraction, 1e-3);
+    }
+
+    @Test
+    public void nothingBeyondTheSearchRadius() {
+        Route route = route(new double[][] {{0, 0}, {0, 100}});
+        RouteIndex index = new RouteIndex(route);
+        RouteMatch match = new RouteMatch();
+
+        index.findNearest(latitude(500), longitude(50), 400, -1, 0, match);
+        assertFalse(match.isValid());
+        index.findNearest(latitude(500), longitude(50), 600, -1, 0, match);
+        assertTrue(match.isValid());
+        assertEquals(500, match.crossTrackDistance, 0.01);
+    }
+
+    @Test
+    public void alongPenaltyPrefersTheCurrentLeg() {
+        // Out and back 10 m apart
+        Route route = route(new double[][] {{0, 0}, {0, 1000}, {10, 1000}, {10, 0}});
+        RouteIndex index = new RouteIndex(route);
+        RouteMatch match = new RouteMatch();
+
+        // Slightly closer to the return leg
+        index.findNearest(latitude(6), longitude(300), 100, -1, 0, match);
+        assertEquals(2, match.segment);
+        // But still on the way out
+        index.findNearest(latitude(6), longitude(300), 100, 290, 0.05, match);
+        assertEquals(0, match.segment);
+        assertEquals(300, match.alongDistance, 1);
+    }
+
+    @Test
+    public void rejoinSkipsAheadWhenThatIsCheaper() {
+        Route route = route(new double[][] {{0, 0}, {0, 1000}});
+        RouteIndex index = new RouteIndex(route);
+        RouteMatch match = new RouteMatch();
+
+        // 100 m off the route, level with 500 m, having covered 200 m
+        index.findRejoin(latitude(100), longitude(500), 1000, 200, 0.2, 1.0, match);
+        assertTrue(match.isValid());
+        // Cuts diagonally back a little behind the perpendicular, where skipping costs less
+        assertTrue(match.alongDistance < 500);
+        assertTrue(match.alongDistance > 400);
+        double cost = match.crossTrackDistance + 0.2 * (match.alongDistance - 200);
+        for (int along = 200; along <= 1000; along += 10) {
+            double dx = along - 500;
+            double other = Math.sqrt(dx * dx + 100 * 100) + 0.2 * (along - 200);
+            assertTrue(cost <= other + 0.5);
+        }
+    }
+
+    /**
+     * Nearest-segment query latency on dense routes, against checking every segment
+     */
+    @Test
+    public void benchmarkNearestSegment() {
+        for (int count : new int[] {1000, 10000, 50000}) {
+            Route route = winding(count);
+            long start = System.nanoTime();
+            RouteIndex index = new RouteIndex(route);
+            long buildNanos = System.nanoTime() - start;
+
+            Random random = new Random(count);
+            int queries = 2000;
+            double[] lat = new double[queries];
+            double[] lon = new double[queries];
+            for (int i = 0; i < queries; i++) {
+                int vertex = random.nextInt(route.size());
+                lat[i] = latitude(route.getY(vertex) + random.nextGaussian() * 30);
+                lon[i] = longitude(route.getX(vertex) + random.nextGaussian() * 30);
+            }
+
+            RouteMatch match = new RouteMatch();
+            int bruteQueries = Math.max(20, 200000 / count);
+            long indexNanos = Long.MAX_VALUE;
+            long bruteNanos = Long.MAX_VALUE;
+            double sink = 0;
+            // Best of several rounds, so both are compiled by the last
+            for (int round = 0; round < 3; round++) {
+                start = System.nanoTime();
+                for (int i = 0; i < queries; i++) {
+                    index.findNearest(lat[i], lon[i], 2000, -1, 0, match);
+                }
+                indexNanos = Math.min(indexNanos, (System.nanoTime() - start) / queries);
+
+                start = System.nanoTime();
+                for (int i = 0; i < bruteQueries; i++) {
+                    sink += bruteForce(route, route.projectX(lon[i]), route.projectY(lat[i]));
+                }
+                bruteNanos = Math.min(bruteNanos, (System.nanoTime() - start) / bruteQueries);
+            }
+
+            Log.i(TAG, String.format(Locale.US,
+                "%d points: index built in %d ms, %d ns per query; brute force %d ns per query",
+                count, buildNanos / 1000000, indexNanos, bruteNanos));
+            assertTrue(sink > 0);
+            if (count >= 10000) {
+                assertTrue(indexNanos * 5 < bruteNanos);
+            }
+        }
+    }
+}
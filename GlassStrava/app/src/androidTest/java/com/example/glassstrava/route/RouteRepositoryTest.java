@@ -0,0 +1,296 @@
+package com.example.glassstrava.route;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.example.glassstrava.api.StandInServer;
+import com.example.glassstrava.models.RouteSummary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Counts route list requests against a local stand-in for Strava. The
+ * repository runs on a looper thread of its own standing in for the main one
+ */
+public class RouteRepositoryTest {
+    private static final String CHANGED = "changed";
+    private static final String FAILED = "failed";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private StandInServer mServer;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private File mFile;
+    // Routes the athlete has on Strava
+    private volatile int mRouteCount = 75;
+    private volatile int mCode = 200;
+    private volatile String mBody = null;
+    private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+
+    private final StandInServer.Handler mRoutes = new StandInServer.Handler() {
+        @Override
+        public StandInServer.Reply handle(StandInServer.Request request) {
+            if (mCode != 200) {
+                return new StandInServer.Reply(mCode, "{\"message\":\"Unavailable\"}");
+            }
+            if (mBody != null) {
+                return new StandInServer.Reply(200, mBody);
+            }
+            assertEquals("/athletes/7/routes", request.path.substring(0, request.path.indexOf('?')));
+            int page = Integer.parseInt(request.getParameter("page"));
+            int perPage = Integer.parseInt(request.getParameter("per_page"));
+            StringBuilder body = new StringBuilder("[");
+            for (int i = (page - 1) * perPage; i < Math.min(page * perPage, mRouteCount); i++) {
+                if (body.length() > 1) body.append(',');
+                body.append(route(i));
+            }
+            return new StandInServer.Reply(200, body.append(']').toString()).gzip();
+        }
+    };
+
+    /**
+     * A route object as Strava lists it, with the fields the picker skips
+     */
+    private static String route(int index) {
+        return "{\"athlete\":{\"id\":7,\"resource_state\":2},"
+            + "\"description\":null,"
+            + "\"distance\":" + (10000.5 + index) + ","
+            + "\"elevation_gain\":" + (100.25 + index) + ","
+            + "\"id\":" + (1000 + index) + ","
+            + "\"map\":{\"id\":\"r" + index + "\",\"summary_polyline\":\"_p~iF~ps|U_ulLnnqC\","
+            + "\"polyline\":\"_p~iF~ps|U_ulLnnqC_mqNvxq`@\"},"
+            + "\"name\":\"Route \\u00e9 " + index + "\","
+            + "\"segments\":[{\"id\":1,\"points\":[[1,2],[3,4]]}],"
+            + "\"starred\":false,"
+            + "\"type\":" + (index % 2 == 0 ? RouteSummary.TYPE_RIDE : RouteSummary.TYPE_RUN) + ","
+            + "\"updated_at\":\"2024-05-01T08:00:" + (index % 60 < 10 ? "0" : "") + index % 60 + "Z\"}";
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer(mRoutes);
+        mServer.getPreferences().edit().putString("strava_athlete_id", "7").commit();
+        mThread = new HandlerThread("RouteRepositoryTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mFile = new File(mFolder.getRoot(), "route_list");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mThread.quit();
+        mServer.close();
+    }
+
+    private RouteRepository repository() throws Exception {
+        final File cacheDir = mFolder.newFolder();
+        return onLooper(new Callable<RouteRepository>() {
+            @Override
+            public RouteRepository call() {
+                RouteRepository repository = new RouteRepository(mServer.client(cacheDir),
+                    mServer.getPreferences(), mFile, mThread.getLooper());
+                repository.setListener(new RouteRepository.Listener() {
+                    @Override
+                    public void onRoutesChanged() {
+                        mEvents.add(CHANGED);
+                    }
+
+                    @Override
+                    public void onLoadFailed() {
+                        mEvents.add(FAILED);
+                    }
+                });
+                repository.load();
+                return repository;
+            }
+        });
+    }
+
+    private <T> T onLooper(Callable<T> callable) throws Exception {
+        FutureTask<T> task = new FutureTask<>(callable);
+        mHandler.post(task);
+        return task.get(10, TimeUnit.SECONDS);
+    }
+
+    private void show(final RouteRepository repository, final int position) throws Exception {
+        onLooper(new Callable<Void>() {
+            @Override
+            public Void call() {
+                repository.onItemShown(position);
+                return null;
+            }
+        });
+    }
+
+    private int size(final RouteRepository repository) throws Exception {
+        return onLooper(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return repository.size();
+            }
+        });
+    }
+
+    private RouteSummary get(final RouteRepository repository, final int position)
+            throws Exception {
+        return onLooper(new Callable<RouteSummary>() {
+            @Override
+            public RouteSummary call() {
+                return repository.get(position);
+            }
+        });
+    }
+
+    private void expect(String event) throws InterruptedException {
+        assertEquals(event, mEvents.poll(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Nothing more arrives once what is queued has run
+     */
+    private void expectNothingMore() throws Exception {
+        Thread.sleep(200);
+        onLooper(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        });
+        assertNull(mEvents.poll());
+    }
+
+    private static void assertRoute(int index, RouteSummary route) {
+        assertEquals(1000 + index, route.id);
+        assertEquals("Route é " + index, route.name);
+        assertEquals(10000.5 + index, route.distance, 0);
+        assertEquals(100.25 + index, route.elevationGain, 0);
+        assertEquals(index % 2 == 0 ? RouteSummary.TYPE_RIDE : RouteSummary.TYPE_RUN, route.type);
+        assertEquals(String.format("2024-05-01T08:00:%02dZ", index % 60), route.updatedAt);
+    }
+
+    @Test
+    public void fetchesTheNextPageAsTheEndComesIntoView() throws Exception {
+        RouteRepository repository = repository();
+        expect(CHANGED);
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals("1", mServer.getRequests().get(0).getParameter("page"));
+        assertEquals("30", mServer.getRequests().get(0).getParameter("per_page"));
+        assertEquals(30, size(repository));
+
+        // Not until ten cards from the end
+        for (int position = 0; position < 20; position++) {
+            show(repository, position);
+        }
+        expectNothingMore();
+        assertEquals(1, mServer.getRequestCount());
+
+        // Once, however many cards go by while it loads
+        for (int position = 20; position < 30; position++) {
+            show(repository, position);
+        }
+        expect(CHANGED);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals("2", mServer.getRequests().get(1).getParameter("page"));
+        assertEquals(60, size(repository));
+
+        show(repository, 50);
+        expect(CHANGED);
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(75, size(repository));
+
+        // The short page was the last
+        show(repository, 74);
+        expectNothingMore();
+        assertEquals(3, mServer.getRequestCount());
+        for (int i = 0; i < 75; i++) {
+            assertRoute(i, get(repository, i));
+        }
+        assertEquals(74, repository.indexOf(1074));
+        assertEquals(-1, repository.indexOf(1075));
+    }
+
+    @Test
+    public void storedListIsShownOffline() throws Exception {
+        RouteRepository repository = repository();
+        expect(CHANGED);
+        show(repository, 20);
+        expect(CHANGED);
+        assertEquals(60, size(repository));
+
+        mCode = 503;
+        repository = repository();
+        // Straight from disk, then the refresh fails
+        expect(CHANGED);
+        expect(FAILED);
+        assertEquals(60, size(repository));
+        for (int i = 0; i < 60; i++) {
+            assertRoute(i, get(repository, i));
+        }
+        int requests = mServer.getRequestCount();
+
+        // Scrolling offline doesn't retry on every card
+        for (int position = 0; position < 60; position++) {
+            show(repository, position);
+        }
+        expectNothingMore();
+        assertEquals(requests, mServer.getRequestCount());
+    }
+
+    @Test
+    public void deletedRoutesDropOffTheStoredList() throws Exception {
+        RouteRepository repository = repository();
+        expect(CHANGED);
+        show(repository, 20);
+        expect(CHANGED);
+        assertEquals(60, size(repository));
+
+        mRouteCount = 12;
+        repository = repository();
+        expect(CHANGED);
+        assertEquals(60, size(repository));
+        expect(CHANGED);
+        assertEquals(12, size(repository));
+        expectNothingMore();
+
+        // And stay off it
+        mCode = 503;
+        repository = repository();
+        expect(CHANGED);
+        expect(FAILED);
+        assertEquals(12, size(repository));
+    }
+
+    @Test
+    public void malformedListFailsWithoutReplacingTheStoredOne() throws Exception {
+        RouteRepository repository = repository();
+        expect(CHANGED);
+
+        for (String body : new String[] {"{\"message\":\"not a list\"}", "[{\"id\":1,", "[3]"}) {
+            mBody = body;
+            repository = repository();
+            expect(CHANGED);
+            expect(FAILED);
+            assertEquals(30, size(repository));
+            assertRoute(0, get(repository, 0));
+        }
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+}
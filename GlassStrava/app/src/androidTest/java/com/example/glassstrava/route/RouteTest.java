@@ -0,0 +1,160 @@
+package com.example.glassstrava.route;
+
+import android.location.Location;
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on the device, since route distances come from Location.distanceBetween
+ */
+public class RouteTest {
+    private static final String TAG = "RouteTest";
+    private static final int LOOKUP_RUNS = 1000000;
+    static final double LATITUDE = 37.7749;
+    static final double LONGITUDE = -122.4194;
+    static final double METERS_PER_DEGREE = 111319.49;
+    static final double METERS_PER_DEGREE_LON =
+        METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+
+    /**
+     * Route through the given {north, east} offsets in meters
+     */
+    static Route route(double[][] points) {
+        double[] latitude = new double[points.length];
+        double[] longitude = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            latitude[i] = LATITUDE + points[i][0] / METERS_PER_DEGREE;
+            longitude[i] = LONGITUDE + points[i][1] / METERS_PER_DEGREE_LON;
+        }
+        return new Route(latitude, longitude);
+    }
+
+    /**
+     * A winding road of {@code count} vertices roughly 10 m apart
+     */
+    static Route winding(int count) {
+        double[][] points = new double[count][];
+        double heading = 0;
+        double north = 0;
+        double east = 0;
+        for (int i = 0; i < count; i++) {
+            points[i] = new double[] {north, east};
+            heading += Math.sin(i * 0.05) * 0.1;
+            north += 10 * Math.cos(heading);
+            east += 10 * Math.sin(heading);
+        }
+        return route(points);
+    }
+
+    private static double segment(Route route, int i) {
+        float[] result = new float[1];
+        Location.distanceBetween(route.getLatitude(i), route.getLongitude(i),
+            route.getLatitude(i + 1), route.getLongitude(i + 1), result);
+        return result[0];
+    }
+
+    /**
+     * What updateRemainingDistance did on every fix before the prefix sums
+     */
+    private static double remainingByWalking(Route route, int from) {
+        double remaining = 0;
+        for (int i = from; i < route.size() - 1; i++) {
+            remaining += segment(route, i);
+        }
+        return remaining;
+    }
+
+    @Test
+    public void prefixSumsMatchTheSegmentLengths() {
+        Route route = route(new double[][] {{0, 0}, {100, 0}, {100, 50}, {0, 50}});
+
+        assertEquals(0, route.getDistanceFromStart(0), 0);
+        // The test's spherical offsets are a few tenths of a percent off the ellipsoid
+        assertEquals(100, route.getDistanceFromStart(1), 1);
+        assertEquals(150, route.getDistanceFromStart(2), 1);
+        assertEquals(250, route.getTotalDistance(), 1);
+        for (int i = 0; i < route.size(); i++) {
+            assertEquals(remainingByWalking(route, i), route.getDistanceToEnd(i), 1e-3);
+        }
+        assertEquals(0, route.getDistanceToEnd(3), 0);
+    }
+
+    @Test
+    public void fractionCompleteIsClamped() {
+        Route route = route(new double[][] {{0, 0}, {100, 0}, {100, 100}});
+        double total = route.getTotalDistance();
+
+        assertEquals(0.5, route.getFractionComplete(total / 2), 1e-9);
+        assertEquals(0, route.getFractionComplete(-10), 0);
+        assertEquals(1, route.getFractionComplete(total + 10), 0);
+    }
+
+    @Test
+    public void emptyAndSinglePointRoutesHaveNoLength() {
+        Route empty = new Route(new double[0], new double[0]);
+        assertTrue(empty.isEmpty());
+        assertEquals(0, empty.getTotalDistance(), 0);
+        assertEquals(0, empty.getFractionComplete(10), 0);
+
+        Route single = route(new double[][] {{0, 0}});
+        assertEquals(0, single.getTotalDistance(), 0);
+        assertEquals(0, single.getDistanceToEnd(0), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMismatchedCoordinates() {
+        new Route(new double[2], new double[3]);
+    }
+
+    @Test
+    public void projectsToLocalMeters() {
+        Route route = route(new double[][] {{0, 0}, {300, 400}});
+
+        assertEquals(0, route.getX(0), 1e-6);
+        // Scaled at the route's middle latitude rather than its first
+        assertEquals(400, route.getX(1), 0.5);
+        assertEquals(300, route.getY(1), 1e-6);
+    }
+
+    /**
+     * Remaining distance from the middle of the route: walking the segments
+     * as updateRemainingDistance did, against a prefix-sum subtraction
+     */
+    @Test
+    public void benchmarkRemainingDistance() {
+        for (int count : new int[] {100, 1000, 10000, 50000}) {
+            Route route = winding(count);
+            int from = count / 2;
+            int runs = Math.max(3, 200000 / count);
+
+            double walked = 0;
+            long start = System.nanoTime();
+            for (int run = 0; run < runs; run++) {
+                walked = remainingByWalking(route, from);
+            }
+            long walkNanos = (System.nanoTime() - start) / runs;
+
+            double lookup = 0;
+            start = System.nanoTime();
+            for (int run = 0; run < LOOKUP_RUNS; run++) {
+                lookup += route.getDistanceToEnd(from + run % 2);
+            }
+            long lookupNanos = (System.nanoTime() - start) / LOOKUP_RUNS;
+
+            Log.i(TAG, String.format(Locale.US,
+                "%d points: walking %d us per fix, prefix sums %d ns per fix",
+                count, walkNanos / 1000, lookupNanos));
+            assertEquals(walked, route.getDistanceToEnd(from), walked * 1e-9 + 1e-6);
+            assertTrue(lookup > 0);
+            if (count >= 1000) {
+                assertTrue(lookupNanos * 100 < walkNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.glassstrava.route;
+
+import org.junit.Test;
+
+import static com.example.glassstrava.route.RouteTest.LATITUDE;
+import static com.example.glassstrava.route.RouteTest.LONGITUDE;
+import static com.example.glassstrava.route.RouteTest.METERS_PER_DEGREE;
+import static com.example.glassstrava.route.RouteTest.METERS_PER_DEGREE_LON;
+import static com.example.glassstrava.route.RouteTest.route;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on the device, since route distances come from Location.distanceBetween
+ */
+public class RouteTrackerTest {
+
+    /**
+     * Counts off-route and back-on-route events
+     */
+    private static class Events implements RouteTracker.Listener {
+        int offRoute;
+        int backOnRoute;
+
+        @Override
+        public void onOffRoute(RouteMatch match) {
+            offRoute++;
+        }
+
+        @Override
+        public void onBackOnRoute(RouteMatch match) {
+            backOnRoute++;
+        }
+    }
+
+    private static RouteMatch update(RouteTracker tracker, double north, double east) {
+        return tracker.update(LATITUDE + north / METERS_PER_DEGREE,
+            LONGITUDE + east / METERS_PER_DEGREE_LON);
+    }
+
+    /**
+     * A 400 m square ridden clockwise, back to where it starts
+     */
+    private static Route loop() {
+        return route(new double[][] {{0, 0}, {0, 400}, {-400, 400}, {-400, 0}, {0, 0}});
+    }
+
+    @Test
+    public void firstFixBehindTheStartOfALoopJoinsAtTheStart() {
+        Route route = loop();
+        RouteTracker tracker = new RouteTracker(new RouteIndex(route));
+
+        // Closer to the last segment than to the first
+        RouteMatch match = update(tracker, -3, 1);
+        assertTrue(match.isValid());
+        assertEquals(0, match.segment);
+        assertEquals(0, tracker.getProgress(), 2);
+        assertEquals(0, tracker.getDistanceCovered(), 0);
+
+        // Riding the loop builds progress up to its end
+        for (int east = 20; east <= 400; east += 20) update(tracker, 0, east);
+        for (int north = -20; north >= -400; north -= 20) update(tracker, north, 400);
+        for (int east = 380; east >= 0; east -= 20) update(tracker, -400, east);
+        for (int north = -380; north <= 0; north += 20) update(tracker, north, 0);
+        assertEquals(route.getTotalDistance(), tracker.getProgress(), 2);
+        assertEquals(route.getTotalDistance(), tracker.getDistanceCovered(), 4);
+        assertFalse(tracker.isOffRoute());
+    }
+
+    @Test
+    public void joinsPartWayAlongTheRoute() {
+        Route route = route(new double[][] {{0, 0}, {0, 1000}});
+        RouteTracker tracker = new RouteTracker(new RouteIndex(route));
+
+        update(tracker, 10, 600);
+        assertEquals(600, tracker.getProgress(), 3);
+        update(tracker, 5, 650);
+        assertEquals(50, tracker.getDistanceCovered(), 3);
+    }
+
+    @Test
+    public void doesNotJoinFromFarAway() {
+        Route route = route(new double[][] {{0, 0}, {0, 1000}});
+        RouteTracker tracker = new RouteTracker(new RouteIndex(route));
+
+        RouteMatch match = update(tracker, 300, 500);
+        assertTrue(match.isValid());
+        assertEquals(300, match.crossTrackDistance, 2);
+        assertEquals(-1, tracker.getProgress(), 0);
+        assertEquals(0, tracker.getDistanceCovered(), 0);
+    }
+
+    @Test
+    public void followsTheLegOfAnOutAndBack() {
+        // Out and back on the same road, a few meters apart
+        Route route = route(new double[][] {{0, 0}, {0, 1000}, {6, 1000}, {6, 0}});
+        RouteTracker tracker = new RouteTracker(new RouteIndex(route));
+
+        for (int east = 0; east <= 1000; east += 25) update(tracker, 1, east);
+        for (int east = 975; east >= 500; east -= 25) update(tracker, 5, east);
+        // Half way back, not half way out
+        assertEquals(1506, tracker.getProgress(), 5);
+    }
+
+    @Test
+    public void reportsLeavingAndRejoiningWithHysteresis() {
+        Route route = route(new double[][] {{0, 0}, {0, 1000}});
+        RouteTracker tracker = new RouteTracker(new RouteIndex(route));
+        Events events = new Events();
+        tracker.setListener(events);
+
+        update(tracker, 0, 100);
+        update(tracker, 0, 200);
+        double progress = tracker.getProgress();
+
+        // One stray fix isn't enough
+        update(tracker, 50, 210);
+        assertFalse(tracker.isOffRoute());
+        update(tracker, 0, 220);
+        update(tracker, 50, 230);
+        update(tracker, 60, 240);
+        assertTrue(tracker.isOffRoute());
+        assertEquals(1, events.offRoute);
+
+        // A detour doesn't move progress
+        update(tracker, 60, 600);
+        update(tracker, 30, 600);
+        assertTrue(tracker.isOffRoute());
+        assertEquals(220, tracker.getProgress(), 3);
+
+        update(tracker, 20, 610);
+        assertFalse(tracker.isOffRoute());
+        assertEquals(1, events.backOnRoute);
+        assertEquals(610, tracker.getProgress(), 3);
+        assertTrue(tracker.getProgress() > progress);
+    }
+}
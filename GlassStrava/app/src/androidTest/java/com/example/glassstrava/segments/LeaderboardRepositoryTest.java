@@ -0,0 +1,242 @@
+package com.example.glassstrava.segments;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.example.glassstrava.api.StandInServer;
+import com.example.glassstrava.api.StravaClient;
+import com.example.glassstrava.models.Segment;
+import com.example.glassstrava.models.SegmentEffort;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts leaderboard requests against a local stand-in for Strava.
+ * The repository runs on a looper thread of its own standing in for the
+ * main one
+ */
+public class LeaderboardRepositoryTest {
+    private static final long SEGMENT = 42;
+    private static final long MINUTE = 60 * 1000;
+    private static final String LEADERBOARD = "{\"entries\":["
+        + "{\"athlete_name\":\"A\",\"elapsed_time\":300,\"rank\":1},"
+        + "{\"athlete_name\":\"B\",\"elapsed_time\":320,\"rank\":2}]}";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private StandInServer mServer;
+    private StravaClient mClient;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private volatile int mCode = 200;
+    private volatile CountDownLatch mHold = new CountDownLatch(0);
+    private final CountDownLatch mArrived = new CountDownLatch(1);
+    // Only touched on the looper thread
+    private final List<List<SegmentEffort>> mLoaded = new ArrayList<>();
+    // Moves the repository's clock ahead of the real one
+    private volatile long mClockOffset = 0;
+
+    private final StandInServer.Handler mLeaderboards = new StandInServer.Handler() {
+        @Override
+        public StandInServer.Reply handle(StandInServer.Request request) {
+            assertTrue(request.path.startsWith("/segments/" + SEGMENT + "/leaderboard?"));
+            mArrived.countDown();
+            try {
+                mHold.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (mCode != 200) {
+                return new StandInServer.Reply(mCode, "{\"message\":\"Unavailable\"}");
+            }
+            return new StandInServer.Reply(200, LEADERBOARD).gzip();
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer(mLeaderboards);
+        mClient = mServer.client(mFolder.newFolder("http"));
+        mThread = new HandlerThread("LeaderboardRepositoryTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mThread.quit();
+        mServer.close();
+    }
+
+    private File leaderboardDir() {
+        return new File(mFolder.getRoot(), "leaderboards");
+    }
+
+    private LeaderboardRepository repository() throws Exception {
+        return onLooper(new Callable<LeaderboardRepository>() {
+            @Override
+            public LeaderboardRepository call() {
+                return new LeaderboardRepository(leaderboardDir(), mClient,
+                    new LeaderboardRepository.Listener() {
+                        @Override
+                        public void onLeaderboardLoaded(long segmentId,
+                                                        List<SegmentEffort> leaderboard) {
+                            assertEquals(SEGMENT, segmentId);
+                            mLoaded.add(leaderboard);
+                        }
+                    }, mThread.getLooper()) {
+                    @Override
+                    long now() {
+                        return System.currentTimeMillis() + mClockOffset;
+                    }
+                };
+            }
+        });
+    }
+
+    private <T> T onLooper(Callable<T> callable) throws Exception {
+        FutureTask<T> task = new FutureTask<>(callable);
+        mHandler.post(task);
+        return task.get(10, TimeUnit.SECONDS);
+    }
+
+    private void prefetch(final LeaderboardRepository repository) throws Exception {
+        onLooper(new Callable<Void>() {
+            @Override
+            public Void call() {
+                Segment segment = new Segment();
+                segment.id = SEGMENT;
+                repository.prefetch(Collections.singletonList(segment), 0);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Until the requests in flight have been delivered
+     */
+    private void awaitLoaded(final LeaderboardRepository repository) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (onLooper(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return repository.isLoading();
+            }
+        })) {
+            assertTrue("Still loading", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private int loadedCount() throws Exception {
+        return onLooper(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mLoaded.size();
+            }
+        });
+    }
+
+    @Test
+    public void loadsOnceAndThenFromDisk() throws Exception {
+        LeaderboardRepository repository = repository();
+        prefetch(repository);
+        awaitLoaded(repository);
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, loadedCount());
+        assertEquals(2, mLoaded.get(0).size());
+
+        // Current, so nothing more to do
+        prefetch(repository);
+        awaitLoaded(repository);
+        assertEquals(1, mServer.getRequestCount());
+
+        LeaderboardRepository restarted = repository();
+        prefetch(restarted);
+        awaitLoaded(restarted);
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(2, loadedCount());
+    }
+
+    @Test
+    public void expiredLeaderboardWaitsBeforeItIsRefreshedAgain() throws Exception {
+        // Fetched long ago
+        assertTrue(leaderboardDir().mkdirs());
+        StoredResponse.write(new File(leaderboardDir(), SEGMENT + ".json"), 0, LEADERBOARD);
+
+        mCode = 503;
+        LeaderboardRepository repository = repository();
+        prefetch(repository);
+        awaitLoaded(repository);
+        assertEquals(1, mServer.getRequestCount());
+        // Shown anyway
+        assertEquals(1, loadedCount());
+
+        // Not on every redraw of the card, even once the server is back
+        mCode = 200;
+        mClockOffset = MINUTE - 1000;
+        for (int i = 0; i < 10; i++) {
+            prefetch(repository);
+            awaitLoaded(repository);
+        }
+        assertEquals(1, mServer.getRequestCount());
+
+        // But once the delay is up
+        mClockOffset = MINUTE;
+        prefetch(repository);
+        awaitLoaded(repository);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(2, loadedCount());
+
+        // Stored fresh again
+        LeaderboardRepository restarted = repository();
+        prefetch(restarted);
+        awaitLoaded(restarted);
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void resultsArrivingAfterShutdownAreDropped() throws Exception {
+        mHold = new CountDownLatch(1);
+        final LeaderboardRepository repository = repository();
+        prefetch(repository);
+        assertTrue(mArrived.await(10, TimeUnit.SECONDS));
+
+        onLooper(new Callable<Void>() {
+            @Override
+            public Void call() {
+                repository.shutdown();
+                return null;
+            }
+        });
+        mHold.countDown();
+
+        // Written to disk by the request that was running, but not delivered
+        File file = new File(leaderboardDir(), SEGMENT + ".json");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!file.exists()) {
+            assertTrue("Not stored", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        assertEquals(0, loadedCount());
+    }
+}
@@ -0,0 +1,321 @@
+package com.example.glassstrava.segments;
+
+import android.util.Log;
+
+import com.example.glassstrava.models.Segment;
+import com.example.glassstrava.models.SegmentEffort;
+import com.example.glassstrava.route.PolylineCodec;
+import com.example.glassstrava.route.Route;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rides simulated fixes over segments.
+ * Runs on the device, since segment lengths come from Location.distanceBetween
+ */
+public class SegmentMatcherTest {
+    private static final String TAG = "SegmentMatcherTest";
+    private static final double LATITUDE = 37.7749;
+    private static final double LONGITUDE = -122.4194;
+    private static final double METERS_PER_DEGREE = 111319.49;
+    private static final double METERS_PER_DEGREE_LON =
+        METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+
+    // 300 m east then 200 m north, as {north, east} in meters
+    private static final double[][] L_SHAPE = {{0, 0}, {0, 300}, {200, 300}};
+
+    /**
+     * Records what the matcher reported, in order
+     */
+    private static class Events implements SegmentMatcher.Listener {
+        final List<String> events = new ArrayList<>();
+        int elapsedSeconds = -1;
+        int rank = -1;
+
+        @Override
+        public void onEffortStarted(Segment segment) {
+            events.add("started " + segment.id);
+        }
+
+        @Override
+        public void onEffortFinished(Segment segment, int elapsedSeconds, int rank) {
+            events.add("finished " + segment.id);
+            this.elapsedSeconds = elapsedSeconds;
+            this.rank = rank;
+        }
+
+        @Override
+        public void onEffortAbandoned(Segment segment) {
+            events.add("abandoned " + segment.id);
+        }
+    }
+
+    private static double latitude(double north) {
+        return LATITUDE + north / METERS_PER_DEGREE;
+    }
+
+    private static double longitude(double east) {
+        return LONGITUDE + east / METERS_PER_DEGREE_LON;
+    }
+
+    private static Segment segment(long id, double[][] points) {
+        double[] latitude = new double[points.length];
+        double[] longitude = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            latitude[i] = latitude(points[i][0]);
+            longitude[i] = longitude(points[i][1]);
+        }
+        Segment segment = new Segment();
+        segment.id = id;
+        segment.name = "Segment " + id;
+        segment.polyline = PolylineCodec.encode(new Route(latitude, longitude));
+        segment.startLatitude = latitude[0];
+        segment.startLongitude = longitude[0];
+        segment.endLatitude = latitude[points.length - 1];
+        segment.endLongitude = longitude[points.length - 1];
+        return segment;
+    }
+
+    /**
+     * Rides through {north, east} waypoints at a steady speed with a fix
+     * every {@code interval} ms, starting at time 0
+     */
+    private static void ride(SegmentMatcher matcher, double[][] path, double speed,
+                             long interval) {
+        double step = speed * interval / 1000.0;
+        double offset = 0;
+        long time = 0;
+        for (int i = 0; i + 1 < path.length; i++) {
+            double dy = path[i + 1][0] - path[i][0];
+            double dx = path[i + 1][1] - path[i][1];
+            double length = Math.sqrt(dx * dx + dy * dy);
+            for (; offset < length; offset += step) {
+                double t = offset / length;
+                matcher.update(latitude(path[i][0] + t * dy), longitude(path[i][1] + t * dx), time);
+                time += interval;
+            }
+            offset -= length;
+        }
+    }
+
+    private static SegmentMatcher matcher(Events events, Segment... segments) {
+        SegmentMatcher matcher = new SegmentMatcher(events);
+        matcher.setSegments(Arrays.asList(segments));
+        return matcher;
+    }
+
+    @Test
+    public void timesAnEffortFromLineToLine() {
+        Events events = new Events();
+        SegmentMatcher matcher = matcher(events, segment(7, L_SHAPE));
+
+        // 4 m/s from 98 m before the start to 50 m past the end, with fixes
+        // 3 s apart: the lines are crossed at 24.5 s and 149.5 s, between fixes
+        ride(matcher, new double[][] {{0, -98}, {0, 300}, {250, 300}}, 4, 3000);
+        assertEquals(Arrays.asList("started 7", "finished 7"), events.events);
+        assertEquals(125, events.elapsedSeconds);
+        assertEquals(0, events.rank);
+        assertFalse(matcher.isTiming());
+    }
+
+    @Test
+    public void ranksTheTimeOnTheLeaderboard() {
+        Segment segment = segment(7, L_SHAPE);
+        segment.leaderboard = new ArrayList<>();
+        for (int time : new int[] {100, 120, 130, 200}) {
+            SegmentEffort effort = new SegmentEffort();
+            effort.elapsedTime = time;
+            segment.leaderboard.add(effort);
+        }
+        Events events = new Events();
+        ride(matcher(events, segment), new double[][] {{0, -98}, {0, 300}, {250, 300}}, 4, 1000);
+        assertEquals(125, events.elapsedSeconds);
+        assertEquals(3, events.rank);
+    }
+
+    @Test
+    public void slowerThanTheTopEntriesHasNoRank() {
+        Segment segment = segment(7, L_SHAPE);
+        segment.leaderboard = new ArrayList<>();
+        for (int i = 0; i < LeaderboardRepository.ENTRIES; i++) {
+            SegmentEffort effort = new SegmentEffort();
+            effort.elapsedTime = 100 + i;
+            segment.leaderboard.add(effort);
+        }
+        Events events = new Events();
+        ride(matcher(events, segment), new double[][] {{0, -98}, {0, 300}, {250, 300}}, 4, 1000);
+        assertEquals(125, events.elapsedSeconds);
+        // A full page is only the top of the leaderboard
+        assertEquals(0, events.rank);
+
+        // A shorter one is all of it, so last place is known
+        segment.leaderboard.subList(4, segment.leaderboard.size()).clear();
+        events = new Events();
+        ride(matcher(events, segment), new double[][] {{0, -98}, {0, 300}, {250, 300}}, 4, 1000);
+        assertEquals(5, events.rank);
+    }
+
+    @Test
+    public void ridingTheOtherWayIsNotAnEffort() {
+        Events events = new Events();
+        ride(matcher(events, segment(7, L_SHAPE)),
+            new double[][] {{250, 300}, {0, 300}, {0, -100}}, 5, 1000);
+        assertEquals(Collections.<String>emptyList(), events.events);
+    }
+
+    @Test
+    public void passingBesideOrAcrossTheStartIsNotAnEffort() {
+        Events events = new Events();
+        SegmentMatcher matcher = matcher(events, segment(7, L_SHAPE));
+        // Parallel, 35 m to the side
+        ride(matcher, new double[][] {{35, -100}, {35, 100}}, 5, 1000);
+        // Across the start, mostly at right angles to the segment
+        ride(matcher, new double[][] {{-60, -10}, {60, 10}}, 5, 1000);
+        assertEquals(Collections.<String>emptyList(), events.events);
+    }
+
+    @Test
+    public void leavingTheSegmentAbandonsTheEffort() {
+        Events events = new Events();
+        SegmentMatcher matcher = matcher(events, segment(7, L_SHAPE));
+        ride(matcher, new double[][] {{0, -50}, {0, 150}, {-300, 150}}, 5, 1000);
+        assertEquals(Arrays.asList("started 7", "abandoned 7"), events.events);
+        assertFalse(matcher.isTiming());
+    }
+
+    @Test
+    public void aShortcutToTheFinishDoesNotCount() {
+        Events events = new Events();
+        // Out and back, finishing 20 m from the start
+        Segment segment = segment(7, new double[][] {{0, 0}, {0, 300}, {20, 300}, {20, 0}});
+        SegmentMatcher matcher = matcher(events, segment);
+        // Across the gap and over the finish line, only abandoned well past it
+        ride(matcher, new double[][] {{0, -50}, {0, 20}, {20, 20}, {20, -60}}, 5, 1000);
+        assertEquals(Arrays.asList("started 7", "abandoned 7"), events.events);
+    }
+
+    @Test
+    public void findsStartsAcrossTheEquatorAndMeridian() {
+        Segment segment = new Segment();
+        segment.id = 7;
+        segment.startLatitude = -0.00005;
+        segment.startLongitude = -0.00005;
+        segment.endLatitude = 0.003;
+        segment.endLongitude = 0.003;
+        segment.polyline = PolylineCodec.encode(new Route(
+            new double[] {segment.startLatitude, segment.endLatitude},
+            new double[] {segment.startLongitude, segment.endLongitude}));
+        Events events = new Events();
+        SegmentMatcher matcher = matcher(events, segment);
+
+        // Crosses the start line into the next cell in both directions
+        for (int i = -3; i <= 2; i++) {
+            matcher.update(i * 0.0001, i * 0.0001, (i + 3) * 3000);
+        }
+        assertEquals(Arrays.asList("started 7"), events.events);
+    }
+
+    @Test
+    public void eventDistanceLeadsToTheStartThenTheFinish() {
+        Events events = new Events();
+        SegmentMatcher matcher = matcher(events, segment(7, L_SHAPE));
+
+        matcher.update(latitude(0), longitude(-1000), 0);
+        assertTrue(Double.isNaN(matcher.getEventDistance()));
+        matcher.update(latitude(0), longitude(-100), 1000);
+        assertEquals(100, matcher.getEventDistance(), 1);
+
+        matcher.update(latitude(0), longitude(-5), 2000);
+        matcher.update(latitude(0), longitude(5), 3000);
+        assertTrue(matcher.isTiming());
+        for (int east = 25; east <= 200; east += 25) {
+            matcher.update(latitude(0), longitude(east), 3000 + east * 200);
+        }
+        assertEquals(300, matcher.getEventDistance(), 5);
+    }
+
+    @Test
+    public void restartsAfterReplacingTheSegments() {
+        Events events = new Events();
+        SegmentMatcher matcher = matcher(events, segment(1, new double[][] {{0, 1000}, {0, 1300}}));
+        matcher.setSegments(Arrays.asList(segment(1, new double[][] {{0, 1000}, {0, 1300}}),
+            segment(7, L_SHAPE)));
+        ride(matcher, new double[][] {{0, -98}, {0, 300}, {250, 300}}, 4, 1000);
+        assertEquals(Arrays.asList("started 7", "finished 7"), events.events);
+    }
+
+    /**
+     * Cost of a fix with segments spread over a city, against checking
+     * every start on every fix
+     */
+    @Test
+    public void benchmarkUpdate() {
+        long[] nanos = new long[3];
+        int[] counts = {100, 1000, 10000};
+        for (int c = 0; c < counts.length; c++) {
+            int count = counts[c];
+            Random random = new Random(count);
+            List<Segment> segments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                double north = random.nextDouble() * 30000;
+                double east = random.nextDouble() * 30000;
+                double heading = random.nextDouble() * 2 * Math.PI;
+                segments.add(segment(i, new double[][] {{north, east},
+                    {north + 500 * Math.cos(heading), east + 500 * Math.sin(heading)}}));
+            }
+            SegmentMatcher matcher = matcher(new Events(), segments.toArray(new Segment[count]));
+
+            // Across the city and back, a fix every 5 m
+            int fixes = 12000;
+            double[] lat = new double[fixes];
+            double[] lon = new double[fixes];
+            for (int i = 0; i < fixes; i++) {
+                double along = 5.0 * (i < fixes / 2 ? i : fixes - i);
+                lat[i] = latitude(15000 + Math.sin(along / 2000) * 3000);
+                lon[i] = longitude(along);
+            }
+
+            long best = Long.MAX_VALUE;
+            long time = 0;
+            // Best of several rounds, after the first has decoded the gates passed
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < fixes; i++) {
+                    matcher.update(lat[i], lon[i], time);
+                    time += 1000;
+                }
+                best = Math.min(best, (System.nanoTime() - start) / fixes);
+            }
+            nanos[c] = best;
+
+            long bruteStart = System.nanoTime();
+            double sink = 0;
+            for (int i = 0; i < fixes; i += 10) {
+                for (Segment segment : segments) {
+                    double dx = (lon[i] - segment.startLongitude) * METERS_PER_DEGREE_LON;
+                    double dy = (lat[i] - segment.startLatitude) * METERS_PER_DEGREE;
+                    sink += Math.sqrt(dx * dx + dy * dy);
+                }
+            }
+            long bruteNanos = (System.nanoTime() - bruteStart) / (fixes / 10);
+            assertTrue(sink > 0);
+
+            Log.i(TAG, String.format(Locale.US,
+                "%d segments: %d ns per fix; checking every start %d ns per fix",
+                count, best, bruteNanos));
+        }
+        // A hundred times the segments, nowhere near a hundred times the cost
+        assertTrue(nanos[2] < nanos[0] * 10);
+    }
+}
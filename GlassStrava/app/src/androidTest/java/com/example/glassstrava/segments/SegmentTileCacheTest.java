@@ -0,0 +1,287 @@
+package com.example.glassstrava.segments;
+
+import com.example.glassstrava.api.StandInServer;
+import com.example.glassstrava.api.StravaClient;
+import com.example.glassstrava.models.Segment;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static com.example.glassstrava.segments.SegmentTileCache.TILE_DEGREES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts explore requests against a local stand-in for Strava.
+ * Runs on the device, since explore responses are parsed with org.json
+ */
+public class SegmentTileCacheTest {
+    // The middle of a tile, so the tiles around it are the 3x3 block
+    private static final double LATITUDE = 755.5 * TILE_DEGREES;
+    private static final double LONGITUDE = -2448.5 * TILE_DEGREES;
+    private static final int NEARBY_TILES = 9;
+    // Crosses every tile edge, so every tile returns it
+    private static final long SHARED_SEGMENT = 1;
+    private static final long MINUTE = 60 * 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private StandInServer mServer;
+    private StravaClient mClient;
+    private volatile int mExploreCode = 200;
+    // Moves the caches' clock ahead of the real one
+    private long mClockOffset = 0;
+
+    /**
+     * One segment starting in the middle of each tile, plus the shared one
+     */
+    private final StandInServer.Handler mExplore = new StandInServer.Handler() {
+        @Override
+        public StandInServer.Reply handle(StandInServer.Request request) {
+            if (mExploreCode != 200) {
+                return new StandInServer.Reply(mExploreCode, "{\"message\":\"Unavailable\"}");
+            }
+            String[] bounds = request.getParameter("bounds").split(",");
+            double south = Double.parseDouble(bounds[0]);
+            double west = Double.parseDouble(bounds[1]);
+            long row = Math.round(south / TILE_DEGREES);
+            long col = Math.round(west / TILE_DEGREES);
+            return new StandInServer.Reply(200, "{\"segments\":["
+                + segment(row * 100000 + col, south + TILE_DEGREES / 2, west + TILE_DEGREES / 2)
+                + "," + segment(SHARED_SEGMENT, LATITUDE, LONGITUDE) + "]}").gzip();
+        }
+    };
+
+    private static String segment(long id, double latitude, double longitude) {
+        return String.format(Locale.US, "{\"id\":%d,\"name\":\"Segment %d\",\"distance\":800,"
+                + "\"start_latlng\":[%.6f,%.6f],\"end_latlng\":[%.6f,%.6f],\"points\":\"\"}",
+            id, id, latitude, longitude, latitude + 0.005, longitude);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer(mExplore);
+        mClient = mServer.client(mFolder.newFolder("http"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    private File tileDir() {
+        return new File(mFolder.getRoot(), "tiles");
+    }
+
+    private SegmentTileCache cache() {
+        return new SegmentTileCache(tileDir(), mClient, "running") {
+            @Override
+            long now() {
+                return System.currentTimeMillis() + mClockOffset;
+            }
+        };
+    }
+
+    private static Set<Long> ids(List<Segment> segments) {
+        Set<Long> ids = new HashSet<>();
+        for (Segment segment : segments) {
+            assertTrue("Duplicate " + segment.id, ids.add(segment.id));
+        }
+        return ids;
+    }
+
+    @Test
+    public void fetchesEachNearbyTileOnce() {
+        SegmentTileCache cache = cache();
+        assertTrue(cache.needsFetch(LATITUDE, LONGITUDE));
+
+        List<Segment> segments = cache.getNearby(LATITUDE, LONGITUDE);
+        assertEquals(NEARBY_TILES, mServer.getRequestCount());
+        assertEquals(NEARBY_TILES, cache.getRequestCount());
+        assertEquals(NEARBY_TILES + 1, ids(segments).size());
+        assertTrue(ids(segments).contains(SHARED_SEGMENT));
+
+        Set<String> bounds = new HashSet<>();
+        for (StandInServer.Request request : mServer.getRequests()) {
+            assertTrue(request.path.startsWith("/segments/explore?"));
+            assertEquals("running", request.getParameter("activity_type"));
+            bounds.add(request.getParameter("bounds"));
+        }
+        for (int row = 754; row <= 756; row++) {
+            for (int col = -2450; col <= -2448; col++) {
+                assertTrue(bounds.contains(String.format(Locale.US, "%.6f,%.6f,%.6f,%.6f",
+                    row * TILE_DEGREES, col * TILE_DEGREES,
+                    (row + 1) * TILE_DEGREES, (col + 1) * TILE_DEGREES)));
+            }
+        }
+    }
+
+    @Test
+    public void runningAroundATileCostsNoRequests() {
+        SegmentTileCache cache = cache();
+        cache.getNearby(LATITUDE, LONGITUDE);
+        assertFalse(cache.needsFetch(LATITUDE, LONGITUDE));
+
+        // A fix every few meters for 2 km, all within the middle tile
+        for (int i = 0; i < 500; i++) {
+            double latitude = LATITUDE + 0.018 * i / 500;
+            assertFalse(cache.needsFetch(latitude, LONGITUDE));
+            assertEquals(NEARBY_TILES + 1, cache.getNearby(latitude, LONGITUDE).size());
+        }
+        assertEquals(NEARBY_TILES, mServer.getRequestCount());
+    }
+
+    @Test
+    public void enteringNewGroundFetchesOnlyTheNewTiles() {
+        SegmentTileCache cache = cache();
+        cache.getNearby(LATITUDE, LONGITUDE);
+
+        // One tile north brings one new row into range
+        double north = LATITUDE + TILE_DEGREES;
+        assertTrue(cache.needsFetch(north, LONGITUDE));
+        assertEquals(NEARBY_TILES + 1, cache.getNearby(north, LONGITUDE).size());
+        assertEquals(NEARBY_TILES + 3, mServer.getRequestCount());
+
+        // And back again is all cached
+        cache.getNearby(LATITUDE, LONGITUDE);
+        assertEquals(NEARBY_TILES + 3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void tilesSurviveARestart() {
+        List<Segment> first = cache().getNearby(LATITUDE, LONGITUDE);
+
+        SegmentTileCache restarted = cache();
+        List<Segment> second = restarted.getNearby(LATITUDE, LONGITUDE);
+        assertEquals(NEARBY_TILES, mServer.getRequestCount());
+        assertEquals(0, restarted.getRequestCount());
+        assertEquals(ids(first), ids(second));
+    }
+
+    @Test
+    public void expiredTilesAreRefetchedButServedWhileOffline() throws IOException {
+        cache().getNearby(LATITUDE, LONGITUDE);
+        // Fetched long ago
+        File[] files = tileDir().listFiles();
+        assertEquals(NEARBY_TILES, files.length);
+        for (File file : files) {
+            String content = read(file);
+            write(file, "0" + content.substring(content.indexOf('\n')));
+        }
+
+        mExploreCode = 503;
+        SegmentTileCache cache = cache();
+        assertEquals(NEARBY_TILES + 1, cache.getNearby(LATITUDE, LONGITUDE).size());
+        assertEquals(2 * NEARBY_TILES, mServer.getRequestCount());
+
+        mExploreCode = 200;
+        mClockOffset = MINUTE;
+        assertTrue(cache.needsFetch(LATITUDE, LONGITUDE));
+        assertEquals(NEARBY_TILES + 1, cache.getNearby(LATITUDE, LONGITUDE).size());
+        assertEquals(3 * NEARBY_TILES, mServer.getRequestCount());
+        assertFalse(cache.needsFetch(LATITUDE, LONGITUDE));
+
+        // Stored fresh again
+        cache().getNearby(LATITUDE, LONGITUDE);
+        assertEquals(3 * NEARBY_TILES, mServer.getRequestCount());
+    }
+
+    @Test
+    public void failedTilesWaitBeforeTheyAreRetried() {
+        mExploreCode = 500;
+        SegmentTileCache cache = cache();
+        assertTrue(cache.getNearby(LATITUDE, LONGITUDE).isEmpty());
+        assertEquals(0, tileDir().listFiles().length);
+        assertFalse(cache.needsFetch(LATITUDE, LONGITUDE));
+
+        // Not on every fix, even once the server is back
+        mExploreCode = 200;
+        mClockOffset = MINUTE - 1000;
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cache.getNearby(LATITUDE, LONGITUDE).isEmpty());
+        }
+        assertEquals(NEARBY_TILES, mServer.getRequestCount());
+
+        // But once the delay is up
+        mClockOffset = MINUTE;
+        assertTrue(cache.needsFetch(LATITUDE, LONGITUDE));
+        assertEquals(NEARBY_TILES + 1, cache.getNearby(LATITUDE, LONGITUDE).size());
+        assertEquals(2 * NEARBY_TILES, mServer.getRequestCount());
+        assertFalse(cache.needsFetch(LATITUDE, LONGITUDE));
+    }
+
+    @Test
+    public void onlyTheFailedTilesWait() {
+        SegmentTileCache cache = cache();
+        cache.getNearby(LATITUDE, LONGITUDE);
+
+        // Moving north while the server is down, then on when it is back
+        mExploreCode = 503;
+        double north = LATITUDE + TILE_DEGREES;
+        assertEquals(NEARBY_TILES - 3 + 1, cache.getNearby(north, LONGITUDE).size());
+        assertEquals(NEARBY_TILES + 3, mServer.getRequestCount());
+        mExploreCode = 200;
+        // The row that failed is left out, the new row is fetched
+        double further = north + TILE_DEGREES;
+        assertEquals(NEARBY_TILES - 3 + 1, cache.getNearby(further, LONGITUDE).size());
+        assertEquals(NEARBY_TILES + 6, mServer.getRequestCount());
+    }
+
+    @Test
+    public void tileKeysFollowTheGrid() {
+        assertEquals(SegmentTileCache.tileKey(37.7749, -122.4194),
+            SegmentTileCache.tileKey(37.7501, -122.4499));
+        assertNotEquals(SegmentTileCache.tileKey(37.7749, -122.4194),
+            SegmentTileCache.tileKey(37.8001, -122.4194));
+        assertNotEquals(SegmentTileCache.tileKey(37.7749, -122.4194),
+            SegmentTileCache.tileKey(37.7749, -122.3999));
+        // Either side of the equator and the meridian are different tiles
+        assertNotEquals(SegmentTileCache.tileKey(0.01, 0.01), SegmentTileCache.tileKey(-0.01, 0.01));
+        assertNotEquals(SegmentTileCache.tileKey(0.01, 0.01), SegmentTileCache.tileKey(0.01, -0.01));
+        assertNotEquals(SegmentTileCache.tileKey(-0.01, -0.01),
+            SegmentTileCache.tileKey(-0.01, 0.01));
+    }
+
+    private static String read(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                sb.append(buffer, 0, count);
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}
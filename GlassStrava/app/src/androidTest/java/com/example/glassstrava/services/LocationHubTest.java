@@ -0,0 +1,198 @@
+package com.example.glassstrava.services;
+
+import android.location.Location;
+import android.location.LocationManager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on the device, since fixes are framework Locations
+ */
+public class LocationHubTest {
+    private static final long TIMEOUT = 10;
+
+    private final List<ExecutorService> mExecutors = new ArrayList<>();
+
+    /**
+     * Records the time of every fix it is given
+     */
+    private static class Recorder implements LocationTrackingService.Consumer {
+        final List<Long> times = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void onLocationChanged(Location location) {
+            times.add(location.getTime());
+        }
+    }
+
+    private ExecutorService executor() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        mExecutors.add(executor);
+        return executor;
+    }
+
+    @After
+    public void tearDown() {
+        for (ExecutorService executor : mExecutors) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Location fix(long time) {
+        Location location = new Location(LocationManager.GPS_PROVIDER);
+        location.setLatitude(37.77);
+        location.setLongitude(-122.42);
+        location.setTime(time);
+        return location;
+    }
+
+    /**
+     * Waits for everything queued on {@code executor} so far to run
+     */
+    private static void drain(ExecutorService executor) throws Exception {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void slowConsumerDoesntHoldUpTheOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final Recorder slow = new Recorder() {
+            @Override
+            public void onLocationChanged(Location location) {
+                super.onLocationChanged(location);
+                blocked.countDown();
+                try {
+                    release.await(TIMEOUT, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Recorder background = new Recorder();
+        Recorder inline = new Recorder();
+        ExecutorService slowExecutor = executor();
+        ExecutorService backgroundExecutor = executor();
+
+        LocationHub hub = new LocationHub();
+        hub.add(slow, 0, slowExecutor);
+        hub.add(background, 0, backgroundExecutor);
+        hub.add(inline, 0, null);
+
+        hub.deliver(fix(0));
+        drain(backgroundExecutor);
+        assertTrue(blocked.await(TIMEOUT, TimeUnit.SECONDS));
+        // The slow consumer is stuck on the first fix while the rest keep up
+        for (long time = 1000; time <= 10000; time += 1000) {
+            hub.deliver(fix(time));
+            drain(backgroundExecutor);
+            assertEquals(Long.valueOf(time), background.times.get(background.times.size() - 1));
+        }
+        assertEquals(11, inline.times.size());
+        assertEquals(11, background.times.size());
+        assertEquals(1, slow.times.size());
+
+        // Once free it skips straight to the newest fix
+        release.countDown();
+        drain(slowExecutor);
+        assertEquals(2, slow.times.size());
+        assertEquals(Long.valueOf(10000), slow.times.get(1));
+    }
+
+    @Test
+    public void minIntervalIsHonoured() throws Exception {
+        Recorder everyFix = new Recorder();
+        Recorder inline = new Recorder();
+        Recorder background = new Recorder();
+        ExecutorService executor = executor();
+
+        LocationHub hub = new LocationHub();
+        hub.add(everyFix, 0, null);
+        hub.add(inline, 3000, null);
+        hub.add(background, 5000, executor);
+        // A fix a second for 12 s, then one arriving early
+        for (long time = 0; time <= 12000; time += 1000) {
+            hub.deliver(fix(time));
+            drain(executor);
+        }
+        hub.deliver(fix(12500));
+        drain(executor);
+
+        assertEquals(14, everyFix.times.size());
+        assertEquals(5, inline.times.size());
+        for (int i = 0; i < inline.times.size(); i++) {
+            assertEquals(Long.valueOf(i * 3000), inline.times.get(i));
+        }
+        assertEquals(3, background.times.size());
+        for (int i = 0; i < background.times.size(); i++) {
+            assertEquals(Long.valueOf(i * 5000), background.times.get(i));
+        }
+    }
+
+    @Test
+    public void removedConsumersGetNothingMore() {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        LocationHub hub = new LocationHub();
+        hub.add(first, 0, null);
+        hub.add(second, 0, null);
+        // Registering again replaces the rate limit rather than adding a second feed
+        hub.add(first, 0, null);
+
+        hub.deliver(fix(0));
+        hub.remove(first);
+        hub.deliver(fix(1000));
+        assertEquals(1, first.times.size());
+        assertEquals(2, second.times.size());
+
+        hub.remove(second);
+        assertTrue(hub.isEmpty());
+    }
+
+    @Test
+    public void pausedOnlyWhileEveryConsumerIs() {
+        Recorder recording = new Recorder();
+        Recorder navigation = new Recorder();
+        LocationHub hub = new LocationHub();
+        assertFalse(hub.isPaused());
+
+        hub.add(recording, 0, null);
+        hub.setPaused(recording, true);
+        assertTrue(hub.isPaused());
+
+        // Navigation still needs fixes while the recording is paused
+        hub.add(navigation, 0, null);
+        assertFalse(hub.isPaused());
+        hub.setPaused(navigation, true);
+        assertTrue(hub.isPaused());
+        hub.setPaused(recording, false);
+        assertFalse(hub.isPaused());
+
+        hub.remove(recording);
+        assertTrue(hub.isPaused());
+        hub.remove(navigation);
+        assertFalse(hub.isPaused());
+
+        // Paused consumers are still fed; the hint only sets the sampling rate
+        hub.add(recording, 0, null);
+        hub.setPaused(recording, true);
+        hub.deliver(fix(0));
+        assertEquals(1, recording.times.size());
+    }
+}
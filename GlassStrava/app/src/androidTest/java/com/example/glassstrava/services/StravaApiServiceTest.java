@@ -0,0 +1,346 @@
+package com.example.glassstrava.services;
+
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+import com.example.glassstrava.api.StandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs sync passes against a local stand-in for Strava that fails, refuses
+ * and stalls on cue. Runs on the device, since jobs are stored with org.json
+ */
+public class StravaApiServiceTest {
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long QUARTER_HOUR = 15 * MINUTE;
+    private static final String UPLOADED = "{\"id\":1,\"status\":\"Your activity is still being processed.\"}";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private StandInServer mServer;
+    private SharedPreferences mPrefs;
+    private UploadQueue mQueue;
+    private StravaApiService mService;
+    private String mTokenUrl;
+
+    // Scripted behaviour of the stand-in
+    private volatile int mUploadCode = 201;
+    private volatile int mTokenCode = 200;
+    private volatile long mLatency = 0;
+    private volatile boolean mDropConnections = false;
+    // Uploads with any other token are refused with a 401
+    private volatile String mAcceptedToken = StandInServer.ACCESS_TOKEN;
+
+    // Moves the service's clock ahead of the real one
+    private volatile long mClockOffset = 0;
+    private volatile boolean mOnline = true;
+    // When the retry alarm would go off, -1 if cancelled
+    private volatile long mRetryAt = -1;
+
+    private final StandInServer.Handler mStrava = new StandInServer.Handler() {
+        @Override
+        public StandInServer.Reply handle(StandInServer.Request request) throws IOException {
+            try {
+                Thread.sleep(mLatency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (mDropConnections) {
+                throw new IOException("Dropped");
+            }
+            if (request.path.equals("/oauth/token")) {
+                if (mTokenCode != 200) {
+                    return new StandInServer.Reply(mTokenCode, "{\"message\":\"Bad Request\"}");
+                }
+                return new StandInServer.Reply(200, "{\"access_token\":\"fresh-token\","
+                    + "\"refresh_token\":\"next-refresh\",\"expires_at\":4102444800}");
+            }
+            assertEquals("POST", request.method);
+            if (!("Bearer " + mAcceptedToken).equals(request.getHeader("Authorization"))) {
+                return new StandInServer.Reply(401, "{\"message\":\"Authorization Error\"}");
+            }
+            return new StandInServer.Reply(mUploadCode, mUploadCode < 300 ? UPLOADED
+                : "{\"message\":\"Error\"}");
+        }
+    };
+
+    private class TestService extends StravaApiService {
+        @Override
+        long now() {
+            return System.currentTimeMillis() + mClockOffset;
+        }
+
+        @Override
+        boolean isOnline() {
+            return mOnline;
+        }
+
+        @Override
+        void scheduleRetry(long triggerAtMillis) {
+            mRetryAt = triggerAtMillis;
+        }
+
+        @Override
+        void cancelRetry() {
+            mRetryAt = -1;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer(mStrava);
+        mPrefs = mServer.getPreferences();
+        mPrefs.edit().putString("strava_refresh_token", "first-refresh").commit();
+        mQueue = new UploadQueue(new File(mFolder.getRoot(), StravaApiService.QUEUE_DIR));
+        mTokenUrl = mServer.getBase() + "/oauth/token";
+        mService = new TestService();
+        mService.init(mPrefs, mServer.client(mFolder.newFolder("http")), mQueue, mTokenUrl);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    private File activity(String name) throws IOException {
+        File file = mFolder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {1, 2, 3, 4});
+        out.close();
+        return file;
+    }
+
+    private void sync() {
+        mService.onHandleIntent(new Intent(StravaApiService.ACTION_SYNC_ACTIVITIES));
+    }
+
+    private long now() {
+        return System.currentTimeMillis() + mClockOffset;
+    }
+
+    private List<StandInServer.Request> requests(String path) {
+        List<StandInServer.Request> matching = new ArrayList<>();
+        for (StandInServer.Request request : mServer.getRequests()) {
+            if (request.path.equals(path)) matching.add(request);
+        }
+        return matching;
+    }
+
+    @Test
+    public void uploadsEveryDueActivityInOnePass() throws IOException {
+        File first = activity("first.fit");
+        File second = activity("second.gpx");
+        mQueue.enqueue(first, "fit");
+        mQueue.enqueue(second, "gpx");
+
+        sync();
+        List<StandInServer.Request> uploads = requests("/uploads");
+        assertEquals(2, uploads.size());
+        assertEquals(2, mServer.getRequestCount());
+        String body = new String(uploads.get(0).body, "UTF-8");
+        assertTrue(uploads.get(0).getHeader("Content-Type").startsWith("multipart/form-data"));
+        assertTrue(body.contains("name=\"data_type\"\r\n\r\nfit\r\n"));
+        assertTrue(body.contains("filename=\"first.fit\""));
+        assertTrue(new String(uploads.get(1).body, "UTF-8").contains("\r\n\r\ngpx\r\n"));
+
+        assertTrue(mQueue.getJobs().isEmpty());
+        assertFalse(first.exists());
+        assertFalse(second.exists());
+        assertEquals(-1, mRetryAt);
+    }
+
+    @Test
+    public void redeliveredUploadIntentQueuesOnce() throws IOException {
+        mUploadCode = 503;
+        Intent intent = new Intent(StravaApiService.ACTION_UPLOAD_ACTIVITY)
+            .putExtra(StravaApiService.EXTRA_ACTIVITY_FILE, activity("run.tcx").getPath())
+            .putExtra(StravaApiService.EXTRA_FORMAT, "tcx");
+        mService.onHandleIntent(intent);
+        mService.onHandleIntent(intent);
+        assertEquals(1, mQueue.getJobs().size());
+        // The second pass found the job backing off
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void serverErrorsBackOffUntilTwelveAttempts() throws IOException {
+        mUploadCode = 500;
+        mQueue.enqueue(activity("ride.fit"), "fit");
+
+        long delay = 30 * SECOND;
+        for (int attempt = 1; attempt < 12; attempt++) {
+            long before = now();
+            sync();
+            long after = now();
+            UploadQueue.Job job = mQueue.getJobs().get(0);
+            assertEquals(attempt, job.attempts);
+            // Doubling from 30 s up to an hour, plus up to 20% jitter
+            assertTrue(job.nextAttemptTime >= before + delay);
+            assertTrue(job.nextAttemptTime <= after + delay * 6 / 5);
+            assertEquals(job.nextAttemptTime, mRetryAt);
+            assertEquals(attempt, mServer.getRequestCount());
+
+            // Not due yet: left alone
+            sync();
+            assertEquals(attempt, mServer.getRequestCount());
+
+            mClockOffset = job.nextAttemptTime - System.currentTimeMillis();
+            delay = Math.min(delay * 2, 60 * MINUTE);
+        }
+
+        // The twelfth failure gives up and keeps the activity for a manual retry
+        sync();
+        assertEquals(12, mServer.getRequestCount());
+        assertTrue(mQueue.getJobs().isEmpty());
+        assertEquals(1, mQueue.getFailedJobs().size());
+        assertEquals(1, mPrefs.getInt(StravaApiService.PREF_FAILED_UPLOADS, 0));
+        assertEquals(-1, mRetryAt);
+
+        mUploadCode = 201;
+        mService.onHandleIntent(new Intent(StravaApiService.ACTION_RETRY_FAILED));
+        assertEquals(13, mServer.getRequestCount());
+        assertTrue(mQueue.getJobs().isEmpty());
+        assertTrue(mQueue.getFailedJobs().isEmpty());
+        assertEquals(0, mPrefs.getInt(StravaApiService.PREF_FAILED_UPLOADS, -1));
+    }
+
+    @Test
+    public void rejectedActivitiesFailAtOnce() throws IOException {
+        mUploadCode = 400;
+        mQueue.enqueue(activity("bad.gpx"), "gpx");
+        sync();
+        assertEquals(1, mServer.getRequestCount());
+        assertTrue(mQueue.getJobs().isEmpty());
+        assertEquals(1, mQueue.getFailedJobs().size());
+    }
+
+    @Test
+    public void droppedAndSlowRepliesAreRetried() throws IOException {
+        mDropConnections = true;
+        mLatency = 200;
+        mQueue.enqueue(activity("ride.fit"), "fit");
+        sync();
+        UploadQueue.Job job = mQueue.getJobs().get(0);
+        assertEquals(1, job.attempts);
+        assertEquals(job.nextAttemptTime, mRetryAt);
+
+        // Slow but answered
+        mDropConnections = false;
+        mLatency = 500;
+        mClockOffset = job.nextAttemptTime - System.currentTimeMillis();
+        sync();
+        assertTrue(mQueue.getJobs().isEmpty());
+        assertEquals(-1, mRetryAt);
+    }
+
+    @Test
+    public void refusedTokenIsRefreshedOncePerPass() throws IOException {
+        mAcceptedToken = "fresh-token";
+        mQueue.enqueue(activity("first.fit"), "fit");
+        mQueue.enqueue(activity("second.fit"), "fit");
+
+        sync();
+        // Refused, refreshed, then both go up with the new token
+        List<StandInServer.Request> requests = mServer.getRequests();
+        assertEquals(4, requests.size());
+        assertEquals("/uploads", requests.get(0).path);
+        assertEquals("/oauth/token", requests.get(1).path);
+        String refresh = new String(requests.get(1).body, "UTF-8");
+        assertTrue(refresh.contains("refresh_token=first-refresh"));
+        assertTrue(refresh.contains("grant_type=refresh_token"));
+        assertEquals("Bearer fresh-token", requests.get(2).getHeader("Authorization"));
+        assertEquals("Bearer fresh-token", requests.get(3).getHeader("Authorization"));
+        assertTrue(mQueue.getJobs().isEmpty());
+
+        assertEquals("fresh-token", mPrefs.getString("strava_access_token", null));
+        assertEquals("next-refresh", mPrefs.getString("strava_refresh_token", null));
+        assertEquals(4102444800L, mPrefs.getLong("strava_token_expires_at", 0));
+    }
+
+    @Test
+    public void refusedRefreshWaitsForSignIn() throws IOException {
+        mAcceptedToken = "fresh-token";
+        mTokenCode = 400;
+        mQueue.enqueue(activity("first.fit"), "fit");
+        mQueue.enqueue(activity("second.fit"), "fit");
+
+        sync();
+        // One refresh, not one per job, and nothing counted as a failed attempt
+        assertEquals(1, requests("/uploads").size());
+        assertEquals(1, requests("/oauth/token").size());
+        for (UploadQueue.Job job : mQueue.getJobs()) {
+            assertEquals(0, job.attempts);
+            assertEquals(0, job.nextAttemptTime);
+        }
+        assertEquals(2, mQueue.getJobs().size());
+        assertEquals(-1, mRetryAt);
+
+        // Still refused on the next pass; still one refresh
+        sync();
+        assertEquals(2, requests("/oauth/token").size());
+    }
+
+    @Test
+    public void expiredTokenIsRefreshedBeforeUploading() throws IOException {
+        mAcceptedToken = "fresh-token";
+        mPrefs.edit().putLong("strava_token_expires_at", now() / 1000 - 60).commit();
+        mQueue.enqueue(activity("ride.fit"), "fit");
+
+        sync();
+        List<StandInServer.Request> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        assertEquals("/oauth/token", requests.get(0).path);
+        assertEquals("Bearer fresh-token", requests.get(1).getHeader("Authorization"));
+        assertTrue(mQueue.getJobs().isEmpty());
+    }
+
+    @Test
+    public void rateLimitedUploadsWaitForTheNextQuarterHour() throws IOException {
+        mUploadCode = 429;
+        mQueue.enqueue(activity("first.fit"), "fit");
+        mQueue.enqueue(activity("second.fit"), "fit");
+
+        long before = (now() / QUARTER_HOUR + 1) * QUARTER_HOUR;
+        sync();
+        long after = (now() / QUARTER_HOUR + 1) * QUARTER_HOUR;
+        // The second is held back by the client without asking Strava again
+        assertEquals(1, mServer.getRequestCount());
+        List<UploadQueue.Job> jobs = mQueue.getJobs();
+        assertEquals(2, jobs.size());
+        for (UploadQueue.Job job : jobs) {
+            // Deferred, not failed
+            assertEquals(0, job.attempts);
+            assertTrue(job.nextAttemptTime == before || job.nextAttemptTime == after);
+        }
+        assertEquals(jobs.get(0).nextAttemptTime, mRetryAt);
+    }
+
+    @Test
+    public void offlineSyncWaitsWithoutRequests() throws IOException {
+        mOnline = false;
+        mQueue.enqueue(activity("ride.fit"), "fit");
+        long before = now();
+        sync();
+        assertEquals(0, mServer.getRequestCount());
+        assertEquals(0, mQueue.getJobs().get(0).attempts);
+        assertTrue(mRetryAt >= before + 30 * SECOND);
+        assertTrue(mRetryAt <= now() + 30 * SECOND);
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.glassstrava.services;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on the device, since jobs are stored with org.json
+ */
+public class UploadQueueTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File activity(String name) throws IOException {
+        File file = mFolder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        return file;
+    }
+
+    private UploadQueue queue() {
+        return new UploadQueue(new File(mFolder.getRoot(), "upload_queue"));
+    }
+
+    @Test
+    public void keepsJobsOnDiskOldestFirst() throws IOException {
+        File first = activity("a.fit");
+        File second = activity("b.gpx");
+        UploadQueue queue = queue();
+        UploadQueue.Job job = queue.enqueue(first, "fit");
+        UploadQueue.Job other = queue.enqueue(second, "gpx");
+        assertNotEquals(job.id, other.id);
+
+        job.attempts = 3;
+        job.nextAttemptTime = 12345;
+        queue.save(job);
+
+        // As after a process restart
+        List<UploadQueue.Job> jobs = queue().getJobs();
+        assertEquals(2, jobs.size());
+        assertEquals(first, jobs.get(0).activityFile);
+        assertEquals("fit", jobs.get(0).format);
+        assertEquals(3, jobs.get(0).attempts);
+        assertEquals(12345, jobs.get(0).nextAttemptTime);
+        assertEquals(second, jobs.get(1).activityFile);
+        assertEquals("gpx", jobs.get(1).format);
+    }
+
+    @Test
+    public void completeDeletesTheActivityFile() throws IOException {
+        File file = activity("a.fit");
+        UploadQueue queue = queue();
+        queue.complete(queue.enqueue(file, "fit"));
+
+        assertTrue(queue.getJobs().isEmpty());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void failKeepsTheActivityFileForARetry() throws IOException {
+        File file = activity("a.fit");
+        UploadQueue queue = queue();
+        UploadQueue.Job job = queue.enqueue(file, "fit");
+        job.attempts = 11;
+        queue.save(job);
+        queue.fail(job);
+
+        assertTrue(queue.getJobs().isEmpty());
+        assertTrue(file.exists());
+        assertEquals(1, queue.getFailedJobs().size());
+
+        assertEquals(1, queue.retryFailed());
+        List<UploadQueue.Job> jobs = queue.getJobs();
+        assertEquals(1, jobs.size());
+        assertEquals(file, jobs.get(0).activityFile);
+        assertEquals(0, jobs.get(0).attempts);
+        assertEquals(0, jobs.get(0).nextAttemptTime);
+        assertTrue(queue.getFailedJobs().isEmpty());
+    }
+
+    @Test
+    public void failDropsAJobWhoseActivityFileIsGone() throws IOException {
+        File file = activity("a.fit");
+        UploadQueue queue = queue();
+        UploadQueue.Job job = queue.enqueue(file, "fit");
+        assertTrue(file.delete());
+        queue.fail(job);
+
+        assertTrue(queue.getJobs().isEmpty());
+        assertTrue(queue.getFailedJobs().isEmpty());
+    }
+
+    @Test
+    public void dropsUnreadableJobs() throws IOException {
+        UploadQueue queue = queue();
+        queue.enqueue(activity("a.fit"), "fit");
+        FileOutputStream out = new FileOutputStream(
+            new File(mFolder.getRoot(), "upload_queue/1.job"));
+        out.write("{not json".getBytes("UTF-8"));
+        out.close();
+
+        assertEquals(1, queue.getJobs().size());
+        assertFalse(new File(mFolder.getRoot(), "upload_queue/1.job").exists());
+    }
+}
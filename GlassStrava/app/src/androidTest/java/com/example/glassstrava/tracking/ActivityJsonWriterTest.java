@@ -0,0 +1,213 @@
+package com.example.glassstrava.tracking;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on the device, since JsonWriter and org.json are framework classes
+ */
+public class ActivityJsonWriterTest {
+    private static final String TAG = "ActivityJsonWriterTest";
+    private static final long START = 1500000000000L;
+    // Sample the retained heap this often while streaming
+    private static final int SAMPLE_BYTES = 256 * 1024;
+
+    private static ActivityInfo info() {
+        ActivityInfo info = new ActivityInfo();
+        info.name = "Ride on Glass";
+        info.type = "Ride";
+        info.startTime = START;
+        info.elapsedTime = 3725400;
+        info.distance = 25123.5;
+        info.elevationGain = 312.25;
+        info.deviceName = "Google Glass";
+        info.description = "Recorded with Glass Strava app";
+        return info;
+    }
+
+    /**
+     * A fix per second; every tenth has no altitude
+     */
+    private static TrackBuffer track(int count) {
+        TrackBuffer track = new TrackBuffer();
+        for (int i = 0; i < count; i++) {
+            track.append(37.7749 + i * 1e-6, -122.4194 - i * 1e-6,
+                i % 10 == 0 ? Double.NaN : 10 + i % 50, START + 1000L * i, 5, 4);
+        }
+        return track;
+    }
+
+    @Test
+    public void writesTheSameDocumentAsTheJsonObjectTree() throws IOException, JSONException {
+        TrackBuffer track = track(25);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ActivityJsonWriter().write(info(), track, out);
+
+        JSONObject streamed = new JSONObject(out.toString("UTF-8"));
+        JSONObject expected = buildTree(info(), track);
+        assertEquals(expected.length(), streamed.length());
+        assertEquals("Ride on Glass", streamed.getString("name"));
+        assertEquals("Ride", streamed.getString("type"));
+        assertEquals(expected.getString("start_date_local"),
+            streamed.getString("start_date_local"));
+        assertEquals(3725, streamed.getLong("elapsed_time"));
+        assertEquals(25123.5, streamed.getDouble("distance"), 0);
+        assertEquals(312.25, streamed.getDouble("total_elevation_gain"), 0);
+        assertEquals(expected.getJSONArray("latlng").toString(),
+            streamed.getJSONArray("latlng").toString());
+        assertEquals(expected.getJSONArray("time").toString(),
+            streamed.getJSONArray("time").toString());
+        // Fixes without altitude are left out, as before
+        assertEquals(22, streamed.getJSONArray("altitude").length());
+        assertEquals(expected.getJSONArray("altitude").toString(),
+            streamed.getJSONArray("altitude").toString());
+    }
+
+    @Test
+    public void leavesOutTheTrackWhenEmpty() throws IOException, JSONException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ActivityJsonWriter().write(info(), new TrackBuffer(), out);
+
+        JSONObject streamed = new JSONObject(out.toString("UTF-8"));
+        assertFalse(streamed.has("latlng"));
+        assertFalse(streamed.has("time"));
+        assertFalse(streamed.has("altitude"));
+    }
+
+    /**
+     * Peak retained heap and time of streaming against building the
+     * JSONObject tree and its string, as saveActivity used to
+     */
+    @Test
+    public void benchmarkAgainstJsonObjectTree() throws IOException, JSONException {
+        for (int count : new int[] {1000, 10000, 100000}) {
+            TrackBuffer track = track(count);
+            ActivityInfo info = info();
+
+            long base = retainedHeap();
+            long start = System.nanoTime();
+            JSONObject tree = buildTree(info, track);
+            String json = tree.toString();
+            long treeNanos = System.nanoTime() - start;
+            long treeHeap = retainedHeap() - base;
+            int treeLength = json.length();
+            assertTrue(treeLength > 0);
+            tree = null;
+            json = null;
+
+            base = retainedHeap();
+            SamplingOutputStream out = new SamplingOutputStream(base);
+            start = System.nanoTime();
+            new ActivityJsonWriter().write(info, track, out);
+            long streamNanos = System.nanoTime() - start - out.samplingNanos;
+            long streamHeap = Math.max(out.peak, retainedHeap() - base);
+
+            Log.i(TAG, String.format(Locale.US,
+                "%d points: tree %d KB peak in %d ms (%d KB), stream %d KB peak in %d ms (%d KB)",
+                count, treeHeap / 1024, treeNanos / 1000000, treeLength / 1024,
+                streamHeap / 1024, streamNanos / 1000000, out.count / 1024));
+            if (count == 100000) {
+                // The tree holds every point several times over, the stream a buffer
+                assertTrue("stream peak " + streamHeap + " vs tree " + treeHeap,
+                    streamHeap * 4 < treeHeap);
+            }
+        }
+    }
+
+    /**
+     * The document saveActivity used to build before streaming
+     */
+    private static JSONObject buildTree(ActivityInfo info, TrackBuffer track)
+            throws JSONException {
+        JSONObject activity = new JSONObject();
+        activity.put("name", info.name);
+        activity.put("type", info.type);
+        activity.put("start_date_local",
+            new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US)
+                .format(new Date(info.startTime)));
+        activity.put("elapsed_time", info.elapsedTime / 1000);
+        activity.put("distance", info.distance);
+        activity.put("total_elevation_gain", info.elevationGain);
+        activity.put("device_name", info.deviceName);
+        activity.put("description", info.description);
+
+        JSONArray latlng = new JSONArray();
+        JSONArray time = new JSONArray();
+        JSONArray altitude = new JSONArray();
+        for (int i = 0; i < track.size(); i++) {
+            JSONArray point = new JSONArray();
+            point.put(track.getLatitude(i));
+            point.put(track.getLongitude(i));
+            latlng.put(point);
+            time.put((track.getTime(i) - info.startTime) / 1000);
+            if (track.hasAltitude(i)) {
+                altitude.put(track.getAltitude(i));
+            }
+        }
+        activity.put("latlng", latlng);
+        activity.put("time", time);
+        if (altitude.length() > 0) {
+            activity.put("altitude", altitude);
+        }
+        return activity;
+    }
+
+    private static long retainedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Discards what is written, sampling the retained heap as it goes
+     */
+    private static class SamplingOutputStream extends OutputStream {
+        private final long mBase;
+        private long mNextSample = SAMPLE_BYTES;
+        long count;
+        long peak;
+        long samplingNanos;
+
+        SamplingOutputStream(long base) {
+            mBase = base;
+        }
+
+        @Override
+        public void write(int b) {
+            written(1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            written(length);
+        }
+
+        private void written(int length) {
+            count += length;
+            if (count >= mNextSample) {
+                mNextSample += SAMPLE_BYTES;
+                long start = System.nanoTime();
+                peak = Math.max(peak, retainedHeap() - mBase);
+                samplingNanos += System.nanoTime() - start;
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.glassstrava.tracking;
+
+import android.location.Location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays recorded fixes through TrackMetrics. Runs on the device, since
+ * distances come from Location.distanceBetween
+ */
+public class TrackMetricsTest {
+    private static final long START = 1500000000000L;
+    private static final double LATITUDE = 37.7749;
+    private static final double LONGITUDE = -122.4194;
+    // Roughly one meter north at this latitude
+    private static final double METER = 1.0 / 111000;
+
+    /**
+     * Feeds fixes given as {seconds, meters north, altitude, speed} rows
+     */
+    private static void replay(TrackMetrics metrics, double[][] fixes) {
+        for (double[] fix : fixes) {
+            metrics.addFix(LATITUDE + fix[1] * METER, LONGITUDE, fix[2],
+                START + Math.round(fix[0] * 1000), (float) fix[3]);
+        }
+    }
+
+    private static double distance(double fromMeters, double toMeters) {
+        float[] result = new float[1];
+        Location.distanceBetween(LATITUDE + fromMeters * METER, LONGITUDE,
+            LATITUDE + toMeters * METER, LONGITUDE, result);
+        return result[0];
+    }
+
+    @Test
+    public void steadyRunMatchesTheGroundTruth() {
+        // Ten minutes north at 3 m/s, climbing 0.1 m/s for five minutes then descending
+        double[][] fixes = new double[601][];
+        for (int i = 0; i <= 600; i++) {
+            double altitude = 100 + (i <= 300 ? i : 600 - i) * 0.1;
+            fixes[i] = new double[] {i, 3 * i, altitude, 3};
+        }
+        TrackMetrics metrics = new TrackMetrics();
+        replay(metrics, fixes);
+        MetricsSnapshot snapshot = metrics.snapshot(600000);
+
+        assertEquals(distance(0, 1800), snapshot.distance, 0.01);
+        assertEquals(600000, snapshot.movingTime);
+        assertEquals(30, snapshot.elevationGain, 1e-6);
+        assertEquals(30, snapshot.elevationLoss, 1e-6);
+        assertEquals(3, snapshot.currentSpeed, 1e-6);
+        assertEquals(3, snapshot.maxSpeed, 1e-6);
+        assertEquals(601, snapshot.pointCount);
+        assertEquals(1000 / 3.0, snapshot.getAveragePace(), 1);
+    }
+
+    @Test
+    public void standingStillIsNotMovingTime() {
+        TrackMetrics metrics = new TrackMetrics();
+        replay(metrics, new double[][] {
+            {0, 0, 10, 2}, {1, 2, 10, 2}, {2, 4, 10, 2},
+            // Waiting at a crossing
+            {3, 4, 10, 0}, {4, 4.1, 10, 0}, {5, 4.1, 10, 0},
+            {6, 6, 10, 2},
+        });
+        MetricsSnapshot snapshot = metrics.snapshot(6000);
+
+        assertEquals(3000, snapshot.movingTime);
+        assertEquals(distance(0, 6), snapshot.distance, 0.01);
+    }
+
+    @Test
+    public void signalGapsAreNotMovingTime() {
+        TrackMetrics metrics = new TrackMetrics();
+        // A tunnel: 30 s without fixes, the distance still counts
+        replay(metrics, new double[][] {{0, 0, 10, 3}, {1, 3, 10, 3}, {31, 93, 10, 3}});
+        MetricsSnapshot snapshot = metrics.snapshot(31000);
+
+        assertEquals(1000, snapshot.movingTime);
+        assertEquals(distance(0, 93), snapshot.distance, 0.01);
+        // Averaged only over the part that was timed
+        assertEquals(distance(0, 3), snapshot.movingDistance, 0.01);
+        assertEquals(3, snapshot.getAverageSpeed(), 0.01);
+    }
+
+    @Test
+    public void breakSegmentSkipsTheDistanceAcrossAPause() {
+        TrackMetrics metrics = new TrackMetrics();
+        replay(metrics, new double[][] {{0, 0, 10, 3}, {1, 3, 12, 3}});
+        metrics.breakSegment();
+        assertEquals(0, metrics.snapshot(1000).currentSpeed, 0);
+        // Walked 500 m and 20 m up while paused
+        replay(metrics, new double[][] {{300, 503, 32, 3}, {301, 506, 33, 3}});
+        MetricsSnapshot snapshot = metrics.snapshot(2000);
+
+        assertEquals(distance(0, 3) + distance(503, 506), snapshot.distance, 0.01);
+        assertEquals(2000, snapshot.movingTime);
+        assertEquals(3, snapshot.elevationGain, 1e-6);
+    }
+
+    @Test
+    public void missingAltitudeKeepsTheLastKnownOne() {
+        TrackMetrics metrics = new TrackMetrics();
+        replay(metrics, new double[][] {
+            {0, 0, 10, 3}, {1, 3, Double.NaN, 3}, {2, 6, Double.NaN, 3}, {3, 9, 14, 3},
+            {4, 12, 12, 3},
+        });
+
+        assertEquals(4, metrics.getElevationGain(), 1e-6);
+        assertEquals(2, metrics.snapshot(4000).elevationLoss, 1e-6);
+    }
+
+    @Test
+    public void missingSpeedFallsBackToTheSegmentSpeed() {
+        TrackMetrics metrics = new TrackMetrics();
+        replay(metrics, new double[][] {{0, 0, 10, Double.NaN}, {2, 10, 10, Double.NaN}});
+        MetricsSnapshot snapshot = metrics.snapshot(2000);
+
+        assertEquals(distance(0, 10) / 2, snapshot.currentSpeed, 1e-3);
+        assertEquals(snapshot.currentSpeed, snapshot.maxSpeed, 0);
+    }
+
+    @Test
+    public void resetStartsOver() {
+        TrackMetrics metrics = new TrackMetrics();
+        replay(metrics, new double[][] {{0, 0, 10, 3}, {1, 3, 12, 5}});
+        metrics.reset();
+        replay(metrics, new double[][] {{10, 100, 50, 1}});
+        MetricsSnapshot snapshot = metrics.snapshot(0);
+
+        assertEquals(0, snapshot.distance, 0);
+        assertEquals(0, snapshot.elevationGain, 0);
+        assertEquals(1, snapshot.maxSpeed, 1e-6);
+        assertEquals(1, snapshot.pointCount);
+    }
+}
@@ -19,6 +19,7 @@ import com.google.android.glass.widget.CardScrollAdapter;
 import com.google.android.glass.widget.CardScrollView;
 
 import com.example.glassstrava.activities.*;
+import com.example.glassstrava.services.StravaApiService;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -35,6 +36,18 @@ public class MainActivity extends Activity {
     private AudioManager mAudioManager;
     private SharedPreferences mPrefs;
     
+    // The failed upload count changes after each upload pass; called on the main thread
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if (StravaApiService.PREF_FAILED_UPLOADS.equals(key) && mAdapter != null) {
+                mAdapter.updateSyncCard();
+                mAdapter.notifyDataSetChanged();
+            }
+        }
+    };
+    
     // Feature cards
     private static final int CARD_AUTH = 0;
     private static final int CARD_TRACKING = 1;
@@ -135,9 +148,9 @@ public class MainActivity extends Activity {
     }
     
     private void syncActivities() {
-        // Start sync service
+        // Start sync service; a manual sync also retries uploads that failed before
         Intent syncIntent = new Intent(this, StravaApiService.class);
-        syncIntent.setAction("SYNC_ACTIVITIES");
+        syncIntent.setAction(StravaApiService.ACTION_RETRY_FAILED);
         startService(syncIntent);
         
         mAudioManager.playSoundEffect(Sounds.SUCCESS);
@@ -150,6 +163,7 @@ public class MainActivity extends Activity {
     
     private class StravaCardAdapter extends CardScrollAdapter {
         private List<CardBuilder> mCards;
+        private CardBuilder mSyncCard;
         private Context mContext;
         
         public StravaCardAdapter(Context context) {
@@ -199,11 +213,11 @@ public class MainActivity extends Activity {
             mCards.add(perfCard);
             
             // Sync card
-            CardBuilder syncCard = new CardBuilder(mContext, CardBuilder.Layout.MENU);
-            syncCard.setText("Sync Activities");
-            syncCard.setFootnote("Upload to Strava");
-            syncCard.setIcon(android.R.drawable.ic_menu_upload);
-            mCards.add(syncCard);
+            mSyncCard = new CardBuilder(mContext, CardBuilder.Layout.MENU);
+            mSyncCard.setText("Sync Activities");
+            mSyncCard.setIcon(android.R.drawable.ic_menu_upload);
+            updateSyncCard();
+            mCards.add(mSyncCard);
             
             // Settings card
             CardBuilder settingsCard = new CardBuilder(mContext, CardBuilder.Layout.MENU);
@@ -213,6 +227,14 @@ public class MainActivity extends Activity {
             mCards.add(settingsCard);
         }
         
+        /**
+         * Shows the failed upload count the upload service last published
+         */
+        void updateSyncCard() {
+            int failed = mPrefs.getInt(StravaApiService.PREF_FAILED_UPLOADS, 0);
+            mSyncCard.setFootnote(failed > 0 ? failed + " failed, tap to retry" : "Upload to Strava");
+        }
+        
         @Override
         public int getCount() {
             return mCards.size();
@@ -268,13 +290,16 @@ public class MainActivity extends Activity {
         if (mCardScroller != null) {
             mCardScroller.activate();
             // Refresh cards to update auth status
+            mAdapter.updateSyncCard();
             mAdapter.notifyDataSetChanged();
         }
+        mPrefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
     }
     
     @Override
     protected void onPause() {
         super.onPause();
+        mPrefs.unregisterOnSharedPreferenceChangeListener(mPrefsListener);
         if (mCardScroller != null) {
             mCardScroller.deactivate();
         }
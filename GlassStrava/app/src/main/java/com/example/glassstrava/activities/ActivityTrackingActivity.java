@@ -5,7 +5,6 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.location.Location;
 import android.media.AudioManager;
 import android.os.Bundle;
 import android.os.Handler;
@@ -24,6 +23,7 @@ import com.google.android.glass.view.WindowUtils;
 import com.google.android.glass.widget.CardBuilder;
 
 import com.example.glassstrava.services.ActivityTrackingService;
+import com.example.glassstrava.tracking.MetricsSnapshot;
 
 import java.util.Locale;
 
@@ -45,17 +45,13 @@ public class ActivityTrackingActivity extends Activity {
     // Activity state
     private boolean mIsTracking = false;
     private boolean mIsPaused = false;
+    // An unfinished activity from a killed process, offered before starting anew
+    private boolean mHasRecoveredActivity = false;
     private String mActivityType = "Run"; // Default to running
     
-    // Metrics
-    private long mStartTime = 0;
-    private long mElapsedTime = 0;
-    private double mDistance = 0.0;
-    private double mCurrentSpeed = 0.0;
-    private double mAverageSpeed = 0.0;
-    private double mElevationGain = 0.0;
+    // Metrics, owned by the tracking service and read once per UI tick
+    private MetricsSnapshot mMetrics = MetricsSnapshot.EMPTY;
     private int mHeartRate = 0;
-    private Location mLastLocation = null;
     
     // UI update runnable
     private Runnable mUpdateRunnable = new Runnable() {
@@ -77,13 +73,11 @@ public class ActivityTrackingActivity extends Activity {
             mTrackingService = binder.getService();
             mServiceBound = true;
             
-            // Register for location updates
-            mTrackingService.setLocationListener(new ActivityTrackingService.LocationListener() {
-                @Override
-                public void onLocationChanged(Location location) {
-                    handleLocationUpdate(location);
-                }
-            });
+            if (!mIsTracking && mTrackingService.hasRecoveredActivity()) {
+                mHasRecoveredActivity = true;
+                mActivityType = mTrackingService.getActivityType();
+                updateCard();
+            }
         }
         
         @Override
@@ -143,7 +137,9 @@ public class ActivityTrackingActivity extends Activity {
                         }
                         return true;
                     case SWIPE_DOWN:
-                        if (!mIsTracking) {
+                        if (mHasRecoveredActivity) {
+                            discardRecoveredActivity();
+                        } else if (!mIsTracking) {
                             finish();
                         } else {
                             openOptionsMenu();
@@ -163,11 +159,9 @@ public class ActivityTrackingActivity extends Activity {
         
         mIsTracking = true;
         mIsPaused = false;
-        mStartTime = System.currentTimeMillis();
-        mDistance = 0.0;
-        mElevationGain = 0.0;
+        mHasRecoveredActivity = false;
         
-        // Start location tracking
+        // Start location tracking, continuing a recovered activity if there is one
         mTrackingService.startTracking(mActivityType);
         
         // Acquire wake lock
@@ -209,6 +203,7 @@ public class ActivityTrackingActivity extends Activity {
         
         if (mServiceBound) {
             mTrackingService.stopTracking();
+            mMetrics = mTrackingService.getMetricsSnapshot();
             
             // Save activity to Strava
             mTrackingService.saveActivity();
@@ -228,45 +223,21 @@ public class ActivityTrackingActivity extends Activity {
         showSummaryCard();
     }
     
-    private void handleLocationUpdate(Location location) {
-        if (mLastLocation != null && !mIsPaused) {
-            // Calculate distance
-            float distanceDelta = mLastLocation.distanceTo(location);
-            mDistance += distanceDelta / 1000.0; // Convert to km
-            
-            // Calculate elevation gain
-            if (location.hasAltitude() && mLastLocation.hasAltitude()) {
-                double elevationDelta = location.getAltitude() - mLastLocation.getAltitude();
-                if (elevationDelta > 0) {
-                    mElevationGain += elevationDelta;
-                }
-            }
-        }
-        
-        // Update speed
-        if (location.hasSpeed()) {
-            mCurrentSpeed = location.getSpeed() * 3.6; // Convert m/s to km/h
-        }
-        
-        mLastLocation = location;
-    }
-    
     private void updateMetrics() {
-        if (!mIsPaused) {
-            mElapsedTime = System.currentTimeMillis() - mStartTime;
-            
-            // Calculate average speed
-            if (mElapsedTime > 0 && mDistance > 0) {
-                double hours = mElapsedTime / (1000.0 * 60.0 * 60.0);
-                mAverageSpeed = mDistance / hours;
-            }
+        if (mServiceBound) {
+            mMetrics = mTrackingService.getMetricsSnapshot();
         }
     }
     
     private void updateCard() {
         CardBuilder card = new CardBuilder(this, CardBuilder.Layout.TEXT);
         
-        if (!mIsTracking) {
+        if (mHasRecoveredActivity) {
+            card.setText(String.format(Locale.US,
+                "Unfinished %s Found\n\nDistance: %.2f km",
+                mActivityType, mTrackingService.getTotalDistance() / 1000.0));
+            card.setFootnote("Tap to continue • Swipe down to discard");
+        } else if (!mIsTracking) {
             card.setText("Ready to Start " + mActivityType);
             card.setFootnote("Tap to begin • Swipe down to exit");
         } else if (mIsPaused) {
@@ -274,7 +245,7 @@ public class ActivityTrackingActivity extends Activity {
             card.setFootnote("Tap to resume • Double tap for menu");
         } else {
             // Format elapsed time
-            long seconds = mElapsedTime / 1000;
+            long seconds = mMetrics.elapsedTime / 1000;
             long minutes = seconds / 60;
             long hours = minutes / 60;
             String timeStr = String.format(Locale.US, "%02d:%02d:%02d",
@@ -290,10 +261,10 @@ public class ActivityTrackingActivity extends Activity {
                 "Elevation: +%.0f m",
                 mActivityType,
                 timeStr,
-                mDistance,
-                mCurrentSpeed,
-                mAverageSpeed,
-                mElevationGain
+                mMetrics.distance / 1000.0,   // m to km
+                mMetrics.currentSpeed * 3.6,   // m/s to km/h
+                mMetrics.getAverageSpeed() * 3.6,
+                mMetrics.elevationGain
             );
             
             card.setText(metricsText);
@@ -305,19 +276,16 @@ public class ActivityTrackingActivity extends Activity {
     
     private void showSummaryCard() {
         // Format elapsed time
-        long seconds = mElapsedTime / 1000;
+        long seconds = mMetrics.elapsedTime / 1000;
         long minutes = seconds / 60;
         long hours = minutes / 60;
         String timeStr = String.format(Locale.US, "%02d:%02d:%02d",
             hours, minutes % 60, seconds % 60);
         
-        // Calculate pace (min/km)
-        double paceMinutes = 0;
-        if (mDistance > 0) {
-            paceMinutes = (mElapsedTime / 1000.0 / 60.0) / mDistance;
-        }
-        int paceMins = (int) paceMinutes;
-        int paceSecs = (int) ((paceMinutes - paceMins) * 60);
+        // Pace over moving time (min/km)
+        int paceTotalSecs = (int) Math.round(mMetrics.getAveragePace());
+        int paceMins = paceTotalSecs / 60;
+        int paceSecs = paceTotalSecs % 60;
         
         CardBuilder card = new CardBuilder(this, CardBuilder.Layout.TEXT);
         String summaryText = String.format(Locale.US,
@@ -330,10 +298,10 @@ public class ActivityTrackingActivity extends Activity {
             "Elevation: +%.0f m",
             mActivityType,
             timeStr,
-            mDistance,
+            mMetrics.distance / 1000.0,
             paceMins, paceSecs,
-            mAverageSpeed,
-            mElevationGain
+            mMetrics.getAverageSpeed() * 3.6,
+            mMetrics.elevationGain
         );
         
         card.setText(summaryText);
@@ -391,10 +359,22 @@ public class ActivityTrackingActivity extends Activity {
         mAudioManager.playSoundEffect(Sounds.TAP);
     }
     
+    /**
+     * Drops the recovered activity and offers a fresh start instead
+     */
+    private void discardRecoveredActivity() {
+        mHasRecoveredActivity = false;
+        if (mServiceBound) {
+            mTrackingService.discardActivity();
+        }
+        mAudioManager.playSoundEffect(Sounds.DISMISSED);
+        updateCard();
+    }
+    
     private void discardActivity() {
         mIsTracking = false;
         if (mServiceBound) {
-            mTrackingService.stopTracking();
+            mTrackingService.discardActivity();
         }
         
         if (mWakeLock.isHeld()) {
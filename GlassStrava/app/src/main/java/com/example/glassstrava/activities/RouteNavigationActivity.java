@@ -1,62 +1,225 @@
 package com.example.glassstrava.activities;
 
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
 import android.media.AudioManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Vibrator;
+import android.util.JsonReader;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
 import android.view.WindowManager;
+import android.widget.AdapterView;
 
 import com.google.android.glass.media.Sounds;
 import com.google.android.glass.touchpad.Gesture;
 import com.google.android.glass.touchpad.GestureDetector;
 import com.google.android.glass.widget.CardBuilder;
+import com.google.android.glass.widget.CardScrollAdapter;
+import com.google.android.glass.widget.CardScrollView;
+
+import com.example.glassstrava.api.StravaClient;
+import com.example.glassstrava.hud.HudStats;
+import com.example.glassstrava.hud.HudText;
+import com.example.glassstrava.hud.NavigationHudView;
+import com.example.glassstrava.location.SamplingController;
+import com.example.glassstrava.models.RouteSummary;
+import com.example.glassstrava.route.CachedRoute;
+import com.example.glassstrava.route.DemTiles;
+import com.example.glassstrava.route.ElevationProfile;
+import com.example.glassstrava.route.EtaPredictor;
+import com.example.glassstrava.route.ManeuverList;
+import com.example.glassstrava.route.PolylineCodec;
+import com.example.glassstrava.route.Rerouter;
+import com.example.glassstrava.route.Route;
+import com.example.glassstrava.route.RouteCache;
+import com.example.glassstrava.route.RouteIndex;
+import com.example.glassstrava.route.RouteMatch;
+import com.example.glassstrava.route.RouteRepository;
+import com.example.glassstrava.route.RouteTracker;
+import com.example.glassstrava.services.LocationTrackingService;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.File;
+import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * Activity for turn-by-turn navigation of Strava routes
+ * Activity for turn-by-turn navigation of Strava routes.
+ *
+ * Fixes are snapped to the route, and rerouted from when off it, on a
+ * navigation thread so the work never holds up the main thread. The
+ * navigation state is guarded by {@code mNavigationLock}, which the HUD
+ * tick takes while it reads it; cues and sampling hints are posted back
+ * to the main thread.
  */
-public class RouteNavigationActivity extends Activity implements LocationListener {
+public class RouteNavigationActivity extends Activity implements LocationTrackingService.Consumer {
     
     private static final String TAG = "RouteNavigation";
-    private static final String STRAVA_API_BASE = "https://www.strava.com/api/v3";
     private static final float WAYPOINT_RADIUS = 20.0f; // meters
+    private static final double ANNOUNCE_DISTANCE = 50.0; // meters before a maneuver
+    private static final double CLIMB_LOOKAHEAD = 2000.0; // meters
+    private static final long ROUTE_CACHE_BYTES = 4 * 1024 * 1024;
     
     private GestureDetector mGestureDetector;
     private AudioManager mAudioManager;
     private Vibrator mVibrator;
-    private LocationManager mLocationManager;
+    private LocationTrackingService mLocationService;
+    private boolean mLocationServiceBound = false;
     private SharedPreferences mPrefs;
+    private StravaClient mClient;
+    private RouteCache mRouteCache;
+    private DemTiles mDemTiles;
+    
+    // Route picker, when started without a route
+    private CardScrollView mCardScroller;
+    private RouteCardAdapter mRouteAdapter;
+    private RouteRepository mRoutes;
+    private boolean mPickerShown = false;
     private Handler mUpdateHandler;
     
+    // Fixes are processed here, under mNavigationLock
+    private final ExecutorService mNavigationExecutor = Executors.newSingleThreadExecutor();
+    private final Object mNavigationLock = new Object();
+    
     // Route data
     private long mRouteId;
     private String mRouteName;
-    private List<Location> mRoutePoints = new ArrayList<>();
-    private int mCurrentWaypointIndex = 0;
+    private Route mRoute;
+    private RouteTracker mRouteTracker;
+    private Rerouter mRerouter;
+    // Where to head back to the route while off it; null until worked out
+    private RouteMatch mRejoin;
+    private ManeuverList mManeuvers;
+    private int mManeuverIndex = 0;
+    private int mAnnouncedManeuver = -1;
+    private ElevationProfile mElevation;
+    private EtaPredictor mEta;
+    // Strava's moving time estimate in millis, and when it runs out; 0 if none
+    private long mEstimatedMovingTime;
+    private long mDeadline;
+    private int mTimeZoneOffset;
+    private int mClimbIndex = 0;
+    // Grade of the segment the user is on, NaN if unknown
+    private float mGrade = Float.NaN;
     private double mTotalDistance = 0.0;
     private double mRemainingDistance = 0.0;
     
+    // Navigation screen
+    private NavigationHudView mHud;
+    private HudStats mHudStats;
+    
     // Current location
     private Location mCurrentLocation;
+    private final float[] mDistanceResult = new float[2];
     private float mBearing = 0.0f;
-    private boolean mIsNavigating = false;
+    private volatile boolean mIsNavigating = false;
+    // Distance to the next turn or rejoin point for the location service
+    private volatile double mTurnDistance = Double.NaN;
+    private volatile int mAnnounceType;
+    
+    private ServiceConnection mLocationConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mLocationService = ((LocationTrackingService.LocalBinder) service).getService();
+            mLocationServiceBound = true;
+            if (mIsNavigating) {
+                mLocationService.addConsumer(RouteNavigationActivity.this, 0,
+                    mNavigationExecutor);
+            }
+        }
+        
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mLocationService = null;
+            mLocationServiceBound = false;
+        }
+    };
+    
+    // Called on the navigation thread from within onLocationChanged
+    private final RouteTracker.Listener mOffRouteListener = new RouteTracker.Listener() {
+        @Override
+        public void onOffRoute(RouteMatch match) {
+            Log.d(TAG, "Off route by " + match.crossTrackDistance + " m");
+            mUpdateHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mVibrator.vibrate(new long[]{0, 500, 200, 500}, -1);
+                    mAudioManager.playSoundEffect(Sounds.ERROR);
+                }
+            });
+        }
+        
+        @Override
+        public void onBackOnRoute(RouteMatch match) {
+            // The route may have been rejoined behind or ahead of where it was left
+            mManeuverIndex = mManeuvers.find(match.alongDistance);
+            if (mElevation != null) {
+                mClimbIndex = mElevation.find(match.alongDistance);
+            }
+            mUpdateHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mVibrator.vibrate(200);
+                    mAudioManager.playSoundEffect(Sounds.SUCCESS);
+                }
+            });
+        }
+    };
+    
+    // Posted from the navigation thread, reused so fixes don't allocate
+    private final Runnable mReportTurnDistance = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsNavigating && mLocationService != null) {
+                // Sample faster while approaching the maneuver or rejoin point
+                mLocationService.setEventDistance(SamplingController.EVENT_TURN, mTurnDistance);
+            }
+        }
+    };
+    
+    private final Runnable mAnnounceManeuver = new Runnable() {
+        @Override
+        public void run() {
+            switch (mAnnounceType) {
+                case ManeuverList.SLIGHT_RIGHT:
+                case ManeuverList.RIGHT:
+                case ManeuverList.SHARP_RIGHT:
+                    mVibrator.vibrate(new long[]{0, 100, 50, 100}, -1);
+                    break;
+                case ManeuverList.SLIGHT_LEFT:
+                case ManeuverList.LEFT:
+                case ManeuverList.SHARP_LEFT:
+                    mVibrator.vibrate(new long[]{0, 200}, -1);
+                    break;
+                default:
+                    mVibrator.vibrate(200);
+                    break;
+            }
+            mAudioManager.playSoundEffect(Sounds.TAP);
+        }
+    };
+    
+    private final Runnable mCompleteNavigation = new Runnable() {
+        @Override
+        public void run() {
+            completeNavigation();
+        }
+    };
     
     // UI update runnable
     private Runnable mUpdateRunnable = new Runnable() {
@@ -78,9 +241,17 @@ public class RouteNavigationActivity extends Activity implements LocationListene
         
         mAudioManager = (AudioManager) getSystemService(AUDIO_SERVICE);
         mVibrator = (Vibrator) getSystemService(VIBRATOR_SERVICE);
-        mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
         mPrefs = getSharedPreferences("StravaGlass", MODE_PRIVATE);
+        mClient = StravaClient.getInstance(this);
         mUpdateHandler = new Handler();
+        mHudStats = new HudStats(TAG, mPrefs.getBoolean("hud_stats", false));
+        mDemTiles = new DemTiles(new File(getFilesDir(), "dem"));
+        mRouteCache = new RouteCache(new File(getFilesDir(), "route_cache"),
+            mPrefs.getLong("route_cache_bytes", ROUTE_CACHE_BYTES));
+        
+        // Location comes from the shared location service
+        bindService(new Intent(this, LocationTrackingService.class), mLocationConnection,
+            Context.BIND_AUTO_CREATE);
         
         // Setup gesture detection
         mGestureDetector = createGestureDetector(this);
@@ -91,59 +262,38 @@ public class RouteNavigationActivity extends Activity implements LocationListene
         if (mRouteId != -1) {
             loadRoute();
         } else {
-            loadRoutesList();
+            showRoutePicker();
         }
     }
     
     private void loadRoute() {
         showLoadingCard("Loading route...");
         
-        new AsyncTask<Void, Void, Boolean>() {
+        new AsyncTask<Void, Void, CachedRoute>() {
+            private boolean mFromCache;
+            
             @Override
-            protected Boolean doInBackground(Void... params) {
-                try {
-                    String accessToken = mPrefs.getString("strava_access_token", null);
-                    if (accessToken == null) return false;
-                    
-                    // Get route details
-                    String urlStr = STRAVA_API_BASE + "/routes/" + mRouteId;
-                    URL url = new URL(urlStr);
-                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                    conn.setRequestMethod("GET");
-                    conn.setRequestProperty("Authorization", "Bearer " + accessToken);
-                    
-                    if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                        BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(conn.getInputStream()));
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            response.append(line);
-                        }
-                        reader.close();
-                        
-                        JSONObject json = new JSONObject(response.toString());
-                        mRouteName = json.getString("name");
-                        mTotalDistance = json.getDouble("distance");
-                        
-                        // Parse route polyline
-                        if (json.has("map") && json.getJSONObject("map").has("polyline")) {
-                            String polyline = json.getJSONObject("map").getString("polyline");
-                            mRoutePoints = decodePolyline(polyline);
-                            mRemainingDistance = mTotalDistance;
-                            return true;
-                        }
+            protected CachedRoute doInBackground(Void... params) {
+                // A cached copy starts navigation without waiting for (or having) a connection
+                CachedRoute cached = mRouteCache.get(mRouteId);
+                if (cached != null) {
+                    mFromCache = true;
+                    if (cached.elevation == null) {
+                        cached.elevation = mDemTiles.sample(cached.route);
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    return cached;
                 }
-                return false;
+                return fetchRoute(null);
             }
             
             @Override
-            protected void onPostExecute(Boolean success) {
-                if (success) {
+            protected void onPostExecute(CachedRoute route) {
+                if (route != null) {
+                    applyRoute(route);
                     startNavigation();
+                    if (mFromCache) {
+                        refreshRoute(route.version);
+                    }
                 } else {
                     showError("Failed to load route");
                 }
@@ -151,84 +301,174 @@ public class RouteNavigationActivity extends Activity implements LocationListene
         }.execute();
     }
     
-    private void loadRoutesList() {
+    /**
+     * Checks Strava for a newer version of a cached route. An update is
+     * only stored, so it takes effect the next time the route is opened.
+     */
+    private void refreshRoute(final String cachedVersion) {
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                if (fetchRoute(cachedVersion) != null) {
+                    Log.d(TAG, "Route " + mRouteId + " changed on Strava, cached for next time");
+                }
+                return null;
+            }
+        }.execute();
+    }
+    
+    /**
+     * Downloads the route and stores it in the cache. Runs in the background.
+     *
+     * @param knownVersion version already cached, or null
+     * @return the route, or null on failure or if it is still {@code knownVersion}
+     */
+    private CachedRoute fetchRoute(String knownVersion) {
+        try {
+            // Get route details; an unchanged route comes back from the client's cache
+            StravaClient.Response response = mClient.get("/routes/" + mRouteId,
+                StravaClient.PRIORITY_NAVIGATION);
+            String body;
+            try {
+                if (response.getCode() != HttpURLConnection.HTTP_OK) return null;
+                body = response.readString();
+            } finally {
+                response.close();
+            }
+            
+            JSONObject json = new JSONObject(body);
+            String version = json.optString("updated_at", "");
+            if (version.equals(knownVersion)) return null;
+            
+            // Parse route polyline
+            if (json.has("map") && json.getJSONObject("map").has("polyline")) {
+                CachedRoute route = new CachedRoute();
+                route.id = mRouteId;
+                route.version = version;
+                route.name = json.getString("name");
+                route.distance = json.getDouble("distance");
+                route.estimatedMovingTime = json.optInt("estimated_moving_time", 0);
+                route.route = PolylineCodec.decode(
+                    json.getJSONObject("map").getString("polyline"));
+                route.elevation = fetchElevation(route.route);
+                try {
+                    mRouteCache.put(route);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not cache route " + mRouteId, e);
+                }
+                return route;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+    
+    /**
+     * Elevation per route vertex from the route's streams, falling back to
+     * terrain tiles on the device; null if neither has it
+     */
+    private float[] fetchElevation(Route route) {
+        try {
+            StravaClient.Response response = mClient.get("/routes/" + mRouteId + "/streams",
+                StravaClient.PRIORITY_NAVIGATION);
+            try {
+                if (response.getCode() == HttpURLConnection.HTTP_OK) {
+                    float[] elevation = ElevationProfile.readStreams(
+                        new JsonReader(response.getReader()), route);
+                    if (elevation != null) return elevation;
+                }
+            } finally {
+                response.close();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not load route streams", e);
+        }
+        return mDemTiles.sample(route);
+    }
+    
+    private void applyRoute(CachedRoute route) {
+        mRouteName = route.name;
+        mTotalDistance = route.distance;
+        mRoute = route.route;
+        mRouteTracker = new RouteTracker(new RouteIndex(mRoute));
+        mRerouter = new Rerouter(mRouteTracker.getIndex());
+        mManeuvers = ManeuverList.build(mRoute);
+        mElevation = route.elevation != null ? new ElevationProfile(mRoute, route.elevation) : null;
+        mEta = new EtaPredictor(mRoute, mElevation);
+        mEstimatedMovingTime = route.estimatedMovingTime * 1000L;
+        mRemainingDistance = mTotalDistance;
+    }
+    
+    /**
+     * Shows the athlete's routes as a card stream; tapping one navigates it
+     */
+    private void showRoutePicker() {
         showLoadingCard("Loading routes...");
         
-        new AsyncTask<Void, Void, List<JSONObject>>() {
+        mCardScroller = new CardScrollView(this);
+        mRouteAdapter = new RouteCardAdapter(this);
+        mCardScroller.setAdapter(mRouteAdapter);
+        mCardScroller.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
-            protected List<JSONObject> doInBackground(Void... params) {
-                List<JSONObject> routes = new ArrayList<>();
-                
-                try {
-                    String accessToken = mPrefs.getString("strava_access_token", null);
-                    if (accessToken == null) return routes;
-                    
-                    // Get athlete's routes
-                    String athleteId = mPrefs.getString("strava_athlete_id", "");
-                    String urlStr = STRAVA_API_BASE + "/athletes/" + athleteId + "/routes"
-                        + "?per_page=10";
-                    
-                    URL url = new URL(urlStr);
-                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                    conn.setRequestMethod("GET");
-                    conn.setRequestProperty("Authorization", "Bearer " + accessToken);
-                    
-                    if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                        BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(conn.getInputStream()));
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            response.append(line);
-                        }
-                        reader.close();
-                        
-                        JSONArray jsonArray = new JSONArray(response.toString());
-                        for (int i = 0; i < jsonArray.length(); i++) {
-                            routes.add(jsonArray.getJSONObject(i));
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                mAudioManager.playSoundEffect(Sounds.TAP);
+                mRouteId = mRoutes.get(position).id;
+                mCardScroller.deactivate();
+                loadRoute();
+            }
+        });
+        
+        mRoutes = new RouteRepository(mClient, mPrefs, new File(getFilesDir(), "route_list"));
+        mRoutes.setListener(new RouteRepository.Listener() {
+            @Override
+            public void onRoutesChanged() {
+                if (mRouteId != -1) return; // already picked
+                if (mRoutes.size() == 0) {
+                    showError("No routes found");
+                } else if (!mPickerShown) {
+                    mPickerShown = true;
+                    mCardScroller.activate();
+                    setContentView(mCardScroller);
+                } else {
+                    mRouteAdapter.notifyDataSetChanged();
                 }
-                
-                return routes;
             }
             
             @Override
-            protected void onPostExecute(List<JSONObject> routes) {
-                if (!routes.isEmpty()) {
-                    // For demo, just load the first route
-                    try {
-                        mRouteId = routes.get(0).getLong("id");
-                        loadRoute();
-                    } catch (Exception e) {
-                        showError("No routes available");
-                    }
-                } else {
-                    showError("No routes found");
+            public void onLoadFailed() {
+                // The stored list stays usable offline
+                if (mRouteId == -1 && mRoutes.size() == 0) {
+                    showError("Failed to load routes");
                 }
             }
-        }.execute();
+        });
+        mRoutes.load();
     }
     
     private void startNavigation() {
         mIsNavigating = true;
-        mCurrentWaypointIndex = 0;
+        mRejoin = null;
+        mManeuverIndex = 0;
+        mAnnouncedManeuver = -1;
+        mClimbIndex = 0;
+        mGrade = Float.NaN;
+        mDeadline = mEstimatedMovingTime > 0 ? System.currentTimeMillis() + mEstimatedMovingTime : 0;
+        // Looked up once; TimeZone.getDefault() returns a copy every call
+        mTimeZoneOffset = TimeZone.getDefault().getOffset(System.currentTimeMillis());
+        mRouteTracker.setListener(mOffRouteListener);
         
-        // Start location updates
-        try {
-            mLocationManager.requestLocationUpdates(
-                LocationManager.GPS_PROVIDER,
-                1000,  // 1 second
-                2,     // 2 meters
-                this
-            );
-        } catch (SecurityException e) {
-            showError("Location permission denied");
-            return;
+        // Start location updates; if the service isn't bound yet this happens on connect
+        if (mLocationService != null) {
+            mLocationService.addConsumer(this, 0, mNavigationExecutor);
         }
         
+        // The HUD is built once; ticks only update its fields
+        mHud = new NavigationHudView(this);
+        mHud.getTitle().begin().append(mRouteName).commit();
+        setContentView(mHud);
+        mHudStats.start();
+        
         // Start UI updates
         mUpdateHandler.post(mUpdateRunnable);
         
@@ -236,31 +476,50 @@ public class RouteNavigationActivity extends Activity implements LocationListene
         updateNavigationCard();
     }
     
+    /**
+     * Runs on the navigation thread
+     */
     @Override
     public void onLocationChanged(Location location) {
-        mCurrentLocation = location;
-        
-        if (!mIsNavigating || mRoutePoints.isEmpty()) return;
-        
-        // Check if we've reached current waypoint
-        if (mCurrentWaypointIndex < mRoutePoints.size()) {
-            Location waypoint = mRoutePoints.get(mCurrentWaypointIndex);
-            float distance = location.distanceTo(waypoint);
+        synchronized (mNavigationLock) {
+            mCurrentLocation = location;
             
-            if (distance < WAYPOINT_RADIUS) {
-                // Reached waypoint
-                mCurrentWaypointIndex++;
-                
-                // Vibrate and play sound
-                mVibrator.vibrate(200);
-                mAudioManager.playSoundEffect(Sounds.TAP);
-                
-                if (mCurrentWaypointIndex >= mRoutePoints.size()) {
-                    // Route complete
-                    completeNavigation();
-                } else {
-                    // Calculate turn direction for next waypoint
-                    calculateNextTurn();
+            if (!mIsNavigating || mRoute == null || mRoute.isEmpty()) return;
+            
+            // Snap to the route; fixes can skip past waypoints without coming within the radius
+            RouteMatch match = mRouteTracker.update(location.getLatitude(), location.getLongitude());
+            if (match.isValid() && !mRouteTracker.isOffRoute()) {
+                double progress = mRouteTracker.getProgress();
+                // Only once the route has actually been ridden: a loop also ends at its start
+                if (mRoute.getTotalDistance() - progress < WAYPOINT_RADIUS
+                        && mRouteTracker.getDistanceCovered() >= WAYPOINT_RADIUS) {
+                    // Route complete; later fixes are ignored
+                    mIsNavigating = false;
+                    mUpdateHandler.post(mCompleteNavigation);
+                    return;
+                }
+                mRejoin = null;
+                updateManeuver(progress);
+                mEta.update(location.getTime(), match);
+                if (mElevation != null) {
+                    mGrade = mElevation.getGrade(match.segment);
+                    mClimbIndex = mElevation.advance(mClimbIndex, progress);
+                }
+            } else {
+                // Not on the route: guide back to the cheapest point to rejoin it
+                mEta.reset();
+                RouteMatch rejoin = mRerouter.reroute(location.getLatitude(),
+                    location.getLongitude(), mRouteTracker.getProgress());
+                mRejoin = rejoin.isValid() ? rejoin : null;
+                if (mRejoin != null) {
+                    // Next maneuver after rejoining, so guidance is ready when back on route
+                    mManeuverIndex = mManeuvers.find(mRejoin.alongDistance);
+                    if (mElevation != null) {
+                        mClimbIndex = mElevation.find(mRejoin.alongDistance);
+                    }
+                    float distance = distanceToRejoin();
+                    mBearing = mDistanceResult[1];
+                    reportTurnDistance(distance);
                 }
             }
             
@@ -269,77 +528,131 @@ public class RouteNavigationActivity extends Activity implements LocationListene
         }
     }
     
-    private void calculateNextTurn() {
-        if (mCurrentLocation == null || mCurrentWaypointIndex >= mRoutePoints.size()) return;
+    /**
+     * Moves the maneuver cursor up to the current progress and gives a
+     * haptic cue once when the next maneuver gets close
+     */
+    private void updateManeuver(double progress) {
+        mManeuverIndex = mManeuvers.advance(mManeuverIndex, progress);
+        double toManeuver = mManeuvers.getDistance(mManeuverIndex) - progress;
+        reportTurnDistance(toManeuver);
         
-        Location nextWaypoint = mRoutePoints.get(mCurrentWaypointIndex);
-        mBearing = mCurrentLocation.bearingTo(nextWaypoint);
-        
-        // Determine turn instruction
-        if (mCurrentWaypointIndex > 0) {
-            Location prevWaypoint = mRoutePoints.get(mCurrentWaypointIndex - 1);
-            float prevBearing = prevWaypoint.bearingTo(nextWaypoint);
-            float turnAngle = (mBearing - prevBearing + 360) % 360;
-            
-            if (turnAngle > 45 && turnAngle < 135) {
-                // Right turn
-                mVibrator.vibrate(new long[]{0, 100, 50, 100}, -1);
-            } else if (turnAngle > 225 && turnAngle < 315) {
-                // Left turn
-                mVibrator.vibrate(new long[]{0, 200}, -1);
-            }
+        if (mManeuverIndex != mAnnouncedManeuver && toManeuver < ANNOUNCE_DISTANCE) {
+            mAnnouncedManeuver = mManeuverIndex;
+            mAnnounceType = mManeuvers.getType(mManeuverIndex);
+            mUpdateHandler.post(mAnnounceManeuver);
         }
     }
     
+    private void reportTurnDistance(double meters) {
+        mTurnDistance = meters;
+        mUpdateHandler.removeCallbacks(mReportTurnDistance);
+        mUpdateHandler.post(mReportTurnDistance);
+    }
+    
     private void updateRemainingDistance() {
-        if (mCurrentLocation == null || mRoutePoints.isEmpty()) return;
+        if (mCurrentLocation == null || mRoute.isEmpty()) return;
         
         double remaining = 0.0;
         
-        // Distance to current waypoint
-        if (mCurrentWaypointIndex < mRoutePoints.size()) {
-            remaining += mCurrentLocation.distanceTo(mRoutePoints.get(mCurrentWaypointIndex));
-        }
-        
-        // Distance between remaining waypoints
-        for (int i = mCurrentWaypointIndex; i < mRoutePoints.size() - 1; i++) {
-            remaining += mRoutePoints.get(i).distanceTo(mRoutePoints.get(i + 1));
+        if (mRouteTracker.getProgress() >= 0 && !mRouteTracker.isOffRoute()) {
+            // Snapped position along the route
+            remaining = mRoute.getTotalDistance() - mRouteTracker.getProgress();
+        } else if (mRejoin != null) {
+            // Back to the route, then along it from there
+            remaining = distanceToRejoin() + mRoute.getTotalDistance() - mRejoin.alongDistance;
         }
         
         mRemainingDistance = remaining;
     }
     
+    /**
+     * Refreshes the navigation HUD. Fields are composed without allocating
+     * and only redrawn when their text changes.
+     */
     private void updateNavigationCard() {
-        CardBuilder card = new CardBuilder(this, CardBuilder.Layout.TEXT);
+        synchronized (mNavigationLock) {
+            updateNavigationCardLocked();
+        }
+    }
+    
+    private void updateNavigationCardLocked() {
+        mHudStats.beginUpdate();
+        HudText instruction = mHud.getInstruction().begin();
+        HudText detail = mHud.getDetail().begin();
+        HudText remaining = mHud.getRemaining().begin();
+        HudText footnote = mHud.getFootnote().begin();
         
-        if (mCurrentLocation != null && mCurrentWaypointIndex < mRoutePoints.size()) {
-            Location nextWaypoint = mRoutePoints.get(mCurrentWaypointIndex);
-            float distance = mCurrentLocation.distanceTo(nextWaypoint);
-            
+        if (mCurrentLocation != null && mRouteTracker.getProgress() >= 0
+                && !mRouteTracker.isOffRoute()) {
+            double progress = mRouteTracker.getProgress();
+            instruction.append(mManeuvers.getInstruction(mManeuverIndex)).append(" in ")
+                .append(mManeuvers.getDistance(mManeuverIndex) - progress, 0).append(" m");
+            appendClimb(detail, progress);
+            remaining.append("Remaining: ").append(mRemainingDistance / 1000.0, 1).append(" km");
+            long now = System.currentTimeMillis();
+            long eta = mEta.getRemainingMillis();
+            if (eta >= 0) {
+                remaining.append(" • ETA ");
+                appendClockTime(remaining, now + eta);
+            }
+            footnote.append("Following route");
+            if (!Float.isNaN(mGrade)) {
+                footnote.append(" • grade ").append(mGrade * 100.0, 0).append('%');
+            }
+            if (mDeadline > now && eta >= 0 && now + eta > mDeadline) {
+                // Behind Strava's estimate: what it would take to still make it
+                footnote.append(" • need ")
+                    .append(mEta.getRequiredSpeed(now, mDeadline) * 3.6, 1).append(" km/h");
+            }
+        } else if (mCurrentLocation != null && mRejoin != null) {
             // Determine turn direction
-            String direction = getDirectionString(mBearing);
-            
-            String text = String.format(Locale.US,
-                "%s\n\n" +
-                "%s in %.0f m\n\n" +
-                "Remaining: %.1f km\n" +
-                "Waypoint %d of %d",
-                mRouteName,
-                direction,
-                distance,
-                mRemainingDistance / 1000.0,
-                mCurrentWaypointIndex + 1,
-                mRoutePoints.size()
-            );
-            
-            card.setText(text);
-            card.setFootnote("Following route...");
+            instruction.append(getDirectionString(mBearing)).append(", rejoin in ")
+                .append(distanceToRejoin(), 0).append(" m");
+            detail.append("Next: ").append(mManeuvers.getInstruction(mManeuverIndex));
+            remaining.append("Remaining: ").append(mRemainingDistance / 1000.0, 1).append(" km");
+            footnote.append(mRouteTracker.isOffRoute()
+                ? "Off route - head back to the route" : "Finding route...");
         } else {
-            card.setText(mRouteName);
-            card.setFootnote("Waiting for GPS...");
+            footnote.append("Waiting for GPS...");
         }
         
-        setContentView(card.getView());
+        instruction.commit();
+        detail.commit();
+        remaining.commit();
+        footnote.commit();
+        mHudStats.endUpdate();
+    }
+    
+    /**
+     * The climb being ridden or the next one within range, if any
+     */
+    private void appendClimb(HudText text, double progress) {
+        if (mElevation == null || mClimbIndex >= mElevation.getClimbCount()) return;
+        
+        double start = mElevation.getClimbStart(mClimbIndex);
+        double grade = mElevation.getClimbGrade(mClimbIndex) * 100.0;
+        if (progress >= start) {
+            text.append("Climb: ").append((mElevation.getClimbEnd(mClimbIndex) - progress) / 1000.0, 1)
+                .append(" km left @ ").append(grade, 0).append('%');
+        } else if (start - progress <= CLIMB_LOOKAHEAD) {
+            text.append("Climb ").append(mElevation.getClimbLength(mClimbIndex) / 1000.0, 1)
+                .append(" km @ ").append(grade, 0).append("% in ").append(start - progress, 0)
+                .append(" m");
+        }
+    }
+    
+    /**
+     * Appends the local time of day as HH:MM
+     */
+    private void appendClockTime(HudText text, long time) {
+        long minutes = (time + mTimeZoneOffset) / 60000 % (24 * 60);
+        long hours = minutes / 60;
+        minutes %= 60;
+        if (hours < 10) text.append('0');
+        text.append(hours).append(':');
+        if (minutes < 10) text.append('0');
+        text.append(minutes);
     }
     
     private String getDirectionString(float bearing) {
@@ -367,8 +680,9 @@ public class RouteNavigationActivity extends Activity implements LocationListene
     
     private void completeNavigation() {
         mIsNavigating = false;
-        mLocationManager.removeUpdates(this);
+        stopLocationUpdates();
         mUpdateHandler.removeCallbacks(mUpdateRunnable);
+        mHudStats.stop();
         
         // Play success sound and vibrate
         mAudioManager.playSoundEffect(Sounds.SUCCESS);
@@ -381,38 +695,14 @@ public class RouteNavigationActivity extends Activity implements LocationListene
         setContentView(card.getView());
     }
     
-    private List<Location> decodePolyline(String encoded) {
-        List<Location> poly = new ArrayList<>();
-        int index = 0, len = encoded.length();
-        int lat = 0, lng = 0;
-        
-        while (index < len) {
-            int b, shift = 0, result = 0;
-            do {
-                b = encoded.charAt(index++) - 63;
-                result |= (b & 0x1f) << shift;
-                shift += 5;
-            } while (b >= 0x20);
-            int dlat = ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
-            lat += dlat;
-            
-            shift = 0;
-            result = 0;
-            do {
-                b = encoded.charAt(index++) - 63;
-                result |= (b & 0x1f) << shift;
-                shift += 5;
-            } while (b >= 0x20);
-            int dlng = ((result & 1) != 0 ? ~(result >> 1) : (result >> 1));
-            lng += dlng;
-            
-            Location point = new Location("route");
-            point.setLatitude((double) lat / 1E5);
-            point.setLongitude((double) lng / 1E5);
-            poly.add(point);
-        }
-        
-        return poly;
+    /**
+     * Distance from the current location to the rejoin point; the initial
+     * bearing towards it is left in mDistanceResult[1]
+     */
+    private float distanceToRejoin() {
+        Location.distanceBetween(mCurrentLocation.getLatitude(), mCurrentLocation.getLongitude(),
+            mRerouter.getLatitude(), mRerouter.getLongitude(), mDistanceResult);
+        return mDistanceResult[0];
     }
     
     private GestureDetector createGestureDetector(Context context) {
@@ -440,8 +730,9 @@ public class RouteNavigationActivity extends Activity implements LocationListene
     
     private void stopNavigation() {
         mIsNavigating = false;
-        mLocationManager.removeUpdates(this);
+        stopLocationUpdates();
         mUpdateHandler.removeCallbacks(mUpdateRunnable);
+        mHudStats.stop();
         mAudioManager.playSoundEffect(Sounds.DISMISSED);
         finish();
     }
@@ -469,19 +760,79 @@ public class RouteNavigationActivity extends Activity implements LocationListene
         return super.onGenericMotionEvent(event);
     }
     
-    @Override
-    public void onStatusChanged(String provider, int status, Bundle extras) {}
-    
-    @Override
-    public void onProviderEnabled(String provider) {}
-    
-    @Override
-    public void onProviderDisabled(String provider) {}
+    private void stopLocationUpdates() {
+        if (mLocationService != null) {
+            mLocationService.removeConsumer(this);
+            mLocationService.setEventDistance(SamplingController.EVENT_TURN, Double.NaN);
+        }
+    }
     
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mLocationManager.removeUpdates(this);
-        mUpdateHandler.removeCallbacks(mUpdateRunnable);
+        stopLocationUpdates();
+        mNavigationExecutor.shutdown();
+        mUpdateHandler.removeCallbacksAndMessages(null);
+        mHudStats.stop();
+        mClient.logStats();
+        if (mLocationServiceBound) {
+            unbindService(mLocationConnection);
+            mLocationServiceBound = false;
+        }
+    }
+    
+    private class RouteCardAdapter extends CardScrollAdapter {
+        private Context mContext;
+        // Every card uses the same layout
+        private final int mViewType;
+        
+        public RouteCardAdapter(Context context) {
+            mContext = context;
+            mViewType = new CardBuilder(context, CardBuilder.Layout.TEXT).getItemViewType();
+        }
+        
+        @Override
+        public int getCount() {
+            return mRoutes.size();
+        }
+        
+        @Override
+        public Object getItem(int position) {
+            return mRoutes.get(position);
+        }
+        
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            mRoutes.onItemShown(position);
+            RouteSummary route = mRoutes.get(position);
+            
+            String footnote = String.format(Locale.US, "%s • %.1f km • %.0f m climb",
+                route.type == RouteSummary.TYPE_RUN ? "Run" : "Ride",
+                route.distance / 1000, route.elevationGain);
+            if (mRouteCache.contains(route.id)) {
+                footnote += " • Offline";
+            }
+            
+            // Cards are built only as they scroll into view and reuse the recycled view
+            return new CardBuilder(mContext, CardBuilder.Layout.TEXT)
+                .setText(route.name)
+                .setFootnote(footnote)
+                .getView(convertView, parent);
+        }
+        
+        @Override
+        public int getViewTypeCount() {
+            return CardBuilder.getViewTypeCount();
+        }
+        
+        @Override
+        public int getItemViewType(int position) {
+            return mViewType;
+        }
+        
+        @Override
+        public int getPosition(Object item) {
+            return mRoutes.indexOf(((RouteSummary) item).id);
+        }
     }
 }
\ No newline at end of file
@@ -1,14 +1,17 @@
 package com.example.glassstrava.activities;
 
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
 import android.media.AudioManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 
@@ -19,46 +22,127 @@ import com.google.android.glass.widget.CardBuilder;
 import com.google.android.glass.widget.CardScrollAdapter;
 import com.google.android.glass.widget.CardScrollView;
 
+import com.example.glassstrava.api.StravaClient;
+import com.example.glassstrava.location.SamplingController;
 import com.example.glassstrava.models.Segment;
 import com.example.glassstrava.models.SegmentEffort;
+import com.example.glassstrava.segments.LeaderboardRepository;
+import com.example.glassstrava.segments.SegmentMatcher;
+import com.example.glassstrava.segments.SegmentTileCache;
+import com.example.glassstrava.services.LocationTrackingService;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * Activity for viewing nearby Strava segments and leaderboards
+ * Activity for viewing nearby Strava segments and leaderboards.
+ *
+ * Fixes are matched against segment starts and finishes on a thread of
+ * their own; efforts are reported back on the main thread.
  */
-public class SegmentActivity extends Activity implements LocationListener {
+public class SegmentActivity extends Activity implements LocationTrackingService.Consumer,
+        SegmentMatcher.Listener, LeaderboardRepository.Listener {
     
     private static final String TAG = "SegmentActivity";
-    private static final String STRAVA_API_BASE = "https://www.strava.com/api/v3";
+    // How long an effort alert stays up before going back to the segment cards
+    private static final long ALERT_DURATION = 5000;
+    private static final long NO_TILE = Long.MIN_VALUE;
     
     private CardScrollView mCardScroller;
     private SegmentCardAdapter mAdapter;
     private GestureDetector mGestureDetector;
     private AudioManager mAudioManager;
-    private LocationManager mLocationManager;
-    private SharedPreferences mPrefs;
+    private LocationTrackingService mLocationService;
+    private boolean mLocationServiceBound = false;
     
     private List<Segment> mSegments = new ArrayList<>();
     private Location mCurrentLocation;
     private boolean mIsLoadingSegments = false;
+    private SegmentTileCache mTileCache;
+    // Tile the current segment list was loaded around
+    private long mLoadedTile = NO_TILE;
+    // Only used on mMatchExecutor
+    private SegmentMatcher mMatcher;
+    private final ExecutorService mMatchExecutor = Executors.newSingleThreadExecutor();
+    private LeaderboardRepository mLeaderboards;
+    private Handler mHandler;
+    
+    // Hands the matcher's callbacks to the main thread
+    private final SegmentMatcher.Listener mMainThreadListener = new SegmentMatcher.Listener() {
+        @Override
+        public void onEffortStarted(final Segment segment) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isDestroyed()) SegmentActivity.this.onEffortStarted(segment);
+                }
+            });
+        }
+        
+        @Override
+        public void onEffortFinished(final Segment segment, final int elapsedSeconds,
+                                     final int rank) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isDestroyed()) {
+                        SegmentActivity.this.onEffortFinished(segment, elapsedSeconds, rank);
+                    }
+                }
+            });
+        }
+        
+        @Override
+        public void onEffortAbandoned(final Segment segment) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isDestroyed()) SegmentActivity.this.onEffortAbandoned(segment);
+                }
+            });
+        }
+    };
+    
+    private final Runnable mDismissAlert = new Runnable() {
+        @Override
+        public void run() {
+            setContentView(mCardScroller);
+        }
+    };
+    
+    private ServiceConnection mLocationConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mLocationService = ((LocationTrackingService.LocalBinder) service).getService();
+            mLocationServiceBound = true;
+            startLocationUpdates();
+        }
+        
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mLocationService = null;
+            mLocationServiceBound = false;
+        }
+    };
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         
         mAudioManager = (AudioManager) getSystemService(AUDIO_SERVICE);
-        mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
-        mPrefs = getSharedPreferences("StravaGlass", MODE_PRIVATE);
+        StravaClient client = StravaClient.getInstance(this);
+        mTileCache = new SegmentTileCache(new File(getFilesDir(), "segment_tiles"), client, "running");
+        mMatcher = new SegmentMatcher(mMainThreadListener);
+        mLeaderboards = new LeaderboardRepository(new File(getFilesDir(), "leaderboards"), client, this);
+        mHandler = new Handler();
         
         // Setup card scroller
         mCardScroller = new CardScrollView(this);
@@ -70,110 +154,111 @@ public class SegmentActivity extends Activity implements LocationListener {
         // Setup gesture detection
         mGestureDetector = createGestureDetector(this);
         
-        // Start location updates
-        startLocationUpdates();
+        // Start location updates once the shared location service is bound
+        bindService(new Intent(this, LocationTrackingService.class), mLocationConnection,
+            Context.BIND_AUTO_CREATE);
         
         // Show loading card
         showLoadingCard();
     }
     
     private void startLocationUpdates() {
-        try {
-            mLocationManager.requestLocationUpdates(
-                LocationManager.GPS_PROVIDER,
-                5000,  // 5 seconds
-                10,    // 10 meters
-                this
-            );
-            
-            // Get last known location
-            Location lastLocation = mLocationManager.getLastKnownLocation(
-                LocationManager.GPS_PROVIDER);
-            if (lastLocation != null) {
-                onLocationChanged(lastLocation);
-            }
-        } catch (SecurityException e) {
-            showError("Location permission denied");
+        // Every fix, so start and finish crossings are timed closely
+        mLocationService.addConsumer(this, 0, mMatchExecutor);
+        
+        // Get last known location
+        Location lastLocation = mLocationService.getLastLocation();
+        if (lastLocation != null) {
+            onLocationChecked(lastLocation);
         }
     }
     
+    /**
+     * Runs on the matcher's thread
+     */
     @Override
-    public void onLocationChanged(Location location) {
+    public void onLocationChanged(final Location location) {
+        mMatcher.update(location.getLatitude(), location.getLongitude(), location.getTime());
+        final double eventDistance = mMatcher.getEventDistance();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Matched before the activity went away
+                if (isDestroyed()) return;
+                if (mLocationService != null) {
+                    // Lets the location service sample faster near a segment start or finish
+                    mLocationService.setEventDistance(SamplingController.EVENT_SEGMENT,
+                        eventDistance);
+                }
+                onLocationChecked(location);
+            }
+        });
+    }
+    
+    /**
+     * Main thread side of a fix: loads the segments around it if needed
+     */
+    private void onLocationChecked(Location location) {
         mCurrentLocation = location;
         
-        if (!mIsLoadingSegments) {
+        // The nearby tiles only change when the user moves into another tile,
+        // or when tiles that failed are due to be tried again
+        if (!mIsLoadingSegments && (SegmentTileCache.tileKey(location.getLatitude(),
+                location.getLongitude()) != mLoadedTile
+                || mTileCache.needsFetch(location.getLatitude(), location.getLongitude()))) {
             loadNearbySegments();
         }
     }
     
     @Override
-    public void onStatusChanged(String provider, int status, Bundle extras) {}
+    public void onEffortStarted(Segment segment) {
+        mAudioManager.playSoundEffect(Sounds.SELECTED);
+        showEffortAlert(segment.name, "Segment started");
+    }
     
     @Override
-    public void onProviderEnabled(String provider) {}
+    public void onEffortFinished(Segment segment, int elapsedSeconds, int rank) {
+        mAudioManager.playSoundEffect(Sounds.SUCCESS);
+        String footnote = "Segment done: " + formatTime(elapsedSeconds);
+        if (rank > 0) {
+            footnote += " - #" + rank;
+        }
+        showEffortAlert(segment.name, footnote);
+    }
     
     @Override
-    public void onProviderDisabled(String provider) {}
+    public void onEffortAbandoned(Segment segment) {
+        mAudioManager.playSoundEffect(Sounds.DISALLOWED);
+        showEffortAlert(segment.name, "Left the segment");
+    }
     
     private void loadNearbySegments() {
         if (mCurrentLocation == null) return;
         
         mIsLoadingSegments = true;
+        final double lat = mCurrentLocation.getLatitude();
+        final double lng = mCurrentLocation.getLongitude();
         
         new AsyncTask<Void, Void, List<Segment>>() {
             @Override
             protected List<Segment> doInBackground(Void... params) {
-                List<Segment> segments = new ArrayList<>();
+                // Only tiles not cached yet cost a request
+                List<Segment> segments = mTileCache.getNearby(lat, lng);
                 
-                try {
-                    // Get access token
-                    String accessToken = mPrefs.getString("strava_access_token", null);
-                    if (accessToken == null) {
-                        return segments;
-                    }
-                    
-                    // Calculate bounds (roughly 5km radius)
-                    double lat = mCurrentLocation.getLatitude();
-                    double lng = mCurrentLocation.getLongitude();
-                    double offset = 0.045; // ~5km in degrees
-                    
-                    String bounds = String.format(Locale.US, "%.6f,%.6f,%.6f,%.6f",
-                        lat - offset, lng - offset, lat + offset, lng + offset);
-                    
-                    // API call to explore segments
-                    String urlStr = STRAVA_API_BASE + "/segments/explore"
-                        + "?bounds=" + bounds
-                        + "&activity_type=running";
-                    
-                    URL url = new URL(urlStr);
-                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                    conn.setRequestMethod("GET");
-                    conn.setRequestProperty("Authorization", "Bearer " + accessToken);
-                    
-                    if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                        BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(conn.getInputStream()));
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            response.append(line);
-                        }
-                        reader.close();
-                        
-                        // Parse response
-                        JSONObject json = new JSONObject(response.toString());
-                        JSONArray segmentsArray = json.getJSONArray("segments");
-                        
-                        for (int i = 0; i < segmentsArray.length(); i++) {
-                            JSONObject segmentJson = segmentsArray.getJSONObject(i);
-                            Segment segment = Segment.fromJson(segmentJson);
-                            segments.add(segment);
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
+                // Tiles are merged in grid order; show the closest segments first
+                final float[] distance = new float[1];
+                final Map<Segment, Float> distances = new HashMap<>();
+                for (Segment segment : segments) {
+                    Location.distanceBetween(lat, lng,
+                        segment.startLatitude, segment.startLongitude, distance);
+                    distances.put(segment, distance[0]);
                 }
-                
+                Collections.sort(segments, new Comparator<Segment>() {
+                    @Override
+                    public int compare(Segment a, Segment b) {
+                        return Float.compare(distances.get(a), distances.get(b));
+                    }
+                });
                 return segments;
             }
             
@@ -181,6 +266,20 @@ public class SegmentActivity extends Activity implements LocationListener {
             protected void onPostExecute(List<Segment> segments) {
                 mIsLoadingSegments = false;
                 mSegments = segments;
+                // Leaderboards loaded for the previous list, e.g. in an overlapping tile
+                for (Segment segment : segments) {
+                    segment.leaderboard = mLeaderboards.get(segment.id);
+                }
+                final List<Segment> watched = segments;
+                mMatchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mMatcher.setSegments(watched);
+                    }
+                });
+                mLoadedTile = SegmentTileCache.tileKey(lat, lng);
+                Log.d(TAG, segments.size() + " segments nearby, "
+                    + mTileCache.getRequestCount() + " explore requests so far");
                 
                 if (segments.isEmpty()) {
                     showNoSegmentsCard();
@@ -192,57 +291,15 @@ public class SegmentActivity extends Activity implements LocationListener {
         }.execute();
     }
     
-    private void loadSegmentLeaderboard(final Segment segment) {
-        new AsyncTask<Void, Void, List<SegmentEffort>>() {
-            @Override
-            protected List<SegmentEffort> doInBackground(Void... params) {
-                List<SegmentEffort> efforts = new ArrayList<>();
-                
-                try {
-                    String accessToken = mPrefs.getString("strava_access_token", null);
-                    if (accessToken == null) return efforts;
-                    
-                    // API call for segment leaderboard
-                    String urlStr = STRAVA_API_BASE + "/segments/" + segment.id + "/leaderboard"
-                        + "?per_page=10";
-                    
-                    URL url = new URL(urlStr);
-                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                    conn.setRequestMethod("GET");
-                    conn.setRequestProperty("Authorization", "Bearer " + accessToken);
-                    
-                    if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                        BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(conn.getInputStream()));
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            response.append(line);
-                        }
-                        reader.close();
-                        
-                        JSONObject json = new JSONObject(response.toString());
-                        JSONArray entries = json.getJSONArray("entries");
-                        
-                        for (int i = 0; i < entries.length(); i++) {
-                            JSONObject entry = entries.getJSONObject(i);
-                            SegmentEffort effort = SegmentEffort.fromJson(entry);
-                            efforts.add(effort);
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                
-                return efforts;
-            }
-            
-            @Override
-            protected void onPostExecute(List<SegmentEffort> efforts) {
-                segment.leaderboard = efforts;
+    @Override
+    public void onLeaderboardLoaded(long segmentId, List<SegmentEffort> leaderboard) {
+        for (Segment segment : mSegments) {
+            if (segment.id == segmentId) {
+                segment.leaderboard = leaderboard;
                 mAdapter.notifyDataSetChanged();
+                return;
             }
-        }.execute();
+        }
     }
     
     private GestureDetector createGestureDetector(Context context) {
@@ -253,13 +310,8 @@ public class SegmentActivity extends Activity implements LocationListener {
             public boolean onGesture(Gesture gesture) {
                 switch (gesture) {
                     case TAP:
-                        int position = mCardScroller.getSelectedItemPosition();
-                        if (position < mSegments.size()) {
-                            Segment segment = mSegments.get(position);
-                            if (segment.leaderboard == null) {
-                                loadSegmentLeaderboard(segment);
-                            }
-                        }
+                        // Picks up leaderboards that failed to load, once the retry delay has passed
+                        mLeaderboards.prefetch(mSegments, mCardScroller.getSelectedItemPosition());
                         mAudioManager.playSoundEffect(Sounds.TAP);
                         return true;
                     case SWIPE_DOWN:
@@ -290,6 +342,20 @@ public class SegmentActivity extends Activity implements LocationListener {
         setContentView(card.getView());
     }
     
+    private void showEffortAlert(String text, String footnote) {
+        CardBuilder card = new CardBuilder(this, CardBuilder.Layout.ALERT);
+        card.setText(text);
+        card.setFootnote(footnote);
+        card.setIcon(android.R.drawable.ic_dialog_info);
+        setContentView(card.getView());
+        mHandler.removeCallbacks(mDismissAlert);
+        mHandler.postDelayed(mDismissAlert, ALERT_DURATION);
+    }
+    
+    private static String formatTime(int seconds) {
+        return String.format(Locale.US, "%d:%02d", seconds / 60, seconds % 60);
+    }
+    
     private void showError(String message) {
         CardBuilder card = new CardBuilder(this, CardBuilder.Layout.ALERT);
         card.setText("Error");
@@ -318,6 +384,8 @@ public class SegmentActivity extends Activity implements LocationListener {
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             Segment segment = mSegments.get(position);
+            // Cards are built as they come into view, so load the neighbours' leaderboards now
+            mLeaderboards.prefetch(mSegments, position);
             
             CardBuilder card = new CardBuilder(mContext, CardBuilder.Layout.TEXT);
             
@@ -337,7 +405,8 @@ public class SegmentActivity extends Activity implements LocationListener {
             }
             
             card.setText(text);
-            card.setFootnote("Tap for leaderboard • Swipe for next");
+            card.setFootnote(segment.leaderboard == null
+                ? "Loading leaderboard • Swipe for next" : "Swipe for next");
             
             return card.getView();
         }
@@ -346,12 +415,6 @@ public class SegmentActivity extends Activity implements LocationListener {
         public int getPosition(Object item) {
             return mSegments.indexOf(item);
         }
-        
-        private String formatTime(int seconds) {
-            int mins = seconds / 60;
-            int secs = seconds % 60;
-            return String.format(Locale.US, "%d:%02d", mins, secs);
-        }
     }
     
     @Override
@@ -381,6 +444,15 @@ public class SegmentActivity extends Activity implements LocationListener {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mLocationManager.removeUpdates(this);
+        mMatchExecutor.shutdownNow();
+        mHandler.removeCallbacksAndMessages(null);
+        mLeaderboards.shutdown();
+        StravaClient.getInstance(this).logStats();
+        if (mLocationServiceBound) {
+            mLocationService.removeConsumer(this);
+            mLocationService.setEventDistance(SamplingController.EVENT_SEGMENT, Double.NaN);
+            unbindService(mLocationConnection);
+            mLocationServiceBound = false;
+        }
     }
 }
\ No newline at end of file
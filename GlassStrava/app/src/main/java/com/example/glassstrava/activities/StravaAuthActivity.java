@@ -13,13 +13,11 @@ import android.view.View;
 import com.google.android.glass.media.Sounds;
 import com.google.android.glass.widget.CardBuilder;
 
+import com.example.glassstrava.api.StravaClient;
+
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 
 /**
  * Handles Strava OAuth authentication flow for Glass
@@ -107,46 +105,35 @@ public class StravaAuthActivity extends Activity {
             @Override
             protected Boolean doInBackground(Void... params) {
                 try {
-                    URL url = new URL(TOKEN_URL);
-                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                    conn.setRequestMethod("POST");
-                    conn.setDoOutput(true);
-                    conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                    
                     String postData = "client_id=" + CLIENT_ID
                             + "&client_secret=" + CLIENT_SECRET
                             + "&code=" + code
                             + "&grant_type=authorization_code";
                     
-                    OutputStream os = conn.getOutputStream();
-                    os.write(postData.getBytes());
-                    os.flush();
-                    os.close();
-                    
-                    int responseCode = conn.getResponseCode();
-                    if (responseCode == HttpURLConnection.HTTP_OK) {
-                        BufferedReader br = new BufferedReader(
-                            new InputStreamReader(conn.getInputStream()));
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            response.append(line);
-                        }
-                        br.close();
-                        
-                        // Parse JSON response
-                        JSONObject json = new JSONObject(response.toString());
-                        accessToken = json.getString("access_token");
-                        refreshToken = json.getString("refresh_token");
-                        expiresAt = json.getLong("expires_at");
-                        
-                        // Get athlete info
-                        JSONObject athlete = json.getJSONObject("athlete");
-                        athleteName = athlete.getString("firstname") + " " + 
-                                    athlete.getString("lastname");
-                        
-                        return true;
+                    StravaClient.Response response = StravaClient.getInstance(StravaAuthActivity.this)
+                        .post(TOKEN_URL, StravaClient.PRIORITY_NAVIGATION,
+                            "application/x-www-form-urlencoded",
+                            postData.getBytes("UTF-8"));
+                    String body;
+                    try {
+                        if (response.getCode() != HttpURLConnection.HTTP_OK) return false;
+                        body = response.readString();
+                    } finally {
+                        response.close();
                     }
+                    
+                    // Parse JSON response
+                    JSONObject json = new JSONObject(body);
+                    accessToken = json.getString("access_token");
+                    refreshToken = json.getString("refresh_token");
+                    expiresAt = json.getLong("expires_at");
+                    
+                    // Get athlete info
+                    JSONObject athlete = json.getJSONObject("athlete");
+                    athleteName = athlete.getString("firstname") + " " + 
+                                athlete.getString("lastname");
+                    
+                    return true;
                 } catch (Exception e) {
                     Log.e(TAG, "Error exchanging code for token", e);
                 }
@@ -192,40 +179,29 @@ public class StravaAuthActivity extends Activity {
             @Override
             protected Boolean doInBackground(Void... params) {
                 try {
-                    URL url = new URL(TOKEN_URL);
-                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                    conn.setRequestMethod("POST");
-                    conn.setDoOutput(true);
-                    conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                    
                     String postData = "client_id=" + CLIENT_ID
                             + "&client_secret=" + CLIENT_SECRET
                             + "&refresh_token=" + refreshToken
                             + "&grant_type=refresh_token";
                     
-                    OutputStream os = conn.getOutputStream();
-                    os.write(postData.getBytes());
-                    os.flush();
-                    os.close();
-                    
-                    int responseCode = conn.getResponseCode();
-                    if (responseCode == HttpURLConnection.HTTP_OK) {
-                        BufferedReader br = new BufferedReader(
-                            new InputStreamReader(conn.getInputStream()));
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            response.append(line);
-                        }
-                        br.close();
-                        
-                        JSONObject json = new JSONObject(response.toString());
-                        newAccessToken = json.getString("access_token");
-                        newRefreshToken = json.getString("refresh_token");
-                        newExpiresAt = json.getLong("expires_at");
-                        
-                        return true;
+                    StravaClient.Response response = StravaClient.getInstance(StravaAuthActivity.this)
+                        .post(TOKEN_URL, StravaClient.PRIORITY_NAVIGATION,
+                            "application/x-www-form-urlencoded",
+                            postData.getBytes("UTF-8"));
+                    String body;
+                    try {
+                        if (response.getCode() != HttpURLConnection.HTTP_OK) return false;
+                        body = response.readString();
+                    } finally {
+                        response.close();
                     }
+                    
+                    JSONObject json = new JSONObject(body);
+                    newAccessToken = json.getString("access_token");
+                    newRefreshToken = json.getString("refresh_token");
+                    newExpiresAt = json.getLong("expires_at");
+                    
+                    return true;
                 } catch (Exception e) {
                     Log.e(TAG, "Error refreshing token", e);
                 }
@@ -0,0 +1,26 @@
+package com.example.glassstrava.api;
+
+import java.io.IOException;
+
+/**
+ * A request that wasn't sent because it would eat into rate limit budget
+ * kept for more important requests. Callers that already treat an
+ * IOException as "try again later" need no changes.
+ */
+public class RateLimitedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long mRetryAt;
+
+    public RateLimitedException(String message, long retryAt) {
+        super(message);
+        mRetryAt = retryAt;
+    }
+
+    /**
+     * When the limiting window resets, in {@link System#currentTimeMillis} time
+     */
+    public long getRetryAt() {
+        return mRetryAt;
+    }
+}
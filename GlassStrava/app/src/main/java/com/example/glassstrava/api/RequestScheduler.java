@@ -0,0 +1,238 @@
+package com.example.glassstrava.api;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Decides when, and whether, a Strava API request may be sent.
+ *
+ * Strava limits requests per application over a 15-minute window and a
+ * day, both reset on UTC boundaries, and reports the limit and usage so
+ * far on every response (X-RateLimit-*, plus X-ReadRateLimit-* for reads
+ * where Strava sends them). Each window is a token bucket refilled from
+ * those headers, less the requests still in flight.
+ *
+ * Lower priorities must leave a share of each window unused, so they are
+ * turned away while there is still budget for navigation instead of
+ * running it dry and getting 429s. A refused request may wait for the
+ * window to reset if its priority allows, otherwise it fails at once with
+ * {@link RateLimitedException}. Requests also queue for a few dispatch
+ * slots in priority order, so a burst of prefetches can't delay a
+ * navigation request.
+ */
+class RequestScheduler {
+    private static final long SHORT_WINDOW = 15 * 60 * 1000;
+    private static final long LONG_WINDOW = 24 * 60 * 60 * 1000;
+    // Strava's defaults, used until the first response says otherwise
+    private static final int DEFAULT_SHORT_LIMIT = 100;
+    private static final int DEFAULT_LONG_LIMIT = 1000;
+    private static final int MAX_CONCURRENT = 4;
+
+    // Share of each window a priority must leave unused, by priority
+    private static final double[] RESERVE = {0.0, 0.1, 0.25, 0.4};
+    // How long a priority may wait for a window to reset instead of failing
+    private static final long[] MAX_WAIT = {60 * 1000, 0, 0, 0};
+
+    private static class Window {
+        final long length;
+        int limit;
+        // Usage reported by Strava, and the window it was reported in
+        int usage;
+        long start;
+
+        Window(long length, int limit) {
+            this.length = length;
+            this.limit = limit;
+        }
+
+        long reset(long now) {
+            return (now / length + 1) * length;
+        }
+    }
+
+    private static class Waiter {
+        final int priority;
+        final long sequence;
+
+        Waiter(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    // Short and long windows for all requests, and for reads only
+    private final Window[] mAll = {
+        new Window(SHORT_WINDOW, DEFAULT_SHORT_LIMIT), new Window(LONG_WINDOW, DEFAULT_LONG_LIMIT)
+    };
+    private final Window[] mRead = {
+        new Window(SHORT_WINDOW, Integer.MAX_VALUE), new Window(LONG_WINDOW, Integer.MAX_VALUE)
+    };
+    private final PriorityQueue<Waiter> mWaiters = new PriorityQueue<>(8,
+        new Comparator<Waiter>() {
+            @Override
+            public int compare(Waiter a, Waiter b) {
+                if (a.priority != b.priority) return a.priority < b.priority ? -1 : 1;
+                return a.sequence < b.sequence ? -1 : (a.sequence > b.sequence ? 1 : 0);
+            }
+        });
+    private long mSequence = 0;
+    private int mActive = 0;
+    // Sent but not yet answered, so not yet in Strava's reported usage
+    private int mInFlight = 0;
+    private int mInFlightReads = 0;
+    private int mRefused = 0;
+
+    /**
+     * Blocks for a dispatch slot and budget. Every successful call must be
+     * followed by {@link #onResponse} or {@link #onFailure}, then {@link #release}.
+     *
+     * @throws RateLimitedException if the request would use reserved budget
+     */
+    synchronized void acquire(int priority, boolean read) throws RateLimitedException {
+        long deadline = now() + MAX_WAIT[priority];
+        while (true) {
+            Waiter waiter = new Waiter(priority, mSequence++);
+            mWaiters.add(waiter);
+            try {
+                while (mActive >= MAX_CONCURRENT || mWaiters.peek() != waiter) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RateLimitedException("Interrupted waiting to send", now());
+            } finally {
+                mWaiters.remove(waiter);
+                notifyAll();
+            }
+
+            long now = now();
+            long retryAt = refusal(priority, read, now);
+            if (retryAt == 0) {
+                mActive++;
+                mInFlight++;
+                if (read) mInFlightReads++;
+                return;
+            }
+            if (retryAt > deadline) {
+                mRefused++;
+                throw new RateLimitedException("Holding back priority " + priority
+                    + " request for rate limit reserve", retryAt);
+            }
+            try {
+                wait(retryAt - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RateLimitedException("Interrupted waiting to send", retryAt);
+            }
+        }
+    }
+
+    /**
+     * Updates the budget from a response's rate limit headers, any of which
+     * may be null
+     */
+    synchronized void onResponse(boolean read, int code, String limit, String usage,
+                                 String readLimit, String readUsage) {
+        finished(read);
+        long now = now();
+        update(mAll, limit, usage, now);
+        update(mRead, readLimit, readUsage, now);
+        if (code == 429 && usage == null) {
+            // Limited without saying how; assume the short window is spent
+            mAll[0].usage = mAll[0].limit;
+            mAll[0].start = now;
+        }
+        notifyAll();
+    }
+
+    synchronized void onFailure(boolean read) {
+        finished(read);
+        notifyAll();
+    }
+
+    synchronized void release() {
+        mActive--;
+        notifyAll();
+    }
+
+    /**
+     * Requests refused so far, for logging
+     */
+    synchronized int getRefusedCount() {
+        return mRefused;
+    }
+
+    /**
+     * Remaining requests in the short window, for logging
+     */
+    synchronized int getShortWindowRemaining() {
+        return remaining(mAll[0], mInFlight, now());
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    private void finished(boolean read) {
+        mInFlight--;
+        if (read) mInFlightReads--;
+    }
+
+    /**
+     * @return 0 if the request may go now, otherwise when the window that
+     * refuses it resets
+     */
+    private long refusal(int priority, boolean read, long now) {
+        long retryAt = 0;
+        for (Window window : mAll) {
+            if (!allows(window, mInFlight, priority, now)) {
+                retryAt = Math.max(retryAt, window.reset(now));
+            }
+        }
+        if (read) {
+            for (Window window : mRead) {
+                if (!allows(window, mInFlightReads, priority, now)) {
+                    retryAt = Math.max(retryAt, window.reset(now));
+                }
+            }
+        }
+        return retryAt;
+    }
+
+    private static boolean allows(Window window, int inFlight, int priority, long now) {
+        if (window.limit == Integer.MAX_VALUE) return true;
+        return remaining(window, inFlight, now) > RESERVE[priority] * window.limit;
+    }
+
+    private static int remaining(Window window, int inFlight, long now) {
+        // Usage reported in an earlier window has been reset since
+        int usage = window.reset(window.start) <= now ? 0 : window.usage;
+        return window.limit - usage - inFlight;
+    }
+
+    /**
+     * Headers are comma separated, short window first: "100,1000" and "7,312"
+     */
+    private static void update(Window[] windows, String limit, String usage, long now) {
+        if (limit == null || usage == null) return;
+        String[] limits = limit.split(",");
+        String[] usages = usage.split(",");
+        for (int i = 0; i < windows.length && i < limits.length && i < usages.length; i++) {
+            try {
+                int newLimit = Integer.parseInt(limits[i].trim());
+                int newUsage = Integer.parseInt(usages[i].trim());
+                Window window = windows[i];
+                // Responses can arrive out of order; usage only grows within a window
+                if (window.reset(window.start) > now && window.limit == newLimit
+                        && window.usage > newUsage) {
+                    continue;
+                }
+                window.limit = newLimit;
+                window.usage = newUsage;
+                window.start = now;
+            } catch (NumberFormatException e) {
+                // Leave the window as it was
+            }
+        }
+    }
+}
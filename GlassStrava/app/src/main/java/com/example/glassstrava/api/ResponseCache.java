@@ -0,0 +1,187 @@
+package com.example.glassstrava.api;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Response bodies stored with their ETag, so a repeated GET can be made
+ * conditional and a 304 answered from disk.
+ *
+ * One file per URL, named by a hash of it: the ETag, then the decoded body.
+ * Bodies are written to a temp file of their own as the caller streams
+ * them, so concurrent GETs of one URL don't mix, and only replace the
+ * stored entry once read to the end. The oldest entries are dropped when
+ * the directory grows past its limit.
+ */
+class ResponseCache {
+    private static final String TAG = "ResponseCache";
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    ResponseCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Could not create " + dir);
+        }
+        // Left by writers that never finished, e.g. when the process was killed
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) file.delete();
+            }
+        }
+    }
+
+    /**
+     * ETag stored for a URL, or null
+     */
+    String getETag(String url) {
+        File file = file(url);
+        if (!file.exists()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readUTF();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Stored body for a URL positioned after its ETag, or null if the entry
+     * is gone
+     */
+    InputStream open(String url) {
+        File file = file(url);
+        try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 8192));
+            in.readUTF();
+            // Touch, so trimming drops entries that aren't being revalidated first
+            file.setLastModified(System.currentTimeMillis());
+            return in;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts storing a body; bytes go to {@link Writer#out} as they are read
+     */
+    Writer edit(String url, String eTag) {
+        File file = file(url);
+        File temp = null;
+        try {
+            temp = File.createTempFile(file.getName() + ".", ".tmp", mDir);
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 8192));
+            out.writeUTF(eTag);
+            return new Writer(file, temp, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache " + url, e);
+            if (temp != null) temp.delete();
+            return null;
+        }
+    }
+
+    void remove(String url) {
+        file(url).delete();
+    }
+
+    class Writer {
+        private final File mFile;
+        private final File mTemp;
+        final OutputStream out;
+
+        private Writer(File file, File temp, OutputStream out) {
+            mFile = file;
+            mTemp = temp;
+            this.out = out;
+        }
+
+        void commit() {
+            try {
+                out.close();
+                if (mTemp.renameTo(mFile)) {
+                    trim();
+                    return;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not cache " + mFile, e);
+            }
+            mTemp.delete();
+        }
+
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Discarded anyway
+            }
+            mTemp.delete();
+        }
+    }
+
+    private synchronized void trim() {
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mMaxBytes) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (total <= mMaxBytes) break;
+            // Leave bodies still being written to their writers
+            if (file.getName().endsWith(".tmp")) continue;
+            total -= file.length();
+            file.delete();
+        }
+    }
+
+    private File file(String url) {
+        return new File(mDir, hash(url));
+    }
+
+    private static String hash(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // SHA-1 and UTF-8 are always available
+            throw new IllegalStateException(e);
+        }
+    }
+}
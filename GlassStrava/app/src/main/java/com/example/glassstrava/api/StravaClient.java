@@ -0,0 +1,520 @@
+package com.example.glassstrava.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The one way the app talks to Strava.
+ *
+ * Requests ask for gzip and bodies are decoded as they are streamed, never
+ * buffered whole. Closing a {@link Response} reads the body to the end
+ * instead of disconnecting, which returns the connection to the keep-alive
+ * pool for the next request. GETs are revalidated with If-None-Match when
+ * an earlier response had an ETag, and a 304 is answered from the
+ * {@link ResponseCache} as if it were a 200.
+ *
+ * API requests are admitted by a {@link RequestScheduler} by priority, so
+ * the rate limit budget left for navigation isn't spent on prefetching.
+ *
+ * Request count, latency and bytes are kept per endpoint for
+ * {@link #logStats}. Safe to use from any thread.
+ */
+public class StravaClient {
+    private static final String TAG = "StravaClient";
+    public static final String API_BASE = "https://www.strava.com/api/v3";
+
+    // Request priorities, most important first
+    // Route and streams for the route being navigated
+    public static final int PRIORITY_NAVIGATION = 0;
+    // Segments around the user while moving
+    public static final int PRIORITY_LIVE_SEGMENT = 1;
+    // What the user is looking at: leaderboards, the route list
+    public static final int PRIORITY_BROWSE = 2;
+    // Prefetching and uploads, which can wait
+    public static final int PRIORITY_BACKGROUND = 3;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 60000;
+    private static final long CACHE_BYTES = 4 * 1024 * 1024;
+    // Leftovers longer than this are cheaper to drop with the connection
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static StravaClient sInstance;
+
+    private final String mApiBase;
+    private final SharedPreferences mPrefs;
+    private final ResponseCache mCache;
+    private final RequestScheduler mScheduler;
+    private final Map<String, EndpointStats> mStats = new TreeMap<>();
+
+    /**
+     * Writes a request body
+     */
+    public interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Totals for one endpoint; ids in the path are folded into "{id}"
+     */
+    public static class EndpointStats {
+        public final String endpoint;
+        public int requests;
+        public int notModified;
+        public int failures;
+        // Held back to stay within the rate limit
+        public int rateLimited;
+        // Time until the response headers arrived
+        public long latencyMillis;
+        // Bytes received as sent, and after decompression
+        public long wireBytes;
+        public long bodyBytes;
+
+        EndpointStats(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        EndpointStats(EndpointStats other) {
+            endpoint = other.endpoint;
+            requests = other.requests;
+            notModified = other.notModified;
+            failures = other.failures;
+            rateLimited = other.rateLimited;
+            latencyMillis = other.latencyMillis;
+            wireBytes = other.wireBytes;
+            bodyBytes = other.bodyBytes;
+        }
+    }
+
+    public static synchronized StravaClient getInstance(Context context) {
+        if (sInstance == null) {
+            Context app = context.getApplicationContext();
+            sInstance = new StravaClient(API_BASE,
+                app.getSharedPreferences("StravaGlass", Context.MODE_PRIVATE),
+                new File(app.getCacheDir(), "http"));
+        }
+        return sInstance;
+    }
+
+    StravaClient(String apiBase, SharedPreferences prefs, File cacheDir) {
+        this(apiBase, prefs, cacheDir, new RequestScheduler());
+    }
+
+    StravaClient(String apiBase, SharedPreferences prefs, File cacheDir,
+                 RequestScheduler scheduler) {
+        mApiBase = apiBase;
+        mPrefs = prefs;
+        mCache = new ResponseCache(cacheDir, CACHE_BYTES);
+        mScheduler = scheduler;
+    }
+
+    /**
+     * GET of an API path such as "/routes/123", or of an absolute URL
+     */
+    public Response get(String path, int priority) throws IOException {
+        String url = resolve(path);
+        String eTag = mCache.getETag(url);
+        Response response = execute("GET", path, priority, url, eTag, null, null, -1);
+        if (response.mCode == HttpURLConnection.HTTP_NOT_MODIFIED && eTag != null) {
+            InputStream cached = mCache.open(url);
+            if (cached != null) {
+                response.serveFromCache(cached);
+                return response;
+            }
+            // Trimmed since the ETag was read
+            response.close();
+            response = execute("GET", path, priority, url, null, null, null, -1);
+        }
+        if (response.mCode == HttpURLConnection.HTTP_OK) {
+            String newETag = response.mConnection.getHeaderField("ETag");
+            if (newETag != null) {
+                response.storeTo(mCache.edit(url, newETag));
+            } else if (eTag != null) {
+                mCache.remove(url);
+            }
+        }
+        return response;
+    }
+
+    public Response post(String path, int priority, String contentType, final byte[] body)
+            throws IOException {
+        return post(path, priority, contentType, body.length, new Body() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(body);
+            }
+        });
+    }
+
+    /**
+     * POST with a body of known length, streamed rather than buffered
+     */
+    public Response post(String path, int priority, String contentType, long length, Body body)
+            throws IOException {
+        return execute("POST", path, priority, resolve(path), null, contentType, body, length);
+    }
+
+    public List<EndpointStats> getStats() {
+        synchronized (mStats) {
+            List<EndpointStats> stats = new ArrayList<>(mStats.size());
+            for (EndpointStats endpoint : mStats.values()) {
+                stats.add(new EndpointStats(endpoint));
+            }
+            return stats;
+        }
+    }
+
+    public void logStats() {
+        for (EndpointStats stats : getStats()) {
+            Log.d(TAG, String.format(Locale.US,
+                "%s: %d requests (%d not modified, %d failed, %d rate limited), %d ms avg, "
+                    + "%d B received for %d B",
+                stats.endpoint, stats.requests, stats.notModified, stats.failures,
+                stats.rateLimited, stats.requests > 0 ? stats.latencyMillis / stats.requests : 0,
+                stats.wireBytes, stats.bodyBytes));
+        }
+        Log.d(TAG, mScheduler.getShortWindowRemaining() + " requests left in this window, "
+            + mScheduler.getRefusedCount() + " held back");
+    }
+
+    private Response execute(String method, String path, int priority, String url, String eTag,
+                             String contentType, Body body, long length) throws IOException {
+        EndpointStats stats = stats(path);
+        // Only API requests count towards the rate limit
+        boolean scheduled = isApi(path);
+        boolean read = "GET".equals(method);
+        if (scheduled) {
+            try {
+                mScheduler.acquire(priority, read);
+            } catch (RateLimitedException e) {
+                synchronized (mStats) {
+                    stats.rateLimited++;
+                }
+                throw e;
+            }
+        }
+
+        boolean answered = false;
+        long start = SystemClock.elapsedRealtime();
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            conn.setRequestMethod(method);
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            if (isApi(path)) {
+                String accessToken = mPrefs.getString("strava_access_token", null);
+                if (accessToken == null) throw new IOException("Not authenticated");
+                conn.setRequestProperty("Authorization", "Bearer " + accessToken);
+            }
+            if (eTag != null) {
+                conn.setRequestProperty("If-None-Match", eTag);
+            }
+            if (body != null) {
+                conn.setDoOutput(true);
+                conn.setRequestProperty("Content-Type", contentType);
+                conn.setFixedLengthStreamingMode((int) length);
+                OutputStream out = conn.getOutputStream();
+                try {
+                    body.writeTo(out);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int code = conn.getResponseCode();
+            answered = true;
+            if (scheduled) {
+                mScheduler.onResponse(read, code,
+                    conn.getHeaderField("X-RateLimit-Limit"),
+                    conn.getHeaderField("X-RateLimit-Usage"),
+                    conn.getHeaderField("X-ReadRateLimit-Limit"),
+                    conn.getHeaderField("X-ReadRateLimit-Usage"));
+            }
+            synchronized (mStats) {
+                stats.requests++;
+                stats.latencyMillis += SystemClock.elapsedRealtime() - start;
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED) stats.notModified++;
+            }
+            return new Response(conn, code, stats, scheduled);
+        } catch (IOException | RuntimeException e) {
+            synchronized (mStats) {
+                stats.failures++;
+            }
+            if (scheduled) {
+                if (!answered) mScheduler.onFailure(read);
+                mScheduler.release();
+            }
+            if (conn != null) conn.disconnect();
+            throw e;
+        }
+    }
+
+    private EndpointStats stats(String path) {
+        String endpoint = endpoint(path);
+        synchronized (mStats) {
+            EndpointStats stats = mStats.get(endpoint);
+            if (stats == null) {
+                stats = new EndpointStats(endpoint);
+                mStats.put(endpoint, stats);
+            }
+            return stats;
+        }
+    }
+
+    private String resolve(String path) {
+        return isApi(path) ? mApiBase + path : path;
+    }
+
+    private static boolean isApi(String path) {
+        return path.startsWith("/");
+    }
+
+    /**
+     * Path without the query and with numeric ids replaced, e.g.
+     * "/segments/{id}/leaderboard"
+     */
+    static String endpoint(String path) {
+        int query = path.indexOf('?');
+        if (query >= 0) path = path.substring(0, query);
+        if (!isApi(path)) {
+            int scheme = path.indexOf("://");
+            int slash = path.indexOf('/', scheme + 3);
+            path = scheme >= 0 && slash >= 0 ? path.substring(slash) : path;
+        }
+        StringBuilder sb = new StringBuilder(path.length());
+        for (String part : path.split("/")) {
+            if (part.isEmpty()) continue;
+            sb.append('/');
+            boolean numeric = true;
+            for (int i = 0; i < part.length() && numeric; i++) {
+                numeric = Character.isDigit(part.charAt(i));
+            }
+            sb.append(numeric ? "{id}" : part);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A response whose body is read as a stream. Always close it, which
+     * frees the connection for reuse.
+     */
+    public class Response {
+        private final HttpURLConnection mConnection;
+        private final EndpointStats mEndpoint;
+        // Holds a scheduler slot until closed
+        private final boolean mScheduled;
+        private int mCode;
+        private boolean mNotModified;
+        // Bytes as they arrive, before gzip decoding
+        private CountingInputStream mWire;
+        private InputStream mBody;
+        private ResponseCache.Writer mCacheWriter;
+        private long mBodyBytes;
+        private boolean mClosed;
+
+        Response(HttpURLConnection connection, int code, EndpointStats stats, boolean scheduled) {
+            mConnection = connection;
+            mCode = code;
+            mEndpoint = stats;
+            mScheduled = scheduled;
+        }
+
+        /**
+         * HTTP status; a 304 answered from the cache reads as 200
+         */
+        public int getCode() {
+            return mCode;
+        }
+
+        /**
+         * Whether the body is the cached copy, unchanged on the server
+         */
+        public boolean isNotModified() {
+            return mNotModified;
+        }
+
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * Decoded body, or the error body for failed requests; may be empty
+         */
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream raw = mCode < 400
+                    ? mConnection.getInputStream() : mConnection.getErrorStream();
+                mWire = new CountingInputStream(raw != null ? raw : new EmptyInputStream());
+                InputStream decoded = "gzip".equalsIgnoreCase(mConnection.getContentEncoding())
+                    ? new GZIPInputStream(mWire, 8192) : mWire;
+                mBody = new BodyInputStream(decoded);
+            }
+            return mBody;
+        }
+
+        public Reader getReader() throws IOException {
+            return new InputStreamReader(getBody(), "UTF-8");
+        }
+
+        public String readString() throws IOException {
+            Reader reader = getReader();
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, count);
+            }
+            return sb.toString();
+        }
+
+        public void close() {
+            if (mClosed) return;
+            mClosed = true;
+            try {
+                // Readers such as JsonReader stop at the end of the document
+                // without seeing end of stream; finishing the body here still
+                // completes the cache entry and frees the connection
+                boolean drained = mNotModified
+                    ? drain(mConnection.getInputStream(), MAX_DRAIN_BYTES)
+                    : drain(getBody(), MAX_DRAIN_BYTES) && drain(mWire, MAX_DRAIN_BYTES);
+                if (!drained) mConnection.disconnect();
+            } catch (IOException e) {
+                mConnection.disconnect();
+            } finally {
+                if (mCacheWriter != null) {
+                    // Only reached if the caller stopped before the end
+                    mCacheWriter.abort();
+                    mCacheWriter = null;
+                }
+                try {
+                    if (mBody != null) mBody.close();
+                } catch (IOException e) {
+                    // Already done with it
+                }
+                if (mScheduled) mScheduler.release();
+                synchronized (mStats) {
+                    mEndpoint.wireBytes += mWire != null ? mWire.count : 0;
+                    mEndpoint.bodyBytes += mBodyBytes;
+                }
+            }
+        }
+
+        void serveFromCache(InputStream cached) {
+            mCode = HttpURLConnection.HTTP_OK;
+            mNotModified = true;
+            mBody = new BodyInputStream(cached);
+        }
+
+        void storeTo(ResponseCache.Writer writer) {
+            mCacheWriter = writer;
+        }
+
+        /**
+         * Counts decoded bytes and copies them to the cache entry being written
+         */
+        private class BodyInputStream extends FilterInputStream {
+            private final byte[] mOne = new byte[1];
+
+            BodyInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                return read(mOne, 0, 1) == -1 ? -1 : mOne[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = in.read(buffer, offset, count);
+                if (read > 0) {
+                    mBodyBytes += read;
+                    if (mCacheWriter != null) {
+                        try {
+                            mCacheWriter.out.write(buffer, offset, read);
+                        } catch (IOException e) {
+                            mCacheWriter.abort();
+                            mCacheWriter = null;
+                        }
+                    }
+                } else if (read == -1 && mCacheWriter != null) {
+                    mCacheWriter.commit();
+                    mCacheWriter = null;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long count) throws IOException {
+                byte[] buffer = new byte[(int) Math.min(count, 4096)];
+                int read = read(buffer, 0, buffer.length);
+                return Math.max(read, 0);
+            }
+        }
+    }
+
+    /**
+     * Reads a stream to the end if that takes at most {@code limit} bytes
+     *
+     * @return whether the end was reached
+     */
+    private static boolean drain(InputStream in, int limit) throws IOException {
+        if (in == null) return true;
+        byte[] buffer = new byte[4096];
+        int total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+            if (total > limit) return false;
+        }
+        return true;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+    }
+
+    private static class EmptyInputStream extends InputStream {
+        @Override
+        public int read() {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.glassstrava.hud;
+
+import android.os.Debug;
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * Optional instrumentation of a periodically updated screen: time and
+ * allocations per update, and frame intervals with the number of frames
+ * that missed a vsync. Logged every {@link #REPORT_UPDATES} updates.
+ *
+ * Disabled instances do nothing; frame callbacks wake the main thread at
+ * display rate, so this is for measuring only.
+ */
+// The allocation counters are deprecated, but API 19 has nothing else per thread
+@SuppressWarnings("deprecation")
+public class HudStats implements Choreographer.FrameCallback {
+    private static final String TAG = "HudStats";
+    private static final int REPORT_UPDATES = 30;
+    private static final long FRAME_NANOS = 16666667;
+    // Frames this much longer than a vsync interval count as dropped
+    private static final long JANK_NANOS = FRAME_NANOS * 3 / 2;
+
+    private final String mName;
+    private final boolean mEnabled;
+    private boolean mRunning = false;
+
+    private long mUpdateStart;
+    private long mAllocStart;
+    private int mUpdates;
+    private long mUpdateNanos;
+    private long mMaxUpdateNanos;
+    private long mAllocations;
+
+    private long mLastFrame;
+    private int mFrames;
+    private int mJankyFrames;
+    private long mMaxFrameNanos;
+
+    public HudStats(String name, boolean enabled) {
+        mName = name;
+        mEnabled = enabled;
+    }
+
+    public void start() {
+        if (!mEnabled || mRunning) return;
+        mRunning = true;
+        reset();
+        Debug.startAllocCounting();
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    public void stop() {
+        if (!mRunning) return;
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+        Debug.stopAllocCounting();
+    }
+
+    public void beginUpdate() {
+        if (!mRunning) return;
+        mAllocStart = Debug.getThreadAllocCount();
+        mUpdateStart = System.nanoTime();
+    }
+
+    public void endUpdate() {
+        if (!mRunning) return;
+        long nanos = System.nanoTime() - mUpdateStart;
+        mAllocations += Debug.getThreadAllocCount() - mAllocStart;
+        mUpdateNanos += nanos;
+        mMaxUpdateNanos = Math.max(mMaxUpdateNanos, nanos);
+        if (++mUpdates >= REPORT_UPDATES) {
+            Log.d(TAG, mName + ": " + mUpdates + " updates, avg " + mUpdateNanos / mUpdates / 1000
+                + " us, max " + mMaxUpdateNanos / 1000 + " us, " + mAllocations / mUpdates
+                + " allocs/update; " + mFrames + " frames, " + mJankyFrames + " dropped, worst "
+                + mMaxFrameNanos / 1000000 + " ms");
+            reset();
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) return;
+        if (mLastFrame != 0) {
+            long interval = frameTimeNanos - mLastFrame;
+            mFrames++;
+            if (interval > JANK_NANOS) mJankyFrames++;
+            mMaxFrameNanos = Math.max(mMaxFrameNanos, interval);
+        }
+        mLastFrame = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void reset() {
+        mUpdates = 0;
+        mUpdateNanos = 0;
+        mMaxUpdateNanos = 0;
+        mAllocations = 0;
+        mFrames = 0;
+        mJankyFrames = 0;
+        mMaxFrameNanos = 0;
+    }
+}
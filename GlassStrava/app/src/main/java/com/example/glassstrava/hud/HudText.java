@@ -0,0 +1,137 @@
+package com.example.glassstrava.hud;
+
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * One text field of a HUD that is rewritten every tick without allocating.
+ *
+ * Text is composed into a preallocated char buffer, numbers included, and
+ * only handed to the TextView when it differs from what is on screen, so
+ * unchanged fields cost a short compare and no layout. Two buffers are
+ * alternated because TextView keeps the array it is given rather than a
+ * copy. A field left empty is hidden.
+ */
+public class HudText {
+    static final int CAPACITY = 64;
+
+    private final TextView mView;
+    private char[] mShown = new char[CAPACITY];
+    private int mShownLength = -1;
+    private char[] mBuffer = new char[CAPACITY];
+    private int mLength;
+    // Digits of a number, least significant first; Long.MIN_VALUE has 19
+    private final char[] mDigits = new char[19];
+
+    public HudText(TextView view) {
+        mView = view;
+    }
+
+    public HudText begin() {
+        mLength = 0;
+        return this;
+    }
+
+    public HudText append(char c) {
+        if (mLength < CAPACITY) {
+            mBuffer[mLength++] = c;
+        }
+        return this;
+    }
+
+    public HudText append(CharSequence text) {
+        int count = Math.min(text.length(), CAPACITY - mLength);
+        for (int i = 0; i < count; i++) {
+            mBuffer[mLength++] = text.charAt(i);
+        }
+        return this;
+    }
+
+    public HudText append(long value) {
+        // Digits come from the value made negative, since Long.MIN_VALUE has no positive
+        if (value < 0) {
+            append('-');
+        } else {
+            value = -value;
+        }
+        int count = 0;
+        do {
+            mDigits[count++] = (char) ('0' - value % 10);
+            value /= 10;
+        } while (value < 0);
+        // Most significant first, so a number cut off at the end keeps its leading digits
+        while (count > 0) {
+            append(mDigits[--count]);
+        }
+        return this;
+    }
+
+    /**
+     * Appends {@code value} rounded to {@code decimals} places, like %.Nf,
+     * except that a value rounding to zero has no minus sign
+     */
+    public HudText append(double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return append('-');
+        }
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            append('-');
+        }
+        append(scaled / scale);
+        if (decimals > 0) {
+            append('.');
+            long fraction = scaled % scale;
+            for (long digit = scale / 10; digit > 0; digit /= 10) {
+                append((char) ('0' + fraction / digit % 10));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Shows the composed text if it changed
+     *
+     * @return whether the view was updated
+     */
+    public boolean commit() {
+        if (mLength == mShownLength && equalsShown()) {
+            return false;
+        }
+        if (mLength == 0) {
+            setVisible(false);
+        } else {
+            if (mShownLength <= 0) {
+                setVisible(true);
+            }
+            setText(mBuffer, mLength);
+        }
+        char[] shown = mShown;
+        mShown = mBuffer;
+        mBuffer = shown;
+        mShownLength = mLength;
+        return true;
+    }
+
+    /**
+     * The view keeps {@code text}, so it mustn't change until the next commit
+     */
+    void setText(char[] text, int length) {
+        mView.setText(text, 0, length);
+    }
+
+    void setVisible(boolean visible) {
+        mView.setVisibility(visible ? View.VISIBLE : View.GONE);
+    }
+
+    private boolean equalsShown() {
+        for (int i = 0; i < mLength; i++) {
+            if (mBuffer[i] != mShown[i]) return false;
+        }
+        return true;
+    }
+}
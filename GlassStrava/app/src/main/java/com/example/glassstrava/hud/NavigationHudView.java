@@ -0,0 +1,72 @@
+package com.example.glassstrava.hud;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.view.Gravity;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+/**
+ * Navigation screen built once and updated in place through {@link HudText}
+ * fields, instead of a new card per tick.
+ */
+public class NavigationHudView extends LinearLayout {
+    // Glass card margins, in pixels
+    private static final int PADDING = 40;
+
+    private final HudText mTitle;
+    private final HudText mInstruction;
+    private final HudText mDetail;
+    private final HudText mRemaining;
+    private final HudText mFootnote;
+
+    public NavigationHudView(Context context) {
+        super(context);
+        setOrientation(VERTICAL);
+        setBackgroundColor(Color.BLACK);
+        setPadding(PADDING, PADDING, PADDING, PADDING / 2);
+
+        mTitle = addField(context, 24, Color.GRAY);
+        mInstruction = addField(context, 40, Color.WHITE);
+        mDetail = addField(context, 28, Color.WHITE);
+        mRemaining = addField(context, 28, Color.LTGRAY);
+
+        // Pushes the footnote to the bottom like a card's
+        TextView spacer = new TextView(context);
+        addView(spacer, new LayoutParams(LayoutParams.MATCH_PARENT, 0, 1.0f));
+        mFootnote = addField(context, 22, Color.GRAY);
+    }
+
+    private HudText addField(Context context, float textSize, int color) {
+        TextView view = new TextView(context);
+        view.setTextSize(textSize);
+        view.setTextColor(color);
+        view.setSingleLine(true);
+        view.setGravity(Gravity.START);
+        addView(view, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
+        return new HudText(view);
+    }
+
+    public HudText getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * Main line: the next maneuver or the way back to the route
+     */
+    public HudText getInstruction() {
+        return mInstruction;
+    }
+
+    public HudText getDetail() {
+        return mDetail;
+    }
+
+    public HudText getRemaining() {
+        return mRemaining;
+    }
+
+    public HudText getFootnote() {
+        return mFootnote;
+    }
+}
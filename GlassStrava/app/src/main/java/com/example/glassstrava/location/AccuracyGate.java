@@ -0,0 +1,24 @@
+package com.example.glassstrava.location;
+
+/**
+ * Drops fixes whose reported horizontal accuracy is worse than a threshold
+ */
+public class AccuracyGate implements FixFilter {
+    private final float mMaxAccuracy;
+
+    /**
+     * @param maxAccuracy worst acceptable accuracy radius in meters
+     */
+    public AccuracyGate(float maxAccuracy) {
+        mMaxAccuracy = maxAccuracy;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        // Fixes that don't report accuracy at all can't be trusted either
+        return !Float.isNaN(fix.accuracy) && fix.accuracy <= mMaxAccuracy;
+    }
+
+    @Override
+    public void reset() {}
+}
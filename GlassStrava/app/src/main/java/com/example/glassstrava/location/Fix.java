@@ -0,0 +1,31 @@
+package com.example.glassstrava.location;
+
+import android.location.Location;
+import android.location.LocationManager;
+
+/**
+ * Mutable, reusable GPS fix passed through the filter pipeline.
+ *
+ * One instance is refilled for every location callback, so filtering
+ * doesn't create objects at the fix rate. Unknown altitude, speed and
+ * accuracy are NaN.
+ */
+public class Fix {
+    public double latitude;
+    public double longitude;
+    public double altitude;
+    public long time;
+    public float speed;
+    public float accuracy;
+    public boolean fromGps;
+
+    public void set(Location location) {
+        latitude = location.getLatitude();
+        longitude = location.getLongitude();
+        altitude = location.hasAltitude() ? location.getAltitude() : Double.NaN;
+        time = location.getTime();
+        speed = location.hasSpeed() ? location.getSpeed() : Float.NaN;
+        accuracy = location.hasAccuracy() ? location.getAccuracy() : Float.NaN;
+        fromGps = LocationManager.GPS_PROVIDER.equals(location.getProvider());
+    }
+}
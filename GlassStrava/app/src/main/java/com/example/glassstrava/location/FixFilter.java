@@ -0,0 +1,21 @@
+package com.example.glassstrava.location;
+
+/**
+ * One stage of the fix filtering pipeline.
+ *
+ * Stages run at the GPS rate and must not allocate in {@link #process}.
+ */
+public interface FixFilter {
+
+    /**
+     * Inspects and optionally adjusts {@code fix} in place.
+     *
+     * @return false to drop the fix; later stages won't see it
+     */
+    boolean process(Fix fix);
+
+    /**
+     * Forgets all history, e.g. when a new activity starts or after a pause
+     */
+    void reset();
+}
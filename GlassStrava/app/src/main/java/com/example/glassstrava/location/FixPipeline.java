@@ -0,0 +1,63 @@
+package com.example.glassstrava.location;
+
+/**
+ * Ordered chain of {@link FixFilter} stages
+ */
+public class FixPipeline {
+    private final FixFilter[] mStages;
+    private int mAccepted;
+    private int mRejected;
+
+    public FixPipeline(FixFilter... stages) {
+        mStages = stages;
+    }
+
+    /**
+     * Standard pipeline for recording an activity of the given Strava type:
+     * accuracy gate, teleport rejection, then smoothing. Provider arbitration
+     * already happened once in LocationTrackingService.
+     */
+    public static FixPipeline forActivityType(String activityType) {
+        float maxSpeed;
+        double processNoise;
+        if ("Ride".equals(activityType)) {
+            maxSpeed = 35.0f;   // ~125 km/h descending
+            processNoise = 2.0;
+        } else if ("Walk".equals(activityType)) {
+            maxSpeed = 6.0f;
+            processNoise = 0.3;
+        } else {
+            maxSpeed = 12.0f;   // faster than any sprint
+            processNoise = 1.0;
+        }
+        return new FixPipeline(
+            new AccuracyGate(30.0f),
+            new OutlierFilter(maxSpeed),
+            new KalmanSmoother(processNoise));
+    }
+
+    public boolean process(Fix fix) {
+        for (FixFilter stage : mStages) {
+            if (!stage.process(fix)) {
+                mRejected++;
+                return false;
+            }
+        }
+        mAccepted++;
+        return true;
+    }
+
+    public void reset() {
+        for (FixFilter stage : mStages) {
+            stage.reset();
+        }
+    }
+
+    public int getAcceptedCount() {
+        return mAccepted;
+    }
+
+    public int getRejectedCount() {
+        return mRejected;
+    }
+}
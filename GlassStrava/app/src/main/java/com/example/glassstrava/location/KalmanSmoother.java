@@ -0,0 +1,108 @@
+package com.example.glassstrava.location;
+
+/**
+ * Constant-velocity Kalman filter that smooths fix positions.
+ *
+ * Positions are projected to a local east/north plane in meters around the
+ * first fix, and each axis runs an independent two-state (position,
+ * velocity) filter. Measurement noise comes from the fix's own accuracy,
+ * so precise fixes pull harder than sloppy ones.
+ */
+public class KalmanSmoother implements FixFilter {
+    private static final double METERS_PER_DEGREE = 111319.49;
+    // Restart instead of predicting across long gaps (signal loss, pauses)
+    private static final long MAX_GAP_MS = 30000;
+    private static final float DEFAULT_ACCURACY = 15.0f;
+
+    private final double mProcessNoise;
+
+    private boolean mInitialized;
+    private double mOriginLatitude;
+    private double mOriginLongitude;
+    private double mMetersPerDegreeLon;
+    private long mLastTime;
+
+    // Per-axis state: position, velocity and covariance [p00 p01; p01 p11]
+    private final double[] mPosition = new double[2];
+    private final double[] mVelocity = new double[2];
+    private final double[] mP00 = new double[2];
+    private final double[] mP01 = new double[2];
+    private final double[] mP11 = new double[2];
+
+    /**
+     * @param processNoise acceleration noise spectral density in m^2/s^3;
+     *                     higher values follow direction changes faster
+     */
+    public KalmanSmoother(double processNoise) {
+        mProcessNoise = processNoise;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        float accuracy = Float.isNaN(fix.accuracy) ? DEFAULT_ACCURACY : Math.max(1.0f, fix.accuracy);
+        double measurementNoise = accuracy * accuracy;
+
+        if (!mInitialized || fix.time < mLastTime || fix.time - mLastTime > MAX_GAP_MS) {
+            initialize(fix, measurementNoise);
+            return true;
+        }
+        if (fix.time == mLastTime) {
+            // Same instant from another provider; nothing to predict across
+            return true;
+        }
+
+        double dt = (fix.time - mLastTime) / 1000.0;
+        double east = (fix.longitude - mOriginLongitude) * mMetersPerDegreeLon;
+        double north = (fix.latitude - mOriginLatitude) * METERS_PER_DEGREE;
+
+        step(0, east, dt, measurementNoise);
+        step(1, north, dt, measurementNoise);
+
+        fix.longitude = mOriginLongitude + mPosition[0] / mMetersPerDegreeLon;
+        fix.latitude = mOriginLatitude + mPosition[1] / METERS_PER_DEGREE;
+        mLastTime = fix.time;
+        return true;
+    }
+
+    private void initialize(Fix fix, double measurementNoise) {
+        mOriginLatitude = fix.latitude;
+        mOriginLongitude = fix.longitude;
+        mMetersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(fix.latitude));
+        for (int axis = 0; axis < 2; axis++) {
+            mPosition[axis] = 0.0;
+            mVelocity[axis] = 0.0;
+            mP00[axis] = measurementNoise;
+            mP01[axis] = 0.0;
+            mP11[axis] = 100.0; // velocity unknown, up to ~10 m/s
+        }
+        mLastTime = fix.time;
+        mInitialized = true;
+    }
+
+    private void step(int axis, double measurement, double dt, double measurementNoise) {
+        // Predict: x += v*dt, P = F P F' + Q (white-noise acceleration model)
+        double dt2 = dt * dt;
+        double p00 = mP00[axis] + dt * (2 * mP01[axis] + dt * mP11[axis])
+            + mProcessNoise * dt2 * dt / 3.0;
+        double p01 = mP01[axis] + dt * mP11[axis] + mProcessNoise * dt2 / 2.0;
+        double p11 = mP11[axis] + mProcessNoise * dt;
+        double position = mPosition[axis] + mVelocity[axis] * dt;
+
+        // Update with the measured position
+        double innovation = measurement - position;
+        double s = p00 + measurementNoise;
+        double k0 = p00 / s;
+        double k1 = p01 / s;
+
+        mPosition[axis] = position + k0 * innovation;
+        mVelocity[axis] += k1 * innovation;
+        mP00[axis] = (1 - k0) * p00;
+        mP01[axis] = (1 - k0) * p01;
+        mP11[axis] = p11 - k1 * p01;
+    }
+
+    @Override
+    public void reset() {
+        mInitialized = false;
+    }
+}
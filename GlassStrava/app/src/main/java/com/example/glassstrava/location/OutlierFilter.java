@@ -0,0 +1,65 @@
+package com.example.glassstrava.location;
+
+/**
+ * Rejects "teleports": fixes that would require moving faster than the
+ * activity allows since the last accepted fix.
+ *
+ * After several rejections in a row the filter assumes the previous anchor
+ * was the bad one and re-anchors on the new position, so it can't lock out
+ * the rest of the activity.
+ */
+public class OutlierFilter implements FixFilter {
+    private static final double METERS_PER_DEGREE = 111319.49;
+    private static final int MAX_CONSECUTIVE_REJECTS = 5;
+
+    private final float mMaxSpeed;
+
+    private boolean mHasAnchor;
+    private double mAnchorLatitude;
+    private double mAnchorLongitude;
+    private long mAnchorTime;
+    private float mAnchorAccuracy;
+    private int mConsecutiveRejects;
+
+    /**
+     * @param maxSpeed fastest plausible speed for the activity, in m/s
+     */
+    public OutlierFilter(float maxSpeed) {
+        mMaxSpeed = maxSpeed;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (mHasAnchor && mConsecutiveRejects < MAX_CONSECUTIVE_REJECTS) {
+            double dt = Math.max(1, fix.time - mAnchorTime) / 1000.0;
+
+            // Equirectangular distance is plenty accurate over a few seconds of travel
+            double dLat = (fix.latitude - mAnchorLatitude) * METERS_PER_DEGREE;
+            double dLon = (fix.longitude - mAnchorLongitude) * METERS_PER_DEGREE
+                * Math.cos(Math.toRadians(mAnchorLatitude));
+            double distance = Math.sqrt(dLat * dLat + dLon * dLon);
+
+            // Allow for both fixes' own uncertainty before calling it a jump
+            double slack = (Float.isNaN(fix.accuracy) ? 0 : fix.accuracy)
+                + (Float.isNaN(mAnchorAccuracy) ? 0 : mAnchorAccuracy);
+            if (distance - slack > mMaxSpeed * dt) {
+                mConsecutiveRejects++;
+                return false;
+            }
+        }
+
+        mHasAnchor = true;
+        mAnchorLatitude = fix.latitude;
+        mAnchorLongitude = fix.longitude;
+        mAnchorTime = fix.time;
+        mAnchorAccuracy = fix.accuracy;
+        mConsecutiveRejects = 0;
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        mHasAnchor = false;
+        mConsecutiveRejects = 0;
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.glassstrava.location;
+
+/**
+ * Prefers GPS over network location: network fixes are dropped while a GPS
+ * fix has arrived recently, and only used to bridge GPS outages.
+ */
+public class ProviderArbiter implements FixFilter {
+    private long mGpsFreshness;
+    private long mLastGpsTime = Long.MIN_VALUE;
+
+    /**
+     * @param gpsFreshness how long a GPS fix suppresses network fixes, in millis
+     */
+    public ProviderArbiter(long gpsFreshness) {
+        mGpsFreshness = gpsFreshness;
+    }
+
+    /**
+     * Changes the window, e.g. when GPS fixes are requested at another rate
+     */
+    public void setGpsFreshness(long gpsFreshness) {
+        mGpsFreshness = gpsFreshness;
+    }
+
+    @Override
+    public boolean process(Fix fix) {
+        if (fix.fromGps) {
+            mLastGpsTime = fix.time;
+            return true;
+        }
+        return mLastGpsTime == Long.MIN_VALUE || fix.time - mLastGpsTime > mGpsFreshness;
+    }
+
+    @Override
+    public void reset() {
+        mLastGpsTime = Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.glassstrava.location;
+
+/**
+ * Picks the GPS request rate from current speed, distance to the next
+ * point of interest and pause state.
+ *
+ * Rates come from a small fixed ladder so the location subscription is
+ * only re-requested when the ladder step changes. Faster rates are taken
+ * immediately; slower ones only after a few consistent fixes, so a
+ * momentary slowdown doesn't cost a fix right before a turn.
+ */
+public class SamplingController {
+
+    /**
+     * Features that can report an upcoming point of interest
+     */
+    public static final int EVENT_TURN = 0;
+    public static final int EVENT_SEGMENT = 1;
+    private static final int EVENT_COUNT = 2;
+
+    public static final Rate RATE_APPROACH = new Rate("approach", 1000, 0);
+    public static final Rate RATE_FAST = new Rate("fast", 1000, 5);
+    public static final Rate RATE_MOVING = new Rate("moving", 2000, 3);
+    public static final Rate RATE_SLOW = new Rate("slow", 3000, 2);
+    public static final Rate RATE_STILL = new Rate("still", 5000, 5);
+    public static final Rate RATE_PAUSED = new Rate("paused", 10000, 10);
+
+    private static final double FAST_SPEED = 8.0;     // m/s, cycling pace
+    private static final double MOVING_SPEED = 2.0;   // m/s, jogging pace
+    private static final double STILL_SPEED = 0.5;    // m/s
+    // Sample at full rate within this distance, or this many seconds, of an event
+    private static final double APPROACH_DISTANCE = 60.0;
+    private static final double APPROACH_SECONDS = 15.0;
+    // Consecutive evaluations a slower rate must win before it is applied
+    private static final int SLOWDOWN_DELAY = 3;
+
+    /**
+     * One step of the ladder: minimum time and distance between fixes
+     */
+    public static class Rate {
+        public final String name;
+        public final long intervalMillis;
+        public final float minDistance;
+
+        Rate(String name, long intervalMillis, float minDistance) {
+            this.name = name;
+            this.intervalMillis = intervalMillis;
+            this.minDistance = minDistance;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + intervalMillis + " ms, " + minDistance + " m)";
+        }
+    }
+
+    private final double[] mEventDistance = new double[EVENT_COUNT];
+    private boolean mPaused;
+    private double mSpeed;
+    private Rate mRate = RATE_MOVING;
+    private Rate mPendingRate;
+    private int mPendingCount;
+
+    public SamplingController() {
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            mEventDistance[i] = Double.NaN;
+        }
+    }
+
+    public Rate getRate() {
+        return mRate;
+    }
+
+    /**
+     * @param meters distance to the next event of this kind, or NaN if none
+     */
+    public void setEventDistance(int event, double meters) {
+        mEventDistance[event] = meters;
+    }
+
+    public void setPaused(boolean paused) {
+        mPaused = paused;
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Re-evaluates the rate after a fix.
+     *
+     * @param speed current speed in m/s, NaN if unknown
+     * @return true if the rate changed and the subscription should be re-requested
+     */
+    public boolean update(double speed) {
+        if (!Double.isNaN(speed)) {
+            mSpeed = speed;
+        }
+        Rate target = selectRate();
+
+        if (target == mRate) {
+            mPendingRate = null;
+            return false;
+        }
+        if (isFaster(target, mRate)) {
+            mRate = target;
+            mPendingRate = null;
+            return true;
+        }
+
+        // Slowing down: wait until the lower rate has been chosen a few times in a row
+        if (target != mPendingRate) {
+            mPendingRate = target;
+            mPendingCount = 1;
+        } else if (++mPendingCount >= SLOWDOWN_DELAY) {
+            mRate = target;
+            mPendingRate = null;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Switches to the currently selected rate without the slowdown delay,
+     * e.g. when a feature starts or stops
+     */
+    public void applyNow() {
+        mRate = selectRate();
+        mPendingRate = null;
+    }
+
+    /**
+     * A shorter interval is faster; at the same interval, so is a shorter
+     * minimum distance, since that only ever adds fixes
+     */
+    private static boolean isFaster(Rate rate, Rate than) {
+        if (rate.intervalMillis != than.intervalMillis) {
+            return rate.intervalMillis < than.intervalMillis;
+        }
+        return rate.minDistance < than.minDistance;
+    }
+
+    private Rate selectRate() {
+        double approach = Math.max(APPROACH_DISTANCE, mSpeed * APPROACH_SECONDS);
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            if (mEventDistance[i] <= approach) {
+                return RATE_APPROACH;
+            }
+        }
+
+        if (mPaused) {
+            return RATE_PAUSED;
+        } else if (mSpeed >= FAST_SPEED) {
+            return RATE_FAST;
+        } else if (mSpeed >= MOVING_SPEED) {
+            return RATE_MOVING;
+        } else if (mSpeed >= STILL_SPEED) {
+            return RATE_SLOW;
+        }
+        return RATE_STILL;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.glassstrava.models;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Model class for a Strava route as listed in the route picker.
+ * Only the fields the picker shows are kept; geometry is fetched
+ * separately when a route is opened.
+ */
+public class RouteSummary {
+    public static final int TYPE_RIDE = 1;
+    public static final int TYPE_RUN = 2;
+
+    public long id;
+    public String name;
+    public double distance;
+    public double elevationGain;
+    public int type;
+    public String updatedAt;
+
+    /**
+     * Reads one route object, skipping everything else in it (notably the
+     * map polylines) without materializing it
+     */
+    public static RouteSummary fromJson(JsonReader reader) throws IOException {
+        RouteSummary route = new RouteSummary();
+        route.name = "";
+        route.updatedAt = "";
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (field.equals("id")) {
+                route.id = reader.nextLong();
+            } else if (field.equals("name")) {
+                route.name = reader.nextString();
+            } else if (field.equals("distance")) {
+                route.distance = reader.nextDouble();
+            } else if (field.equals("elevation_gain")) {
+                route.elevationGain = reader.nextDouble();
+            } else if (field.equals("type")) {
+                route.type = reader.nextInt();
+            } else if (field.equals("updated_at")) {
+                route.updatedAt = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return route;
+    }
+}
@@ -22,6 +22,8 @@ public class Segment {
     public double startLongitude;
     public double endLatitude;
     public double endLongitude;
+    // Encoded polyline ("points" in explore results), empty if not known
+    public String polyline;
     public List<SegmentEffort> leaderboard;
     
     public static Segment fromJson(JSONObject json) {
@@ -39,6 +41,7 @@ public class Segment {
             segment.city = json.optString("city", "");
             segment.state = json.optString("state", "");
             segment.country = json.optString("country", "");
+            segment.polyline = json.optString("points", "");
             
             if (json.has("start_latlng")) {
                 org.json.JSONArray startLatLng = json.getJSONArray("start_latlng");
@@ -0,0 +1,18 @@
+package com.example.glassstrava.route;
+
+/**
+ * A route as stored in the {@link RouteCache}
+ */
+public class CachedRoute {
+    public long id;
+    /** Strava's updated_at for the route, used to detect newer versions */
+    public String version;
+    public String name;
+    /** Route distance reported by Strava, in meters */
+    public double distance;
+    /** Strava's estimate of the moving time for the route in seconds, 0 if none */
+    public int estimatedMovingTime;
+    public Route route;
+    /** Elevation of each route vertex in meters, null if unknown */
+    public float[] elevation;
+}
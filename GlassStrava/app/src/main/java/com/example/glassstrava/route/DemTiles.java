@@ -0,0 +1,120 @@
+package com.example.glassstrava.route;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Elevation from terrain tiles stored on the device, for routes that come
+ * without elevation data.
+ *
+ * Tiles are SRTM .hgt files (one degree square, big-endian 16-bit heights
+ * in meters, north row first), named after their south-west corner, e.g.
+ * N37W123.hgt. Both 3 and 1 arc-second tiles are accepted. Tiles are
+ * memory-mapped on first use and sampled with bilinear interpolation.
+ */
+public class DemTiles {
+    private static final String TAG = "DemTiles";
+    private static final short VOID = -32768;
+
+    private final File mDir;
+    // Mapped tiles by corner, null for tiles known to be missing
+    private final Map<Integer, ShortBuffer> mTiles = new HashMap<>();
+
+    public DemTiles(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * @return elevation in meters, NaN if there is no tile or no data there
+     */
+    public float getElevation(double latitude, double longitude) {
+        int south = (int) Math.floor(latitude);
+        int west = (int) Math.floor(longitude);
+        ShortBuffer tile = getTile(south, west);
+        if (tile == null) return Float.NaN;
+
+        int size = (int) Math.round(Math.sqrt(tile.capacity()));
+        double row = (south + 1 - latitude) * (size - 1);
+        double col = (longitude - west) * (size - 1);
+        int r = Math.min(size - 2, (int) row);
+        int c = Math.min(size - 2, (int) col);
+        double fr = row - r;
+        double fc = col - c;
+
+        short h00 = tile.get(r * size + c);
+        short h01 = tile.get(r * size + c + 1);
+        short h10 = tile.get((r + 1) * size + c);
+        short h11 = tile.get((r + 1) * size + c + 1);
+        if (h00 == VOID || h01 == VOID || h10 == VOID || h11 == VOID) {
+            return Float.NaN;
+        }
+        return (float) ((h00 * (1 - fc) + h01 * fc) * (1 - fr) + (h10 * (1 - fc) + h11 * fc) * fr);
+    }
+
+    /**
+     * Elevation of every vertex of a route. Gaps in the data are filled in
+     * from neighbouring vertices.
+     *
+     * @return elevation per vertex, or null if no vertex is covered by a tile
+     */
+    public float[] sample(Route route) {
+        float[] elevation = new float[route.size()];
+        int last = -1;
+        for (int i = 0; i < elevation.length; i++) {
+            elevation[i] = getElevation(route.getLatitude(i), route.getLongitude(i));
+            if (Float.isNaN(elevation[i])) continue;
+            // Fill the gap since the last known vertex, or the leading gap
+            for (int k = last + 1; k < i; k++) {
+                elevation[k] = last < 0 ? elevation[i]
+                    : elevation[last] + (elevation[i] - elevation[last]) * (k - last) / (i - last);
+            }
+            last = i;
+        }
+        if (last < 0) return null;
+        for (int k = last + 1; k < elevation.length; k++) {
+            elevation[k] = elevation[last];
+        }
+        return elevation;
+    }
+
+    private synchronized ShortBuffer getTile(int south, int west) {
+        Integer key = (south + 90) * 360 + (west + 180);
+        if (mTiles.containsKey(key)) {
+            return mTiles.get(key);
+        }
+
+        ShortBuffer tile = null;
+        File file = new File(mDir, String.format(Locale.US, "%s%02d%s%03d.hgt",
+            south >= 0 ? "N" : "S", Math.abs(south), west >= 0 ? "E" : "W", Math.abs(west)));
+        if (file.exists()) {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    // The mapping stays valid after the file is closed
+                    tile = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                        .order(ByteOrder.BIG_ENDIAN).asShortBuffer();
+                } finally {
+                    raf.close();
+                }
+                int size = (int) Math.round(Math.sqrt(tile.capacity()));
+                if (size < 2 || size * size != tile.capacity()) {
+                    Log.w(TAG, "Not a square elevation tile: " + file);
+                    tile = null;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not map " + file, e);
+            }
+        }
+        mTiles.put(key, tile);
+        return tile;
+    }
+}
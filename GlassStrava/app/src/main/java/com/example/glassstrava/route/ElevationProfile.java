@@ -0,0 +1,289 @@
+package com.example.glassstrava.route;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Elevation along a route with grades and climbs worked out at load time.
+ *
+ * Grade is measured over a fixed distance around each segment rather than
+ * per segment, so short segments and elevation noise don't produce wild
+ * values. Climbs are found on the elevation with a baseline grade
+ * subtracted: there flats and gentle drags slope away, so a climb is a
+ * rise from a low to a high not interrupted by a real drop, and noise has
+ * to beat the baseline to look like one. During navigation the grade is
+ * an array lookup and the next climb is found with a cursor that only
+ * moves forward.
+ */
+public class ElevationProfile {
+    // Grade is measured over this distance centered on each segment
+    private static final double GRADE_WINDOW = 100.0;     // meters
+    // Baseline grade removed from the elevation before looking for climbs
+    private static final double CLIMBING_GRADE = 0.02;
+    // A drop this big below the baseline ends a climb; smaller dips are part of it
+    private static final double CLIMB_DROP = 10.0;        // meters
+    private static final double MIN_CLIMB_GAIN = 15.0;    // meters
+    private static final double MIN_CLIMB_GRADE = 0.03;
+
+    private final Route mRoute;
+    private final float[] mElevation;
+    private final float[] mGrade;
+
+    private double[] mClimbStart = new double[8];
+    private double[] mClimbEnd = new double[8];
+    private float[] mClimbGrade = new float[8];
+    private float[] mClimbGain = new float[8];
+    private int mClimbCount;
+    private double mTotalGain;
+
+    /**
+     * @param elevation height of each route vertex in meters
+     */
+    public ElevationProfile(Route route, float[] elevation) {
+        if (elevation.length != route.size()) {
+            throw new IllegalArgumentException("Need one elevation per route vertex");
+        }
+        mRoute = route;
+        mElevation = elevation;
+        mGrade = new float[Math.max(0, route.size() - 1)];
+        computeGrades();
+        findClimbs();
+    }
+
+    private void computeGrades() {
+        int size = mRoute.size();
+        int back = 0;
+        int ahead = 0;
+        for (int i = 0; i < size - 1; i++) {
+            double middle = (mRoute.getDistanceFromStart(i) + mRoute.getDistanceFromStart(i + 1)) / 2;
+            // Two pointers: the vertices half a window either side of the segment
+            while (back < i && mRoute.getDistanceFromStart(back + 1) <= middle - GRADE_WINDOW / 2) {
+                back++;
+            }
+            ahead = Math.max(ahead, i + 1);
+            while (ahead < size - 1 && mRoute.getDistanceFromStart(ahead) < middle + GRADE_WINDOW / 2) {
+                ahead++;
+            }
+            double run = mRoute.getDistanceFromStart(ahead) - mRoute.getDistanceFromStart(back);
+            if (run > 0) {
+                mGrade[i] = (float) ((mElevation[ahead] - mElevation[back]) / run);
+            }
+        }
+
+        // From the smoothed grades, so noise doesn't add up to phantom ascent
+        for (int i = 0; i < size - 1; i++) {
+            mTotalGain += Math.max(0, mGrade[i])
+                * (mRoute.getDistanceFromStart(i + 1) - mRoute.getDistanceFromStart(i));
+        }
+    }
+
+    private void findClimbs() {
+        int low = 0;
+        int high = 0;
+        for (int i = 1; i < mRoute.size(); i++) {
+            double height = detrended(i);
+            // Checked first, since a drop can also go below where the climb began
+            if (height < detrended(high) - CLIMB_DROP) {
+                addClimb(low, high);
+                low = i;
+                high = i;
+            } else if (height < detrended(low)) {
+                // New bottom; nothing since it has risen enough to count
+                low = i;
+                high = i;
+            } else if (height > detrended(high)) {
+                high = i;
+            }
+        }
+        addClimb(low, high);
+    }
+
+    private double detrended(int index) {
+        return mElevation[index] - CLIMBING_GRADE * mRoute.getDistanceFromStart(index);
+    }
+
+    private void addClimb(int start, int end) {
+        double length = mRoute.getDistanceFromStart(end) - mRoute.getDistanceFromStart(start);
+        double gain = mElevation[end] - mElevation[start];
+        if (length <= 0 || gain < MIN_CLIMB_GAIN || gain / length < MIN_CLIMB_GRADE) {
+            return;
+        }
+        if (mClimbCount == mClimbStart.length) {
+            int capacity = mClimbCount * 2;
+            mClimbStart = Arrays.copyOf(mClimbStart, capacity);
+            mClimbEnd = Arrays.copyOf(mClimbEnd, capacity);
+            mClimbGrade = Arrays.copyOf(mClimbGrade, capacity);
+            mClimbGain = Arrays.copyOf(mClimbGain, capacity);
+        }
+        mClimbStart[mClimbCount] = mRoute.getDistanceFromStart(start);
+        mClimbEnd[mClimbCount] = mRoute.getDistanceFromStart(end);
+        mClimbGrade[mClimbCount] = (float) (gain / length);
+        mClimbGain[mClimbCount] = (float) gain;
+        mClimbCount++;
+    }
+
+    public float getElevation(int index) {
+        return mElevation[index];
+    }
+
+    /**
+     * Smoothed grade of a segment as a fraction, negative downhill
+     */
+    public float getGrade(int segment) {
+        return mGrade[segment];
+    }
+
+    /**
+     * Total ascent of the route, in meters
+     */
+    public double getTotalGain() {
+        return mTotalGain;
+    }
+
+    public int getClimbCount() {
+        return mClimbCount;
+    }
+
+    /**
+     * Distance along the route to the bottom of a climb, in meters
+     */
+    public double getClimbStart(int climb) {
+        return mClimbStart[climb];
+    }
+
+    /**
+     * Distance along the route to the top of a climb, in meters
+     */
+    public double getClimbEnd(int climb) {
+        return mClimbEnd[climb];
+    }
+
+    public double getClimbLength(int climb) {
+        return mClimbEnd[climb] - mClimbStart[climb];
+    }
+
+    /**
+     * Average grade of a climb as a fraction
+     */
+    public float getClimbGrade(int climb) {
+        return mClimbGrade[climb];
+    }
+
+    public float getClimbGain(int climb) {
+        return mClimbGain[climb];
+    }
+
+    /**
+     * Moves a cursor to the first climb not yet finished at {@code progress},
+     * which may be the one in progress. Equal to {@link #getClimbCount()}
+     * once all climbs are behind.
+     */
+    public int advance(int cursor, double progress) {
+        while (cursor < mClimbCount && mClimbEnd[cursor] <= progress) {
+            cursor++;
+        }
+        return cursor;
+    }
+
+    /**
+     * Cursor for a position anywhere along the route, e.g. after rejoining it
+     */
+    public int find(double progress) {
+        int index = Arrays.binarySearch(mClimbEnd, 0, mClimbCount, progress);
+        return index < 0 ? -index - 1 : advance(index, progress);
+    }
+
+    /**
+     * Reads Strava route streams and resamples their altitude onto the
+     * route's vertices by distance along the route.
+     *
+     * @return elevation per vertex, or null if there is no altitude stream
+     */
+    public static float[] readStreams(JsonReader reader, Route route) throws IOException {
+        double[] distance = null;
+        double[] altitude = null;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String type = null;
+            double[] data = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (field.equals("type")) {
+                    type = reader.nextString();
+                } else if (field.equals("data")) {
+                    data = readNumbers(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if ("distance".equals(type)) {
+                distance = data;
+            } else if ("altitude".equals(type)) {
+                altitude = data;
+            }
+        }
+        reader.endArray();
+
+        if (altitude == null || altitude.length == 0 || route.isEmpty()) {
+            return null;
+        }
+        float[] elevation = new float[route.size()];
+        if (distance == null || distance.length != altitude.length) {
+            if (altitude.length != route.size()) return null;
+            // Without distances the samples can only be used one per vertex
+            for (int i = 0; i < elevation.length; i++) {
+                elevation[i] = (float) altitude[i];
+            }
+            return elevation;
+        }
+
+        // Both are sorted by distance, so one pass with interpolation
+        double total = route.getTotalDistance();
+        double scale = total > 0 ? distance[distance.length - 1] / total : 0.0;
+        int j = 0;
+        for (int i = 0; i < elevation.length; i++) {
+            double d = route.getDistanceFromStart(i) * scale;
+            while (j < distance.length - 2 && distance[j + 1] < d) {
+                j++;
+            }
+            if (distance.length == 1 || d <= distance[j]) {
+                elevation[i] = (float) altitude[j];
+            } else {
+                int k = j + 1;
+                double span = distance[k] - distance[j];
+                double t = span > 0 ? Math.min(1.0, (d - distance[j]) / span) : 0.0;
+                elevation[i] = (float) (altitude[j] + t * (altitude[k] - altitude[j]));
+            }
+        }
+        return elevation;
+    }
+
+    /**
+     * Reads a flat array of numbers; null for other data such as latlng pairs
+     */
+    private static double[] readNumbers(JsonReader reader) throws IOException {
+        double[] values = new double[256];
+        int count = 0;
+        boolean numeric = true;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.NUMBER) {
+                reader.skipValue();
+                numeric = false;
+                continue;
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = reader.nextDouble();
+        }
+        reader.endArray();
+        return numeric ? Arrays.copyOf(values, count) : null;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.glassstrava.route;
+
+/**
+ * Predicts the remaining moving time along a route from recent progress.
+ *
+ * Distances are weighted by grade into "effort meters", so an estimate
+ * made on a flat stretch accounts for the climbs and descents still to
+ * come, and slow progress up a climb doesn't make the rest of the route
+ * look slow. Cumulative effort per vertex is precomputed, so each fix adds
+ * a constant amount of work.
+ *
+ * Recent pace comes from a fixed ring of time buckets covering the last
+ * few minutes; stops, detours and GPS gaps aren't counted. Until the
+ * window has enough moving time the session average is used.
+ */
+public class EtaPredictor {
+    private static final long BUCKET_MILLIS = 10000;
+    private static final int BUCKETS = 30;              // 5 minute window
+    // Shorter intervals than this aren't enough to estimate pace from
+    private static final double MIN_WINDOW_SECONDS = 60.0;
+    // Longer intervals between fixes are treated as stops
+    private static final long MAX_GAP = 30000;
+    // Slower than this along the route counts as stopped
+    private static final double MIN_SPEED = 0.5;        // m/s
+
+    // Effort per meter is 1 + UPHILL_COST * grade climbing, less descending
+    private static final double UPHILL_COST = 12.0;
+    private static final double DOWNHILL_COST = 4.0;
+    private static final double MIN_EFFORT = 0.6;
+
+    private final Route mRoute;
+    // Effort from the start of the route to each vertex
+    private final double[] mEffort;
+
+    private final long[] mBucketStamp = new long[BUCKETS];
+    private final double[] mBucketEffort = new double[BUCKETS];
+    private final double[] mBucketSeconds = new double[BUCKETS];
+    private double mSessionEffort;
+    private double mSessionSeconds;
+
+    private long mLastTime = -1;
+    private double mLastAlong;
+    private double mLastEffort;
+
+    /**
+     * @param elevation profile of the route, or null to treat it as flat
+     */
+    public EtaPredictor(Route route, ElevationProfile elevation) {
+        mRoute = route;
+        mEffort = new double[route.size()];
+        for (int i = 1; i < route.size(); i++) {
+            double length = route.getDistanceFromStart(i) - route.getDistanceFromStart(i - 1);
+            double factor = 1.0;
+            if (elevation != null) {
+                double grade = elevation.getGrade(i - 1);
+                factor = grade >= 0 ? 1.0 + UPHILL_COST * grade
+                    : Math.max(MIN_EFFORT, 1.0 + DOWNHILL_COST * grade);
+            }
+            mEffort[i] = mEffort[i - 1] + length * factor;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            mBucketStamp[i] = -1;
+        }
+    }
+
+    /**
+     * Records progress for a fix snapped onto the route
+     */
+    public void update(long time, RouteMatch match) {
+        if (!match.isValid()) return;
+        double effort = effortAt(match.segment, match.fraction);
+        double along = match.alongDistance;
+
+        if (mLastTime >= 0) {
+            long elapsed = time - mLastTime;
+            double seconds = elapsed / 1000.0;
+            double moved = along - mLastAlong;
+            if (elapsed > 0 && elapsed <= MAX_GAP && moved >= MIN_SPEED * seconds) {
+                long stamp = time / BUCKET_MILLIS;
+                int bucket = (int) (stamp % BUCKETS);
+                if (mBucketStamp[bucket] != stamp) {
+                    // Reuse the slot of a bucket that has left the window
+                    mBucketStamp[bucket] = stamp;
+                    mBucketEffort[bucket] = 0;
+                    mBucketSeconds[bucket] = 0;
+                }
+                mBucketEffort[bucket] += effort - mLastEffort;
+                mBucketSeconds[bucket] += seconds;
+                mSessionEffort += effort - mLastEffort;
+                mSessionSeconds += seconds;
+            }
+        }
+        mLastTime = time;
+        mLastAlong = along;
+        mLastEffort = effort;
+    }
+
+    /**
+     * Forgets the last fix, so the next one on the route starts a new
+     * interval rather than counting a detour or a skipped stretch as
+     * progress. The pace history is kept.
+     */
+    public void reset() {
+        mLastTime = -1;
+    }
+
+    /**
+     * Predicted moving time to the end of the route in millis, or -1 if
+     * there isn't enough history yet
+     */
+    public long getRemainingMillis() {
+        double pace = getPace();
+        if (Double.isNaN(pace) || mLastTime < 0) return -1;
+        return (long) (pace * (mEffort[mEffort.length - 1] - mLastEffort) * 1000);
+    }
+
+    /**
+     * Average speed needed from here to finish by {@code deadline}, in m/s;
+     * infinite once the deadline has passed
+     */
+    public double getRequiredSpeed(long now, long deadline) {
+        double remaining = mRoute.getTotalDistance() - Math.max(0.0, mLastAlong);
+        if (deadline <= now) return Double.POSITIVE_INFINITY;
+        return remaining / ((deadline - now) / 1000.0);
+    }
+
+    /**
+     * Seconds per effort meter, NaN if unknown
+     */
+    private double getPace() {
+        double effort = 0;
+        double seconds = 0;
+        long newest = mLastTime / BUCKET_MILLIS;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (mBucketStamp[i] > newest - BUCKETS) {
+                effort += mBucketEffort[i];
+                seconds += mBucketSeconds[i];
+            }
+        }
+        if (seconds >= MIN_WINDOW_SECONDS && effort > 0) {
+            return seconds / effort;
+        }
+        if (mSessionSeconds >= MIN_WINDOW_SECONDS && mSessionEffort > 0) {
+            return mSessionSeconds / mSessionEffort;
+        }
+        return Double.NaN;
+    }
+
+    private double effortAt(int segment, double fraction) {
+        return mEffort[segment] + fraction * (mEffort[segment + 1] - mEffort[segment]);
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.glassstrava.route;
+
+import java.util.Arrays;
+
+/**
+ * Turn-by-turn maneuvers extracted from a route once at load time.
+ *
+ * Heading change is measured between the route a fixed distance before
+ * and after each vertex rather than between adjacent segments, so the
+ * many small vertices of a curve or a noisy polyline don't each register
+ * as a turn. Vertices without a full window on both sides, near the ends
+ * of the route, are never turns. Runs of vertices within one turn are
+ * merged into a single maneuver at the sharpest point, graded by the
+ * heading change over the whole run so a wide curve counts in full. The
+ * list always ends with an arrival.
+ *
+ * Navigation then only moves a cursor forward by along-route distance.
+ */
+public class ManeuverList {
+    public static final int SLIGHT_LEFT = 0;
+    public static final int LEFT = 1;
+    public static final int SHARP_LEFT = 2;
+    public static final int SLIGHT_RIGHT = 3;
+    public static final int RIGHT = 4;
+    public static final int SHARP_RIGHT = 5;
+    public static final int U_TURN = 6;
+    public static final int ARRIVE = 7;
+
+    private static final String[] INSTRUCTIONS = {
+        "Bear left", "Turn left", "Sharp left",
+        "Bear right", "Turn right", "Sharp right",
+        "Make a U-turn", "Arrive"
+    };
+
+    // Heading is compared this far before and after each vertex
+    private static final double WINDOW = 25.0; // meters
+    private static final double MIN_TURN_ANGLE = 30.0; // degrees
+
+    private byte[] mType = new byte[16];
+    private float[] mAngle = new float[16];
+    private double[] mDistance = new double[16];
+    private int mCount;
+
+    private ManeuverList() {}
+
+    public static ManeuverList build(Route route) {
+        ManeuverList list = new ManeuverList();
+        int size = route.size();
+
+        // Sharpest vertex in the current run of turning vertices
+        double runBestAngle = 0;
+        double runBestDistance = 0;
+        double runEnd = -1;
+        // Headings into and out of the current run
+        double runIn = 0;
+        double runOut = 0;
+
+        int back = 0;
+        int ahead = 0;
+        for (int i = 1; i < size - 1; i++) {
+            double along = route.getDistanceFromStart(i);
+            // Two pointers: vertices at least WINDOW before and after this one
+            while (back < i - 1 && route.getDistanceFromStart(back + 1) <= along - WINDOW) {
+                back++;
+            }
+            ahead = Math.max(ahead, i + 1);
+            while (ahead < size - 1 && route.getDistanceFromStart(ahead) < along + WINDOW) {
+                ahead++;
+            }
+
+            // Over a shorter window a few meters of noise look like a turn
+            boolean measurable = along - route.getDistanceFromStart(back) >= WINDOW
+                && route.getDistanceFromStart(ahead) - along >= WINDOW;
+            double headingIn = measurable ? heading(route, back, i) : 0.0;
+            double headingOut = measurable ? heading(route, i, ahead) : 0.0;
+            double change = normalize(headingOut - headingIn);
+            boolean turning = Math.abs(change) >= MIN_TURN_ANGLE;
+
+            if (runEnd >= 0 && (!turning || along > runEnd)) {
+                list.addRun(runBestAngle, normalize(runOut - runIn), runBestDistance);
+                runEnd = -1;
+            }
+            if (turning) {
+                if (runEnd < 0) {
+                    runIn = headingIn;
+                }
+                if (runEnd < 0 || Math.abs(change) > Math.abs(runBestAngle)) {
+                    runBestAngle = change;
+                    runBestDistance = along;
+                }
+                runOut = headingOut;
+                runEnd = along + WINDOW;
+            }
+        }
+        if (runEnd >= 0) {
+            list.addRun(runBestAngle, normalize(runOut - runIn), runBestDistance);
+        }
+        list.add(ARRIVE, 0, route.getTotalDistance());
+        return list;
+    }
+
+    /**
+     * Adds a run of turning vertices. A curve longer than the window turns
+     * more in total than at any one vertex; if the run turns less in total
+     * the sharpest vertex stands.
+     */
+    private void addRun(double sharpest, double total, double distance) {
+        double angle = total * sharpest > 0 && Math.abs(total) > Math.abs(sharpest)
+            ? total : sharpest;
+        add(classify(angle), angle, distance);
+    }
+
+    private void add(int type, double angle, double distance) {
+        if (mCount == mType.length) {
+            int capacity = mCount * 2;
+            mType = Arrays.copyOf(mType, capacity);
+            mAngle = Arrays.copyOf(mAngle, capacity);
+            mDistance = Arrays.copyOf(mDistance, capacity);
+        }
+        mType[mCount] = (byte) type;
+        mAngle[mCount] = (float) angle;
+        mDistance[mCount] = distance;
+        mCount++;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int getType(int index) {
+        return mType[index];
+    }
+
+    /**
+     * Heading change in degrees, negative for left turns
+     */
+    public float getAngle(int index) {
+        return mAngle[index];
+    }
+
+    /**
+     * Distance along the route to the maneuver, in meters
+     */
+    public double getDistance(int index) {
+        return mDistance[index];
+    }
+
+    public String getInstruction(int index) {
+        return INSTRUCTIONS[mType[index]];
+    }
+
+    /**
+     * Moves a cursor to the first maneuver still ahead of {@code progress}.
+     * Amortized O(1) per fix since the cursor only moves forward.
+     */
+    public int advance(int cursor, double progress) {
+        while (cursor < mCount - 1 && mDistance[cursor] <= progress) {
+            cursor++;
+        }
+        return cursor;
+    }
+
+    /**
+     * Cursor for a position anywhere along the route, e.g. after rejoining it
+     */
+    public int find(double progress) {
+        int index = Arrays.binarySearch(mDistance, 0, mCount, progress);
+        if (index < 0) {
+            return Math.min(-index - 1, mCount - 1);
+        }
+        return advance(index, progress);
+    }
+
+    private static double heading(Route route, int from, int to) {
+        return Math.toDegrees(Math.atan2(route.getX(to) - route.getX(from),
+            route.getY(to) - route.getY(from)));
+    }
+
+    private static double normalize(double degrees) {
+        while (degrees > 180) degrees -= 360;
+        while (degrees <= -180) degrees += 360;
+        return degrees;
+    }
+
+    private static int classify(double change) {
+        double magnitude = Math.abs(change);
+        if (magnitude >= 170) {
+            return U_TURN;
+        }
+        boolean right = change > 0;
+        if (magnitude < 60) {
+            return right ? SLIGHT_RIGHT : SLIGHT_LEFT;
+        } else if (magnitude < 120) {
+            return right ? RIGHT : LEFT;
+        }
+        return right ? SHARP_RIGHT : SHARP_LEFT;
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.glassstrava.route;
+
+import java.util.Arrays;
+
+/**
+ * Encoded polyline codec (Google's format, as used by Strava's map.polyline)
+ * working on primitive coordinate arrays.
+ *
+ * Decoding goes straight into double arrays with no per-point objects. The
+ * {@link Decoder} keeps its state between calls, so a long polyline can be
+ * decoded in chunks as it is read instead of being held as one string.
+ */
+public class PolylineCodec {
+    public static final int PRECISION_5 = 5; // Strava and Google default
+    public static final int PRECISION_6 = 6;
+
+    private PolylineCodec() {}
+
+    /**
+     * Decodes a complete polyline with the default precision
+     */
+    public static Route decode(String encoded) {
+        Decoder decoder = new Decoder(PRECISION_5, encoded.length() / 8);
+        decoder.feed(encoded);
+        return decoder.finish();
+    }
+
+    public static String encode(Route route) {
+        // Typical deltas take 2-4 characters per coordinate
+        StringBuilder sb = new StringBuilder(route.size() * 8);
+        encode(route, PRECISION_5, sb);
+        return sb.toString();
+    }
+
+    public static void encode(Route route, int precision, StringBuilder sb) {
+        double factor = Math.pow(10, precision);
+        long lastLat = 0;
+        long lastLng = 0;
+        for (int i = 0; i < route.size(); i++) {
+            long lat = Math.round(route.getLatitude(i) * factor);
+            long lng = Math.round(route.getLongitude(i) * factor);
+            encodeValue(lat - lastLat, sb);
+            encodeValue(lng - lastLng, sb);
+            lastLat = lat;
+            lastLng = lng;
+        }
+    }
+
+    private static void encodeValue(long value, StringBuilder sb) {
+        long shifted = value < 0 ? ~(value << 1) : (value << 1);
+        while (shifted >= 0x20) {
+            sb.append((char) ((0x20 | (shifted & 0x1f)) + 63));
+            shifted >>= 5;
+        }
+        sb.append((char) (shifted + 63));
+    }
+
+    /**
+     * Incremental decoder. Characters can be fed in any split, even in the
+     * middle of a coordinate; call {@link #finish} after the last chunk.
+     */
+    public static class Decoder {
+        private static final int CHUNK = 512;
+
+        private final double mFactor;
+        private final char[] mScratch = new char[CHUNK];
+        private double[] mLatitude;
+        private double[] mLongitude;
+        private int mCount;
+
+        // Partially decoded value and running totals carried across chunks
+        private long mValue;
+        private int mShift;
+        private boolean mHaveLatitude;
+        private long mPendingLatitude;
+        private long mLat;
+        private long mLng;
+
+        public Decoder(int precision, int expectedPoints) {
+            mFactor = Math.pow(10, precision);
+            int capacity = Math.max(16, expectedPoints);
+            mLatitude = new double[capacity];
+            mLongitude = new double[capacity];
+        }
+
+        public void feed(String chunk) {
+            int length = chunk.length();
+            for (int start = 0; start < length; start += CHUNK) {
+                int end = Math.min(length, start + CHUNK);
+                // Bulk copy instead of a bounds-checked charAt per character
+                chunk.getChars(start, end, mScratch, 0);
+                feed(mScratch, 0, end - start);
+            }
+        }
+
+        public void feed(char[] chars, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                int b = chars[i] - 63;
+                if (b < 0 || b > 63) {
+                    throw new IllegalArgumentException("Invalid polyline character: " + chars[i]);
+                }
+                mValue |= (long) (b & 0x1f) << mShift;
+                mShift += 5;
+                if (b >= 0x20) {
+                    if (mShift > 60) {
+                        throw new IllegalArgumentException("Polyline value too long");
+                    }
+                    continue;
+                }
+
+                long delta = (mValue & 1) != 0 ? ~(mValue >> 1) : (mValue >> 1);
+                mValue = 0;
+                mShift = 0;
+                if (!mHaveLatitude) {
+                    mPendingLatitude = delta;
+                    mHaveLatitude = true;
+                } else {
+                    mLat += mPendingLatitude;
+                    mLng += delta;
+                    mHaveLatitude = false;
+                    add(mLat / mFactor, mLng / mFactor);
+                }
+            }
+        }
+
+        private void add(double latitude, double longitude) {
+            if (mCount == mLatitude.length) {
+                mLatitude = Arrays.copyOf(mLatitude, mCount * 2);
+                mLongitude = Arrays.copyOf(mLongitude, mCount * 2);
+            }
+            mLatitude[mCount] = latitude;
+            mLongitude[mCount] = longitude;
+            mCount++;
+        }
+
+        public int getPointCount() {
+            return mCount;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the input ended mid-coordinate
+         */
+        public Route finish() {
+            if (mShift != 0 || mHaveLatitude) {
+                throw new IllegalArgumentException("Truncated polyline");
+            }
+            return new Route(Arrays.copyOf(mLatitude, mCount), Arrays.copyOf(mLongitude, mCount));
+        }
+    }
+}
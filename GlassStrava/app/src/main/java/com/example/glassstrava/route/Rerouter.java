@@ -0,0 +1,60 @@
+package com.example.glassstrava.route;
+
+/**
+ * Works out where to rejoin a route after leaving it.
+ *
+ * There's no road network on the device, so the way back is a straight
+ * line to a point on the route. The point is chosen by the distance to it
+ * plus a small cost for each meter of route skipped ahead of the user's
+ * progress and a larger one for each meter that would have to be ridden
+ * again, so it prefers the nearest point forward along the route.
+ */
+public class Rerouter {
+    // Skipping part of the route is allowed but not free
+    private static final double AHEAD_WEIGHT = 0.25;
+    // Going back means covering that stretch twice
+    private static final double BEHIND_WEIGHT = 2.0;
+    private static final double SEARCH_RADIUS = 5000.0; // meters
+
+    private final RouteIndex mIndex;
+    private final RouteMatch mRejoin = new RouteMatch();
+    private double mLatitude;
+    private double mLongitude;
+
+    public Rerouter(RouteIndex index) {
+        mIndex = index;
+    }
+
+    /**
+     * @param progress distance covered along the route before leaving it,
+     *                 negative if it hasn't been joined yet
+     * @return the rejoin point, invalid if the route is out of range. Its
+     *         {@code crossTrackDistance} is the distance to the point.
+     */
+    public RouteMatch reroute(double latitude, double longitude, double progress) {
+        mIndex.findRejoin(latitude, longitude, SEARCH_RADIUS, progress,
+            AHEAD_WEIGHT, BEHIND_WEIGHT, mRejoin);
+        if (mRejoin.isValid()) {
+            Route route = mIndex.getRoute();
+            int i = mRejoin.segment;
+            double t = mRejoin.fraction;
+            mLatitude = route.getLatitude(i) + t * (route.getLatitude(i + 1) - route.getLatitude(i));
+            mLongitude = route.getLongitude(i) + t * (route.getLongitude(i + 1) - route.getLongitude(i));
+        }
+        return mRejoin;
+    }
+
+    /**
+     * Latitude of the last rejoin point
+     */
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    /**
+     * Longitude of the last rejoin point
+     */
+    public double getLongitude() {
+        return mLongitude;
+    }
+}
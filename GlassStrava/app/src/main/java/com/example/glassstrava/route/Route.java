@@ -0,0 +1,132 @@
+package com.example.glassstrava.route;
+
+import android.location.Location;
+
+/**
+ * Decoded route geometry with a cumulative distance per vertex.
+ *
+ * The prefix sums are computed once when the route is loaded, so the
+ * distance from any vertex to the end of the route is a subtraction
+ * instead of a walk over the remaining segments on every fix.
+ *
+ * Vertices are also projected onto a local plane in meters (equirectangular
+ * around the route's middle latitude) for the geometric work of snapping
+ * fixes to the route.
+ */
+public class Route {
+    private static final double METERS_PER_DEGREE = 111319.49;
+
+    private final double[] mLatitude;
+    private final double[] mLongitude;
+    // Distance along the route from the first vertex, in meters
+    private final double[] mCumulative;
+    // Projected east/north coordinates, in meters
+    private final double[] mX;
+    private final double[] mY;
+    private final double mOriginLatitude;
+    private final double mOriginLongitude;
+    private final double mMetersPerDegreeLon;
+
+    public Route(double[] latitude, double[] longitude) {
+        if (latitude.length != longitude.length) {
+            throw new IllegalArgumentException("Coordinate arrays differ in length");
+        }
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mCumulative = new double[latitude.length];
+
+        float[] result = new float[1];
+        for (int i = 1; i < latitude.length; i++) {
+            Location.distanceBetween(latitude[i - 1], longitude[i - 1],
+                latitude[i], longitude[i], result);
+            mCumulative[i] = mCumulative[i - 1] + result[0];
+        }
+
+        double minLatitude = Double.MAX_VALUE;
+        double maxLatitude = -Double.MAX_VALUE;
+        for (double value : latitude) {
+            minLatitude = Math.min(minLatitude, value);
+            maxLatitude = Math.max(maxLatitude, value);
+        }
+        mOriginLatitude = latitude.length > 0 ? latitude[0] : 0.0;
+        mOriginLongitude = longitude.length > 0 ? longitude[0] : 0.0;
+        mMetersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(
+            latitude.length > 0 ? (minLatitude + maxLatitude) / 2 : 0.0));
+
+        mX = new double[latitude.length];
+        mY = new double[latitude.length];
+        for (int i = 0; i < latitude.length; i++) {
+            mX[i] = projectX(longitude[i]);
+            mY[i] = projectY(latitude[i]);
+        }
+    }
+
+    public int size() {
+        return mLatitude.length;
+    }
+
+    public boolean isEmpty() {
+        return mLatitude.length == 0;
+    }
+
+    public double getLatitude(int index) {
+        return mLatitude[index];
+    }
+
+    public double getLongitude(int index) {
+        return mLongitude[index];
+    }
+
+    /**
+     * Projected east coordinate of vertex {@code index}, in meters
+     */
+    public double getX(int index) {
+        return mX[index];
+    }
+
+    /**
+     * Projected north coordinate of vertex {@code index}, in meters
+     */
+    public double getY(int index) {
+        return mY[index];
+    }
+
+    public double projectX(double longitude) {
+        return (longitude - mOriginLongitude) * mMetersPerDegreeLon;
+    }
+
+    public double projectY(double latitude) {
+        return (latitude - mOriginLatitude) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * Distance along the route from the start to vertex {@code index}, in meters
+     */
+    public double getDistanceFromStart(int index) {
+        return mCumulative[index];
+    }
+
+    /**
+     * Distance along the route from vertex {@code index} to the end, in meters
+     */
+    public double getDistanceToEnd(int index) {
+        return getTotalDistance() - mCumulative[index];
+    }
+
+    /**
+     * Length of the decoded geometry, in meters
+     */
+    public double getTotalDistance() {
+        return mCumulative.length > 0 ? mCumulative[mCumulative.length - 1] : 0.0;
+    }
+
+    /**
+     * @param distanceAlong distance covered along the route, in meters
+     * @return fraction of the route completed, between 0 and 1
+     */
+    public double getFractionComplete(double distanceAlong) {
+        double total = getTotalDistance();
+        if (total <= 0) return 0.0;
+        return Math.max(0.0, Math.min(1.0, distanceAlong / total));
+    }
+}
@@ -0,0 +1,335 @@
+package com.example.glassstrava.route;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-device cache of decoded routes so navigation can start offline.
+ *
+ * Each route is one file holding a small header and the coordinates as
+ * zigzag varint deltas of fixed-point values, typically 2-4 bytes per
+ * vertex instead of the 16 of two doubles, and optionally the elevation
+ * of each vertex the same way in decimeters. Files are memory-mapped for
+ * reading. Least recently used routes are evicted once the cache exceeds
+ * its byte budget; the access order is kept in a small index file.
+ */
+public class RouteCache {
+    private static final String TAG = "RouteCache";
+    private static final int MAGIC = 0x47535254; // "GSRT"
+    private static final int FORMAT_VERSION = 3;
+    private static final String SUFFIX = ".route";
+    private static final String INDEX_FILE = "index";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDir;
+    private final long mMaxBytes;
+    // Route id to file size, least recently used first
+    private final LinkedHashMap<Long, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public RouteCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Could not create " + dir);
+        }
+        deleteTempFiles();
+        loadIndex();
+    }
+
+    /**
+     * @return the cached route, or null if it isn't cached or can't be read
+     */
+    public synchronized CachedRoute get(long id) {
+        // get() rather than containsKey() so the access moves it to the back of the LRU order
+        if (mEntries.get(id) == null) return null;
+        try {
+            CachedRoute cached = read(routeFile(id), true);
+            saveIndex();
+            return cached;
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable cached route " + id, e);
+            remove(id);
+            return null;
+        }
+    }
+
+    /**
+     * Whether the route is available offline. Doesn't count as an access.
+     */
+    public synchronized boolean contains(long id) {
+        return mEntries.containsKey(id);
+    }
+
+    /**
+     * Version of the cached route without decoding its geometry, or null
+     */
+    public synchronized String getVersion(long id) {
+        if (!mEntries.containsKey(id)) return null;
+        try {
+            return read(routeFile(id), false).version;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public synchronized void put(CachedRoute cached) throws IOException {
+        File file = routeFile(cached.id);
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 8192));
+            write(cached, out);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not move " + temp + " to " + file);
+        }
+
+        mEntries.put(cached.id, file.length());
+        evict(cached.id);
+        saveIndex();
+    }
+
+    public synchronized void remove(long id) {
+        routeFile(id).delete();
+        mEntries.remove(id);
+        saveIndex();
+    }
+
+    /**
+     * Total size of the cached route files, in bytes
+     */
+    public synchronized long getSize() {
+        long total = 0;
+        for (long size : mEntries.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    private void evict(long keep) {
+        long total = getSize();
+        Iterator<Map.Entry<Long, Long>> it = mEntries.entrySet().iterator();
+        while (total > mMaxBytes && it.hasNext()) {
+            Map.Entry<Long, Long> entry = it.next();
+            if (entry.getKey() == keep) continue;
+            routeFile(entry.getKey()).delete();
+            total -= entry.getValue();
+            it.remove();
+        }
+    }
+
+    private File routeFile(long id) {
+        return new File(mDir, id + SUFFIX);
+    }
+
+    private static void write(CachedRoute cached, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeLong(cached.id);
+        writeString(out, cached.version);
+        writeString(out, cached.name);
+        out.writeDouble(cached.distance);
+        out.writeInt(cached.estimatedMovingTime);
+
+        Route route = cached.route;
+        out.writeByte(PolylineCodec.PRECISION_5);
+        out.writeInt(route.size());
+        double factor = Math.pow(10, PolylineCodec.PRECISION_5);
+        long lastLat = 0;
+        long lastLng = 0;
+        for (int i = 0; i < route.size(); i++) {
+            long lat = Math.round(route.getLatitude(i) * factor);
+            long lng = Math.round(route.getLongitude(i) * factor);
+            writeVarint(out, lat - lastLat);
+            writeVarint(out, lng - lastLng);
+            lastLat = lat;
+            lastLng = lng;
+        }
+
+        out.writeBoolean(cached.elevation != null);
+        if (cached.elevation != null) {
+            long last = 0;
+            for (float value : cached.elevation) {
+                long decimeters = Math.round(value * 10.0);
+                writeVarint(out, decimeters - last);
+                last = decimeters;
+            }
+        }
+    }
+
+    private static CachedRoute read(File file, boolean withGeometry) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (in.getInt() != MAGIC || in.get() != FORMAT_VERSION) {
+                throw new IOException("Not a cached route: " + file);
+            }
+            CachedRoute cached = new CachedRoute();
+            cached.id = in.getLong();
+            cached.version = readString(in);
+            cached.name = readString(in);
+            cached.distance = in.getDouble();
+            cached.estimatedMovingTime = in.getInt();
+            if (!withGeometry) {
+                return cached;
+            }
+
+            double factor = Math.pow(10, in.get());
+            int count = in.getInt();
+            double[] latitude = new double[count];
+            double[] longitude = new double[count];
+            long lat = 0;
+            long lng = 0;
+            for (int i = 0; i < count; i++) {
+                lat += readVarint(in);
+                lng += readVarint(in);
+                latitude[i] = lat / factor;
+                longitude[i] = lng / factor;
+            }
+            cached.route = new Route(latitude, longitude);
+
+            if (in.get() != 0) {
+                cached.elevation = new float[count];
+                long decimeters = 0;
+                for (int i = 0; i < count; i++) {
+                    decimeters += readVarint(in);
+                    cached.elevation[i] = decimeters / 10.0f;
+                }
+            }
+            return cached;
+        } catch (RuntimeException e) {
+            // Truncated or corrupt file: buffer underflow and friends
+            throw new IOException("Corrupt cached route: " + file, e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+
+    private static long readVarint(ByteBuffer in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (result >>> 1) ^ -(result & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Removes what a write interrupted before its rename left behind
+     */
+    private void deleteTempFiles() {
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    private void loadIndex() {
+        File index = new File(mDir, INDEX_FILE);
+        if (index.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new FileInputStream(index));
+                try {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        long id = in.readLong();
+                        long size = in.readLong();
+                        if (routeFile(id).exists()) {
+                            mEntries.put(id, size);
+                        }
+                    }
+                    return;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Rebuilding route cache index", e);
+                mEntries.clear();
+            }
+        }
+
+        // No usable index: recover entries from the files themselves, in no particular order
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX)) continue;
+            try {
+                mEntries.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())),
+                    file.length());
+            } catch (NumberFormatException e) {
+                file.delete();
+            }
+        }
+    }
+
+    private void saveIndex() {
+        File index = new File(mDir, INDEX_FILE);
+        File temp = new File(mDir, INDEX_FILE + TEMP_SUFFIX);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(mEntries.size());
+                for (Map.Entry<Long, Long> entry : mEntries.entrySet()) {
+                    out.writeLong(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(index)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // Only the LRU order is lost; loadIndex falls back to the directory listing
+            Log.w(TAG, "Could not save route cache index", e);
+        }
+    }
+}
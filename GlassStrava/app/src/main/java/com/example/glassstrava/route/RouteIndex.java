@@ -0,0 +1,270 @@
+package com.example.glassstrava.route;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over a route's segments for nearest-segment queries.
+ *
+ * Each segment is registered in every grid cell it passes through. The
+ * grid is sparse: occupied cells are kept as a sorted key array with an
+ * offset into one flat segment array, so a cell lookup is a binary search
+ * and the index holds a few ints per segment regardless of the route's
+ * bounding box. Queries search rings of cells outward from the fix and
+ * stop as soon as no unvisited cell can hold a better match.
+ */
+public class RouteIndex {
+    private static final double CELL_SIZE = 100.0; // meters
+    private static final int CELL_BITS = 20;
+    private static final int SEGMENT_BITS = 23;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+    // Keeps grid coordinates positive after offsetting from the route origin
+    private static final int CELL_OFFSET = 1 << (CELL_BITS - 1);
+
+    private final Route mRoute;
+    private final long[] mCellKeys;
+    private final int[] mCellStart;
+    private final int[] mSegments;
+
+    public RouteIndex(Route route) {
+        mRoute = route;
+        int segmentCount = Math.max(0, route.size() - 1);
+        if (segmentCount > SEGMENT_MASK) {
+            throw new IllegalArgumentException("Route too long to index: " + route.size());
+        }
+
+        // Pack (cell, segment) pairs into longs so a primitive sort groups them by cell
+        long[] entries = new long[Math.max(16, segmentCount * 2)];
+        int count = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            double ax = route.getX(i);
+            double ay = route.getY(i);
+            double dx = route.getX(i + 1) - ax;
+            double dy = route.getY(i + 1) - ay;
+            // Sample every half cell so every cell the segment crosses is covered
+            int steps = (int) Math.ceil(Math.sqrt(dx * dx + dy * dy) / (CELL_SIZE / 2));
+            long lastKey = -1;
+            for (int s = 0; s <= steps; s++) {
+                double t = steps == 0 ? 0.0 : (double) s / steps;
+                long key = cellKey(cell(ax + t * dx), cell(ay + t * dy));
+                if (key == lastKey) continue;
+                lastKey = key;
+                if (count == entries.length) {
+                    entries = Arrays.copyOf(entries, count * 2);
+                }
+                entries[count++] = (key << SEGMENT_BITS) | i;
+            }
+        }
+        Arrays.sort(entries, 0, count);
+
+        int cells = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || (entries[i] >>> SEGMENT_BITS) != (entries[i - 1] >>> SEGMENT_BITS)) {
+                cells++;
+            }
+        }
+        mCellKeys = new long[cells];
+        mCellStart = new int[cells + 1];
+        mSegments = new int[count];
+        int cell = -1;
+        for (int i = 0; i < count; i++) {
+            long key = entries[i] >>> SEGMENT_BITS;
+            if (cell < 0 || mCellKeys[cell] != key) {
+                cell++;
+                mCellKeys[cell] = key;
+                mCellStart[cell] = i;
+            }
+            mSegments[i] = (int) (entries[i] & SEGMENT_MASK);
+        }
+        mCellStart[cells] = count;
+    }
+
+    public Route getRoute() {
+        return mRoute;
+    }
+
+    /**
+     * Finds the route segment closest to a position.
+     *
+     * When {@code previousAlong} is not negative, candidates are also
+     * penalized by how far they are along the route from it, so an
+     * out-and-back route snaps to the leg the user is actually on.
+     *
+     * @param maxDistance search radius in meters
+     * @param alongWeight meters of cost per meter of along-route jump
+     * @param result      filled in; invalid if no segment is within the radius
+     */
+    public void findNearest(double latitude, double longitude, double maxDistance,
+                            double previousAlong, double alongWeight, RouteMatch result) {
+        search(latitude, longitude, maxDistance, previousAlong, alongWeight, alongWeight,
+            false, result);
+    }
+
+    /**
+     * Finds the cheapest point to head for to get back onto the route.
+     *
+     * The cost is the straight-line distance to the point plus a penalty
+     * for the route skipped ahead of {@code progress} or repeated behind
+     * it. Unlike {@link #findNearest} the point isn't simply the foot of
+     * the perpendicular: on each segment it is the exact minimum of that
+     * cost, which cuts diagonally towards the route when skipping is cheap.
+     *
+     * @param progress     distance already covered along the route; negative
+     *                     if the route hasn't been joined yet
+     * @param aheadWeight  meters of cost per meter of route skipped
+     * @param behindWeight meters of cost per meter of route to be repeated
+     * @param result       filled in; {@code crossTrackDistance} is the distance
+     *                     to the rejoin point. Invalid if nothing is within range.
+     */
+    public void findRejoin(double latitude, double longitude, double maxDistance,
+                           double progress, double aheadWeight, double behindWeight,
+                           RouteMatch result) {
+        search(latitude, longitude, maxDistance, Math.max(0.0, progress), aheadWeight,
+            behindWeight, true, result);
+    }
+
+    private void search(double latitude, double longitude, double maxDistance,
+                        double previousAlong, double aheadWeight, double behindWeight,
+                        boolean rejoin, RouteMatch result) {
+        result.clear();
+        double bestCost = Double.MAX_VALUE;
+        if (mCellKeys.length == 0) return;
+
+        double px = mRoute.projectX(longitude);
+        double py = mRoute.projectY(latitude);
+        int cx = cell(px);
+        int cy = cell(py);
+        int maxRing = (int) Math.ceil(maxDistance / CELL_SIZE) + 2;
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            for (int x = cx - ring; x <= cx + ring; x++) {
+                // Only the ring's border cells; the interior was searched already
+                int yStep = (x == cx - ring || x == cx + ring) ? 1 : Math.max(1, 2 * ring);
+                for (int y = cy - ring; y <= cy + ring; y += yStep) {
+                    int slot = Arrays.binarySearch(mCellKeys, cellKey(x, y));
+                    if (slot < 0) continue;
+                    for (int k = mCellStart[slot]; k < mCellStart[slot + 1]; k++) {
+                        bestCost = rejoin
+                            ? evaluateRejoin(mSegments[k], px, py, maxDistance,
+                                previousAlong, aheadWeight, behindWeight, bestCost, result)
+                            : evaluate(mSegments[k], px, py, maxDistance,
+                                previousAlong, aheadWeight, bestCost, result);
+                    }
+                }
+            }
+            // Unvisited segments are at least this far away, and no cost is less
+            // than the distance; one cell of slack covers segments that clip a
+            // cell corner without being registered in it
+            if (result.isValid() && bestCost <= (ring - 1) * CELL_SIZE) {
+                break;
+            }
+        }
+    }
+
+    private double evaluate(int segment, double px, double py, double maxDistance,
+                            double previousAlong, double alongWeight,
+                            double bestCost, RouteMatch result) {
+        double ax = mRoute.getX(segment);
+        double ay = mRoute.getY(segment);
+        double dx = mRoute.getX(segment + 1) - ax;
+        double dy = mRoute.getY(segment + 1) - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared > 0 ? ((px - ax) * dx + (py - ay) * dy) / lengthSquared : 0.0;
+        t = Math.max(0.0, Math.min(1.0, t));
+
+        double ex = ax + t * dx - px;
+        double ey = ay + t * dy - py;
+        double distance = Math.sqrt(ex * ex + ey * ey);
+        if (distance > maxDistance) return bestCost;
+
+        double along = mRoute.getDistanceFromStart(segment)
+            + t * (mRoute.getDistanceFromStart(segment + 1) - mRoute.getDistanceFromStart(segment));
+        double cost = distance;
+        if (previousAlong >= 0) {
+            cost += alongWeight * Math.abs(along - previousAlong);
+        }
+        if (cost >= bestCost) return bestCost;
+
+        result.segment = segment;
+        result.fraction = t;
+        result.alongDistance = along;
+        result.crossTrackDistance = distance;
+        return cost;
+    }
+
+    private double evaluateRejoin(int segment, double px, double py, double maxDistance,
+                                  double progress, double aheadWeight, double behindWeight,
+                                  double bestCost, RouteMatch result) {
+        double ax = mRoute.getX(segment);
+        double ay = mRoute.getY(segment);
+        double dx = mRoute.getX(segment + 1) - ax;
+        double dy = mRoute.getY(segment + 1) - ay;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        double startAlong = mRoute.getDistanceFromStart(segment);
+        double segmentAlong = mRoute.getDistanceFromStart(segment + 1) - startAlong;
+        if (length <= 0 || segmentAlong <= 0) {
+            return evaluate(segment, px, py, maxDistance, progress, aheadWeight, bestCost, result);
+        }
+
+        // Foot of the perpendicular and distance from the segment's line, in meters
+        double foot = ((px - ax) * dx + (py - ay) * dy) / length;
+        double offset = Math.abs((px - ax) * dy - (py - ay) * dx) / length;
+        // The segment is split where it passes the current progress
+        double split = Math.max(0.0, Math.min(1.0, (progress - startAlong) / segmentAlong));
+        double scale = segmentAlong / length;
+
+        // Distance plus a linear penalty is convex, so each side's minimum is the
+        // point where the distance shrinks as fast as the penalty grows, clamped
+        if (split < 1.0) {
+            double t = (foot - slope(aheadWeight * scale, offset)) / length;
+            bestCost = evaluateAt(segment, Math.max(split, Math.min(1.0, t)), px, py,
+                maxDistance, progress, aheadWeight, behindWeight, bestCost, result);
+        }
+        if (split > 0.0) {
+            double t = (foot + slope(behindWeight * scale, offset)) / length;
+            bestCost = evaluateAt(segment, Math.max(0.0, Math.min(split, t)), px, py,
+                maxDistance, progress, aheadWeight, behindWeight, bestCost, result);
+        }
+        return bestCost;
+    }
+
+    /**
+     * How far from the perpendicular the cost minimum lies for a penalty
+     * of {@code weight} per meter; infinite once the penalty outweighs any
+     * saving in distance
+     */
+    private static double slope(double weight, double offset) {
+        return weight >= 1.0 ? Double.POSITIVE_INFINITY : weight * offset / Math.sqrt(1 - weight * weight);
+    }
+
+    private double evaluateAt(int segment, double t, double px, double py, double maxDistance,
+                              double progress, double aheadWeight, double behindWeight,
+                              double bestCost, RouteMatch result) {
+        double ax = mRoute.getX(segment);
+        double ay = mRoute.getY(segment);
+        double ex = ax + t * (mRoute.getX(segment + 1) - ax) - px;
+        double ey = ay + t * (mRoute.getY(segment + 1) - ay) - py;
+        double distance = Math.sqrt(ex * ex + ey * ey);
+        if (distance > maxDistance) return bestCost;
+
+        double along = mRoute.getDistanceFromStart(segment)
+            + t * (mRoute.getDistanceFromStart(segment + 1) - mRoute.getDistanceFromStart(segment));
+        double cost = distance + (along >= progress
+            ? aheadWeight * (along - progress) : behindWeight * (progress - along));
+        if (cost >= bestCost) return bestCost;
+
+        result.segment = segment;
+        result.fraction = t;
+        result.alongDistance = along;
+        result.crossTrackDistance = distance;
+        return cost;
+    }
+
+    private static int cell(double meters) {
+        return (int) Math.floor(meters / CELL_SIZE) + CELL_OFFSET;
+    }
+
+    private static long cellKey(int x, int y) {
+        long mask = (1L << CELL_BITS) - 1;
+        return ((x & mask) << CELL_BITS) | (y & mask);
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.glassstrava.route;
+
+/**
+ * Result of snapping a fix onto the route. Reused between fixes.
+ */
+public class RouteMatch {
+    /** Index of the matched segment's first vertex, -1 if nothing was found */
+    public int segment = -1;
+    /** Position along the segment, 0 at its first vertex and 1 at its last */
+    public double fraction;
+    /** Distance along the route to the snapped point, in meters */
+    public double alongDistance;
+    /** Distance from the fix to the snapped point, in meters */
+    public double crossTrackDistance;
+
+    public boolean isValid() {
+        return segment >= 0;
+    }
+
+    void clear() {
+        segment = -1;
+        fraction = 0.0;
+        alongDistance = 0.0;
+        crossTrackDistance = Double.MAX_VALUE;
+    }
+}
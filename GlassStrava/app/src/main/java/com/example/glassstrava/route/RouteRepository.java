@@ -0,0 +1,295 @@
+package com.example.glassstrava.route;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.JsonReader;
+import android.util.Log;
+
+import com.example.glassstrava.api.StravaClient;
+import com.example.glassstrava.models.RouteSummary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The athlete's saved routes for the route picker, fetched a page at a time.
+ *
+ * The last known list is kept on disk and shown immediately, so the picker
+ * works offline and doesn't wait for the network. Pages are then fetched
+ * in order as the user scrolls towards the end of what has been refreshed,
+ * each one replacing the same positions of the stored list.
+ *
+ * All methods must be called on the main thread; listener callbacks are
+ * made there too.
+ */
+public class RouteRepository {
+    private static final String TAG = "RouteRepository";
+    private static final int PAGE_SIZE = 30;
+    // Start fetching the next page this many cards before the end
+    private static final int PREFETCH_DISTANCE = 10;
+    private static final int FILE_VERSION = 1;
+
+    // Disk and network work, one task at a time since pages are fetched in
+    // order anyway. Shared, so a reopened picker reads the list the last one
+    // stored; not AsyncTask's serial executor, so a prefetch never delays
+    // opening the picked route
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1, 1,
+        30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final StravaClient mClient;
+    private final SharedPreferences mPrefs;
+    private final File mFile;
+    private final Handler mHandler;
+    private final List<RouteSummary> mRoutes = new ArrayList<>();
+    private Listener mListener;
+    // Pages refreshed from Strava since the repository was created
+    private int mPagesFetched = 0;
+    private boolean mHasMore = true;
+    private boolean mLoading = false;
+    // Set after a failed fetch so scrolling offline doesn't retry on every card
+    private boolean mFailed = false;
+
+    public interface Listener {
+        void onRoutesChanged();
+        void onLoadFailed();
+    }
+
+    public RouteRepository(StravaClient client, SharedPreferences prefs, File file) {
+        this(client, prefs, file, Looper.getMainLooper());
+    }
+
+    /**
+     * Run on another looper's thread instead of the main one
+     */
+    RouteRepository(StravaClient client, SharedPreferences prefs, File file, Looper looper) {
+        mClient = client;
+        mPrefs = prefs;
+        mFile = file;
+        mHandler = new Handler(looper);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Shows the stored list, then starts refreshing it from the first page
+     */
+    public void load() {
+        mLoading = true;
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<RouteSummary> routes = readFile();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFileRead(routes);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onFileRead(List<RouteSummary> routes) {
+        mRoutes.clear();
+        mRoutes.addAll(routes);
+        mLoading = false;
+        if (!routes.isEmpty() && mListener != null) {
+            mListener.onRoutesChanged();
+        }
+        fetchNextPage();
+    }
+
+    public int size() {
+        return mRoutes.size();
+    }
+
+    public RouteSummary get(int position) {
+        return mRoutes.get(position);
+    }
+
+    public int indexOf(long id) {
+        for (int i = 0; i < mRoutes.size(); i++) {
+            if (mRoutes.get(i).id == id) return i;
+        }
+        return -1;
+    }
+
+    public boolean isLoading() {
+        return mLoading;
+    }
+
+    /**
+     * Call as cards are shown; fetches the next page once the user gets
+     * close to the end of the refreshed part of the list
+     */
+    public void onItemShown(int position) {
+        if (position >= mPagesFetched * PAGE_SIZE - PREFETCH_DISTANCE) {
+            fetchNextPage();
+        }
+    }
+
+    private void fetchNextPage() {
+        if (mLoading || mFailed || !mHasMore) return;
+        mLoading = true;
+        final int page = mPagesFetched;
+
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<RouteSummary> fetched;
+                try {
+                    fetched = fetchPage(page);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not fetch route page " + page, e);
+                    fetched = null;
+                }
+                final List<RouteSummary> routes = fetched;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageFetched(page, routes);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPageFetched(int page, List<RouteSummary> routes) {
+        mLoading = false;
+        if (routes == null) {
+            mFailed = true;
+            if (mListener != null) mListener.onLoadFailed();
+            return;
+        }
+        merge(page, routes);
+        if (mListener != null) mListener.onRoutesChanged();
+    }
+
+    private void merge(int page, List<RouteSummary> routes) {
+        int start = page * PAGE_SIZE;
+        for (int i = 0; i < routes.size(); i++) {
+            if (start + i < mRoutes.size()) {
+                mRoutes.set(start + i, routes.get(i));
+            } else {
+                mRoutes.add(routes.get(i));
+            }
+        }
+        mPagesFetched = page + 1;
+
+        if (routes.size() < PAGE_SIZE) {
+            // Last page: anything stored past it has been deleted on Strava
+            mHasMore = false;
+            while (mRoutes.size() > start + routes.size()) {
+                mRoutes.remove(mRoutes.size() - 1);
+            }
+        }
+
+        final List<RouteSummary> snapshot = new ArrayList<>(mRoutes);
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeFile(snapshot);
+            }
+        });
+    }
+
+    private List<RouteSummary> fetchPage(int page) throws IOException {
+        List<RouteSummary> routes = new ArrayList<>(PAGE_SIZE);
+        String athleteId = mPrefs.getString("strava_athlete_id", "");
+        StravaClient.Response response = mClient.get("/athletes/" + athleteId + "/routes"
+            + "?page=" + (page + 1) + "&per_page=" + PAGE_SIZE, StravaClient.PRIORITY_BROWSE);
+        try {
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + response.getCode());
+            }
+            // Stream the response; route objects carry polylines the picker never shows
+            JsonReader reader = new JsonReader(response.getReader());
+            reader.beginArray();
+            while (reader.hasNext()) {
+                routes.add(RouteSummary.fromJson(reader));
+            }
+            reader.endArray();
+        } catch (IllegalStateException e) {
+            // JsonReader reports unexpected structure this way
+            throw new IOException("Malformed route list", e);
+        } finally {
+            response.close();
+        }
+        return routes;
+    }
+
+    private List<RouteSummary> readFile() {
+        List<RouteSummary> routes = new ArrayList<>();
+        if (!mFile.exists()) return routes;
+        try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != FILE_VERSION) return routes;
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    RouteSummary route = new RouteSummary();
+                    route.id = in.readLong();
+                    route.name = in.readUTF();
+                    route.distance = in.readDouble();
+                    route.elevationGain = in.readDouble();
+                    route.type = in.readInt();
+                    route.updatedAt = in.readUTF();
+                    routes.add(route);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding stored route list", e);
+            routes.clear();
+        }
+        return routes;
+    }
+
+    private void writeFile(List<RouteSummary> routes) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeInt(routes.size());
+                for (RouteSummary route : routes) {
+                    out.writeLong(route.id);
+                    out.writeUTF(route.name);
+                    out.writeDouble(route.distance);
+                    out.writeDouble(route.elevationGain);
+                    out.writeInt(route.type);
+                    out.writeUTF(route.updatedAt);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store route list", e);
+        }
+    }
+}
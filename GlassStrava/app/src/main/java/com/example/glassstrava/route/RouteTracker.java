@@ -0,0 +1,112 @@
+package com.example.glassstrava.route;
+
+/**
+ * Follows the user's progress along a route.
+ *
+ * Every fix is snapped to the nearest segment through a {@link RouteIndex},
+ * which gives the distance covered along the route even when fixes skip
+ * past vertices. The tracker reports leaving and rejoining the route, with
+ * hysteresis so GPS noise near the threshold doesn't make it flap.
+ */
+public class RouteTracker {
+    private static final double OFF_ROUTE_DISTANCE = 40.0;  // meters
+    private static final double ON_ROUTE_DISTANCE = 25.0;   // meters
+    private static final int OFF_ROUTE_FIXES = 2;
+    private static final double SEARCH_RADIUS = 2000.0;     // meters
+    // How strongly a big jump along the route is penalized when snapping
+    private static final double ALONG_WEIGHT = 0.05;
+
+    public interface Listener {
+        void onOffRoute(RouteMatch match);
+
+        void onBackOnRoute(RouteMatch match);
+    }
+
+    private final RouteIndex mIndex;
+    private final RouteMatch mMatch = new RouteMatch();
+    private Listener mListener;
+
+    private double mProgress = -1;
+    // Progress at the first match, where the user joined the route
+    private double mJoinProgress = -1;
+    private boolean mOffRoute = false;
+    private int mOffRouteCount = 0;
+
+    public RouteTracker(RouteIndex index) {
+        mIndex = index;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Snaps a fix onto the route and updates progress and off-route state
+     *
+     * @return the match for this fix; invalid if the route is far away
+     */
+    public RouteMatch update(double latitude, double longitude) {
+        if (mProgress < 0) {
+            // Not joined yet: of the segments close enough to be on, take the earliest, so
+            // a fix just behind the start of a loop doesn't snap to its last segment
+            mIndex.findNearest(latitude, longitude, OFF_ROUTE_DISTANCE, 0.0, ALONG_WEIGHT,
+                mMatch);
+            if (!mMatch.isValid()) {
+                mIndex.findNearest(latitude, longitude, SEARCH_RADIUS, -1, ALONG_WEIGHT, mMatch);
+            }
+        } else {
+            mIndex.findNearest(latitude, longitude, SEARCH_RADIUS, mProgress, ALONG_WEIGHT,
+                mMatch);
+        }
+
+        boolean far = !mMatch.isValid() || mMatch.crossTrackDistance > OFF_ROUTE_DISTANCE;
+        if (far) {
+            mOffRouteCount++;
+            if (!mOffRoute && mOffRouteCount >= OFF_ROUTE_FIXES) {
+                mOffRoute = true;
+                if (mListener != null) {
+                    mListener.onOffRoute(mMatch);
+                }
+            }
+        } else {
+            mOffRouteCount = 0;
+            if (mOffRoute && mMatch.crossTrackDistance <= ON_ROUTE_DISTANCE) {
+                mOffRoute = false;
+                if (mListener != null) {
+                    mListener.onBackOnRoute(mMatch);
+                }
+            }
+        }
+
+        // Only fixes on the route move progress, so a detour can't skip ahead
+        if (!far && !mOffRoute) {
+            mProgress = mMatch.alongDistance;
+            if (mJoinProgress < 0) {
+                mJoinProgress = mProgress;
+            }
+        }
+        return mMatch;
+    }
+
+    /**
+     * Distance covered along the route, in meters; -1 before the first match
+     */
+    public double getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * Distance covered along the route since joining it, in meters; 0 before the first match
+     */
+    public double getDistanceCovered() {
+        return mJoinProgress < 0 ? 0.0 : mProgress - mJoinProgress;
+    }
+
+    public boolean isOffRoute() {
+        return mOffRoute;
+    }
+
+    public RouteIndex getIndex() {
+        return mIndex;
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.glassstrava.segments;
+
+/**
+ * A start or finish line: a point with a direction of travel, crossed when
+ * a fix moves from behind the point to in front of it.
+ *
+ * Positions are measured in meters on a local plane around the point,
+ * which is plenty accurate at the scale of a gate.
+ */
+class GateLine {
+    private static final double METERS_PER_DEGREE = 111319.49;
+
+    private final double mLatitude;
+    private final double mLongitude;
+    private final double mMetersPerDegreeLon;
+    // Unit direction of travel, east and north
+    private final double mDirX;
+    private final double mDirY;
+
+    /**
+     * Gate at a point, facing towards another point. A finish line faces
+     * away from a point shortly before the end, so it's crossed on arrival.
+     */
+    GateLine(double latitude, double longitude, double towardsLatitude, double towardsLongitude) {
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mMetersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        double dx = (towardsLongitude - longitude) * mMetersPerDegreeLon;
+        double dy = (towardsLatitude - latitude) * METERS_PER_DEGREE;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        mDirX = length > 0 ? dx / length : 0.0;
+        mDirY = length > 0 ? dy / length : 1.0;
+    }
+
+    /**
+     * Signed distance past the line in the direction of travel, in meters
+     */
+    double along(double latitude, double longitude) {
+        return (longitude - mLongitude) * mMetersPerDegreeLon * mDirX
+            + (latitude - mLatitude) * METERS_PER_DEGREE * mDirY;
+    }
+
+    /**
+     * Distance from the gate point along the line, in meters
+     */
+    double across(double latitude, double longitude) {
+        return Math.abs((longitude - mLongitude) * mMetersPerDegreeLon * mDirY
+            - (latitude - mLatitude) * METERS_PER_DEGREE * mDirX);
+    }
+
+    /**
+     * Cosine of the angle between a movement and the direction of travel
+     */
+    double alignment(double fromLatitude, double fromLongitude,
+                     double toLatitude, double toLongitude) {
+        double dx = (toLongitude - fromLongitude) * mMetersPerDegreeLon;
+        double dy = (toLatitude - fromLatitude) * METERS_PER_DEGREE;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        return length > 0 ? (dx * mDirX + dy * mDirY) / length : 0.0;
+    }
+}
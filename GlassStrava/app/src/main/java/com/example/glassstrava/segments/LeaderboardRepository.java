@@ -0,0 +1,268 @@
+package com.example.glassstrava.segments;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.glassstrava.api.StravaClient;
+import com.example.glassstrava.models.Segment;
+import com.example.glassstrava.models.SegmentEffort;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Segment leaderboards, fetched ahead of the card being looked at.
+ *
+ * Leaderboards of the cards around the selected one are loaded on a small
+ * pool of threads, so they are usually in memory by the time a card is
+ * swiped to. Each segment has at most one request in flight, and results
+ * are kept on disk until they expire; an expired leaderboard is still
+ * shown if it can't be refreshed. A segment that failed isn't tried again
+ * until a delay has passed.
+ *
+ * All methods, and the listener, run on the main thread.
+ */
+public class LeaderboardRepository {
+    private static final String TAG = "LeaderboardRepository";
+    // Top entries fetched per segment; a full page may not be the whole leaderboard
+    static final int ENTRIES = 10;
+    private static final long TTL = 24L * 60 * 60 * 1000;
+    // Don't retry a failed segment on every redraw of its card
+    private static final long RETRY_DELAY = 60 * 1000;
+    // Cards before and after the selected one to load
+    private static final int PREFETCH_BEHIND = 1;
+    private static final int PREFETCH_AHEAD = 2;
+    private static final int THREADS = 3;
+    private static final int MEMORY_ENTRIES = 128;
+
+    public interface Listener {
+        void onLeaderboardLoaded(long segmentId, List<SegmentEffort> leaderboard);
+    }
+
+    private final File mDir;
+    private final StravaClient mClient;
+    private final Listener mListener;
+    private final Handler mHandler;
+    // Newest requests run first, so after a fast swipe the card now in view
+    // isn't stuck behind the ones swiped past
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(THREADS, THREADS,
+        30, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>() {
+            @Override
+            public boolean offer(Runnable task) {
+                return offerFirst(task);
+            }
+        });
+    private final LinkedHashMap<Long, Leaderboard> mEntries =
+        new LinkedHashMap<Long, Leaderboard>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Leaderboard> eldest) {
+                return size() > MEMORY_ENTRIES;
+            }
+        };
+    private final Set<Long> mInFlight = new HashSet<>();
+    private final Map<Long, Long> mFailedAt = new HashMap<>();
+    private boolean mShutdown = false;
+
+    private static class Leaderboard {
+        final long fetchedAt;
+        final List<SegmentEffort> efforts;
+
+        Leaderboard(long fetchedAt, List<SegmentEffort> efforts) {
+            this.fetchedAt = fetchedAt;
+            this.efforts = efforts;
+        }
+    }
+
+    public LeaderboardRepository(File dir, StravaClient client, Listener listener) {
+        this(dir, client, listener, Looper.getMainLooper());
+    }
+
+    /**
+     * Run on another looper's thread instead of the main one
+     */
+    LeaderboardRepository(File dir, StravaClient client, Listener listener, Looper looper) {
+        mDir = dir;
+        mClient = client;
+        mListener = listener;
+        mHandler = new Handler(looper);
+        mExecutor.allowCoreThreadTimeOut(true);
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Could not create " + dir);
+        }
+    }
+
+    /**
+     * Leaderboard already in memory, possibly expired; null if not loaded
+     */
+    public List<SegmentEffort> get(long segmentId) {
+        Leaderboard entry = mEntries.get(segmentId);
+        return entry != null ? entry.efforts : null;
+    }
+
+    /**
+     * Loads the leaderboards around the card at {@code position}, the
+     * selected card first. Segments already current or in flight are skipped.
+     */
+    public void prefetch(List<Segment> segments, int position) {
+        // Queued furthest first, since the queue runs newest first. Neighbours
+        // are only a guess, so they give way to other requests near the rate limit
+        int background = StravaClient.PRIORITY_BACKGROUND;
+        for (int offset = Math.max(PREFETCH_AHEAD, PREFETCH_BEHIND); offset >= 1; offset--) {
+            if (offset <= PREFETCH_BEHIND) request(segments, position - offset, background);
+            if (offset <= PREFETCH_AHEAD) request(segments, position + offset, background);
+        }
+        request(segments, position, StravaClient.PRIORITY_BROWSE);
+    }
+
+    /**
+     * Drops queued requests and stops the threads. Requests already running
+     * finish, but their results are no longer delivered.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        mExecutor.shutdownNow();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    boolean isLoading() {
+        return !mInFlight.isEmpty();
+    }
+
+    private void request(List<Segment> segments, int position, final int priority) {
+        if (position < 0 || position >= segments.size()) return;
+        final long segmentId = segments.get(position).id;
+        long now = now();
+
+        Leaderboard entry = mEntries.get(segmentId);
+        if (entry != null && now - entry.fetchedAt <= TTL) return;
+        Long failedAt = mFailedAt.get(segmentId);
+        if (failedAt != null && now - failedAt < RETRY_DELAY) return;
+        if (!mInFlight.add(segmentId)) return;
+
+        final boolean haveStale = entry != null;
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Leaderboard loaded = load(segmentId, haveStale, priority);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onLoaded(segmentId, loaded);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shut down
+            mInFlight.remove(segmentId);
+        }
+    }
+
+    private void onLoaded(long segmentId, Leaderboard loaded) {
+        // Posted by a request that was running when the repository shut down
+        if (mShutdown) return;
+        mInFlight.remove(segmentId);
+        long now = now();
+        // An expired leaderboard is what was stored when the refresh failed
+        if (loaded == null || now - loaded.fetchedAt > TTL) {
+            mFailedAt.put(segmentId, now);
+        } else {
+            mFailedAt.remove(segmentId);
+        }
+        if (loaded == null) return;
+        Leaderboard previous = mEntries.put(segmentId, loaded);
+        if (previous == null || previous.fetchedAt != loaded.fetchedAt) {
+            mListener.onLeaderboardLoaded(segmentId, loaded.efforts);
+        }
+    }
+
+    /**
+     * Runs on the executor. Returns the stored leaderboard if it is current,
+     * otherwise fetches it; falls back to the stored one if that fails.
+     */
+    private Leaderboard load(long segmentId, boolean haveStale, int priority) {
+        File file = new File(mDir, segmentId + ".json");
+        long now = now();
+        Leaderboard stored = haveStale ? null : readLeaderboard(file);
+        if (stored != null && now - stored.fetchedAt <= TTL) {
+            return stored;
+        }
+
+        String response = fetch(segmentId, priority);
+        if (response == null) return stored;
+        try {
+            Leaderboard fetched = new Leaderboard(now, parse(response));
+            StoredResponse.write(file, now, response);
+            return fetched;
+        } catch (JSONException e) {
+            Log.w(TAG, "Bad leaderboard response for segment " + segmentId, e);
+            return stored;
+        }
+    }
+
+    private String fetch(long segmentId, int priority) {
+        try {
+            StravaClient.Response response = mClient.get("/segments/" + segmentId
+                + "/leaderboard?per_page=" + ENTRIES, priority);
+            try {
+                if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                    Log.w(TAG, "Leaderboard failed for segment " + segmentId + ": "
+                        + response.getCode());
+                    return null;
+                }
+                return response.readString();
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Leaderboard failed for segment " + segmentId, e);
+            return null;
+        }
+    }
+
+    private static List<SegmentEffort> parse(String response) throws JSONException {
+        JSONArray entries = new JSONObject(response).getJSONArray("entries");
+        List<SegmentEffort> efforts = new ArrayList<>(entries.length());
+        for (int i = 0; i < entries.length(); i++) {
+            efforts.add(SegmentEffort.fromJson(entries.getJSONObject(i)));
+        }
+        return efforts;
+    }
+
+    /**
+     * Stored like the explore tiles, as the response as received
+     */
+    private Leaderboard readLeaderboard(File file) {
+        StoredResponse stored = StoredResponse.read(file);
+        if (stored == null) return null;
+        try {
+            return new Leaderboard(stored.fetchedAt, parse(stored.body));
+        } catch (JSONException | RuntimeException e) {
+            Log.w(TAG, "Discarding cached leaderboard " + file, e);
+            file.delete();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.example.glassstrava.segments;
+
+import com.example.glassstrava.models.Segment;
+import com.example.glassstrava.models.SegmentEffort;
+import com.example.glassstrava.route.PolylineCodec;
+import com.example.glassstrava.route.Route;
+import com.example.glassstrava.route.RouteIndex;
+import com.example.glassstrava.route.RouteMatch;
+import com.example.glassstrava.route.RouteTracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Notices when the athlete rides onto a known segment and times the effort.
+ *
+ * Segment starts are kept in a sparse grid, the same sorted-key layout as
+ * {@link RouteIndex}, so each fix only looks at the starts in the cells
+ * around it: a few binary searches however many segments are cached. An
+ * effort starts when a fix crosses a start line in the segment's direction,
+ * is followed along the segment's polyline with a {@link RouteTracker}, and
+ * finishes when the finish line is crossed after most of the segment has
+ * been covered. Crossing times are interpolated between fixes.
+ *
+ * Polylines are only decoded for segments whose start the athlete reaches.
+ */
+public class SegmentMatcher {
+    private static final double METERS_PER_DEGREE = 111319.49;
+    private static final double CELL_SIZE = 200.0;          // meters
+    // Starts this close count as nearby for sampling; covered by the 3x3 cells searched
+    private static final double NEARBY_DISTANCE = CELL_SIZE;
+    private static final double GATE_WIDTH = 25.0;          // meters either side
+    // How far into the segment its direction is measured
+    private static final double DIRECTION_DISTANCE = 20.0;  // meters
+    // Cosine of the largest angle between travel and segment direction at the start
+    private static final double MIN_ALIGNMENT = 0.5;
+    // Share of the segment that must be covered before the finish counts
+    private static final double MIN_COVERAGE = 0.8;
+    private static final int MAX_ACTIVE = 8;
+    // Bits per cell coordinate, plenty for 200 m cells around the earth
+    private static final int CELL_BITS = 19;
+    private static final long CELL_MASK = (1L << CELL_BITS) - 1;
+    // Segment index packed below the cell key, so entries sort by cell
+    private static final int INDEX_BITS = 24;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    public interface Listener {
+        void onEffortStarted(Segment segment);
+
+        /**
+         * @param rank position the time would have on the cached leaderboard,
+         *             0 if no leaderboard is loaded or the time is slower than
+         *             all of a full page, so its place is unknown
+         */
+        void onEffortFinished(Segment segment, int elapsedSeconds, int rank);
+
+        void onEffortAbandoned(Segment segment);
+    }
+
+    private static class Effort {
+        final Segment segment;
+        final RouteTracker tracker;
+        final GateLine finish;
+        final double length;
+        final long startTime;
+
+        Effort(Segment segment, RouteTracker tracker, GateLine finish, double length,
+               long startTime) {
+            this.segment = segment;
+            this.tracker = tracker;
+            this.finish = finish;
+            this.length = length;
+            this.startTime = startTime;
+        }
+    }
+
+    private final Listener mListener;
+    private final List<Effort> mActive = new ArrayList<>();
+
+    private Segment[] mSegments = new Segment[0];
+    // Start gates, created when a start is first approached
+    private GateLine[] mStartGates = new GateLine[0];
+    private long[] mCellKeys = new long[0];
+    private int[] mCellStart = new int[1];
+    private int[] mCellSegments = new int[0];
+    private double mMetersPerDegreeLon = METERS_PER_DEGREE;
+
+    private boolean mHavePrevious = false;
+    private double mPreviousLatitude;
+    private double mPreviousLongitude;
+    private long mPreviousTime;
+    private double mNearestStart = Double.NaN;
+
+    public SegmentMatcher(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Replaces the segments watched for. Efforts in progress carry on.
+     */
+    public void setSegments(List<Segment> segments) {
+        mSegments = segments.toArray(new Segment[segments.size()]);
+        mStartGates = new GateLine[mSegments.length];
+
+        double latitudeSum = 0;
+        for (Segment segment : mSegments) {
+            latitudeSum += segment.startLatitude;
+        }
+        mMetersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(
+            mSegments.length > 0 ? latitudeSum / mSegments.length : 0.0));
+
+        // Pack (cell, segment) pairs so one primitive sort groups them by cell
+        long[] entries = new long[mSegments.length];
+        for (int i = 0; i < mSegments.length; i++) {
+            entries[i] = (cellKey(cellX(mSegments[i].startLongitude),
+                cellY(mSegments[i].startLatitude)) << INDEX_BITS) | i;
+        }
+        Arrays.sort(entries);
+
+        int cells = 0;
+        for (int i = 0; i < entries.length; i++) {
+            if (i == 0 || (entries[i] >>> INDEX_BITS) != (entries[i - 1] >>> INDEX_BITS)) cells++;
+        }
+        mCellKeys = new long[cells];
+        mCellStart = new int[cells + 1];
+        mCellSegments = new int[entries.length];
+        int cell = -1;
+        for (int i = 0; i < entries.length; i++) {
+            long key = entries[i] >>> INDEX_BITS;
+            if (cell < 0 || mCellKeys[cell] != key) {
+                cell++;
+                mCellKeys[cell] = key;
+                mCellStart[cell] = i;
+            }
+            mCellSegments[i] = (int) (entries[i] & INDEX_MASK);
+        }
+        mCellStart[cells] = entries.length;
+    }
+
+    public void update(double latitude, double longitude, long time) {
+        updateActive(latitude, longitude, time);
+        checkStarts(latitude, longitude, time);
+
+        mHavePrevious = true;
+        mPreviousLatitude = latitude;
+        mPreviousLongitude = longitude;
+        mPreviousTime = time;
+    }
+
+    /**
+     * Distance to the finish of an effort in progress, otherwise to the
+     * nearest segment start within a couple of hundred meters; NaN if
+     * neither. Lets location sampling speed up where timing matters.
+     */
+    public double getEventDistance() {
+        double nearest = mNearestStart;
+        for (Effort effort : mActive) {
+            double remaining = effort.length - Math.max(0.0, effort.tracker.getProgress());
+            if (Double.isNaN(nearest) || remaining < nearest) nearest = remaining;
+        }
+        return nearest;
+    }
+
+    public boolean isTiming() {
+        return !mActive.isEmpty();
+    }
+
+    private void updateActive(double latitude, double longitude, long time) {
+        for (int i = mActive.size() - 1; i >= 0; i--) {
+            Effort effort = mActive.get(i);
+            effort.tracker.update(latitude, longitude);
+            if (effort.tracker.isOffRoute()) {
+                mActive.remove(i);
+                mListener.onEffortAbandoned(effort.segment);
+                continue;
+            }
+
+            double past = effort.finish.along(latitude, longitude);
+            if (past >= 0 && effort.tracker.getProgress() >= effort.length * MIN_COVERAGE) {
+                long finishTime = crossingTime(effort.finish, latitude, longitude, time);
+                int elapsed = (int) Math.round((finishTime - effort.startTime) / 1000.0);
+                mActive.remove(i);
+                mListener.onEffortFinished(effort.segment, elapsed,
+                    rank(effort.segment, elapsed));
+            }
+        }
+    }
+
+    private void checkStarts(double latitude, double longitude, long time) {
+        mNearestStart = Double.NaN;
+        long cx = cellX(longitude);
+        long cy = cellY(latitude);
+        for (long x = cx - 1; x <= cx + 1; x++) {
+            for (long y = cy - 1; y <= cy + 1; y++) {
+                int slot = Arrays.binarySearch(mCellKeys, cellKey(x, y));
+                if (slot < 0) continue;
+                for (int k = mCellStart[slot]; k < mCellStart[slot + 1]; k++) {
+                    checkStart(mCellSegments[k], latitude, longitude, time);
+                }
+            }
+        }
+    }
+
+    private void checkStart(int index, double latitude, double longitude, long time) {
+        Segment segment = mSegments[index];
+        double dx = (longitude - segment.startLongitude) * mMetersPerDegreeLon;
+        double dy = (latitude - segment.startLatitude) * METERS_PER_DEGREE;
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        if (distance <= NEARBY_DISTANCE
+                && (Double.isNaN(mNearestStart) || distance < mNearestStart)) {
+            mNearestStart = distance;
+        }
+        if (!mHavePrevious || distance > GATE_WIDTH * 2 || mActive.size() >= MAX_ACTIVE) return;
+
+        GateLine gate = mStartGates[index];
+        if (gate == null) {
+            gate = createStartGate(segment);
+            mStartGates[index] = gate;
+        }
+        // Crossed the start line close to the start point, heading along the segment
+        if (gate.along(mPreviousLatitude, mPreviousLongitude) >= 0
+                || gate.along(latitude, longitude) < 0
+                || gate.across(latitude, longitude) > GATE_WIDTH
+                || gate.alignment(mPreviousLatitude, mPreviousLongitude,
+                    latitude, longitude) < MIN_ALIGNMENT) {
+            return;
+        }
+        for (Effort effort : mActive) {
+            if (effort.segment.id == segment.id) return;
+        }
+        startEffort(segment, crossingTime(gate, latitude, longitude, time));
+    }
+
+    private void startEffort(Segment segment, long startTime) {
+        Route route = decode(segment);
+        if (route.size() < 2) return;
+        RouteTracker tracker = new RouteTracker(new RouteIndex(route));
+
+        // Finish line faces away from a point just before the end
+        int before = route.size() - 2;
+        while (before > 0
+                && route.getDistanceToEnd(before) < DIRECTION_DISTANCE) {
+            before--;
+        }
+        GateLine finish = new GateLine(segment.endLatitude, segment.endLongitude,
+            2 * segment.endLatitude - route.getLatitude(before),
+            2 * segment.endLongitude - route.getLongitude(before));
+
+        mActive.add(new Effort(segment, tracker, finish, route.getTotalDistance(), startTime));
+        mListener.onEffortStarted(segment);
+    }
+
+    private GateLine createStartGate(Segment segment) {
+        Route route = decode(segment);
+        if (route.size() < 2) {
+            // Unusable geometry: face the end of the segment
+            return new GateLine(segment.startLatitude, segment.startLongitude,
+                segment.endLatitude, segment.endLongitude);
+        }
+        int after = 1;
+        while (after < route.size() - 1
+                && route.getDistanceFromStart(after) < DIRECTION_DISTANCE) {
+            after++;
+        }
+        return new GateLine(segment.startLatitude, segment.startLongitude,
+            route.getLatitude(after), route.getLongitude(after));
+    }
+
+    private static Route decode(Segment segment) {
+        if (segment.polyline != null && !segment.polyline.isEmpty()) {
+            try {
+                return PolylineCodec.decode(segment.polyline);
+            } catch (IllegalArgumentException e) {
+                // Fall through to the straight line
+            }
+        }
+        return new Route(new double[]{segment.startLatitude, segment.endLatitude},
+            new double[]{segment.startLongitude, segment.endLongitude});
+    }
+
+    /**
+     * When the line was crossed between the previous fix and this one
+     */
+    private long crossingTime(GateLine gate, double latitude, double longitude, long time) {
+        if (!mHavePrevious) return time;
+        double before = gate.along(mPreviousLatitude, mPreviousLongitude);
+        double after = gate.along(latitude, longitude);
+        if (before >= 0 || after <= before) return time;
+        double t = -before / (after - before);
+        return mPreviousTime + Math.round(t * (time - mPreviousTime));
+    }
+
+    private static int rank(Segment segment, int elapsedSeconds) {
+        List<SegmentEffort> leaderboard = segment.leaderboard;
+        if (leaderboard == null || leaderboard.isEmpty()) return 0;
+        int rank = 1;
+        for (SegmentEffort effort : leaderboard) {
+            if (effort.elapsedTime < elapsedSeconds) rank++;
+        }
+        // Outside the top entries fetched, where the real place could be far lower
+        if (rank > leaderboard.size() && leaderboard.size() >= LeaderboardRepository.ENTRIES) {
+            return 0;
+        }
+        return rank;
+    }
+
+    private long cellX(double longitude) {
+        return (long) Math.floor(longitude * mMetersPerDegreeLon / CELL_SIZE);
+    }
+
+    private long cellY(double latitude) {
+        return (long) Math.floor(latitude * METERS_PER_DEGREE / CELL_SIZE);
+    }
+
+    /**
+     * Wrapped so neighbours either side of the equator or meridian still match
+     */
+    private static long cellKey(long x, long y) {
+        return ((x & CELL_MASK) << CELL_BITS) | (y & CELL_MASK);
+    }
+}
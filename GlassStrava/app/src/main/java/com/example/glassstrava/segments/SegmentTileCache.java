@@ -0,0 +1,243 @@
+package com.example.glassstrava.segments;
+
+import android.util.Log;
+
+import com.example.glassstrava.api.StravaClient;
+import com.example.glassstrava.models.Segment;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Segment discovery over fixed geographic tiles.
+ *
+ * The area around the user is covered by tiles on a fixed grid, and each
+ * tile is explored on Strava once and kept in memory and on disk until it
+ * expires. Nearby segments are the merged contents of the surrounding
+ * tiles, so moving around only costs a request when entering new ground.
+ * An expired tile is still used if it can't be refreshed, and a tile that
+ * failed isn't tried again until a delay has passed.
+ */
+public class SegmentTileCache {
+    private static final String TAG = "SegmentTileCache";
+    // About 5.5 km north-south; explore returns at most 10 segments per request
+    public static final double TILE_DEGREES = 0.05;
+    // Tiles overlapping this far around the user count as nearby
+    private static final double NEARBY_DEGREES = 0.045;
+    private static final long TTL = 7L * 24 * 60 * 60 * 1000;
+    // Don't ask for a failed tile again on every fix
+    private static final long RETRY_DELAY = 60 * 1000;
+    private static final int MEMORY_TILES = 64;
+
+    private final File mDir;
+    private final StravaClient mClient;
+    private final String mActivityType;
+    private final LinkedHashMap<Long, Tile> mTiles =
+        new LinkedHashMap<Long, Tile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+                return size() > MEMORY_TILES;
+            }
+        };
+    private final Map<Long, Long> mFailedAt = new HashMap<>();
+    private int mRequestCount = 0;
+
+    private static class Tile {
+        final long fetchedAt;
+        final List<Segment> segments;
+
+        Tile(long fetchedAt, List<Segment> segments) {
+            this.fetchedAt = fetchedAt;
+            this.segments = segments;
+        }
+    }
+
+    /**
+     * @param activityType Strava explore activity type, "running" or "riding"
+     */
+    public SegmentTileCache(File dir, StravaClient client, String activityType) {
+        mDir = dir;
+        mClient = client;
+        mActivityType = activityType;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Could not create " + dir);
+        }
+    }
+
+    /**
+     * Key of the tile containing a position
+     */
+    public static long tileKey(double latitude, double longitude) {
+        return key(row(latitude), column(longitude));
+    }
+
+    /**
+     * Whether {@link #getNearby} would do I/O for a position: some tile near
+     * it isn't in memory or has expired, and hasn't failed too recently to
+     * try again
+     */
+    public synchronized boolean needsFetch(double latitude, double longitude) {
+        long now = now();
+        for (int row = row(latitude - NEARBY_DEGREES); row <= row(latitude + NEARBY_DEGREES); row++) {
+            for (int col = column(longitude - NEARBY_DEGREES);
+                    col <= column(longitude + NEARBY_DEGREES); col++) {
+                long key = key(row, col);
+                Tile tile = mTiles.get(key);
+                if ((tile == null || now - tile.fetchedAt > TTL) && !isWaiting(key, now)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Segments in the tiles around a position, fetching only tiles that
+     * aren't cached or have expired and aren't waiting to be retried. Does
+     * network and disk I/O.
+     */
+    public synchronized List<Segment> getNearby(double latitude, double longitude) {
+        List<Segment> segments = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        for (int row = row(latitude - NEARBY_DEGREES); row <= row(latitude + NEARBY_DEGREES); row++) {
+            for (int col = column(longitude - NEARBY_DEGREES);
+                    col <= column(longitude + NEARBY_DEGREES); col++) {
+                Tile tile = getTile(row, col);
+                if (tile == null) continue;
+                // Segments crossing a tile edge can be returned for both tiles
+                for (Segment segment : tile.segments) {
+                    if (seen.add(segment.id)) {
+                        segments.add(segment);
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Explore requests made so far, for logging
+     */
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    private boolean isWaiting(long key, long now) {
+        Long failedAt = mFailedAt.get(key);
+        return failedAt != null && now - failedAt < RETRY_DELAY;
+    }
+
+    private Tile getTile(int row, int col) {
+        long key = key(row, col);
+        long now = now();
+        Tile tile = mTiles.get(key);
+        if (tile != null && now - tile.fetchedAt <= TTL) {
+            return tile;
+        }
+
+        File file = new File(mDir, row + "_" + col + ".json");
+        if (tile == null) {
+            tile = readTile(file);
+            if (tile != null) {
+                mTiles.put(key, tile);
+                if (now - tile.fetchedAt <= TTL) return tile;
+            }
+        }
+        if (isWaiting(key, now)) return tile;
+
+        String response = fetchTile(row, col);
+        if (response != null) {
+            try {
+                Tile fetched = new Tile(now, parse(response));
+                mTiles.put(key, fetched);
+                mFailedAt.remove(key);
+                StoredResponse.write(file, now, response);
+                return fetched;
+            } catch (JSONException e) {
+                Log.w(TAG, "Bad explore response for tile " + row + "," + col, e);
+            }
+        }
+        mFailedAt.put(key, now);
+        // Stale data beats none while offline
+        return tile;
+    }
+
+    private String fetchTile(int row, int col) {
+        String bounds = String.format(Locale.US, "%.6f,%.6f,%.6f,%.6f",
+            row * TILE_DEGREES, col * TILE_DEGREES,
+            (row + 1) * TILE_DEGREES, (col + 1) * TILE_DEGREES);
+        try {
+            mRequestCount++;
+            StravaClient.Response response = mClient.get("/segments/explore"
+                + "?bounds=" + bounds + "&activity_type=" + mActivityType,
+                StravaClient.PRIORITY_LIVE_SEGMENT);
+            try {
+                if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                    Log.w(TAG, "Explore failed for tile " + row + "," + col + ": "
+                        + response.getCode());
+                    return null;
+                }
+                return response.readString();
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Explore failed for tile " + row + "," + col, e);
+            return null;
+        }
+    }
+
+    private static List<Segment> parse(String response) throws JSONException {
+        JSONArray array = new JSONObject(response).getJSONArray("segments");
+        List<Segment> segments = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            segments.add(Segment.fromJson(array.getJSONObject(i)));
+        }
+        return segments;
+    }
+
+    /**
+     * Tiles are stored as the explore response as received, so new Segment
+     * fields need no migration
+     */
+    private Tile readTile(File file) {
+        StoredResponse stored = StoredResponse.read(file);
+        if (stored == null) return null;
+        try {
+            return new Tile(stored.fetchedAt, parse(stored.body));
+        } catch (JSONException | RuntimeException e) {
+            Log.w(TAG, "Discarding cached tile " + file, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    private static int row(double latitude) {
+        return (int) Math.floor(latitude / TILE_DEGREES);
+    }
+
+    private static int column(double longitude) {
+        return (int) Math.floor(longitude / TILE_DEGREES);
+    }
+
+    private static long key(int row, int col) {
+        return ((long) row << 32) | (col & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.glassstrava.segments;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * An API response kept on disk with the time it was fetched: the time on
+ * the first line, then the response as received, so new model fields need
+ * no migration. Explore tiles and leaderboards are stored this way.
+ */
+class StoredResponse {
+    private static final String TAG = "StoredResponse";
+
+    final long fetchedAt;
+    final String body;
+
+    private StoredResponse(long fetchedAt, String body) {
+        this.fetchedAt = fetchedAt;
+        this.body = body;
+    }
+
+    /**
+     * @return the stored response, or null if there is none or it can't be
+     * read, in which case the file is deleted
+     */
+    static StoredResponse read(File file) {
+        if (!file.exists()) return null;
+        try {
+            String content = readFully(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            int newline = content.indexOf('\n');
+            long fetchedAt = Long.parseLong(content.substring(0, newline));
+            return new StoredResponse(fetchedAt, content.substring(newline + 1));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Discarding " + file, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the file only once the whole response is written
+     */
+    static void write(File file, long fetchedAt, String body) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                out.write(Long.toString(fetchedAt));
+                out.write('\n');
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store " + file, e);
+        }
+    }
+
+    private static String readFully(InputStreamReader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, count);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
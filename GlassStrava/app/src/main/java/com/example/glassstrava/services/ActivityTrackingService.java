@@ -1,35 +1,51 @@
 package com.example.glassstrava.services;
 
 import android.app.Service;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
 import android.os.Binder;
-import android.os.Bundle;
 import android.os.IBinder;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
+import com.example.glassstrava.location.Fix;
+import com.example.glassstrava.location.FixPipeline;
+import com.example.glassstrava.tracking.ActivityInfo;
+import com.example.glassstrava.tracking.MetricsSnapshot;
+import com.example.glassstrava.tracking.TrackBuffer;
+import com.example.glassstrava.tracking.TrackExporter;
+import com.example.glassstrava.tracking.TrackExporters;
+import com.example.glassstrava.tracking.TrackJournal;
+import com.example.glassstrava.tracking.TrackMetrics;
+import com.example.glassstrava.tracking.TrackSimplifier;
 
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.Locale;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * Service for tracking GPS location and activity metrics
+ * Service for tracking GPS location and activity metrics.
+ *
+ * Fixes are filtered, recorded and journaled on a thread of the service's
+ * own, so recording never waits behind navigation or segments. The track
+ * and its state are guarded by the service's lock; the main thread only
+ * holds it briefly to change state or read metrics.
  */
-public class ActivityTrackingService extends Service implements LocationListener {
+public class ActivityTrackingService extends Service implements LocationTrackingService.Consumer {
     private static final String TAG = "ActivityTrackingService";
+    private static final String JOURNAL_FILE = "activity_journal.bin";
+    private static final String UPLOAD_DIR = "uploads";
+    // Simplified tracks stay within 2 m of the raw one and keep a point at least every 10 s
+    private static final double SIMPLIFY_TOLERANCE = 2.0;
+    private static final long SIMPLIFY_MAX_INTERVAL = 10000;
     
     private final IBinder mBinder = new LocalBinder();
-    private LocationManager mLocationManager;
-    private LocationListener mExternalLocationListener;
+    private LocationTrackingService mLocationService;
+    private boolean mLocationServiceBound = false;
     private SharedPreferences mPrefs;
     
     // Tracking state
@@ -39,16 +55,26 @@ public class ActivityTrackingService extends Service implements LocationListener
     private long mStartTime = 0;
     private long mPausedDuration = 0;
     private long mPauseStartTime = 0;
+    private long mStopTime = 0;
     
     // Location tracking
-    private List<Location> mLocationPoints = new ArrayList<>();
-    private Location mLastLocation = null;
-    private double mTotalDistance = 0.0;
-    private double mElevationGain = 0.0;
+    private final TrackBuffer mTrack = new TrackBuffer();
+    private final TrackMetrics mMetrics = new TrackMetrics();
+    private final TrackBuffer mSimplifiedTrack = new TrackBuffer();
+    private final TrackSimplifier mSimplifier = new TrackSimplifier(mTrack, mSimplifiedTrack,
+        SIMPLIFY_TOLERANCE, SIMPLIFY_MAX_INTERVAL);
     
-    public interface LocationListener {
-        void onLocationChanged(Location location);
-    }
+    // Raw fixes are gated and smoothed before they reach the track
+    private final Fix mFix = new Fix();
+    private FixPipeline mFixPipeline = FixPipeline.forActivityType(mActivityType);
+    
+    // Crash recovery journal
+    private File mJournalFile;
+    private TrackJournal mJournal;
+    private boolean mHasRecoveredActivity = false;
+    
+    // Runs the recording pipeline for each fix
+    private final ExecutorService mRecordingExecutor = Executors.newSingleThreadExecutor();
     
     public class LocalBinder extends Binder {
         public ActivityTrackingService getService() {
@@ -56,209 +82,404 @@ public class ActivityTrackingService extends Service implements LocationListener
         }
     }
     
+    private ServiceConnection mLocationConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mLocationService = ((LocationTrackingService.LocalBinder) service).getService();
+            mLocationServiceBound = true;
+            if (mIsTracking) {
+                startLocationUpdates();
+            }
+        }
+        
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mLocationService = null;
+            mLocationServiceBound = false;
+        }
+    };
+    
     @Override
     public void onCreate() {
         super.onCreate();
-        mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        bindService(new Intent(this, LocationTrackingService.class), mLocationConnection,
+            Context.BIND_AUTO_CREATE);
         mPrefs = getSharedPreferences("StravaGlass", MODE_PRIVATE);
+        mJournalFile = new File(getFilesDir(), JOURNAL_FILE);
+        
+        recoverJournal();
     }
     
     @Override
-    public IBinder onBind(Intent intent) {
-        return mBinder;
+    public void onDestroy() {
+        super.onDestroy();
+        synchronized (this) {
+            if (mIsTracking) {
+                stopLocationUpdates();
+            }
+            // Also stops the writer of a recovered activity that was never resumed.
+            // The journal stays on disk so the activity is recovered next time
+            closeJournal();
+        }
+        mRecordingExecutor.shutdown();
+        if (mLocationServiceBound) {
+            unbindService(mLocationConnection);
+            mLocationServiceBound = false;
+        }
+    }
+    
+    /**
+     * Rebuilds an unfinished activity from the journal left behind by a killed process.
+     * The time between the last journal record and recovery is treated as a pause.
+     */
+    private void recoverJournal() {
+        if (!mJournalFile.exists()) return;
+        
+        final long[] lastRecordTime = new long[1];
+        mTrack.clear();
+        mSimplifier.reset();
+        mMetrics.reset();
+        mPausedDuration = 0;
+        mIsPaused = false;
+        mPauseStartTime = 0;
+        mStopTime = 0;
+        
+        try {
+            long validLength = TrackJournal.replay(mJournalFile, new TrackJournal.ReplayListener() {
+                @Override
+                public void onHeader(long startTime, String activityType) {
+                    mStartTime = startTime;
+                    mActivityType = activityType;
+                    lastRecordTime[0] = startTime;
+                }
+                
+                @Override
+                public void onFix(double latitude, double longitude, double altitude,
+                                  long time, float speed, float accuracy) {
+                    mTrack.append(latitude, longitude, altitude, time, speed, accuracy);
+                    mSimplifier.add(mTrack.size() - 1);
+                    mMetrics.addFix(latitude, longitude, altitude, time, speed);
+                    lastRecordTime[0] = time;
+                }
+                
+                @Override
+                public void onPause(long time) {
+                    mIsPaused = true;
+                    mPauseStartTime = time;
+                    mSimplifier.breakSegment();
+                    lastRecordTime[0] = time;
+                }
+                
+                @Override
+                public void onResume(long time) {
+                    if (mIsPaused && mPauseStartTime > 0) {
+                        mPausedDuration += time - mPauseStartTime;
+                    }
+                    mMetrics.breakSegment();
+                    mIsPaused = false;
+                    mPauseStartTime = 0;
+                    lastRecordTime[0] = time;
+                }
+            });
+            
+            if (validLength < 0) {
+                Log.w(TAG, "Discarding unreadable activity journal");
+                mJournalFile.delete();
+                return;
+            }
+            
+            mJournal = TrackJournal.reopen(mJournalFile, validLength);
+            if (!mIsPaused) {
+                // Record the downtime as a pause so a second recovery sees the same state
+                mIsPaused = true;
+                mPauseStartTime = lastRecordTime[0];
+                mJournal.appendPause(mPauseStartTime);
+            }
+            mHasRecoveredActivity = true;
+            
+            Log.d(TAG, "Recovered " + mActivityType + " with " + mTrack.size() +
+                       " points, distance " + mMetrics.getDistance());
+        } catch (IOException e) {
+            Log.e(TAG, "Error recovering activity journal", e);
+            mTrack.clear();
+            mSimplifier.reset();
+            mMetrics.reset();
+        }
     }
     
-    public void setLocationListener(LocationListener listener) {
-        mExternalLocationListener = listener;
+    private void closeJournal() {
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
     }
     
-    public void startTracking(String activityType) {
+    private void deleteJournal() {
+        if (mJournal != null) {
+            mJournal.delete();
+            mJournal = null;
+        } else {
+            mJournalFile.delete();
+        }
+    }
+    
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+    
+    public synchronized void startTracking(String activityType) {
         if (mIsTracking) return;
         
         mIsTracking = true;
-        mIsPaused = false;
-        mActivityType = activityType;
-        mStartTime = System.currentTimeMillis();
-        mPausedDuration = 0;
-        mTotalDistance = 0.0;
-        mElevationGain = 0.0;
-        mLocationPoints.clear();
+        mStopTime = 0;
         
-        // Request location updates
-        try {
-            mLocationManager.requestLocationUpdates(
-                LocationManager.GPS_PROVIDER,
-                1000, // 1 second
-                2,    // 2 meters
-                this
-            );
+        if (mHasRecoveredActivity) {
+            mFixPipeline = FixPipeline.forActivityType(mActivityType);
+            // Continue the recovered activity instead of starting over
+            mHasRecoveredActivity = false;
+            resumeTracking();
+        } else {
+            mIsPaused = false;
+            mActivityType = activityType;
+            mStartTime = System.currentTimeMillis();
+            mPausedDuration = 0;
+            mMetrics.reset();
+            mTrack.clear();
+            mSimplifier.reset();
+            mFixPipeline = FixPipeline.forActivityType(mActivityType);
             
-            // Also use network provider as backup
-            mLocationManager.requestLocationUpdates(
-                LocationManager.NETWORK_PROVIDER,
-                2000, // 2 seconds
-                5,    // 5 meters
-                this
-            );
-        } catch (SecurityException e) {
-            Log.e(TAG, "Location permission denied", e);
+            try {
+                mJournal = TrackJournal.create(mJournalFile, mStartTime, mActivityType);
+            } catch (IOException e) {
+                // Tracking still works, the activity just won't survive a crash
+                Log.e(TAG, "Could not create activity journal", e);
+            }
         }
         
-        Log.d(TAG, "Started tracking " + activityType);
+        startLocationUpdates();
+        
+        Log.d(TAG, "Started tracking " + mActivityType);
     }
     
-    public void pauseTracking() {
+    /**
+     * Subscribes to the shared location service, or does so once it is bound
+     */
+    private void startLocationUpdates() {
+        if (mLocationService != null) {
+            mLocationService.addConsumer(this, 0, mRecordingExecutor);
+            mLocationService.setPaused(this, mIsPaused);
+        }
+    }
+    
+    private void stopLocationUpdates() {
+        if (mLocationService != null) {
+            mLocationService.removeConsumer(this);
+        }
+    }
+    
+    public synchronized void pauseTracking() {
         mIsPaused = true;
         mPauseStartTime = System.currentTimeMillis();
+        mSimplifier.breakSegment();
+        if (mLocationService != null) {
+            mLocationService.setPaused(this, true);
+        }
+        if (mJournal != null) {
+            mJournal.appendPause(mPauseStartTime);
+        }
     }
     
-    public void resumeTracking() {
+    public synchronized void resumeTracking() {
+        long now = System.currentTimeMillis();
         if (mIsPaused && mPauseStartTime > 0) {
-            mPausedDuration += System.currentTimeMillis() - mPauseStartTime;
+            mPausedDuration += now - mPauseStartTime;
+        }
+        if (mJournal != null) {
+            mJournal.appendResume(now);
         }
+        // Don't count distance covered while paused
+        mMetrics.breakSegment();
+        mFixPipeline.reset();
         mIsPaused = false;
         mPauseStartTime = 0;
+        if (mLocationService != null) {
+            mLocationService.setPaused(this, false);
+        }
     }
     
-    public void stopTracking() {
+    public synchronized void stopTracking() {
         mIsTracking = false;
-        mLocationManager.removeUpdates(this);
+        stopLocationUpdates();
         
+        // Close the last pause so getElapsedTime doesn't subtract it a second time
+        mStopTime = System.currentTimeMillis();
         if (mIsPaused && mPauseStartTime > 0) {
-            mPausedDuration += System.currentTimeMillis() - mPauseStartTime;
+            mPausedDuration += mStopTime - mPauseStartTime;
         }
+        mIsPaused = false;
+        mPauseStartTime = 0;
+        
+        // Flush the journal; it is deleted once the activity is saved or discarded
+        closeJournal();
         
-        Log.d(TAG, "Stopped tracking. Points: " + mLocationPoints.size() + 
-                   ", Distance: " + mTotalDistance);
+        Log.d(TAG, "Stopped tracking. Points: " + mTrack.size() + 
+                   ", Distance: " + mMetrics.getDistance() +
+                   ", Rejected fixes: " + mFixPipeline.getRejectedCount());
     }
     
-    public void setActivityType(String type) {
+    public synchronized void setActivityType(String type) {
         mActivityType = type;
     }
     
     @Override
-    public void onLocationChanged(Location location) {
+    public synchronized void onLocationChanged(Location location) {
         if (!mIsTracking || mIsPaused) return;
         
-        // Add to points list
-        mLocationPoints.add(location);
+        // Drop inaccurate and impossible fixes, smooth the rest
+        mFix.set(location);
+        if (!mFixPipeline.process(mFix)) return;
         
-        // Calculate metrics
-        if (mLastLocation != null) {
-            float distance = mLastLocation.distanceTo(location);
-            mTotalDistance += distance;
-            
-            // Calculate elevation gain
-            if (location.hasAltitude() && mLastLocation.hasAltitude()) {
-                double elevationDelta = location.getAltitude() - mLastLocation.getAltitude();
-                if (elevationDelta > 0) {
-                    mElevationGain += elevationDelta;
-                }
-            }
-        }
-        
-        mLastLocation = location;
-        
-        // Notify external listener
-        if (mExternalLocationListener != null) {
-            mExternalLocationListener.onLocationChanged(location);
+        // Add to track buffer and journal
+        mTrack.append(mFix.latitude, mFix.longitude, mFix.altitude, mFix.time,
+            mFix.speed, mFix.accuracy);
+        int index = mTrack.size() - 1;
+        mSimplifier.add(index);
+        mMetrics.addFix(mFix.latitude, mFix.longitude, mFix.altitude, mFix.time, mFix.speed);
+        if (mJournal != null) {
+            mJournal.appendFix(mTrack, index);
         }
     }
     
-    @Override
-    public void onStatusChanged(String provider, int status, Bundle extras) {}
-    
-    @Override
-    public void onProviderEnabled(String provider) {}
-    
-    @Override
-    public void onProviderDisabled(String provider) {}
-    
-    public void saveActivity() {
-        if (mLocationPoints.isEmpty()) {
+    public synchronized void saveActivity() {
+        if (mTrack.isEmpty()) {
             Log.w(TAG, "No location points to save");
+            // Nothing to recover either; a kept journal would come back as a ghost activity
+            mHasRecoveredActivity = false;
+            deleteJournal();
             return;
         }
         
         // Calculate elapsed time (excluding pauses)
-        long elapsedTime = System.currentTimeMillis() - mStartTime - mPausedDuration;
+        long elapsedTime = getElapsedTime();
+        
+        ActivityInfo info = new ActivityInfo();
+        info.name = mActivityType + " on Glass";
+        info.type = mActivityType;
+        info.startTime = mStartTime;
+        info.elapsedTime = elapsedTime;
+        info.distance = mMetrics.getDistance();
+        info.elevationGain = mMetrics.getElevationGain();
+        info.deviceName = "Google Glass";
+        info.description = "Recorded with Glass Strava app";
         
         try {
-            // Create activity JSON
-            JSONObject activity = new JSONObject();
-            activity.put("name", mActivityType + " on Glass");
-            activity.put("type", mActivityType);
-            activity.put("start_date_local", 
-                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US)
-                    .format(new Date(mStartTime)));
-            activity.put("elapsed_time", elapsedTime / 1000); // Convert to seconds
-            activity.put("distance", mTotalDistance);
-            activity.put("total_elevation_gain", mElevationGain);
-            activity.put("device_name", "Google Glass");
-            activity.put("description", "Recorded with Glass Strava app");
-            
-            // Add GPS track if available
-            if (!mLocationPoints.isEmpty()) {
-                JSONArray latlng = new JSONArray();
-                JSONArray time = new JSONArray();
-                JSONArray altitude = new JSONArray();
-                
-                for (int i = 0; i < mLocationPoints.size(); i++) {
-                    Location loc = mLocationPoints.get(i);
-                    
-                    // Latitude, Longitude array
-                    JSONArray point = new JSONArray();
-                    point.put(loc.getLatitude());
-                    point.put(loc.getLongitude());
-                    latlng.put(point);
-                    
-                    // Time from start in seconds
-                    time.put((loc.getTime() - mStartTime) / 1000);
-                    
-                    // Altitude if available
-                    if (loc.hasAltitude()) {
-                        altitude.put(loc.getAltitude());
-                    }
-                }
-                
-                activity.put("latlng", latlng);
-                activity.put("time", time);
-                if (altitude.length() > 0) {
-                    activity.put("altitude", altitude);
-                }
+            // Stream the activity to a file; only its path goes through the Intent
+            File uploadDir = new File(getFilesDir(), UPLOAD_DIR);
+            if (!uploadDir.exists() && !uploadDir.mkdirs()) {
+                throw new IOException("Could not create " + uploadDir);
             }
+            // FIT unless a format has been set by hand for debugging; there is no setting for it
+            TrackExporter exporter = TrackExporters.forFormat(
+                mPrefs.getString("upload_format", TrackExporters.DEFAULT_FORMAT));
+            File activityFile = new File(uploadDir,
+                "activity_" + mStartTime + "." + exporter.getDataType());
+            TrackExporters.writeToFile(exporter, info, getExportTrack(), activityFile);
             
             // Queue for upload via StravaApiService
             Intent uploadIntent = new Intent(this, StravaApiService.class);
             uploadIntent.setAction("UPLOAD_ACTIVITY");
-            uploadIntent.putExtra("activity_json", activity.toString());
+            uploadIntent.putExtra("activity_file", activityFile.getAbsolutePath());
+            uploadIntent.putExtra("format", exporter.getDataType());
             startService(uploadIntent);
             
             Log.d(TAG, "Activity queued for upload to Strava");
             
-        } catch (Exception e) {
-            Log.e(TAG, "Error creating activity JSON", e);
+            // The upload queue owns the activity now
+            deleteJournal();
+            
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing activity file", e);
+        }
+    }
+    
+    /**
+     * Track to upload: the simplified one, unless "keep_all_fixes" is set to
+     * upload every fix. Distance and elevation always come from the raw track.
+     */
+    private TrackBuffer getExportTrack() {
+        if (mPrefs.getBoolean("keep_all_fixes", false)) {
+            return mTrack;
+        }
+        mSimplifier.flush();
+        Log.d(TAG, "Simplified track from " + mTrack.size() + " to " +
+                   mSimplifiedTrack.size() + " points");
+        return mSimplifiedTrack;
+    }
+    
+    /**
+     * Drops the current activity and its journal without saving.
+     */
+    public synchronized void discardActivity() {
+        if (mIsTracking) {
+            stopTracking();
         }
+        mHasRecoveredActivity = false;
+        deleteJournal();
+        mTrack.clear();
+        mSimplifier.reset();
     }
     
     // Getters for current metrics
-    public double getTotalDistance() {
-        return mTotalDistance;
+    public synchronized double getTotalDistance() {
+        return mMetrics.getDistance();
+    }
+    
+    public synchronized double getElevationGain() {
+        return mMetrics.getElevationGain();
+    }
+    
+    /**
+     * Time since the activity started, excluding pauses, in millis
+     */
+    public synchronized long getElapsedTime() {
+        if (mStartTime == 0) return 0;
+        long end;
+        if (mIsPaused && mPauseStartTime > 0) {
+            end = mPauseStartTime;
+        } else if (mStopTime > 0) {
+            // Stopped activities don't keep ageing while the summary is shown
+            end = mStopTime;
+        } else {
+            end = System.currentTimeMillis();
+        }
+        return Math.max(0, end - mStartTime - mPausedDuration);
+    }
+    
+    /**
+     * Immutable snapshot of the current metrics, cheap enough to read every UI tick
+     */
+    public synchronized MetricsSnapshot getMetricsSnapshot() {
+        return mMetrics.snapshot(getElapsedTime());
+    }
+    
+    public synchronized int getLocationPointCount() {
+        return mTrack.size();
     }
     
-    public double getElevationGain() {
-        return mElevationGain;
+    public synchronized boolean hasRecoveredActivity() {
+        return mHasRecoveredActivity;
     }
     
-    public int getLocationPointCount() {
-        return mLocationPoints.size();
+    public synchronized String getActivityType() {
+        return mActivityType;
     }
     
-    public boolean isTracking() {
+    public synchronized boolean isTracking() {
         return mIsTracking;
     }
     
-    public boolean isPaused() {
+    public synchronized boolean isPaused() {
         return mIsPaused;
     }
 }
\ No newline at end of file
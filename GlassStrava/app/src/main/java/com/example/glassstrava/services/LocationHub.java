@@ -0,0 +1,115 @@
+package com.example.glassstrava.services;
+
+import android.location.Location;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The consumers of {@link LocationTrackingService} and how each one is fed.
+ *
+ * Every accepted fix is offered to each consumer subject to its own rate
+ * limit. Consumers with an executor run there, so a slow one can't hold up
+ * the others or the main thread; if one falls behind it only gets the
+ * newest fix. Consumers can also mark themselves paused; the hub only
+ * counts as paused while every consumer is. Called on the main thread.
+ */
+class LocationHub {
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * One registered consumer with its rate limit and delivery executor
+     */
+    private static class Subscription implements Runnable {
+        final LocationTrackingService.Consumer consumer;
+        final long minInterval;
+        final Executor executor;
+        long lastDeliveredTime = Long.MIN_VALUE;
+        boolean paused = false;
+        // Latest fix not yet picked up by the executor
+        final AtomicReference<Location> pending = new AtomicReference<>();
+
+        Subscription(LocationTrackingService.Consumer consumer, long minInterval,
+                     Executor executor) {
+            this.consumer = consumer;
+            this.minInterval = minInterval;
+            this.executor = executor;
+        }
+
+        void deliver(Location location) {
+            if (lastDeliveredTime != Long.MIN_VALUE
+                    && location.getTime() - lastDeliveredTime < minInterval) {
+                return;
+            }
+            lastDeliveredTime = location.getTime();
+
+            if (executor == null) {
+                consumer.onLocationChanged(location);
+            } else if (pending.getAndSet(location) == null) {
+                // Only schedule when nothing is queued; a busy consumer skips to the newest fix
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Location location = pending.getAndSet(null);
+            if (location != null) {
+                consumer.onLocationChanged(location);
+            }
+        }
+    }
+
+    /**
+     * Replaces any earlier registration of {@code consumer}
+     */
+    void add(LocationTrackingService.Consumer consumer, long minInterval, Executor executor) {
+        remove(consumer);
+        mSubscriptions.add(new Subscription(consumer, minInterval, executor));
+    }
+
+    void remove(LocationTrackingService.Consumer consumer) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.consumer == consumer) {
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Marks {@code consumer} as not needing fixes for now. Ignored if it
+     * isn't registered.
+     */
+    void setPaused(LocationTrackingService.Consumer consumer, boolean paused) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.consumer == consumer) {
+                subscription.paused = paused;
+            }
+        }
+    }
+
+    /**
+     * True if there are consumers and all of them are paused
+     */
+    boolean isPaused() {
+        for (Subscription subscription : mSubscriptions) {
+            if (!subscription.paused) return false;
+        }
+        return !mSubscriptions.isEmpty();
+    }
+
+    void clear() {
+        mSubscriptions.clear();
+    }
+
+    boolean isEmpty() {
+        return mSubscriptions.isEmpty();
+    }
+
+    void deliver(Location location) {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.deliver(location);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.glassstrava.services;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.example.glassstrava.location.AccuracyGate;
+import com.example.glassstrava.location.Fix;
+import com.example.glassstrava.location.FixPipeline;
+import com.example.glassstrava.location.ProviderArbiter;
+import com.example.glassstrava.location.SamplingController;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Owns the one location subscription shared by all features.
+ *
+ * Recording, navigation and segments register as consumers instead of
+ * requesting updates themselves. Each fix is arbitrated between providers
+ * and accuracy-gated once here, then fanned out to every consumer subject
+ * to its own rate limit and on its own executor.
+ *
+ * The request rate is chosen by a {@link SamplingController} from speed,
+ * upcoming turns or segments and whether every consumer is paused, and is
+ * only re-requested when it changes.
+ */
+public class LocationTrackingService extends Service implements LocationListener {
+
+    private static final String TAG = "LocationTracking";
+    // Network fixes only bridge GPS outages, so they're requested slowly
+    private static final long NETWORK_INTERVAL = 10000;
+    private static final float NETWORK_MIN_DISTANCE = 10;
+    // Network fixes are dropped while GPS has reported within two GPS
+    // intervals, and never less than this
+    private static final long MIN_GPS_FRESHNESS = 5000;
+    // Loose enough for coarse consumers; recording applies its own, stricter gate
+    private static final float MAX_ACCURACY = 100.0f;
+
+    private final IBinder mBinder = new LocalBinder();
+    private final LocationHub mHub = new LocationHub();
+    private final SamplingController mSampling = new SamplingController();
+    private final Fix mFix = new Fix();
+    private final ProviderArbiter mArbiter = new ProviderArbiter(MIN_GPS_FRESHNESS);
+    private final FixPipeline mPipeline = new FixPipeline(mArbiter, new AccuracyGate(MAX_ACCURACY));
+    private LocationManager mLocationManager;
+    private Location mLastLocation;
+    private boolean mSubscribed = false;
+
+    public interface Consumer {
+        void onLocationChanged(Location location);
+    }
+
+    public class LocalBinder extends Binder {
+        public LocationTrackingService getService() {
+            return LocationTrackingService.this;
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHub.clear();
+        unsubscribe();
+    }
+
+    /**
+     * Delivers every fix to {@code consumer} directly on the main thread.
+     * Only for consumers that do little per fix; anything heavier should
+     * have an executor of its own.
+     */
+    public void addConsumer(Consumer consumer) {
+        addConsumer(consumer, 0, null);
+    }
+
+    /**
+     * Starts delivering fixes to {@code consumer}.
+     *
+     * @param minInterval minimum time between delivered fixes in millis, 0 for every fix
+     * @param executor    runs the consumer, or null to call it inline on the main
+     *                    thread. Consumers with an executor can't hold up anyone
+     *                    else; if they fall behind they get the newest fix only.
+     */
+    public void addConsumer(Consumer consumer, long minInterval, Executor executor) {
+        mHub.add(consumer, minInterval, executor);
+        if (!mSubscribed) {
+            subscribe();
+        }
+        updatePaused();
+    }
+
+    public void removeConsumer(Consumer consumer) {
+        mHub.remove(consumer);
+        if (mHub.isEmpty()) {
+            unsubscribe();
+        }
+        updatePaused();
+    }
+
+    /**
+     * Reports the distance to the next turn or segment boundary, NaN if none.
+     * Sampling speeds up as the user approaches it.
+     */
+    public void setEventDistance(int event, double meters) {
+        mSampling.setEventDistance(event, meters);
+        if (Double.isNaN(meters)) {
+            // Event gone; don't wait for the slowdown delay
+            applyRate();
+        }
+    }
+
+    /**
+     * Tells the service {@code consumer} doesn't need fixes for now, e.g.
+     * while a recording is paused. Sampling only slows down for it while
+     * no other consumer is active.
+     */
+    public void setPaused(Consumer consumer, boolean paused) {
+        mHub.setPaused(consumer, paused);
+        updatePaused();
+    }
+
+    /**
+     * Most recent accepted fix, possibly stale; null if none yet
+     */
+    public Location getLastLocation() {
+        if (mLastLocation == null) {
+            try {
+                mLastLocation = mLocationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+            } catch (SecurityException e) {
+                Log.e(TAG, "Location permission denied", e);
+            }
+        }
+        return mLastLocation;
+    }
+
+    public SamplingController.Rate getRate() {
+        return mSampling.getRate();
+    }
+
+    private void updatePaused() {
+        boolean paused = mHub.isPaused();
+        if (paused != mSampling.isPaused()) {
+            mSampling.setPaused(paused);
+            applyRate();
+        }
+    }
+
+    private void applyRate() {
+        SamplingController.Rate previous = mSampling.getRate();
+        mSampling.applyNow();
+        if (mSubscribed && mSampling.getRate() != previous) {
+            subscribe();
+        }
+    }
+
+    private void subscribe() {
+        SamplingController.Rate rate = mSampling.getRate();
+        // Re-requesting with the same listener replaces the previous GPS request
+        requestUpdates(LocationManager.GPS_PROVIDER, rate.intervalMillis, rate.minDistance);
+        // A slower GPS rate mustn't let network fixes in between GPS fixes
+        mArbiter.setGpsFreshness(Math.max(MIN_GPS_FRESHNESS, 2 * rate.intervalMillis));
+        if (!mSubscribed) {
+            requestUpdates(LocationManager.NETWORK_PROVIDER, NETWORK_INTERVAL, NETWORK_MIN_DISTANCE);
+        }
+        mSubscribed = true;
+        Log.d(TAG, "Sampling at " + rate);
+    }
+
+    private void requestUpdates(String provider, long interval, float minDistance) {
+        try {
+            mLocationManager.requestLocationUpdates(provider, interval, minDistance, this);
+        } catch (SecurityException e) {
+            Log.e(TAG, "Location permission denied", e);
+        } catch (IllegalArgumentException e) {
+            // Provider not present on this device
+            Log.w(TAG, "Location provider " + provider + " unavailable");
+        }
+    }
+
+    private void unsubscribe() {
+        if (mSubscribed) {
+            mLocationManager.removeUpdates(this);
+            mSubscribed = false;
+        }
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        mFix.set(location);
+        if (!mPipeline.process(mFix)) return;
+        mLastLocation = location;
+
+        if (mFix.fromGps && mSampling.update(mFix.speed)) {
+            subscribe();
+        }
+
+        mHub.deliver(location);
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+    @Override
+    public void onProviderEnabled(String provider) {}
+
+    @Override
+    public void onProviderDisabled(String provider) {}
+}
@@ -0,0 +1,393 @@
+package com.example.glassstrava.services;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import com.example.glassstrava.BuildConfig;
+import com.example.glassstrava.api.RateLimitedException;
+import com.example.glassstrava.api.StravaClient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Uploads recorded activities to Strava from a durable on-disk queue.
+ *
+ * All work runs on the single IntentService worker thread. Each UPLOAD_ACTIVITY
+ * or SYNC_ACTIVITIES intent drains every job that is due, so several pending
+ * activities go up in one sync pass. Failed jobs are retried with exponential
+ * backoff via an alarm, and the queue picks up where it left off after a restart.
+ * Jobs that still fail are kept in the queue's failed/ directory until a
+ * RETRY_FAILED_ACTIVITIES intent, sent by a manual sync, queues them again.
+ * Their count is published in preferences after every pass, so the UI never
+ * has to look at the queue itself.
+ */
+public class StravaApiService extends IntentService {
+    private static final String TAG = "StravaApiService";
+
+    public static final String ACTION_UPLOAD_ACTIVITY = "UPLOAD_ACTIVITY";
+    public static final String ACTION_SYNC_ACTIVITIES = "SYNC_ACTIVITIES";
+    public static final String ACTION_RETRY_FAILED = "RETRY_FAILED_ACTIVITIES";
+    public static final String EXTRA_ACTIVITY_FILE = "activity_file";
+    public static final String EXTRA_FORMAT = "format";
+    // Number of uploads given up on, written after every pass
+    public static final String PREF_FAILED_UPLOADS = "failed_uploads";
+
+    public static final String QUEUE_DIR = "upload_queue";
+    private static final String TOKEN_URL = "https://www.strava.com/oauth/token";
+
+    private static final long BACKOFF_BASE_MS = 30 * 1000;       // 30 seconds
+    private static final long BACKOFF_MAX_MS = 60 * 60 * 1000;   // 1 hour
+    private static final int MAX_ATTEMPTS = 12;
+    // Strava's short rate limit window
+    private static final long RATE_LIMIT_WINDOW_MS = 15 * 60 * 1000;
+
+    // Outcome of a single upload attempt
+    private static final int RESULT_OK = 0;
+    private static final int RESULT_RETRY = 1;
+    private static final int RESULT_PERMANENT_FAILURE = 2;
+    // Held back for the rate limit; not a failed attempt
+    private static final int RESULT_DEFERRED = 3;
+    // The access token was refused and needs refreshing; not a failed attempt
+    private static final int RESULT_UNAUTHORIZED = 4;
+
+    private final Random mRandom = new Random();
+    private SharedPreferences mPrefs;
+    private StravaClient mClient;
+    private UploadQueue mQueue;
+    private String mTokenUrl;
+    // When a deferred upload may be tried again
+    private long mDeferredUntil;
+
+    public StravaApiService() {
+        super(TAG);
+        // Re-run an intent that was in flight if the process gets killed
+        setIntentRedelivery(true);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        init(getSharedPreferences("StravaGlass", MODE_PRIVATE), StravaClient.getInstance(this),
+            new UploadQueue(new File(getFilesDir(), QUEUE_DIR)), TOKEN_URL);
+    }
+
+    /**
+     * Sets up what onCreate would from the context, e.g. to talk to a stand-in server
+     */
+    void init(SharedPreferences prefs, StravaClient client, UploadQueue queue, String tokenUrl) {
+        mPrefs = prefs;
+        mClient = client;
+        mQueue = queue;
+        mTokenUrl = tokenUrl;
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null) return;
+
+        if (ACTION_UPLOAD_ACTIVITY.equals(intent.getAction())) {
+            String path = intent.getStringExtra(EXTRA_ACTIVITY_FILE);
+            String format = intent.getStringExtra(EXTRA_FORMAT);
+            if (path != null) {
+                enqueue(new File(path), format != null ? format : "json");
+            }
+        } else if (ACTION_RETRY_FAILED.equals(intent.getAction())) {
+            try {
+                int count = mQueue.retryFailed();
+                if (count > 0) Log.d(TAG, "Retrying " + count + " failed uploads");
+            } catch (IOException e) {
+                Log.e(TAG, "Could not requeue failed uploads", e);
+            }
+        }
+
+        // Both actions end in a sync pass over everything that is due
+        syncPending();
+        mPrefs.edit().putInt(PREF_FAILED_UPLOADS, mQueue.getFailedJobs().size()).apply();
+    }
+
+    private void enqueue(File activityFile, String format) {
+        if (!activityFile.exists()) {
+            Log.w(TAG, "Activity file missing, not queued: " + activityFile);
+            return;
+        }
+        // A redelivered intent must not queue the same activity twice
+        for (UploadQueue.Job job : mQueue.getJobs()) {
+            if (job.activityFile.equals(activityFile)) return;
+        }
+        try {
+            mQueue.enqueue(activityFile, format);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not queue activity " + activityFile, e);
+        }
+    }
+
+    private void syncPending() {
+        List<UploadQueue.Job> jobs = mQueue.getJobs();
+        if (jobs.isEmpty()) {
+            cancelRetry();
+            return;
+        }
+
+        if (mPrefs.getString("strava_access_token", null) == null) {
+            // Nothing can go up until the user connects; a manual sync will retry
+            Log.w(TAG, jobs.size() + " activities waiting for Strava authentication");
+            return;
+        }
+
+        long now = now();
+        long nextRetry = Long.MAX_VALUE;
+        boolean online = isOnline();
+        // Refresh an expired token up front rather than wasting an upload on it
+        boolean refreshed = false;
+        long expiresAt = mPrefs.getLong("strava_token_expires_at", 0) * 1000;
+        if (online && expiresAt > 0 && expiresAt <= now) {
+            refreshed = true;
+            refreshAccessToken();
+        }
+
+        for (UploadQueue.Job job : jobs) {
+            if (!online || job.nextAttemptTime > now) {
+                nextRetry = Math.min(nextRetry,
+                    Math.max(job.nextAttemptTime, now + BACKOFF_BASE_MS));
+                continue;
+            }
+
+            int result = upload(job);
+            if (result == RESULT_UNAUTHORIZED && !refreshed) {
+                // Once per pass, so a refused refresh token can't loop
+                refreshed = true;
+                if (refreshAccessToken()) {
+                    result = upload(job);
+                }
+            }
+            if (result == RESULT_UNAUTHORIZED) {
+                // Left as it is until the user signs in again; a manual sync will retry
+                Log.w(TAG, "Strava refused the access token, waiting for authentication");
+                nextRetry = Long.MAX_VALUE;
+                break;
+            } else if (result == RESULT_DEFERRED) {
+                job.nextAttemptTime = mDeferredUntil;
+                nextRetry = Math.min(nextRetry, job.nextAttemptTime);
+                try {
+                    mQueue.save(job);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not update job " + job.id, e);
+                }
+            } else if (result == RESULT_OK) {
+                Log.d(TAG, "Uploaded activity " + job.id);
+                mQueue.complete(job);
+            } else if (result == RESULT_PERMANENT_FAILURE || job.attempts + 1 >= MAX_ATTEMPTS) {
+                Log.e(TAG, "Giving up on activity " + job.id + " after " +
+                           (job.attempts + 1) + " attempts, kept for a manual retry");
+                mQueue.fail(job);
+            } else {
+                job.attempts++;
+                job.nextAttemptTime = now() + backoffDelay(job.attempts);
+                nextRetry = Math.min(nextRetry, job.nextAttemptTime);
+                try {
+                    mQueue.save(job);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not update job " + job.id, e);
+                }
+            }
+        }
+
+        if (nextRetry != Long.MAX_VALUE) {
+            scheduleRetry(nextRetry);
+        } else {
+            cancelRetry();
+        }
+    }
+
+    private int upload(UploadQueue.Job job) {
+        final File file = job.activityFile;
+        if (!file.exists()) {
+            Log.w(TAG, "Activity file for job " + job.id + " is gone");
+            return RESULT_PERMANENT_FAILURE;
+        }
+
+        try {
+            String path;
+            String contentType;
+            final byte[] prefix;
+            final byte[] suffix;
+            if ("json".equals(job.format)) {
+                // Legacy JSON activities go to the create-activity endpoint as-is
+                path = "/activities";
+                contentType = "application/json";
+                prefix = new byte[0];
+                suffix = new byte[0];
+            } else {
+                // FIT/GPX/TCX files go through the upload endpoint as multipart form data
+                String boundary = "GlassStravaBoundary" + job.id;
+                path = "/uploads";
+                contentType = "multipart/form-data; boundary=" + boundary;
+                prefix = ("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"data_type\"\r\n\r\n"
+                    + job.format + "\r\n"
+                    + "--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"external_id\"\r\n\r\n"
+                    + file.getName() + "\r\n"
+                    + "--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"file\"; filename=\""
+                    + file.getName() + "\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes("US-ASCII");
+                suffix = ("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII");
+            }
+
+            // Stream the activity file as the request body
+            StravaClient.Response response = mClient.post(path, StravaClient.PRIORITY_BACKGROUND,
+                contentType, prefix.length + file.length() + suffix.length, new StravaClient.Body() {
+                    @Override
+                    public void writeTo(OutputStream stream) throws IOException {
+                        OutputStream out = new BufferedOutputStream(stream, 8192);
+                        InputStream in = new FileInputStream(file);
+                        try {
+                            out.write(prefix);
+                            byte[] buffer = new byte[8192];
+                            int read;
+                            while ((read = in.read(buffer)) != -1) {
+                                out.write(buffer, 0, read);
+                            }
+                            out.write(suffix);
+                            out.flush();
+                        } finally {
+                            in.close();
+                        }
+                    }
+                });
+            try {
+                int result = classifyResponse(response.getCode());
+                if (result == RESULT_DEFERRED) {
+                    // Strava's windows reset on the quarter hour
+                    long now = now();
+                    mDeferredUntil = (now / RATE_LIMIT_WINDOW_MS + 1) * RATE_LIMIT_WINDOW_MS;
+                    Log.d(TAG, "Upload of job " + job.id + " rate limited by Strava");
+                }
+                return result;
+            } finally {
+                response.close();
+            }
+        } catch (RateLimitedException e) {
+            Log.d(TAG, "Upload of job " + job.id + " deferred: " + e.getMessage());
+            mDeferredUntil = e.getRetryAt();
+            return RESULT_DEFERRED;
+        } catch (IOException e) {
+            Log.w(TAG, "Upload of job " + job.id + " failed", e);
+            return RESULT_RETRY;
+        }
+    }
+
+    private static int classifyResponse(int responseCode) {
+        if (responseCode >= 200 && responseCode < 300) {
+            return RESULT_OK;
+        }
+        if (responseCode == 429) {
+            return RESULT_DEFERRED;
+        }
+        if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            return RESULT_UNAUTHORIZED;
+        }
+        // Server errors and timeouts are worth retrying
+        if (responseCode >= 500 || responseCode == 408) {
+            return RESULT_RETRY;
+        }
+        Log.e(TAG, "Strava rejected activity with HTTP " + responseCode);
+        return RESULT_PERMANENT_FAILURE;
+    }
+
+    /**
+     * Swaps the refresh token for a new access token and stores both
+     *
+     * @return whether a new access token was stored
+     */
+    private boolean refreshAccessToken() {
+        String refreshToken = mPrefs.getString("strava_refresh_token", null);
+        if (refreshToken == null) return false;
+
+        try {
+            String postData = "client_id=" + BuildConfig.STRAVA_CLIENT_ID
+                + "&client_secret=" + BuildConfig.STRAVA_CLIENT_SECRET
+                + "&refresh_token=" + refreshToken
+                + "&grant_type=refresh_token";
+            StravaClient.Response response = mClient.post(mTokenUrl,
+                StravaClient.PRIORITY_BACKGROUND, "application/x-www-form-urlencoded",
+                postData.getBytes("UTF-8"));
+            String body;
+            try {
+                if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                    Log.w(TAG, "Token refresh refused with HTTP " + response.getCode());
+                    return false;
+                }
+                body = response.readString();
+            } finally {
+                response.close();
+            }
+
+            JSONObject json = new JSONObject(body);
+            // Committed before the retried upload reads it
+            mPrefs.edit()
+                .putString("strava_access_token", json.getString("access_token"))
+                .putString("strava_refresh_token", json.getString("refresh_token"))
+                .putLong("strava_token_expires_at", json.getLong("expires_at"))
+                .commit();
+            Log.d(TAG, "Refreshed Strava access token");
+            return true;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Could not refresh access token", e);
+            return false;
+        }
+    }
+
+    private long backoffDelay(int attempts) {
+        long delay = BACKOFF_BASE_MS << Math.min(attempts - 1, 20);
+        delay = Math.min(delay, BACKOFF_MAX_MS);
+        // Up to 20% jitter so retries after an outage don't all line up
+        return delay + (long) (delay * 0.2 * mRandom.nextDouble());
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    boolean isOnline() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm != null ? cm.getActiveNetworkInfo() : null;
+        return info != null && info.isConnected();
+    }
+
+    private PendingIntent retryIntent() {
+        Intent intent = new Intent(this, StravaApiService.class);
+        intent.setAction(ACTION_SYNC_ACTIVITIES);
+        return PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    void scheduleRetry(long triggerAtMillis) {
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.RTC, triggerAtMillis, retryIntent());
+        Log.d(TAG, "Next sync pass in " + (triggerAtMillis - now()) / 1000 + " s");
+    }
+
+    void cancelRetry() {
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(retryIntent());
+    }
+}
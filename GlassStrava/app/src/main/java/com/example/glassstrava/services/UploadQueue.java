@@ -0,0 +1,212 @@
+package com.example.glassstrava.services;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Durable queue of activity uploads.
+ *
+ * Each job is a small JSON file that points at its activity file, so the
+ * queue survives process restarts. A job that can't be uploaded is moved to
+ * failed/ with its activity file left in place, until the user retries it.
+ * Jobs are only ever touched from the upload worker thread.
+ */
+public class UploadQueue {
+    private static final String TAG = "UploadQueue";
+    private static final String JOB_SUFFIX = ".job";
+    private static final String FAILED_DIR = "failed";
+
+    /**
+     * A pending upload and its retry state
+     */
+    public static class Job {
+        public String id;
+        public File activityFile;
+        public String format;
+        public int attempts;
+        public long nextAttemptTime;
+    }
+
+    private final File mDir;
+    private final File mFailedDir;
+
+    public UploadQueue(File dir) {
+        mDir = dir;
+        mFailedDir = new File(dir, FAILED_DIR);
+    }
+
+    public Job enqueue(File activityFile, String format) throws IOException {
+        ensureDir();
+
+        Job job = new Job();
+        job.id = String.valueOf(System.currentTimeMillis());
+        job.activityFile = activityFile;
+        job.format = format;
+        job.attempts = 0;
+        job.nextAttemptTime = 0;
+
+        // Two jobs queued within the same millisecond still need distinct files
+        while (jobFile(job.id).exists() || new File(mFailedDir, job.id + JOB_SUFFIX).exists()) {
+            job.id = String.valueOf(Long.parseLong(job.id) + 1);
+        }
+
+        save(job);
+        return job;
+    }
+
+    /**
+     * Returns all queued jobs, oldest first. Unreadable job files are dropped.
+     */
+    public List<Job> getJobs() {
+        return loadJobs(mDir);
+    }
+
+    /**
+     * Jobs given up on, oldest first
+     */
+    public List<Job> getFailedJobs() {
+        return loadJobs(mFailedDir);
+    }
+
+    private List<Job> loadJobs(File dir) {
+        List<Job> jobs = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) return jobs;
+
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!file.getName().endsWith(JOB_SUFFIX)) continue;
+            try {
+                jobs.add(load(file));
+            } catch (Exception e) {
+                Log.w(TAG, "Dropping unreadable job " + file.getName(), e);
+                file.delete();
+            }
+        }
+        return jobs;
+    }
+
+    public void save(Job job) throws IOException {
+        ensureDir();
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("id", job.id);
+            json.put("file", job.activityFile.getAbsolutePath());
+            json.put("format", job.format);
+            json.put("attempts", job.attempts);
+            json.put("next_attempt", job.nextAttemptTime);
+        } catch (Exception e) {
+            throw new IOException("Could not encode job " + job.id);
+        }
+
+        // Write via a temp file so a crash never leaves a half-written job
+        File file = jobFile(job.id);
+        File temp = new File(mDir, job.id + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write(json.toString());
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not write job " + job.id);
+        }
+    }
+
+    /**
+     * Removes an uploaded job together with its activity file.
+     */
+    public void complete(Job job) {
+        jobFile(job.id).delete();
+        if (job.activityFile != null) {
+            job.activityFile.delete();
+        }
+    }
+
+    /**
+     * Moves a job that won't be retried to failed/, keeping its activity
+     * file. A job whose activity file is already gone is just dropped.
+     */
+    public void fail(Job job) {
+        File file = jobFile(job.id);
+        if (job.activityFile == null || !job.activityFile.exists()) {
+            file.delete();
+            return;
+        }
+        if (!mFailedDir.exists() && !mFailedDir.mkdirs()) {
+            Log.e(TAG, "Could not create " + mFailedDir + ", leaving job " + job.id + " queued");
+            return;
+        }
+        if (!file.renameTo(new File(mFailedDir, file.getName()))) {
+            Log.e(TAG, "Could not move job " + job.id + " to " + mFailedDir);
+        }
+    }
+
+    /**
+     * Puts every failed job back in the queue with its attempts reset
+     *
+     * @return the number of jobs requeued
+     */
+    public int retryFailed() throws IOException {
+        int count = 0;
+        for (Job job : getFailedJobs()) {
+            job.attempts = 0;
+            job.nextAttemptTime = 0;
+            save(job);
+            new File(mFailedDir, job.id + JOB_SUFFIX).delete();
+            count++;
+        }
+        return count;
+    }
+
+    private Job load(File file) throws Exception {
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        StringBuilder content = new StringBuilder();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                content.append(line);
+            }
+        } finally {
+            reader.close();
+        }
+
+        JSONObject json = new JSONObject(content.toString());
+        Job job = new Job();
+        job.id = json.getString("id");
+        job.activityFile = new File(json.getString("file"));
+        job.format = json.optString("format", "json");
+        job.attempts = json.optInt("attempts", 0);
+        job.nextAttemptTime = json.optLong("next_attempt", 0);
+        return job;
+    }
+
+    private File jobFile(String id) {
+        return new File(mDir, id + JOB_SUFFIX);
+    }
+
+    private void ensureDir() throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Could not create " + mDir);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.glassstrava.tracking;
+
+/**
+ * Summary metadata for a recorded activity, written alongside the track
+ */
+public class ActivityInfo {
+    public String name;
+    public String type;
+    public String description;
+    public String deviceName;
+    public long startTime;      // epoch millis
+    public long elapsedTime;    // millis, excluding pauses
+    public double distance;     // meters
+    public double elevationGain; // meters
+}
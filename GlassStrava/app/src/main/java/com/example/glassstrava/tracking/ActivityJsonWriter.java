@@ -0,0 +1,82 @@
+package com.example.glassstrava.tracking;
+
+import android.util.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Streams an activity as JSON straight from the track buffer.
+ *
+ * Produces the same document the service used to build with JSONObject, but
+ * without materializing the tree or the string, so only the buffered writer's
+ * few kilobytes are held in memory regardless of track length.
+ */
+public class ActivityJsonWriter implements TrackExporter {
+
+    @Override
+    public String getDataType() {
+        return TrackExporters.FORMAT_JSON;
+    }
+
+    @Override
+    public void write(ActivityInfo info, TrackBuffer track, OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(
+            new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8192));
+
+        writer.beginObject();
+        writer.name("name").value(info.name);
+        writer.name("type").value(info.type);
+        writer.name("start_date_local").value(
+            new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US)
+                .format(new Date(info.startTime)));
+        writer.name("elapsed_time").value(info.elapsedTime / 1000); // Convert to seconds
+        writer.name("distance").value(info.distance);
+        writer.name("total_elevation_gain").value(info.elevationGain);
+        writer.name("device_name").value(info.deviceName);
+        writer.name("description").value(info.description);
+
+        int size = track.size();
+        if (size > 0) {
+            // Latitude, Longitude pairs
+            writer.name("latlng").beginArray();
+            for (int i = 0; i < size; i++) {
+                writer.beginArray()
+                    .value(track.getLatitude(i))
+                    .value(track.getLongitude(i))
+                    .endArray();
+            }
+            writer.endArray();
+
+            // Time from start in seconds
+            writer.name("time").beginArray();
+            for (int i = 0; i < size; i++) {
+                writer.value((track.getTime(i) - info.startTime) / 1000);
+            }
+            writer.endArray();
+
+            // Altitude if available
+            boolean hasAltitude = false;
+            for (int i = 0; i < size && !hasAltitude; i++) {
+                hasAltitude = track.hasAltitude(i);
+            }
+            if (hasAltitude) {
+                writer.name("altitude").beginArray();
+                for (int i = 0; i < size; i++) {
+                    if (track.hasAltitude(i)) {
+                        writer.value(track.getAltitude(i));
+                    }
+                }
+                writer.endArray();
+            }
+        }
+
+        writer.endObject();
+        writer.flush();
+    }
+}
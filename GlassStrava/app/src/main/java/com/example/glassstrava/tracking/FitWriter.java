@@ -0,0 +1,291 @@
+package com.example.glassstrava.tracking;
+
+import android.location.Location;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams a track as a Garmin FIT activity file.
+ *
+ * Writes file_id, one record message per fix, then lap, session and activity
+ * summaries. Every message has a fixed size, so the data size in the file
+ * header is known before the first record and the file is produced in a
+ * single pass with a running CRC.
+ */
+public class FitWriter implements TrackExporter {
+
+    private static final long FIT_EPOCH_SECONDS = 631065600L; // 1989-12-31T00:00:00Z
+    private static final double SEMICIRCLES_PER_DEGREE = 2147483648.0 / 180.0;
+
+    private static final int HEADER_SIZE = 14;
+    private static final int PROTOCOL_VERSION = 0x10; // 1.0
+    private static final int PROFILE_VERSION = 2093;  // 20.93
+
+    // Base types
+    private static final int ENUM = 0x00;
+    private static final int UINT16 = 0x84;
+    private static final int SINT32 = 0x85;
+    private static final int UINT32 = 0x86;
+
+    // Global message numbers
+    private static final int MESG_FILE_ID = 0;
+    private static final int MESG_SESSION = 18;
+    private static final int MESG_LAP = 19;
+    private static final int MESG_RECORD = 20;
+    private static final int MESG_ACTIVITY = 34;
+
+    // Field definitions as {field number, size, base type}
+    private static final int[][] FILE_ID_FIELDS = {
+        {0, 1, ENUM},     // type
+        {1, 2, UINT16},   // manufacturer
+        {2, 2, UINT16},   // product
+        {4, 4, UINT32},   // time_created
+    };
+    private static final int[][] RECORD_FIELDS = {
+        {253, 4, UINT32}, // timestamp
+        {0, 4, SINT32},   // position_lat
+        {1, 4, SINT32},   // position_long
+        {2, 2, UINT16},   // altitude, scale 5 offset 500
+        {5, 4, UINT32},   // distance, scale 100
+        {6, 2, UINT16},   // speed, scale 1000
+    };
+    private static final int[][] LAP_FIELDS = {
+        {253, 4, UINT32}, // timestamp
+        {2, 4, UINT32},   // start_time
+        {7, 4, UINT32},   // total_elapsed_time, scale 1000
+        {8, 4, UINT32},   // total_timer_time, scale 1000
+        {9, 4, UINT32},   // total_distance, scale 100
+        {0, 1, ENUM},     // event
+        {1, 1, ENUM},     // event_type
+    };
+    private static final int[][] SESSION_FIELDS = {
+        {253, 4, UINT32}, // timestamp
+        {2, 4, UINT32},   // start_time
+        {7, 4, UINT32},   // total_elapsed_time, scale 1000
+        {8, 4, UINT32},   // total_timer_time, scale 1000
+        {9, 4, UINT32},   // total_distance, scale 100
+        {22, 2, UINT16},  // total_ascent
+        {25, 2, UINT16},  // first_lap_index
+        {26, 2, UINT16},  // num_laps
+        {0, 1, ENUM},     // event
+        {1, 1, ENUM},     // event_type
+        {5, 1, ENUM},     // sport
+    };
+    private static final int[][] ACTIVITY_FIELDS = {
+        {253, 4, UINT32}, // timestamp
+        {0, 4, UINT32},   // total_timer_time, scale 1000
+        {1, 2, UINT16},   // num_sessions
+        {2, 1, ENUM},     // type
+        {3, 1, ENUM},     // event
+        {4, 1, ENUM},     // event_type
+    };
+
+    private static final int FILE_TYPE_ACTIVITY = 4;
+    private static final int MANUFACTURER_DEVELOPMENT = 255;
+    private static final int EVENT_SESSION = 8;
+    private static final int EVENT_LAP = 9;
+    private static final int EVENT_ACTIVITY = 26;
+    private static final int EVENT_TYPE_STOP = 1;
+    private static final int ACTIVITY_TYPE_MANUAL = 0;
+
+    private static final int SPORT_GENERIC = 0;
+    private static final int SPORT_RUNNING = 1;
+    private static final int SPORT_CYCLING = 2;
+    private static final int SPORT_WALKING = 11;
+
+    private static final int[] CRC_TABLE = {
+        0x0000, 0xCC01, 0xD801, 0x1400, 0xF001, 0x3C00, 0x2800, 0xE401,
+        0xA001, 0x6C00, 0x7800, 0xB401, 0x5000, 0x9C01, 0x8801, 0x4400
+    };
+
+    private OutputStream mOut;
+    private int mCrc;
+
+    @Override
+    public String getDataType() {
+        return TrackExporters.FORMAT_FIT;
+    }
+
+    @Override
+    public void write(ActivityInfo info, TrackBuffer track, OutputStream out) throws IOException {
+        mOut = out;
+        mCrc = 0;
+
+        int size = track.size();
+        long dataSize = definitionSize(FILE_ID_FIELDS) + dataSize(FILE_ID_FIELDS)
+            + definitionSize(RECORD_FIELDS) + (long) size * dataSize(RECORD_FIELDS)
+            + definitionSize(LAP_FIELDS) + dataSize(LAP_FIELDS)
+            + definitionSize(SESSION_FIELDS) + dataSize(SESSION_FIELDS)
+            + definitionSize(ACTIVITY_FIELDS) + dataSize(ACTIVITY_FIELDS);
+
+        writeFileHeader(dataSize);
+
+        long startTimestamp = fitTime(info.startTime);
+        long endTimestamp = size > 0 ? fitTime(track.getTime(size - 1)) : startTimestamp;
+        long elapsedMillis = Math.max(0, (endTimestamp - startTimestamp) * 1000);
+
+        // file_id
+        writeDefinition(0, MESG_FILE_ID, FILE_ID_FIELDS);
+        writeByte(0);
+        writeByte(FILE_TYPE_ACTIVITY);
+        writeUint16(MANUFACTURER_DEVELOPMENT);
+        writeUint16(0);
+        writeUint32(startTimestamp);
+
+        // One record per fix, with distance accumulated as we go
+        writeDefinition(1, MESG_RECORD, RECORD_FIELDS);
+        float[] distanceResult = new float[1];
+        double distance = 0.0;
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                Location.distanceBetween(
+                    track.getLatitude(i - 1), track.getLongitude(i - 1),
+                    track.getLatitude(i), track.getLongitude(i),
+                    distanceResult);
+                distance += distanceResult[0];
+            }
+
+            writeByte(1);
+            writeUint32(fitTime(track.getTime(i)));
+            writeUint32(Math.round(track.getLatitude(i) * SEMICIRCLES_PER_DEGREE));
+            writeUint32(Math.round(track.getLongitude(i) * SEMICIRCLES_PER_DEGREE));
+            writeUint16(track.hasAltitude(i)
+                ? clampUint16(Math.round((track.getAltitude(i) + 500) * 5))
+                : 0xFFFF);
+            writeUint32(Math.round(distance * 100));
+            writeUint16(track.hasSpeed(i)
+                ? clampUint16(Math.round(track.getSpeed(i) * 1000.0))
+                : 0xFFFF);
+        }
+
+        // lap
+        writeDefinition(2, MESG_LAP, LAP_FIELDS);
+        writeByte(2);
+        writeUint32(endTimestamp);
+        writeUint32(startTimestamp);
+        writeUint32(elapsedMillis);
+        writeUint32(info.elapsedTime);
+        writeUint32(Math.round(info.distance * 100));
+        writeByte(EVENT_LAP);
+        writeByte(EVENT_TYPE_STOP);
+
+        // session
+        writeDefinition(3, MESG_SESSION, SESSION_FIELDS);
+        writeByte(3);
+        writeUint32(endTimestamp);
+        writeUint32(startTimestamp);
+        writeUint32(elapsedMillis);
+        writeUint32(info.elapsedTime);
+        writeUint32(Math.round(info.distance * 100));
+        writeUint16(clampUint16(Math.round(info.elevationGain)));
+        writeUint16(0);
+        writeUint16(1);
+        writeByte(EVENT_SESSION);
+        writeByte(EVENT_TYPE_STOP);
+        writeByte(sport(info.type));
+
+        // activity
+        writeDefinition(4, MESG_ACTIVITY, ACTIVITY_FIELDS);
+        writeByte(4);
+        writeUint32(endTimestamp);
+        writeUint32(info.elapsedTime);
+        writeUint16(1);
+        writeByte(ACTIVITY_TYPE_MANUAL);
+        writeByte(EVENT_ACTIVITY);
+        writeByte(EVENT_TYPE_STOP);
+
+        // File CRC covers the header and all records
+        int crc = mCrc;
+        mOut.write(crc & 0xFF);
+        mOut.write((crc >> 8) & 0xFF);
+        mOut.flush();
+        mOut = null;
+    }
+
+    private void writeFileHeader(long dataSize) throws IOException {
+        writeByte(HEADER_SIZE);
+        writeByte(PROTOCOL_VERSION);
+        writeUint16(PROFILE_VERSION);
+        writeUint32(dataSize);
+        writeByte('.');
+        writeByte('F');
+        writeByte('I');
+        writeByte('T');
+        // Header CRC over the first 12 bytes, which is the running CRC at this point
+        int headerCrc = mCrc;
+        writeUint16(headerCrc);
+    }
+
+    private void writeDefinition(int localType, int globalType, int[][] fields) throws IOException {
+        writeByte(0x40 | localType);
+        writeByte(0);       // reserved
+        writeByte(0);       // little-endian
+        writeUint16(globalType);
+        writeByte(fields.length);
+        for (int[] field : fields) {
+            writeByte(field[0]);
+            writeByte(field[1]);
+            writeByte(field[2]);
+        }
+    }
+
+    private static int definitionSize(int[][] fields) {
+        return 6 + 3 * fields.length;
+    }
+
+    private static int dataSize(int[][] fields) {
+        int size = 1;
+        for (int[] field : fields) {
+            size += field[1];
+        }
+        return size;
+    }
+
+    private void writeByte(int value) throws IOException {
+        value &= 0xFF;
+        mOut.write(value);
+        updateCrc(value);
+    }
+
+    private void writeUint16(int value) throws IOException {
+        writeByte(value);
+        writeByte(value >> 8);
+    }
+
+    private void writeUint32(long value) throws IOException {
+        writeByte((int) value);
+        writeByte((int) (value >> 8));
+        writeByte((int) (value >> 16));
+        writeByte((int) (value >> 24));
+    }
+
+    private void updateCrc(int value) {
+        int tmp = CRC_TABLE[mCrc & 0xF];
+        mCrc = (mCrc >> 4) & 0x0FFF;
+        mCrc = mCrc ^ tmp ^ CRC_TABLE[value & 0xF];
+        tmp = CRC_TABLE[mCrc & 0xF];
+        mCrc = (mCrc >> 4) & 0x0FFF;
+        mCrc = mCrc ^ tmp ^ CRC_TABLE[(value >> 4) & 0xF];
+    }
+
+    private static long fitTime(long epochMillis) {
+        return epochMillis / 1000 - FIT_EPOCH_SECONDS;
+    }
+
+    private static int clampUint16(long value) {
+        // 0xFFFF is the FIT "invalid" marker, so valid values stop one short of it
+        return (int) Math.max(0, Math.min(0xFFFE, value));
+    }
+
+    private static int sport(String activityType) {
+        if ("Run".equals(activityType)) {
+            return SPORT_RUNNING;
+        } else if ("Ride".equals(activityType)) {
+            return SPORT_CYCLING;
+        } else if ("Walk".equals(activityType)) {
+            return SPORT_WALKING;
+        }
+        return SPORT_GENERIC;
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.glassstrava.tracking;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.GregorianCalendar;
+
+/**
+ * Streams a track as GPX 1.1
+ */
+public class GpxWriter implements TrackExporter {
+
+    @Override
+    public String getDataType() {
+        return TrackExporters.FORMAT_GPX;
+    }
+
+    @Override
+    public void write(ActivityInfo info, TrackBuffer track, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        GregorianCalendar calendar = TrackExporters.newUtcCalendar();
+        StringBuilder line = new StringBuilder(256);
+        char[] scratch = new char[256];
+
+        line.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<gpx version=\"1.1\" creator=\"");
+        TrackExporters.appendXmlEscaped(line, info.deviceName);
+        line.append("\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n")
+            .append(" <metadata><time>");
+        TrackExporters.appendIsoTime(info.startTime, calendar, line);
+        line.append("</time></metadata>\n")
+            .append(" <trk>\n  <name>");
+        TrackExporters.appendXmlEscaped(line, info.name);
+        line.append("</name>\n  <type>");
+        TrackExporters.appendXmlEscaped(line, info.type);
+        line.append("</type>\n  <trkseg>\n");
+        scratch = TrackExporters.drainTo(line, writer, scratch);
+
+        int size = track.size();
+        for (int i = 0; i < size; i++) {
+            line.append("   <trkpt lat=\"");
+            TrackExporters.appendFixed(line, track.getLatitude(i), 7);
+            line.append("\" lon=\"");
+            TrackExporters.appendFixed(line, track.getLongitude(i), 7);
+            line.append("\">");
+            if (track.hasAltitude(i)) {
+                line.append("<ele>");
+                TrackExporters.appendFixed(line, track.getAltitude(i), 1);
+                line.append("</ele>");
+            }
+            line.append("<time>");
+            TrackExporters.appendIsoTime(track.getTime(i), calendar, line);
+            line.append("</time></trkpt>\n");
+            scratch = TrackExporters.drainTo(line, writer, scratch);
+        }
+
+        line.append("  </trkseg>\n </trk>\n</gpx>\n");
+        TrackExporters.drainTo(line, writer, scratch);
+        writer.flush();
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.glassstrava.tracking;
+
+/**
+ * Immutable view of the activity metrics at one point in time.
+ * All values are in SI units: meters, millis and m/s.
+ */
+public class MetricsSnapshot {
+    public static final MetricsSnapshot EMPTY = new MetricsSnapshot(0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    public final double distance;
+    // Covered during moving time, so not across gaps in the signal
+    public final double movingDistance;
+    public final long elapsedTime;
+    public final long movingTime;
+    public final double elevationGain;
+    public final double elevationLoss;
+    public final double currentSpeed;
+    public final double maxSpeed;
+    public final int pointCount;
+
+    public MetricsSnapshot(double distance, double movingDistance, long elapsedTime,
+                           long movingTime, double elevationGain, double elevationLoss,
+                           double currentSpeed, double maxSpeed, int pointCount) {
+        this.distance = distance;
+        this.movingDistance = movingDistance;
+        this.elapsedTime = elapsedTime;
+        this.movingTime = movingTime;
+        this.elevationGain = elevationGain;
+        this.elevationLoss = elevationLoss;
+        this.currentSpeed = currentSpeed;
+        this.maxSpeed = maxSpeed;
+        this.pointCount = pointCount;
+    }
+
+    /**
+     * Average speed over moving time, in m/s
+     */
+    public double getAverageSpeed() {
+        return movingTime > 0 ? movingDistance * 1000.0 / movingTime : 0.0;
+    }
+
+    /**
+     * Average pace over moving time, in seconds per km (0 if not moving yet)
+     */
+    public double getAveragePace() {
+        double speed = getAverageSpeed();
+        return speed > 0 ? 1000.0 / speed : 0.0;
+    }
+
+    /**
+     * Current pace in seconds per km (0 when standing still)
+     */
+    public double getCurrentPace() {
+        return currentSpeed > 0 ? 1000.0 / currentSpeed : 0.0;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.glassstrava.tracking;
+
+import android.location.Location;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.GregorianCalendar;
+
+/**
+ * Streams a track as a single-lap Garmin TCX activity
+ */
+public class TcxWriter implements TrackExporter {
+
+    @Override
+    public String getDataType() {
+        return TrackExporters.FORMAT_TCX;
+    }
+
+    @Override
+    public void write(ActivityInfo info, TrackBuffer track, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        GregorianCalendar calendar = TrackExporters.newUtcCalendar();
+        StringBuilder line = new StringBuilder(384);
+        char[] scratch = new char[384];
+        float[] distanceResult = new float[1];
+
+        line.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<TrainingCenterDatabase xmlns=\"http://www.garmin.com/xmlschemas/TrainingCenterDatabase/v2\">\n")
+            .append(" <Activities>\n  <Activity Sport=\"").append(sportName(info.type)).append("\">\n")
+            .append("   <Id>");
+        TrackExporters.appendIsoTime(info.startTime, calendar, line);
+        line.append("</Id>\n   <Lap StartTime=\"");
+        TrackExporters.appendIsoTime(info.startTime, calendar, line);
+        line.append("\">\n    <TotalTimeSeconds>");
+        TrackExporters.appendFixed(line, info.elapsedTime / 1000.0, 1);
+        line.append("</TotalTimeSeconds>\n    <DistanceMeters>");
+        TrackExporters.appendFixed(line, info.distance, 1);
+        line.append("</DistanceMeters>\n")
+            .append("    <Calories>0</Calories>\n")
+            .append("    <Intensity>Active</Intensity>\n")
+            .append("    <TriggerMethod>Manual</TriggerMethod>\n")
+            .append("    <Track>\n");
+        scratch = TrackExporters.drainTo(line, writer, scratch);
+
+        double distance = 0.0;
+        int size = track.size();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                Location.distanceBetween(
+                    track.getLatitude(i - 1), track.getLongitude(i - 1),
+                    track.getLatitude(i), track.getLongitude(i),
+                    distanceResult);
+                distance += distanceResult[0];
+            }
+
+            line.append("     <Trackpoint><Time>");
+            TrackExporters.appendIsoTime(track.getTime(i), calendar, line);
+            line.append("</Time><Position><LatitudeDegrees>");
+            TrackExporters.appendFixed(line, track.getLatitude(i), 7);
+            line.append("</LatitudeDegrees><LongitudeDegrees>");
+            TrackExporters.appendFixed(line, track.getLongitude(i), 7);
+            line.append("</LongitudeDegrees></Position>");
+            if (track.hasAltitude(i)) {
+                line.append("<AltitudeMeters>");
+                TrackExporters.appendFixed(line, track.getAltitude(i), 1);
+                line.append("</AltitudeMeters>");
+            }
+            line.append("<DistanceMeters>");
+            TrackExporters.appendFixed(line, distance, 1);
+            line.append("</DistanceMeters></Trackpoint>\n");
+            scratch = TrackExporters.drainTo(line, writer, scratch);
+        }
+
+        line.append("    </Track>\n   </Lap>\n")
+            .append("   <Creator xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:type=\"Device_t\"><Name>");
+        TrackExporters.appendXmlEscaped(line, info.deviceName);
+        line.append("</Name><UnitId>0</UnitId><ProductID>0</ProductID>")
+            .append("<Version><VersionMajor>1</VersionMajor><VersionMinor>0</VersionMinor></Version></Creator>\n")
+            .append("  </Activity>\n </Activities>\n</TrainingCenterDatabase>\n");
+        TrackExporters.drainTo(line, writer, scratch);
+        writer.flush();
+    }
+
+    private static String sportName(String activityType) {
+        if ("Run".equals(activityType)) {
+            return "Running";
+        } else if ("Ride".equals(activityType)) {
+            return "Biking";
+        }
+        return "Other";
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.glassstrava.tracking;
+
+import android.location.Location;
+
+/**
+ * Growable columnar store for recorded GPS fixes.
+ *
+ * Each field lives in its own primitive array, split into fixed-size chunks,
+ * so appending a fix never copies the existing track and never creates a
+ * per-point object. Missing altitude, speed or accuracy values are stored as NaN.
+ */
+public class TrackBuffer {
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // 1024 points per chunk
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_CHUNKS = 8;
+
+    private double[][] mLatitude = new double[INITIAL_CHUNKS][];
+    private double[][] mLongitude = new double[INITIAL_CHUNKS][];
+    private double[][] mAltitude = new double[INITIAL_CHUNKS][];
+    private long[][] mTime = new long[INITIAL_CHUNKS][];
+    private float[][] mSpeed = new float[INITIAL_CHUNKS][];
+    private float[][] mAccuracy = new float[INITIAL_CHUNKS][];
+
+    private int mChunkCount = 0;
+    private int mSize = 0;
+
+    public void append(Location location) {
+        append(location.getLatitude(),
+            location.getLongitude(),
+            location.hasAltitude() ? location.getAltitude() : Double.NaN,
+            location.getTime(),
+            location.hasSpeed() ? location.getSpeed() : Float.NaN,
+            location.hasAccuracy() ? location.getAccuracy() : Float.NaN);
+    }
+
+    public void append(double latitude, double longitude, double altitude,
+                       long time, float speed, float accuracy) {
+        int chunk = mSize >>> CHUNK_SHIFT;
+        int offset = mSize & CHUNK_MASK;
+
+        if (chunk == mChunkCount) {
+            addChunk();
+        }
+
+        mLatitude[chunk][offset] = latitude;
+        mLongitude[chunk][offset] = longitude;
+        mAltitude[chunk][offset] = altitude;
+        mTime[chunk][offset] = time;
+        mSpeed[chunk][offset] = speed;
+        mAccuracy[chunk][offset] = accuracy;
+        mSize++;
+    }
+
+    private void addChunk() {
+        if (mChunkCount == mLatitude.length) {
+            // Only the chunk directory grows; the point data itself is never copied
+            int capacity = mLatitude.length * 2;
+            mLatitude = growDirectory(mLatitude, capacity);
+            mLongitude = growDirectory(mLongitude, capacity);
+            mAltitude = growDirectory(mAltitude, capacity);
+            mTime = growDirectory(mTime, capacity);
+            mSpeed = growDirectory(mSpeed, capacity);
+            mAccuracy = growDirectory(mAccuracy, capacity);
+        }
+
+        // Chunks left over from a previous clear() are reused as-is
+        if (mLatitude[mChunkCount] == null) {
+            mLatitude[mChunkCount] = new double[CHUNK_SIZE];
+            mLongitude[mChunkCount] = new double[CHUNK_SIZE];
+            mAltitude[mChunkCount] = new double[CHUNK_SIZE];
+            mTime[mChunkCount] = new long[CHUNK_SIZE];
+            mSpeed[mChunkCount] = new float[CHUNK_SIZE];
+            mAccuracy[mChunkCount] = new float[CHUNK_SIZE];
+        }
+        mChunkCount++;
+    }
+
+    private static double[][] growDirectory(double[][] directory, int capacity) {
+        double[][] grown = new double[capacity][];
+        System.arraycopy(directory, 0, grown, 0, directory.length);
+        return grown;
+    }
+
+    private static long[][] growDirectory(long[][] directory, int capacity) {
+        long[][] grown = new long[capacity][];
+        System.arraycopy(directory, 0, grown, 0, directory.length);
+        return grown;
+    }
+
+    private static float[][] growDirectory(float[][] directory, int capacity) {
+        float[][] grown = new float[capacity][];
+        System.arraycopy(directory, 0, grown, 0, directory.length);
+        return grown;
+    }
+
+    /**
+     * Removes all points. The first chunk is kept for the next activity,
+     * the rest are released so a long ride doesn't pin memory afterwards.
+     */
+    public void clear() {
+        for (int i = 1; i < mLatitude.length; i++) {
+            mLatitude[i] = null;
+            mLongitude[i] = null;
+            mAltitude[i] = null;
+            mTime[i] = null;
+            mSpeed[i] = null;
+            mAccuracy[i] = null;
+        }
+        mChunkCount = 0;
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public double getLatitude(int index) {
+        return mLatitude[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    public double getLongitude(int index) {
+        return mLongitude[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    public double getAltitude(int index) {
+        return mAltitude[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    public boolean hasAltitude(int index) {
+        return !Double.isNaN(getAltitude(index));
+    }
+
+    public long getTime(int index) {
+        return mTime[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    public float getSpeed(int index) {
+        return mSpeed[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    public boolean hasSpeed(int index) {
+        return !Float.isNaN(getSpeed(index));
+    }
+
+    public float getAccuracy(int index) {
+        return mAccuracy[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    public boolean hasAccuracy(int index) {
+        return !Float.isNaN(getAccuracy(index));
+    }
+}
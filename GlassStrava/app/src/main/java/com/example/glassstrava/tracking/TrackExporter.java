@@ -0,0 +1,21 @@
+package com.example.glassstrava.tracking;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Serializes a recorded track to one upload format.
+ *
+ * Implementations stream straight from the track buffer in a single pass and
+ * keep only fixed-size scratch state, so memory use does not grow with the
+ * length of the activity.
+ */
+public interface TrackExporter {
+
+    /**
+     * Strava upload data_type for this format, also used as the file extension
+     */
+    String getDataType();
+
+    void write(ActivityInfo info, TrackBuffer track, OutputStream out) throws IOException;
+}
@@ -0,0 +1,158 @@
+package com.example.glassstrava.tracking;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Lookup and file helpers shared by the track exporters
+ */
+public class TrackExporters {
+
+    public static final String FORMAT_FIT = "fit";
+    public static final String FORMAT_GPX = "gpx";
+    public static final String FORMAT_TCX = "tcx";
+    public static final String FORMAT_JSON = "json";
+
+    // FIT is the smallest on the wire, which matters over the Glass Wi-Fi/BT link
+    public static final String DEFAULT_FORMAT = FORMAT_FIT;
+
+    public static TrackExporter forFormat(String format) {
+        if (FORMAT_GPX.equals(format)) {
+            return new GpxWriter();
+        } else if (FORMAT_TCX.equals(format)) {
+            return new TcxWriter();
+        } else if (FORMAT_JSON.equals(format)) {
+            return new ActivityJsonWriter();
+        }
+        return new FitWriter();
+    }
+
+    /**
+     * Writes the activity to {@code file} via a temporary file, so a crash never
+     * leaves a half-written file behind for the uploader. The temporary file is
+     * removed if writing fails.
+     */
+    public static void writeToFile(TrackExporter exporter, ActivityInfo info,
+                                   TrackBuffer track, File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        boolean moved = false;
+        try {
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            try {
+                OutputStream out = new BufferedOutputStream(fileOut, 8192);
+                exporter.write(info, track, out);
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not move " + temp + " to " + file);
+            }
+            moved = true;
+        } finally {
+            if (!moved) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Formats epoch millis as an ISO-8601 UTC timestamp ("2014-05-01T07:30:00Z")
+     * into {@code out}, reusing {@code calendar} so no objects are created per point.
+     */
+    static void appendIsoTime(long millis, GregorianCalendar calendar, StringBuilder out) {
+        calendar.setTimeInMillis(millis);
+        appendPadded(out, calendar.get(Calendar.YEAR), 4);
+        out.append('-');
+        appendPadded(out, calendar.get(Calendar.MONTH) + 1, 2);
+        out.append('-');
+        appendPadded(out, calendar.get(Calendar.DAY_OF_MONTH), 2);
+        out.append('T');
+        appendPadded(out, calendar.get(Calendar.HOUR_OF_DAY), 2);
+        out.append(':');
+        appendPadded(out, calendar.get(Calendar.MINUTE), 2);
+        out.append(':');
+        appendPadded(out, calendar.get(Calendar.SECOND), 2);
+        out.append('Z');
+    }
+
+    static GregorianCalendar newUtcCalendar() {
+        return new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+    }
+
+    private static void appendPadded(StringBuilder out, int value, int width) {
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = digits; i < width; i++) {
+            out.append('0');
+        }
+        out.append(value);
+    }
+
+    /**
+     * Appends {@code value} with a fixed number of decimals, without the
+     * intermediate String that String.format or Double.toString would create.
+     */
+    static void appendFixed(StringBuilder out, double value, int decimals) {
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            out.append('-');
+        }
+        out.append(scaled / scale);
+        if (decimals > 0) {
+            out.append('.');
+            long fraction = scaled % scale;
+            for (long digit = scale / 10; digit > 1 && fraction < digit; digit /= 10) {
+                out.append('0');
+            }
+            out.append(fraction);
+        }
+    }
+
+    /**
+     * Copies the builder's contents to {@code writer} through a reusable char
+     * buffer and clears the builder.
+     */
+    static char[] drainTo(StringBuilder builder, Writer writer, char[] scratch) throws IOException {
+        int length = builder.length();
+        if (scratch.length < length) {
+            scratch = new char[Math.max(length, scratch.length * 2)];
+        }
+        builder.getChars(0, length, scratch, 0);
+        writer.write(scratch, 0, length);
+        builder.setLength(0);
+        return scratch;
+    }
+
+    /**
+     * Escapes the five XML special characters in free text such as activity names
+     */
+    static void appendXmlEscaped(StringBuilder out, String text) {
+        if (text == null) return;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                case '&': out.append("&amp;"); break;
+                case '"': out.append("&quot;"); break;
+                case '\'': out.append("&apos;"); break;
+                default: out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.example.glassstrava.tracking;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Append-only binary journal for an in-progress activity.
+ *
+ * Fixes and pause/resume events are handed to a bounded ring buffer and
+ * written by a dedicated thread, so the location callback never touches the
+ * disk. If the writer falls a full ring behind, new fixes are dropped, but a
+ * pause or resume takes the place of the oldest queued fix instead. The file
+ * is fsynced in batches; after a crash, {@link #replay} reads every complete
+ * record and ignores a torn tail.
+ *
+ * File layout: header (magic, version, start time, activity type) followed by
+ * records of one type byte plus a fixed-size payload.
+ */
+public class TrackJournal {
+    private static final String TAG = "TrackJournal";
+
+    private static final int MAGIC = 0x47535452; // "GSTR"
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_FIX = 1;
+    private static final byte RECORD_PAUSE = 2;
+    private static final byte RECORD_RESUME = 3;
+
+    private static final int FIX_RECORD_SIZE = 1 + 4 + 4 + 4 + 8 + 4 + 4;
+    private static final int EVENT_RECORD_SIZE = 1 + 8;
+
+    static final int RING_CAPACITY = 512;
+    private static final int SYNC_BATCH_RECORDS = 30;
+    private static final long SYNC_INTERVAL_MS = 5000;
+
+    /**
+     * Receives the contents of a journal during {@link #replay}.
+     */
+    public interface ReplayListener {
+        void onHeader(long startTime, String activityType);
+        void onFix(double latitude, double longitude, double altitude,
+                   long time, float speed, float accuracy);
+        void onPause(long time);
+        void onResume(long time);
+    }
+
+    private final File mFile;
+    private final DataOutputStream mOutput;
+    private final FileOutputStream mFileOutput;
+    private final Thread mWriterThread;
+
+    // Ring buffer shared with the writer thread, guarded by mLock
+    private final Object mLock = new Object();
+    private final byte[] mRingType = new byte[RING_CAPACITY];
+    private final int[] mRingLatitude = new int[RING_CAPACITY];
+    private final int[] mRingLongitude = new int[RING_CAPACITY];
+    private final float[] mRingAltitude = new float[RING_CAPACITY];
+    private final long[] mRingTime = new long[RING_CAPACITY];
+    private final float[] mRingSpeed = new float[RING_CAPACITY];
+    private final float[] mRingAccuracy = new float[RING_CAPACITY];
+    private int mRingHead = 0;
+    private int mRingCount = 0;
+    private boolean mClosing = false;
+    private int mDroppedRecords = 0;
+
+    private TrackJournal(File file, boolean append) throws IOException {
+        mFile = file;
+        mFileOutput = new FileOutputStream(file, append);
+        mOutput = new DataOutputStream(new BufferedOutputStream(mFileOutput, 4096));
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        mWriterThread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Creates a new journal, replacing any existing file.
+     */
+    public static TrackJournal create(File file, long startTime, String activityType)
+            throws IOException {
+        TrackJournal journal = createStopped(file, startTime, activityType);
+        journal.startWriter();
+        return journal;
+    }
+
+    /**
+     * Creates a new journal that queues records without writing them until
+     * {@link #startWriter}, so tests can fill the ring.
+     */
+    static TrackJournal createStopped(File file, long startTime, String activityType)
+            throws IOException {
+        TrackJournal journal = new TrackJournal(file, false);
+        journal.mOutput.writeInt(MAGIC);
+        journal.mOutput.writeInt(VERSION);
+        journal.mOutput.writeLong(startTime);
+        journal.mOutput.writeUTF(activityType);
+        journal.mOutput.flush();
+        journal.mFileOutput.getFD().sync();
+        return journal;
+    }
+
+    void startWriter() {
+        mWriterThread.start();
+    }
+
+    /**
+     * Reopens a journal after {@link #replay}, dropping any torn record at the end.
+     */
+    public static TrackJournal reopen(File file, long validLength) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(validLength);
+        } finally {
+            raf.close();
+        }
+        TrackJournal journal = new TrackJournal(file, true);
+        journal.startWriter();
+        return journal;
+    }
+
+    /**
+     * Reads all complete records from a journal.
+     *
+     * @return the byte length of the valid prefix, or -1 if the file has no valid header
+     */
+    public static long replay(File file, ReplayListener listener) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file), 8192));
+        long validLength = -1;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return -1;
+            }
+            long startTime = in.readLong();
+            String activityType = in.readUTF();
+            // magic + version + start time + UTF length prefix + modified UTF-8 bytes
+            validLength = 4 + 4 + 8 + 2 + utfLength(activityType);
+            listener.onHeader(startTime, activityType);
+
+            while (true) {
+                int type = in.read();
+                if (type == RECORD_FIX) {
+                    double latitude = in.readInt() / 1E7;
+                    double longitude = in.readInt() / 1E7;
+                    double altitude = in.readFloat();
+                    long time = in.readLong();
+                    float speed = in.readFloat();
+                    float accuracy = in.readFloat();
+                    listener.onFix(latitude, longitude, altitude, time, speed, accuracy);
+                    validLength += FIX_RECORD_SIZE;
+                } else if (type == RECORD_PAUSE || type == RECORD_RESUME) {
+                    long time = in.readLong();
+                    if (type == RECORD_PAUSE) {
+                        listener.onPause(time);
+                    } else {
+                        listener.onResume(time);
+                    }
+                    validLength += EVENT_RECORD_SIZE;
+                } else {
+                    // End of file, or a zero-filled/unknown tail left by a crash
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // The header or the last record was only partially written
+            Log.w(TAG, "Journal ends with a torn record, truncating to " + validLength);
+        } finally {
+            in.close();
+        }
+        return validLength;
+    }
+
+    private static int utfLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Queues the fix at {@code index} of the track. Never blocks on I/O; if the
+     * writer has fallen a full ring behind, the record is dropped and counted.
+     */
+    public boolean appendFix(TrackBuffer track, int index) {
+        synchronized (mLock) {
+            if (mClosing || mRingCount == RING_CAPACITY) {
+                mDroppedRecords++;
+                return false;
+            }
+            int slot = (mRingHead + mRingCount) % RING_CAPACITY;
+            mRingType[slot] = RECORD_FIX;
+            mRingLatitude[slot] = (int) Math.round(track.getLatitude(index) * 1E7);
+            mRingLongitude[slot] = (int) Math.round(track.getLongitude(index) * 1E7);
+            mRingAltitude[slot] = (float) track.getAltitude(index);
+            mRingTime[slot] = track.getTime(index);
+            mRingSpeed[slot] = track.getSpeed(index);
+            mRingAccuracy[slot] = track.getAccuracy(index);
+            mRingCount++;
+            mLock.notify();
+            return true;
+        }
+    }
+
+    public boolean appendPause(long time) {
+        return appendEvent(RECORD_PAUSE, time);
+    }
+
+    public boolean appendResume(long time) {
+        return appendEvent(RECORD_RESUME, time);
+    }
+
+    /**
+     * Queues a pause or resume. These are rare and change how the whole
+     * activity is timed, so a full ring makes room by dropping the oldest
+     * queued fix rather than the event.
+     */
+    private boolean appendEvent(byte type, long time) {
+        synchronized (mLock) {
+            if (mClosing || (mRingCount == RING_CAPACITY && !dropOldestFix())) {
+                mDroppedRecords++;
+                return false;
+            }
+            int slot = (mRingHead + mRingCount) % RING_CAPACITY;
+            mRingType[slot] = type;
+            mRingTime[slot] = time;
+            mRingCount++;
+            mLock.notify();
+            return true;
+        }
+    }
+
+    /**
+     * Removes the first fix in the ring, moving the events queued ahead of it
+     * up a slot. Called with mLock held.
+     *
+     * @return false if the ring holds nothing but events
+     */
+    private boolean dropOldestFix() {
+        for (int i = 0; i < mRingCount; i++) {
+            if (mRingType[(mRingHead + i) % RING_CAPACITY] != RECORD_FIX) continue;
+            for (int j = i; j > 0; j--) {
+                int to = (mRingHead + j) % RING_CAPACITY;
+                int from = (mRingHead + j - 1) % RING_CAPACITY;
+                mRingType[to] = mRingType[from];
+                mRingTime[to] = mRingTime[from];
+            }
+            mRingHead = (mRingHead + 1) % RING_CAPACITY;
+            mRingCount--;
+            mDroppedRecords++;
+            return true;
+        }
+        return false;
+    }
+
+    private void writeLoop() {
+        int unsyncedRecords = 0;
+        long lastSync = System.currentTimeMillis();
+        byte type;
+        int latitude = 0, longitude = 0;
+        float altitude = 0, speed = 0, accuracy = 0;
+        long time = 0;
+
+        try {
+            while (true) {
+                synchronized (mLock) {
+                    if (mRingCount == 0 && !mClosing) {
+                        try {
+                            // Wake up at the latest when a pending batch is due for sync
+                            mLock.wait(unsyncedRecords > 0 ? SYNC_INTERVAL_MS : 0);
+                        } catch (InterruptedException e) {
+                            // Keep draining until close() is requested
+                        }
+                    }
+                    if (mRingCount == 0) {
+                        if (mClosing) {
+                            break;
+                        }
+                        type = 0;
+                    } else {
+                        int slot = mRingHead;
+                        type = mRingType[slot];
+                        latitude = mRingLatitude[slot];
+                        longitude = mRingLongitude[slot];
+                        altitude = mRingAltitude[slot];
+                        time = mRingTime[slot];
+                        speed = mRingSpeed[slot];
+                        accuracy = mRingAccuracy[slot];
+                        mRingHead = (mRingHead + 1) % RING_CAPACITY;
+                        mRingCount--;
+                    }
+                }
+
+                if (type == RECORD_FIX) {
+                    mOutput.writeByte(RECORD_FIX);
+                    mOutput.writeInt(latitude);
+                    mOutput.writeInt(longitude);
+                    mOutput.writeFloat(altitude);
+                    mOutput.writeLong(time);
+                    mOutput.writeFloat(speed);
+                    mOutput.writeFloat(accuracy);
+                    unsyncedRecords++;
+                } else if (type != 0) {
+                    mOutput.writeByte(type);
+                    mOutput.writeLong(time);
+                    unsyncedRecords++;
+                }
+
+                // Sync on a full batch, when the interval has passed, after an idle
+                // wake-up, or right after a pause/resume since those are rare
+                long now = System.currentTimeMillis();
+                if (unsyncedRecords > 0 && (type != RECORD_FIX
+                        || unsyncedRecords >= SYNC_BATCH_RECORDS
+                        || now - lastSync >= SYNC_INTERVAL_MS)) {
+                    sync();
+                    unsyncedRecords = 0;
+                    lastSync = now;
+                }
+            }
+
+            sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing track journal", e);
+        } finally {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing track journal", e);
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        mOutput.flush();
+        mFileOutput.getFD().sync();
+    }
+
+    /**
+     * Writes out everything still queued, syncs and stops the writer thread.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosing = true;
+            mLock.notify();
+        }
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mDroppedRecords > 0) {
+            Log.w(TAG, "Dropped " + mDroppedRecords + " journal records");
+        }
+    }
+
+    /**
+     * Closes the journal and removes its file, for finished or discarded activities.
+     */
+    public void delete() {
+        close();
+        if (!mFile.delete()) {
+            Log.w(TAG, "Could not delete journal " + mFile);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.glassstrava.tracking;
+
+import android.location.Location;
+
+/**
+ * Incremental activity metrics, updated in O(1) per accepted fix.
+ *
+ * Owned by ActivityTrackingService; the UI reads immutable
+ * {@link MetricsSnapshot}s instead of recomputing anything itself.
+ */
+public class TrackMetrics {
+    // Below this speed a segment counts as standing still
+    private static final double MOVING_SPEED_THRESHOLD = 0.5; // m/s
+    // Longer gaps between fixes (signal loss) are not counted as moving time
+    private static final long MAX_MOVING_GAP_MS = 15000;
+
+    private final float[] mDistanceResult = new float[1];
+
+    private double mDistance;
+    private double mMovingDistance;
+    private long mMovingTime;
+    private double mElevationGain;
+    private double mElevationLoss;
+    private double mCurrentSpeed;
+    private double mMaxSpeed;
+    private int mPointCount;
+
+    // Previous fix in the current segment
+    private boolean mHasPrevious;
+    private double mPrevLatitude;
+    private double mPrevLongitude;
+    private double mPrevAltitude;
+    private long mPrevTime;
+
+    public void reset() {
+        mDistance = 0.0;
+        mMovingDistance = 0.0;
+        mMovingTime = 0;
+        mElevationGain = 0.0;
+        mElevationLoss = 0.0;
+        mCurrentSpeed = 0.0;
+        mMaxSpeed = 0.0;
+        mPointCount = 0;
+        mHasPrevious = false;
+    }
+
+    /**
+     * Starts a new segment, e.g. after a pause, so no distance is counted
+     * between the last fix before and the first fix after it.
+     */
+    public void breakSegment() {
+        mHasPrevious = false;
+        mCurrentSpeed = 0.0;
+    }
+
+    /**
+     * @param altitude meters, or NaN if unknown
+     * @param speed    reported speed in m/s, or NaN if unknown
+     */
+    public void addFix(double latitude, double longitude, double altitude, long time, float speed) {
+        mPointCount++;
+
+        if (mHasPrevious) {
+            Location.distanceBetween(mPrevLatitude, mPrevLongitude, latitude, longitude,
+                mDistanceResult);
+            double delta = mDistanceResult[0];
+            mDistance += delta;
+
+            long dt = time - mPrevTime;
+            double segmentSpeed = dt > 0 ? delta * 1000.0 / dt : 0.0;
+            if (dt > 0 && dt <= MAX_MOVING_GAP_MS && segmentSpeed >= MOVING_SPEED_THRESHOLD) {
+                mMovingTime += dt;
+                mMovingDistance += delta;
+            }
+
+            if (!Double.isNaN(altitude) && !Double.isNaN(mPrevAltitude)) {
+                double elevationDelta = altitude - mPrevAltitude;
+                if (elevationDelta > 0) {
+                    mElevationGain += elevationDelta;
+                } else {
+                    mElevationLoss -= elevationDelta;
+                }
+            }
+
+            mCurrentSpeed = Float.isNaN(speed) ? segmentSpeed : speed;
+        } else {
+            mCurrentSpeed = Float.isNaN(speed) ? 0.0 : speed;
+        }
+
+        if (mCurrentSpeed > mMaxSpeed) {
+            mMaxSpeed = mCurrentSpeed;
+        }
+
+        // Keep the last known altitude so a fix without one doesn't break elevation tracking
+        if (!Double.isNaN(altitude) || !mHasPrevious) {
+            mPrevAltitude = altitude;
+        }
+        mPrevLatitude = latitude;
+        mPrevLongitude = longitude;
+        mPrevTime = time;
+        mHasPrevious = true;
+    }
+
+    public double getDistance() {
+        return mDistance;
+    }
+
+    public double getElevationGain() {
+        return mElevationGain;
+    }
+
+    /**
+     * @param elapsedTime wall-clock duration excluding pauses, in millis
+     */
+    public MetricsSnapshot snapshot(long elapsedTime) {
+        return new MetricsSnapshot(mDistance, mMovingDistance, elapsedTime, mMovingTime,
+            mElevationGain, mElevationLoss, mCurrentSpeed, mMaxSpeed, mPointCount);
+    }
+}
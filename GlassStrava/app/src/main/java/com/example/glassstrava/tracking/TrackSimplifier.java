@@ -0,0 +1,167 @@
+package com.example.glassstrava.tracking;
+
+/**
+ * Online line simplification of a track as fixes arrive.
+ *
+ * Uses the cone-intersection method: from the last kept point (the anchor)
+ * every later fix narrows the cone of directions whose line passes within
+ * the tolerance of it. While a new fix still lies inside the cone, every
+ * fix in between is within tolerance of the straight line to it and can be
+ * dropped. The cone only bounds the distance to the ray from the anchor,
+ * so a fix that falls back towards the anchor by more than the tolerance
+ * also ends the line. Each fix costs O(1) time and no allocation, unlike
+ * Douglas-Peucker which needs the whole track.
+ *
+ * Kept points are copied from the source buffer into the output buffer,
+ * so the raw and the simplified track are both available to exporters.
+ */
+public class TrackSimplifier {
+    private static final double METERS_PER_DEGREE = 111319.49;
+
+    private final TrackBuffer mSource;
+    private final TrackBuffer mOutput;
+    private final double mTolerance;
+    private final long mMaxInterval;
+
+    private boolean mHasAnchor;
+    private double mAnchorLatitude;
+    private double mAnchorLongitude;
+    private long mAnchorTime;
+    private double mMetersPerDegreeLon;
+    // Furthest a dropped fix got from the anchor, in meters
+    private double mMaxDistance;
+
+    // Cone of valid directions from the anchor, relative to mConeBase, in radians
+    private boolean mHasCone;
+    private double mConeBase;
+    private double mConeLow;
+    private double mConeHigh;
+
+    // Last source index seen but not yet written to the output
+    private int mPending = -1;
+
+    /**
+     * @param tolerance   maximum cross-track error of dropped points, in meters
+     * @param maxInterval longest time between kept points, in millis, so stops
+     *                    and pace changes on straight roads stay visible
+     */
+    public TrackSimplifier(TrackBuffer source, TrackBuffer output,
+                           double tolerance, long maxInterval) {
+        mSource = source;
+        mOutput = output;
+        mTolerance = tolerance;
+        mMaxInterval = maxInterval;
+    }
+
+    /**
+     * Feeds the fix at {@code index} of the source buffer
+     */
+    public void add(int index) {
+        if (!mHasAnchor) {
+            keep(index);
+            return;
+        }
+
+        if (mPending >= 0 && mSource.getTime(index) - mAnchorTime > mMaxInterval) {
+            keep(mPending);
+        }
+
+        double east = (mSource.getLongitude(index) - mAnchorLongitude) * mMetersPerDegreeLon;
+        double north = (mSource.getLatitude(index) - mAnchorLatitude) * METERS_PER_DEGREE;
+        double distance = Math.sqrt(east * east + north * north);
+        if (distance < mMaxDistance - mTolerance) {
+            // Dropped fixes would lie beyond the end of the line to this one
+            keep(mPending);
+            add(index);
+            return;
+        }
+
+        double direction = Math.atan2(north, east);
+        if (distance <= mTolerance) {
+            if (mHasCone && !insideCone(direction)) {
+                // Close to the anchor, but the line to it misses the dropped fixes
+                keep(mPending);
+                add(index);
+                return;
+            }
+            // Any line from the anchor passes close enough to this fix
+            setPending(index, distance);
+            return;
+        }
+
+        if (!mHasCone) {
+            mHasCone = true;
+            mConeBase = direction;
+            mConeLow = -Math.PI;
+            mConeHigh = Math.PI;
+        }
+
+        if (!insideCone(direction)) {
+            // Dropping this fix's predecessor would exceed the tolerance
+            keep(mPending);
+            add(index);
+            return;
+        }
+
+        double relative = normalize(direction - mConeBase);
+        double halfWidth = Math.asin(mTolerance / distance);
+        mConeLow = Math.max(mConeLow, relative - halfWidth);
+        mConeHigh = Math.min(mConeHigh, relative + halfWidth);
+        setPending(index, distance);
+    }
+
+    /**
+     * Keeps the last fix before a pause so the line doesn't cut across it
+     */
+    public void breakSegment() {
+        flush();
+        mHasAnchor = false;
+    }
+
+    /**
+     * Writes the most recent fix to the output; call before exporting
+     */
+    public void flush() {
+        if (mPending >= 0) {
+            keep(mPending);
+        }
+    }
+
+    public void reset() {
+        mOutput.clear();
+        mHasAnchor = false;
+        mHasCone = false;
+        mPending = -1;
+    }
+
+    private void keep(int index) {
+        mOutput.append(mSource.getLatitude(index), mSource.getLongitude(index),
+            mSource.getAltitude(index), mSource.getTime(index),
+            mSource.getSpeed(index), mSource.getAccuracy(index));
+
+        mHasAnchor = true;
+        mAnchorLatitude = mSource.getLatitude(index);
+        mAnchorLongitude = mSource.getLongitude(index);
+        mAnchorTime = mSource.getTime(index);
+        mMetersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(mAnchorLatitude));
+        mHasCone = false;
+        mMaxDistance = 0.0;
+        mPending = -1;
+    }
+
+    private void setPending(int index, double distance) {
+        mPending = index;
+        mMaxDistance = Math.max(mMaxDistance, distance);
+    }
+
+    private boolean insideCone(double direction) {
+        double relative = normalize(direction - mConeBase);
+        return relative >= mConeLow && relative <= mConeHigh;
+    }
+
+    private static double normalize(double angle) {
+        while (angle > Math.PI) angle -= 2 * Math.PI;
+        while (angle <= -Math.PI) angle += 2 * Math.PI;
+        return angle;
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.glassstrava.api;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.glassstrava.api.StravaClient.PRIORITY_BACKGROUND;
+import static com.example.glassstrava.api.StravaClient.PRIORITY_BROWSE;
+import static com.example.glassstrava.api.StravaClient.PRIORITY_LIVE_SEGMENT;
+import static com.example.glassstrava.api.StravaClient.PRIORITY_NAVIGATION;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestSchedulerTest {
+    private static final long SHORT_WINDOW = 15 * 60 * 1000;
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    // A minute into a day, so into both windows
+    private static final long START = 20000 * DAY + 60 * 1000;
+
+    /**
+     * Scheduler on a clock set by the test, which still runs while it waits
+     */
+    private static class Scheduler extends RequestScheduler {
+        private volatile long mOffset;
+
+        Scheduler() {
+            at(START);
+        }
+
+        void at(long time) {
+            mOffset = time - System.currentTimeMillis();
+        }
+
+        @Override
+        long now() {
+            return System.currentTimeMillis() + mOffset;
+        }
+    }
+
+    /**
+     * A navigation read answered with the given rate limit headers
+     */
+    private static void respond(RequestScheduler scheduler, int code, String limit, String usage,
+                                String readLimit, String readUsage) throws RateLimitedException {
+        scheduler.acquire(PRIORITY_NAVIGATION, true);
+        scheduler.onResponse(true, code, limit, usage, readLimit, readUsage);
+        scheduler.release();
+    }
+
+    private static void respond(RequestScheduler scheduler, String usage)
+            throws RateLimitedException {
+        respond(scheduler, 200, "100,1000", usage, null, null);
+    }
+
+    /**
+     * Whether a request would be sent now, without using any budget
+     */
+    private static boolean allows(RequestScheduler scheduler, int priority, boolean read) {
+        try {
+            scheduler.acquire(priority, read);
+        } catch (RateLimitedException e) {
+            return false;
+        }
+        scheduler.onFailure(read);
+        scheduler.release();
+        return true;
+    }
+
+    private static boolean allows(RequestScheduler scheduler, int priority) {
+        return allows(scheduler, priority, true);
+    }
+
+    @Test
+    public void lowerPrioritiesLeaveAReserve() throws RateLimitedException {
+        Scheduler scheduler = new Scheduler();
+        respond(scheduler, "59,100");
+        assertTrue(allows(scheduler, PRIORITY_BACKGROUND));
+
+        respond(scheduler, "60,100");
+        assertFalse(allows(scheduler, PRIORITY_BACKGROUND));
+        assertTrue(allows(scheduler, PRIORITY_BROWSE));
+
+        respond(scheduler, "75,100");
+        assertFalse(allows(scheduler, PRIORITY_BROWSE));
+        assertTrue(allows(scheduler, PRIORITY_LIVE_SEGMENT));
+
+        respond(scheduler, "90,100");
+        assertFalse(allows(scheduler, PRIORITY_LIVE_SEGMENT));
+        assertTrue(allows(scheduler, PRIORITY_NAVIGATION));
+
+        respond(scheduler, "99,100");
+        assertTrue(allows(scheduler, PRIORITY_NAVIGATION));
+        assertEquals(1, scheduler.getShortWindowRemaining());
+        assertEquals(3, scheduler.getRefusedCount());
+    }
+
+    @Test
+    public void refusalsSayWhenTheWindowResets() throws RateLimitedException {
+        Scheduler scheduler = new Scheduler();
+        respond(scheduler, "100,100");
+        try {
+            // Navigation only waits a minute, and the reset is 14 away
+            scheduler.acquire(PRIORITY_NAVIGATION, true);
+            fail();
+        } catch (RateLimitedException e) {
+            assertEquals(START - 60 * 1000 + SHORT_WINDOW, e.getRetryAt());
+        }
+
+        // The day's budget is what's short
+        Scheduler daily = new Scheduler();
+        respond(daily, "10,1000");
+        try {
+            daily.acquire(PRIORITY_NAVIGATION, true);
+            fail();
+        } catch (RateLimitedException e) {
+            assertEquals(START - 60 * 1000 + DAY, e.getRetryAt());
+        }
+    }
+
+    @Test
+    public void requestsInFlightCount() throws RateLimitedException {
+        Scheduler scheduler = new Scheduler();
+        respond(scheduler, "57,100");
+        // Sent, but not yet in the reported usage
+        for (int i = 0; i < 3; i++) {
+            scheduler.acquire(PRIORITY_BACKGROUND, true);
+        }
+        assertEquals(40, scheduler.getShortWindowRemaining());
+        assertFalse(allows(scheduler, PRIORITY_BACKGROUND));
+        assertTrue(allows(scheduler, PRIORITY_BROWSE));
+
+        // Answered, and now counted by Strava instead
+        scheduler.onResponse(true, 200, "100,1000", "58,100", null, null);
+        scheduler.release();
+        assertEquals(40, scheduler.getShortWindowRemaining());
+    }
+
+    @Test
+    public void usageFromAnEarlierWindowIsForgotten() throws RateLimitedException {
+        Scheduler scheduler = new Scheduler();
+        respond(scheduler, "100,100");
+        assertFalse(allows(scheduler, PRIORITY_BACKGROUND));
+
+        scheduler.at(START - 60 * 1000 + SHORT_WINDOW);
+        assertTrue(allows(scheduler, PRIORITY_BACKGROUND));
+        assertEquals(100, scheduler.getShortWindowRemaining());
+    }
+
+    @Test
+    public void lateResponsesDontLowerUsage() throws RateLimitedException {
+        Scheduler scheduler = new Scheduler();
+        respond(scheduler, "80,100");
+        respond(scheduler, "70,100");
+        assertEquals(20, scheduler.getShortWindowRemaining());
+        assertFalse(allows(scheduler, PRIORITY_BROWSE));
+
+        // But a new window starts low
+        scheduler.at(START - 60 * 1000 + SHORT_WINDOW + 1000);
+        respond(scheduler, "3,103");
+        assertEquals(97, scheduler.getShortWindowRemaining());
+    }
+
+    @Test
+    public void limitsComeFromTheHeaders() throws RateLimitedException {
+        Scheduler scheduler = new Scheduler();
+        assertEquals(100, scheduler.getShortWindowRemaining());
+        respond(scheduler, 200, "600,30000", "100,1000", null, null);
+        assertEquals(500, scheduler.getShortWindowRemaining());
+
+        // Malformed or missing headers change nothing
+        respond(scheduler, 200, "600,30000", "lots,1000", null, null);
+        respond(scheduler, 200, null, "200,1000", null, null);
+        assertEquals(500, scheduler.getShortWindowRemaining());
+    }
+
+    @Test
+    public void aBare429SpendsTheWindow() throws RateLimitedException {
+        Scheduler scheduler = new Scheduler();
+        respond(scheduler, 429, null, null, null, null);
+        assertEquals(0, scheduler.getShortWindowRemaining());
+        assertFalse(allows(scheduler, PRIORITY_LIVE_SEGMENT));
+
+        scheduler.at(START - 60 * 1000 + SHORT_WINDOW);
+        assertTrue(allows(scheduler, PRIORITY_LIVE_SEGMENT));
+    }
+
+    @Test
+    public void readLimitsOnlyHoldBackReads() throws RateLimitedException {
+        Scheduler scheduler = new Scheduler();
+        respond(scheduler, 200, "200,2000", "10,10", "100,1000", "80,80");
+        assertFalse(allows(scheduler, PRIORITY_BROWSE, true));
+        assertTrue(allows(scheduler, PRIORITY_BROWSE, false));
+    }
+
+    @Test(timeout = 10000)
+    public void navigationWaitsForAResetThatIsClose() throws RateLimitedException {
+        Scheduler scheduler = new Scheduler();
+        respond(scheduler, "100,100");
+        long reset = START - 60 * 1000 + SHORT_WINDOW;
+        scheduler.at(reset - 300);
+
+        assertFalse(allows(scheduler, PRIORITY_LIVE_SEGMENT));
+        long start = System.currentTimeMillis();
+        scheduler.acquire(PRIORITY_NAVIGATION, true);
+        assertTrue(scheduler.now() >= reset);
+        assertTrue(System.currentTimeMillis() - start >= 250);
+    }
+
+    @Test(timeout = 10000)
+    public void freedSlotsGoToTheHighestPriority() throws Exception {
+        final Scheduler scheduler = new Scheduler();
+        // Every dispatch slot busy
+        for (int i = 0; i < 4; i++) {
+            scheduler.acquire(PRIORITY_NAVIGATION, true);
+        }
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        Thread[] threads = new Thread[3];
+        int[] priorities = {PRIORITY_BACKGROUND, PRIORITY_NAVIGATION, PRIORITY_BROWSE};
+        for (int i = 0; i < threads.length; i++) {
+            final int priority = priorities[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scheduler.acquire(priority, true);
+                        order.add(priority);
+                    } catch (RateLimitedException e) {
+                        order.add(-1);
+                    }
+                }
+            });
+            threads[i].start();
+            while (threads[i].getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+
+        scheduler.release();
+        threads[1].join();
+        assertEquals(Collections.singletonList(PRIORITY_NAVIGATION), order);
+        scheduler.release();
+        threads[2].join();
+        scheduler.release();
+        threads[0].join();
+        assertEquals(Arrays.asList(PRIORITY_NAVIGATION, PRIORITY_BROWSE, PRIORITY_BACKGROUND),
+            order);
+    }
+}
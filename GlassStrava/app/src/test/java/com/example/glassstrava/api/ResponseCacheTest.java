@@ -0,0 +1,149 @@
+package com.example.glassstrava.api;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ResponseCacheTest {
+    private static final String URL = "https://www.strava.com/api/v3/routes/123";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] body(int length, int seed) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 31 + seed);
+        }
+        return body;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void store(ResponseCache cache, String url, String eTag, byte[] body)
+            throws IOException {
+        ResponseCache.Writer writer = cache.edit(url, eTag);
+        writer.out.write(body);
+        writer.commit();
+    }
+
+    @Test
+    public void storesTheBodyWithItsETag() throws IOException {
+        ResponseCache cache = new ResponseCache(mFolder.newFolder(), 1 << 20);
+        assertNull(cache.getETag(URL));
+        assertNull(cache.open(URL));
+
+        byte[] body = body(10000, 1);
+        store(cache, URL, "\"abc\"", body);
+        assertEquals("\"abc\"", cache.getETag(URL));
+        assertArrayEquals(body, readFully(cache.open(URL)));
+        assertNull(cache.getETag(URL + "?page=2"));
+
+        // Replaced by a newer version
+        store(cache, URL, "\"def\"", body(20, 2));
+        assertEquals("\"def\"", cache.getETag(URL));
+        assertArrayEquals(body(20, 2), readFully(cache.open(URL)));
+
+        cache.remove(URL);
+        assertNull(cache.getETag(URL));
+    }
+
+    @Test
+    public void abortedBodiesLeaveTheOldEntry() throws IOException {
+        File dir = mFolder.newFolder();
+        ResponseCache cache = new ResponseCache(dir, 1 << 20);
+        store(cache, URL, "\"abc\"", body(100, 1));
+
+        ResponseCache.Writer writer = cache.edit(URL, "\"def\"");
+        writer.out.write(body(50, 2));
+        writer.abort();
+        assertEquals("\"abc\"", cache.getETag(URL));
+        assertArrayEquals(body(100, 1), readFully(cache.open(URL)));
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void concurrentWritersDontMix() throws IOException {
+        File dir = mFolder.newFolder();
+        ResponseCache cache = new ResponseCache(dir, 1 << 20);
+        ResponseCache.Writer first = cache.edit(URL, "\"abc\"");
+        ResponseCache.Writer second = cache.edit(URL, "\"def\"");
+        ResponseCache.Writer third = cache.edit(URL, "\"ghi\"");
+        byte[] body = body(6000, 1);
+        first.out.write(body, 0, 3000);
+        second.out.write(body(2000, 2));
+        third.out.write(body(1000, 3));
+        first.out.write(body, 3000, 3000);
+
+        third.abort();
+        second.commit();
+        assertEquals("\"def\"", cache.getETag(URL));
+        assertArrayEquals(body(2000, 2), readFully(cache.open(URL)));
+        // The last to finish wins, whole
+        first.commit();
+        assertEquals("\"abc\"", cache.getETag(URL));
+        assertArrayEquals(body, readFully(cache.open(URL)));
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void unfinishedBodiesAreClearedOnOpening() throws IOException {
+        File dir = mFolder.newFolder();
+        ResponseCache cache = new ResponseCache(dir, 1 << 20);
+        store(cache, URL, "\"abc\"", body(100, 1));
+        cache.edit(URL, "\"def\"").out.write(body(100, 2));
+        assertEquals(2, dir.listFiles().length);
+
+        cache = new ResponseCache(dir, 1 << 20);
+        assertEquals(1, dir.listFiles().length);
+        assertArrayEquals(body(100, 1), readFully(cache.open(URL)));
+    }
+
+    @Test
+    public void trimsTheLeastRecentlyUsedFirst() throws IOException {
+        File dir = mFolder.newFolder();
+        ResponseCache cache = new ResponseCache(dir, 2500);
+        long now = System.currentTimeMillis();
+        String[] urls = {URL + "/a", URL + "/b", URL + "/c"};
+        for (int i = 0; i < urls.length; i++) {
+            store(cache, urls[i], "\"" + i + "\"", body(1000, i));
+            // Ten seconds apart, for file systems that round to the second
+            for (File file : dir.listFiles()) {
+                if (file.lastModified() > now - 1000) file.setLastModified(now - 10000 * (3 - i));
+            }
+        }
+        // Over the limit when the third arrived, so the first went
+        assertNull(cache.getETag(urls[0]));
+        assertEquals("\"1\"", cache.getETag(urls[1]));
+        assertEquals("\"2\"", cache.getETag(urls[2]));
+
+        // Revalidating an entry keeps it over ones that aren't
+        readFully(cache.open(urls[1]));
+        store(cache, URL + "/d", "\"3\"", body(1000, 3));
+        assertEquals("\"1\"", cache.getETag(urls[1]));
+        assertNull(cache.getETag(urls[2]));
+        assertArrayEquals(body(1000, 3), readFully(cache.open(URL + "/d")));
+        assertEquals(2, dir.list().length);
+    }
+}
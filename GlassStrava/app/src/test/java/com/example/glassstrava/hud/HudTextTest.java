@@ -0,0 +1,181 @@
+package com.example.glassstrava.hud;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HudTextTest {
+    /**
+     * Records what would have been handed to the TextView
+     */
+    private static class Field extends HudText {
+        final List<String> events = new ArrayList<>();
+        char[] lastArray;
+        int lastLength;
+
+        Field() {
+            super(null);
+        }
+
+        @Override
+        void setText(char[] text, int length) {
+            events.add(new String(text, 0, length));
+            lastArray = text;
+            lastLength = length;
+        }
+
+        @Override
+        void setVisible(boolean visible) {
+            events.add(visible ? "visible" : "gone");
+        }
+
+        String shown() {
+            return new String(lastArray, 0, lastLength);
+        }
+    }
+
+    private static String format(double value, int decimals) {
+        Field field = new Field();
+        field.begin().append(value, decimals).commit();
+        return field.shown();
+    }
+
+    private static String format(long value) {
+        Field field = new Field();
+        field.begin().append(value).commit();
+        return field.shown();
+    }
+
+    @Test
+    public void integersMatchLongToString() {
+        long[] values = {0, 1, -1, 9, 10, -10, 99, 100, 1234567890L,
+            Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1, Integer.MIN_VALUE};
+        for (long value : values) {
+            assertEquals(Long.toString(value), format(value));
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >> random.nextInt(64);
+            assertEquals(Long.toString(value), format(value));
+        }
+    }
+
+    @Test
+    public void decimalsMatchStringFormat() {
+        Random random = new Random(2);
+        for (int i = 0; i < 200000; i++) {
+            int decimals = random.nextInt(4);
+            // Speeds, distances and grades: mostly small, a few large
+            double value = (random.nextDouble() - 0.3) * Math.pow(10, random.nextInt(6));
+            String expected = String.format(Locale.US, "%." + decimals + "f", value);
+            if (expected.matches("-0(\\.0*)?")) continue;
+            assertEquals(expected, format(value, decimals));
+        }
+    }
+
+    @Test
+    public void roundsHalfAwayFromZero() {
+        assertEquals("3", format(2.5, 0));
+        assertEquals("-3", format(-2.5, 0));
+        assertEquals("0.3", format(0.25, 1));
+        assertEquals("1.0", format(0.95, 1));
+        assertEquals("12.35", format(12.345, 2));
+        assertEquals("7", format(7.0, 0));
+        assertEquals("7.000", format(7.0, 3));
+    }
+
+    @Test
+    public void carriesIntoTheWholePart() {
+        assertEquals("10.0", format(9.96, 1));
+        assertEquals("10.00", format(9.999, 2));
+        assertEquals("100", format(99.5, 0));
+        assertEquals("1.0", format(0.951, 1));
+        assertEquals("-10.0", format(-9.96, 1));
+        assertEquals("1000.00", format(999.996, 2));
+    }
+
+    @Test
+    public void negativeZeroHasNoSign() {
+        assertEquals("0.0", format(-0.0, 1));
+        assertEquals("0.0", format(-0.04, 1));
+        assertEquals("0", format(-0.4, 0));
+        assertEquals("0.00", format(-0.001, 2));
+        assertEquals("-0.1", format(-0.05, 1));
+        assertEquals("0", format(-0L));
+    }
+
+    @Test
+    public void nonNumbersAreADash() {
+        assertEquals("-", format(Double.NaN, 1));
+        assertEquals("-", format(Double.POSITIVE_INFINITY, 0));
+        assertEquals("-", format(Double.NEGATIVE_INFINITY, 2));
+    }
+
+    @Test
+    public void truncatesAtCapacity() {
+        StringBuilder expected = new StringBuilder();
+        Field field = new Field();
+        field.begin();
+        for (int i = 0; i < 10; i++) {
+            field.append("Climb ").append(1234567L);
+            expected.append("Climb ").append(1234567L);
+        }
+        field.append('x').append(2.5, 1);
+        assertTrue(field.commit());
+        assertEquals(HudText.CAPACITY, field.shown().length());
+        // The number cut off at the end keeps its leading digits
+        assertEquals(expected.substring(0, HudText.CAPACITY), field.shown());
+
+        field.begin().append("-");
+        for (int i = 0; i < HudText.CAPACITY - 3; i++) {
+            field.append('a');
+        }
+        field.append(-987L).append(Long.MIN_VALUE);
+        field.commit();
+        assertTrue(field.shown().endsWith("aa-9"));
+        assertEquals(HudText.CAPACITY, field.shown().length());
+    }
+
+    @Test
+    public void commitsOnlyChangesIntoAlternateBuffers() {
+        Field field = new Field();
+        assertTrue(field.begin().append("Turn left in ").append(120L).append(" m").commit());
+        assertEquals("[visible, Turn left in 120 m]", field.events.toString());
+        char[] first = field.lastArray;
+
+        // Same text: nothing handed over
+        assertFalse(field.begin().append("Turn left in ").append(120L).append(" m").commit());
+        assertEquals(2, field.events.size());
+
+        // Changed: the other buffer, leaving the one the view holds intact
+        assertTrue(field.begin().append("Turn left in ").append(110L).append(" m").commit());
+        char[] second = field.lastArray;
+        assertNotSame(first, second);
+        assertEquals("Turn left in 120 m", new String(first, 0, 18));
+        assertEquals("Turn left in 110 m", field.shown());
+        field.begin().append("Turn left in ").append(100L).append(" m");
+        assertEquals("Turn left in 110 m", field.shown());
+        field.commit();
+        assertSame(first, field.lastArray);
+
+        // A prefix of what is shown is a change
+        assertTrue(field.begin().append("Turn left").commit());
+        assertEquals("Turn left", field.shown());
+
+        // Empty hides the view, and it is shown again with the next text
+        assertTrue(field.begin().commit());
+        assertFalse(field.begin().commit());
+        assertTrue(field.begin().append("Arrive").commit());
+        List<String> tail = field.events.subList(field.events.size() - 3, field.events.size());
+        assertEquals("[gone, visible, Arrive]", tail.toString());
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.glassstrava.location;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays noisy copies of ground-truth tracks through the recording pipeline
+ * and compares the resulting distance with the true one
+ */
+public class FixPipelineTest {
+    static final double LATITUDE = 37.7749;
+    static final double LONGITUDE = -122.4194;
+    private static final double EARTH_RADIUS = 6371008.8;
+    private static final double METERS_PER_DEGREE = 111319.49;
+
+    static Fix fix(double north, double east, long time, float accuracy) {
+        Fix fix = new Fix();
+        fix.latitude = LATITUDE + north / METERS_PER_DEGREE;
+        fix.longitude = LONGITUDE
+            + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+        fix.altitude = Double.NaN;
+        fix.time = time;
+        fix.speed = Float.NaN;
+        fix.accuracy = accuracy;
+        fix.fromGps = true;
+        return fix;
+    }
+
+    static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+            + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+            * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(a));
+    }
+
+    /**
+     * A ground-truth track and its replay through a pipeline
+     */
+    private static class Replay {
+        double trueDistance;
+        double rawDistance;
+        double filteredDistance;
+        int accepted;
+
+        private double mTrueLat = Double.NaN;
+        private double mTrueLon;
+        private double mRawLat = Double.NaN;
+        private double mRawLon;
+        private double mLat = Double.NaN;
+        private double mLon;
+
+        void truth(Fix fix) {
+            if (!Double.isNaN(mTrueLat)) {
+                trueDistance += haversine(mTrueLat, mTrueLon, fix.latitude, fix.longitude);
+            }
+            mTrueLat = fix.latitude;
+            mTrueLon = fix.longitude;
+        }
+
+        void raw(Fix fix) {
+            if (!Double.isNaN(mRawLat)) {
+                rawDistance += haversine(mRawLat, mRawLon, fix.latitude, fix.longitude);
+            }
+            mRawLat = fix.latitude;
+            mRawLon = fix.longitude;
+        }
+
+        void filtered(Fix fix) {
+            accepted++;
+            if (!Double.isNaN(mLat)) {
+                filteredDistance += haversine(mLat, mLon, fix.latitude, fix.longitude);
+            }
+            mLat = fix.latitude;
+            mLon = fix.longitude;
+        }
+
+        double rawError() {
+            return Math.abs(rawDistance - trueDistance) / trueDistance;
+        }
+
+        double filteredError() {
+            return Math.abs(filteredDistance - trueDistance) / trueDistance;
+        }
+    }
+
+    /**
+     * Replays a track given as one {north, east} meter position per second,
+     * with gaussian noise of {@code sigma} meters per axis and a teleport of
+     * {@code jump} meters every {@code jumpEvery} fixes (0 for none)
+     */
+    private static Replay replay(FixPipeline pipeline, double[][] track, double sigma,
+                                 int jumpEvery, double jump, long seed) {
+        Random random = new Random(seed);
+        Replay replay = new Replay();
+        for (int i = 0; i < track.length; i++) {
+            long time = 1000L * i;
+            replay.truth(fix(track[i][0], track[i][1], time, 0));
+
+            double north = track[i][0] + random.nextGaussian() * sigma;
+            double east = track[i][1] + random.nextGaussian() * sigma;
+            float accuracy = (float) (2 * sigma);
+            if (jumpEvery > 0 && i % jumpEvery == jumpEvery - 1) {
+                north += jump;
+            }
+            Fix fix = fix(north, east, time, accuracy);
+            replay.raw(fix);
+            if (pipeline.process(fix)) {
+                replay.filtered(fix);
+            }
+        }
+        return replay;
+    }
+
+    /**
+     * Straight line north at a constant speed, one position per second
+     */
+    private static double[][] straight(int seconds, double speed) {
+        double[][] track = new double[seconds][];
+        for (int i = 0; i < seconds; i++) {
+            track[i] = new double[] {i * speed, 0};
+        }
+        return track;
+    }
+
+    /**
+     * Laps of a circle of the given radius
+     */
+    private static double[][] circle(int seconds, double speed, double radius) {
+        double[][] track = new double[seconds][];
+        for (int i = 0; i < seconds; i++) {
+            double angle = i * speed / radius;
+            track[i] = new double[] {radius * Math.sin(angle), radius * (1 - Math.cos(angle))};
+        }
+        return track;
+    }
+
+    @Test
+    public void smoothingCutsTheDistanceErrorOfANoisyRun() {
+        Replay replay = replay(FixPipeline.forActivityType("Run"), straight(1800, 3), 4,
+            0, 0, 1);
+
+        assertEquals(1800, replay.accepted);
+        // Jitter adds a lot of zigzag to the raw track
+        assertTrue("raw error " + replay.rawError(), replay.rawError() > 0.5);
+        // Some jitter survives at running speed, but less than a fifth of it
+        assertTrue("filtered error " + replay.filteredError(), replay.filteredError() < 0.25);
+        assertTrue(replay.filteredError() * 5 < replay.rawError());
+    }
+
+    @Test
+    public void smoothingFollowsCurves() {
+        // 100 m radius laps on a bike at 8 m/s
+        Replay replay = replay(FixPipeline.forActivityType("Ride"), circle(1200, 8, 100), 3,
+            0, 0, 2);
+
+        assertTrue("raw error " + replay.rawError(), replay.rawError() > 0.1);
+        assertTrue("filtered error " + replay.filteredError(), replay.filteredError() < 0.05);
+        assertTrue(replay.filteredError() * 3 < replay.rawError());
+    }
+
+    @Test
+    public void teleportsDontAddDistance() {
+        FixPipeline pipeline = FixPipeline.forActivityType("Walk");
+        // A 500 m jump every minute of a walk
+        Replay replay = replay(pipeline, straight(1200, 1.4), 2, 60, 500, 3);
+
+        assertEquals(20, pipeline.getRejectedCount());
+        assertEquals(1180, pipeline.getAcceptedCount());
+        assertTrue("raw error " + replay.rawError(), replay.rawError() > 10);
+        // What is left is walking-speed jitter, as in the run above
+        assertTrue("filtered error " + replay.filteredError(), replay.filteredError() < 0.3);
+    }
+
+    @Test
+    public void gatesInaccurateFixesBeforeTheLaterStages() {
+        final int[] seen = new int[1];
+        FixFilter counter = new FixFilter() {
+            @Override
+            public boolean process(Fix fix) {
+                seen[0]++;
+                return true;
+            }
+
+            @Override
+            public void reset() {}
+        };
+        FixPipeline pipeline = new FixPipeline(new AccuracyGate(30), counter);
+
+        assertTrue(pipeline.process(fix(0, 0, 0, 30)));
+        assertFalse(pipeline.process(fix(0, 0, 1000, 30.5f)));
+        // No accuracy reported at all
+        assertFalse(pipeline.process(fix(0, 0, 2000, Float.NaN)));
+        assertEquals(1, seen[0]);
+        assertEquals(1, pipeline.getAcceptedCount());
+        assertEquals(2, pipeline.getRejectedCount());
+    }
+
+    @Test
+    public void resetForgetsTheAnchorAfterAPause() {
+        FixPipeline pipeline = FixPipeline.forActivityType("Run");
+        assertTrue(pipeline.process(fix(0, 0, 0, 5)));
+        // A kilometer away ten seconds later is a teleport while running...
+        assertFalse(pipeline.process(fix(1000, 0, 10000, 5)));
+        // ...but not after resuming from a pause
+        pipeline.reset();
+        Fix fix = fix(1000, 0, 10000, 5);
+        double latitude = fix.latitude;
+        assertTrue(pipeline.process(fix));
+        assertEquals("first fix after a reset isn't smoothed", latitude, fix.latitude, 0);
+    }
+}
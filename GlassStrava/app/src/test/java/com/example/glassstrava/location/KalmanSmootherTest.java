@@ -0,0 +1,92 @@
+package com.example.glassstrava.location;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.example.glassstrava.location.FixPipelineTest.LATITUDE;
+import static com.example.glassstrava.location.FixPipelineTest.LONGITUDE;
+import static com.example.glassstrava.location.FixPipelineTest.fix;
+import static com.example.glassstrava.location.FixPipelineTest.haversine;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KalmanSmootherTest {
+
+    @Test
+    public void settlesOnAStationaryPosition() {
+        KalmanSmoother smoother = new KalmanSmoother(1.0);
+        Random random = new Random(7);
+        double rawError = 0;
+        double smoothedError = 0;
+        for (int i = 0; i < 300; i++) {
+            Fix fix = fix(random.nextGaussian() * 5, random.nextGaussian() * 5, 1000L * i, 10);
+            double raw = haversine(LATITUDE, LONGITUDE, fix.latitude, fix.longitude);
+            smoother.process(fix);
+            if (i >= 60) {
+                rawError += raw;
+                smoothedError += haversine(LATITUDE, LONGITUDE, fix.latitude, fix.longitude);
+            }
+        }
+        assertTrue("smoothed " + smoothedError + " raw " + rawError,
+            smoothedError * 1.5 < rawError);
+    }
+
+    @Test
+    public void tracksAConstantVelocity() {
+        KalmanSmoother smoother = new KalmanSmoother(1.0);
+        Random random = new Random(8);
+        Fix fix = null;
+        for (int i = 0; i < 120; i++) {
+            fix = fix(5.0 * i + random.nextGaussian() * 3, random.nextGaussian() * 3,
+                1000L * i, 6);
+            smoother.process(fix);
+        }
+        Fix truth = fix(5.0 * 119, 0, 0, 0);
+        assertEquals(0, haversine(truth.latitude, truth.longitude, fix.latitude, fix.longitude),
+            3);
+    }
+
+    @Test
+    public void restartsAfterALongGap() {
+        KalmanSmoother smoother = new KalmanSmoother(1.0);
+        smoother.process(fix(0, 0, 0, 5));
+        smoother.process(fix(1, 0, 1000, 5));
+
+        Fix fix = fix(100, 0, 32000, 5);
+        double latitude = fix.latitude;
+        smoother.process(fix);
+        assertEquals(latitude, fix.latitude, 0);
+    }
+
+    @Test
+    public void passesThroughFixesAtTheSameInstant() {
+        KalmanSmoother smoother = new KalmanSmoother(1.0);
+        smoother.process(fix(0, 0, 0, 5));
+        smoother.process(fix(1, 0, 1000, 5));
+
+        Fix fix = fix(3, 2, 1000, 20);
+        double latitude = fix.latitude;
+        double longitude = fix.longitude;
+        smoother.process(fix);
+        assertEquals(latitude, fix.latitude, 0);
+        assertEquals(longitude, fix.longitude, 0);
+    }
+
+    @Test
+    public void preciseFixesPullHarder() {
+        KalmanSmoother sloppy = new KalmanSmoother(1.0);
+        KalmanSmoother precise = new KalmanSmoother(1.0);
+        for (int i = 0; i < 10; i++) {
+            sloppy.process(fix(0, 0, 1000L * i, 5));
+            precise.process(fix(0, 0, 1000L * i, 5));
+        }
+        Fix sloppyFix = fix(10, 0, 10000, 30);
+        Fix preciseFix = fix(10, 0, 10000, 2);
+        sloppy.process(sloppyFix);
+        precise.process(preciseFix);
+
+        assertTrue(preciseFix.latitude > sloppyFix.latitude);
+        assertTrue(sloppyFix.latitude > LATITUDE);
+    }
+}
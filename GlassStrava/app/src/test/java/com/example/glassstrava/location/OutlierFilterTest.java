@@ -0,0 +1,55 @@
+package com.example.glassstrava.location;
+
+import org.junit.Test;
+
+import static com.example.glassstrava.location.FixPipelineTest.fix;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutlierFilterTest {
+
+    @Test
+    public void rejectsFixesFasterThanTheActivityAllows() {
+        OutlierFilter filter = new OutlierFilter(10);
+        assertTrue(filter.process(fix(0, 0, 0, 0)));
+        assertTrue(filter.process(fix(9.5, 0, 1000, 0)));
+        assertFalse(filter.process(fix(30.5, 0, 2000, 0)));
+        // Measured from the last accepted fix, two seconds earlier
+        assertTrue(filter.process(fix(9.5, 19, 3000, 0)));
+    }
+
+    @Test
+    public void allowsForTheAccuracyOfBothFixes() {
+        OutlierFilter filter = new OutlierFilter(10);
+        assertTrue(filter.process(fix(0, 0, 0, 8)));
+        assertTrue(filter.process(fix(25, 0, 1000, 8)));
+        assertFalse(filter.process(fix(25 + 27, 0, 2000, 8)));
+    }
+
+    @Test
+    public void reanchorsAfterRepeatedRejections() {
+        OutlierFilter filter = new OutlierFilter(10);
+        // A bad first fix a kilometer off
+        assertTrue(filter.process(fix(1000, 0, 0, 5)));
+        for (int i = 1; i <= 5; i++) {
+            assertFalse(filter.process(fix(i, 0, 1000L * i, 5)));
+        }
+        assertTrue(filter.process(fix(6, 0, 6000, 5)));
+        assertTrue(filter.process(fix(9, 0, 7000, 5)));
+    }
+
+    @Test
+    public void sameInstantCountsAsOneMillisecond() {
+        OutlierFilter filter = new OutlierFilter(10);
+        assertTrue(filter.process(fix(0, 0, 5000, 3)));
+        assertFalse(filter.process(fix(0, 20, 5000, 3)));
+    }
+
+    @Test
+    public void resetDropsTheAnchor() {
+        OutlierFilter filter = new OutlierFilter(10);
+        assertTrue(filter.process(fix(0, 0, 0, 5)));
+        filter.reset();
+        assertTrue(filter.process(fix(5000, 0, 1000, 5)));
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.glassstrava.location;
+
+import org.junit.Test;
+
+import static com.example.glassstrava.location.FixPipelineTest.fix;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProviderArbiterTest {
+
+    private static Fix network(long time) {
+        Fix fix = fix(0, 0, time, 40);
+        fix.fromGps = false;
+        return fix;
+    }
+
+    @Test
+    public void usesNetworkFixesUntilGpsArrives() {
+        ProviderArbiter arbiter = new ProviderArbiter(5000);
+        assertTrue(arbiter.process(network(0)));
+        assertTrue(arbiter.process(network(1000)));
+        assertTrue(arbiter.process(fix(0, 0, 2000, 5)));
+        assertFalse(arbiter.process(network(3000)));
+    }
+
+    @Test
+    public void bridgesGpsOutagesWithNetworkFixes() {
+        ProviderArbiter arbiter = new ProviderArbiter(5000);
+        assertTrue(arbiter.process(fix(0, 0, 10000, 5)));
+        assertFalse(arbiter.process(network(15000)));
+        assertTrue(arbiter.process(network(15001)));
+        // GPS is back
+        assertTrue(arbiter.process(fix(0, 0, 16000, 5)));
+        assertFalse(arbiter.process(network(17000)));
+    }
+
+    @Test
+    public void widerWindowCoversSlowerGps() {
+        // GPS every 10 s, as while paused, with the window at twice that
+        ProviderArbiter arbiter = new ProviderArbiter(5000);
+        arbiter.setGpsFreshness(20000);
+        assertTrue(arbiter.process(fix(0, 0, 10000, 5)));
+        assertFalse(arbiter.process(network(16000)));
+        assertTrue(arbiter.process(fix(0, 0, 20000, 5)));
+        assertFalse(arbiter.process(network(26000)));
+        // A real outage still lets network fixes through
+        assertTrue(arbiter.process(network(40001)));
+
+        arbiter.setGpsFreshness(5000);
+        assertTrue(arbiter.process(fix(0, 0, 50000, 5)));
+        assertTrue(arbiter.process(network(55001)));
+    }
+
+    @Test
+    public void resetForgetsTheLastGpsFix() {
+        ProviderArbiter arbiter = new ProviderArbiter(5000);
+        assertTrue(arbiter.process(fix(0, 0, 10000, 5)));
+        arbiter.reset();
+        assertTrue(arbiter.process(network(11000)));
+    }
+}
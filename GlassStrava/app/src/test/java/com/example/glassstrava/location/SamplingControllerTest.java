@@ -0,0 +1,214 @@
+package com.example.glassstrava.location;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SamplingControllerTest {
+    private static final long STEP_MS = 100;
+
+    @Test
+    public void picksTheRateBySpeed() {
+        SamplingController controller = new SamplingController();
+        assertSame(SamplingController.RATE_MOVING, controller.getRate());
+
+        assertTrue(controller.update(9));
+        assertSame(SamplingController.RATE_FAST, controller.getRate());
+
+        controller.update(1);
+        controller.applyNow();
+        assertSame(SamplingController.RATE_SLOW, controller.getRate());
+        controller.update(0.2);
+        controller.applyNow();
+        assertSame(SamplingController.RATE_STILL, controller.getRate());
+    }
+
+    @Test
+    public void speedsUpAtOnceButSlowsDownAfterConsistentFixes() {
+        SamplingController controller = new SamplingController();
+        controller.update(9);
+
+        assertFalse(controller.update(3));
+        // A momentary slowdown is forgotten
+        assertFalse(controller.update(9));
+        assertFalse(controller.update(3));
+        assertFalse(controller.update(3));
+        assertSame(SamplingController.RATE_FAST, controller.getRate());
+        assertTrue(controller.update(3));
+        assertSame(SamplingController.RATE_MOVING, controller.getRate());
+    }
+
+    @Test
+    public void unknownSpeedKeepsTheLastOne() {
+        SamplingController controller = new SamplingController();
+        controller.update(9);
+        for (int i = 0; i < 5; i++) {
+            assertFalse(controller.update(Double.NaN));
+        }
+        assertSame(SamplingController.RATE_FAST, controller.getRate());
+    }
+
+    @Test
+    public void samplesAtFullRateApproachingAnEvent() {
+        SamplingController controller = new SamplingController();
+        controller.update(3);
+        controller.setEventDistance(SamplingController.EVENT_TURN, 61);
+        assertFalse(controller.update(3));
+        controller.setEventDistance(SamplingController.EVENT_TURN, 60);
+        assertTrue(controller.update(3));
+        assertSame(SamplingController.RATE_APPROACH, controller.getRate());
+
+        // At speed the window is fifteen seconds of travel
+        controller.setEventDistance(SamplingController.EVENT_TURN, Double.NaN);
+        controller.setEventDistance(SamplingController.EVENT_SEGMENT, 149);
+        controller.update(10);
+        assertSame(SamplingController.RATE_APPROACH, controller.getRate());
+
+        controller.setEventDistance(SamplingController.EVENT_SEGMENT, Double.NaN);
+        controller.update(10);
+        controller.applyNow();
+        assertSame(SamplingController.RATE_FAST, controller.getRate());
+    }
+
+    @Test
+    public void droppingTheMinimumDistanceIsASpeedUp() {
+        SamplingController controller = new SamplingController();
+        controller.update(9);
+        assertSame(SamplingController.RATE_FAST, controller.getRate());
+
+        // Same interval, no minimum distance: taken on the first fix
+        controller.setEventDistance(SamplingController.EVENT_TURN, 100);
+        assertTrue(controller.update(9));
+        assertSame(SamplingController.RATE_APPROACH, controller.getRate());
+
+        // and the way back still waits
+        controller.setEventDistance(SamplingController.EVENT_TURN, Double.NaN);
+        assertFalse(controller.update(9));
+        assertFalse(controller.update(9));
+        assertSame(SamplingController.RATE_APPROACH, controller.getRate());
+        assertTrue(controller.update(9));
+        assertSame(SamplingController.RATE_FAST, controller.getRate());
+    }
+
+    @Test
+    public void pausedUnlessAnEventIsNear() {
+        SamplingController controller = new SamplingController();
+        controller.setPaused(true);
+        controller.applyNow();
+        assertSame(SamplingController.RATE_PAUSED, controller.getRate());
+
+        controller.setEventDistance(SamplingController.EVENT_SEGMENT, 10);
+        assertTrue(controller.update(0));
+        assertSame(SamplingController.RATE_APPROACH, controller.getRate());
+    }
+
+    /**
+     * Simulated GPS along a route: delivers fixes at the requested rate and
+     * records how far from each turn the closest fix was
+     */
+    private static class Simulation {
+        int fixes;
+        double worstTurnError;
+        double worstGap;
+
+        private final double[] mTurns;
+        private final double[] mTurnError;
+
+        Simulation(double[] turns) {
+            mTurns = turns;
+            mTurnError = new double[turns.length];
+            for (int i = 0; i < turns.length; i++) {
+                mTurnError[i] = Double.MAX_VALUE;
+            }
+        }
+
+        /**
+         * @param profile {seconds, m/s} legs of the ride
+         * @param controller adaptive controller, or null for the fixed 1 s / 2 m request
+         */
+        void run(double[][] profile, SamplingController controller) {
+            long time = 0;
+            long lastFixTime = Long.MIN_VALUE / 2;
+            double position = 0;
+            double lastFixPosition = Double.NaN;
+            long interval = 1000;
+            float minDistance = 2;
+            if (controller != null) {
+                interval = controller.getRate().intervalMillis;
+                minDistance = controller.getRate().minDistance;
+            }
+
+            for (double[] leg : profile) {
+                double speed = leg[1];
+                for (long end = time + (long) (leg[0] * 1000); time < end; time += STEP_MS) {
+                    position += speed * STEP_MS / 1000.0;
+                    boolean moved = Double.isNaN(lastFixPosition)
+                        || position - lastFixPosition >= minDistance;
+                    if (time - lastFixTime < interval || !moved) continue;
+
+                    fixes++;
+                    if (!Double.isNaN(lastFixPosition)) {
+                        worstGap = Math.max(worstGap, position - lastFixPosition);
+                    }
+                    lastFixTime = time;
+                    lastFixPosition = position;
+                    for (int i = 0; i < mTurns.length; i++) {
+                        mTurnError[i] = Math.min(mTurnError[i], Math.abs(mTurns[i] - position));
+                    }
+
+                    if (controller != null) {
+                        controller.setEventDistance(SamplingController.EVENT_TURN,
+                            nextTurn(position) - position);
+                        if (controller.update(speed)) {
+                            interval = controller.getRate().intervalMillis;
+                            minDistance = controller.getRate().minDistance;
+                        }
+                    }
+                }
+            }
+            for (double error : mTurnError) {
+                worstTurnError = Math.max(worstTurnError, error);
+            }
+        }
+
+        private double nextTurn(double position) {
+            for (double turn : mTurns) {
+                if (turn >= position) return turn;
+            }
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Fix count against accuracy at the turns, adaptive vs the old fixed request
+     */
+    @Test
+    public void simulatedRideTradesFixesForAccuracyAwayFromTurns() {
+        // An hour out: riding, stopped at lights, a slow climb, a long café stop
+        double[][] profile = {
+            {900, 9}, {60, 0}, {600, 7}, {900, 3}, {300, 8.5}, {900, 0},
+        };
+        // A turn every couple of kilometers
+        double[] turns = {800, 2500, 5300, 8100, 9400, 12000, 13900, 16800};
+        Simulation fixed = new Simulation(turns);
+        fixed.run(profile, null);
+        Simulation adaptive = new Simulation(turns);
+        adaptive.run(profile, new SamplingController());
+
+        System.out.println(String.format(Locale.US,
+            "SamplingController: fixed %d fixes (turn error %.1f m, gap %.1f m), "
+                + "adaptive %d fixes (turn error %.1f m, gap %.1f m)",
+            fixed.fixes, fixed.worstTurnError, fixed.worstGap,
+            adaptive.fixes, adaptive.worstTurnError, adaptive.worstGap));
+
+        // A fifth fewer fixes, mostly on the slow climb, and every turn seen as closely
+        assertTrue(adaptive.fixes * 5 < fixed.fixes * 4);
+        assertTrue(adaptive.worstTurnError <= fixed.worstTurnError);
+        // Between turns a fix still comes at least every 30 m
+        assertTrue(adaptive.worstGap <= 30);
+    }
+}
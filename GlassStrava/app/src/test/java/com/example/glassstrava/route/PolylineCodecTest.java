@@ -0,0 +1,229 @@
+package com.example.glassstrava.route;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PolylineCodecTest {
+    // The worked example from Google's encoded polyline format documentation
+    private static final String SPEC_POLYLINE = "_p~iF~ps|U_ulLnnqC_mqNvxq`@";
+    private static final double[][] SPEC_POINTS = {
+        {38.5, -120.2}, {40.7, -120.95}, {43.252, -126.453},
+    };
+
+    private static Route route(double[][] points) {
+        double[] latitude = new double[points.length];
+        double[] longitude = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            latitude[i] = points[i][0];
+            longitude[i] = points[i][1];
+        }
+        return new Route(latitude, longitude);
+    }
+
+    /**
+     * A random walk at the given precision, including large jumps and both hemispheres
+     */
+    private static Route randomRoute(Random random, int count, int precision) {
+        double factor = Math.pow(10, precision);
+        double[][] points = new double[count][];
+        long lat = Math.round((random.nextDouble() * 160 - 80) * factor);
+        long lng = Math.round((random.nextDouble() * 340 - 170) * factor);
+        for (int i = 0; i < count; i++) {
+            points[i] = new double[] {lat / factor, lng / factor};
+            long step = random.nextInt(10) == 0 ? (long) factor : 200;
+            lat = Math.max(Math.round(-90 * factor), Math.min(Math.round(90 * factor),
+                lat + (long) (random.nextGaussian() * step)));
+            lng = Math.max(Math.round(-180 * factor), Math.min(Math.round(180 * factor),
+                lng + (long) (random.nextGaussian() * step)));
+        }
+        return route(points);
+    }
+
+    private static void assertSameRoute(Route expected, Route actual, double delta) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getLatitude(i), actual.getLatitude(i), delta);
+            assertEquals(expected.getLongitude(i), actual.getLongitude(i), delta);
+        }
+    }
+
+    @Test
+    public void decodesTheSpecExample() {
+        Route route = PolylineCodec.decode(SPEC_POLYLINE);
+        assertSameRoute(route(SPEC_POINTS), route, 1e-9);
+    }
+
+    @Test
+    public void encodesTheSpecExample() {
+        assertEquals(SPEC_POLYLINE, PolylineCodec.encode(route(SPEC_POINTS)));
+    }
+
+    @Test
+    public void encodesSmallValuesAsTheSpecDoes() {
+        // -179.9832104 from the spec's step-by-step example, on its own
+        StringBuilder sb = new StringBuilder();
+        PolylineCodec.encode(route(new double[][] {{0, -179.9832104}}), 5, sb);
+        assertEquals("?`~oia@", sb.toString());
+        assertEquals("??", PolylineCodec.encode(route(new double[][] {{0, 0}})));
+        assertEquals("", PolylineCodec.encode(route(new double[0][])));
+    }
+
+    @Test
+    public void roundTripsRandomRoutes() {
+        Random random = new Random(1);
+        for (int run = 0; run < 200; run++) {
+            int precision = run % 2 == 0 ? PolylineCodec.PRECISION_5 : PolylineCodec.PRECISION_6;
+            Route route = randomRoute(random, 1 + random.nextInt(300), precision);
+            StringBuilder sb = new StringBuilder();
+            PolylineCodec.encode(route, precision, sb);
+
+            PolylineCodec.Decoder decoder = new PolylineCodec.Decoder(precision, 0);
+            decoder.feed(sb.toString());
+            assertSameRoute(route, decoder.finish(), 0.5 / Math.pow(10, precision));
+        }
+    }
+
+    @Test
+    public void decodesTheSameInAnyChunking() {
+        Random random = new Random(2);
+        Route route = randomRoute(random, 2000, PolylineCodec.PRECISION_5);
+        String encoded = PolylineCodec.encode(route);
+        Route whole = PolylineCodec.decode(encoded);
+
+        // Single characters up to chunks either side of the decoder's own 512
+        for (int size : new int[] {1, 2, 3, 7, 511, 512, 513, 4096}) {
+            PolylineCodec.Decoder decoder = new PolylineCodec.Decoder(5, 16);
+            for (int start = 0; start < encoded.length(); start += size) {
+                decoder.feed(encoded.substring(start, Math.min(encoded.length(), start + size)));
+            }
+            assertSameRoute(whole, decoder.finish(), 0);
+        }
+
+        char[] chars = encoded.toCharArray();
+        PolylineCodec.Decoder decoder = new PolylineCodec.Decoder(5, 16);
+        for (int start = 0; start < chars.length; start += 100) {
+            decoder.feed(chars, start, Math.min(100, chars.length - start));
+        }
+        assertEquals(whole.size(), decoder.getPointCount());
+        assertSameRoute(whole, decoder.finish(), 0);
+    }
+
+    @Test
+    public void rejectsInvalidCharacters() {
+        for (String bad : new String[] {"_p~iF~ps|U ", "_p~iFé", ">"}) {
+            try {
+                PolylineCodec.decode(bad);
+                fail(bad);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedPolylines() {
+        // Every proper prefix but the point boundaries ends mid-value or mid-point
+        for (int length = 1; length < SPEC_POLYLINE.length(); length++) {
+            String prefix = SPEC_POLYLINE.substring(0, length);
+            if (length == 10 || length == 18) continue;
+            try {
+                PolylineCodec.decode(prefix);
+                fail(prefix);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        assertEquals(1, PolylineCodec.decode(SPEC_POLYLINE.substring(0, 10)).size());
+        assertEquals(2, PolylineCodec.decode(SPEC_POLYLINE.substring(0, 18)).size());
+    }
+
+    @Test
+    public void rejectsOverlongValues() {
+        try {
+            PolylineCodec.decode("~~~~~~~~~~~~~~?");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Polyline value too long", e.getMessage());
+        }
+    }
+
+    /**
+     * The decoder decodePolyline used to be: charAt per character and an
+     * object per point, with a stand-in for android.location.Location
+     */
+    private static List<double[]> decodeWithObjects(String encoded) {
+        List<double[]> points = new ArrayList<>();
+        int index = 0;
+        int lat = 0;
+        int lng = 0;
+        while (index < encoded.length()) {
+            int b;
+            int shift = 0;
+            int result = 0;
+            do {
+                b = encoded.charAt(index++) - 63;
+                result |= (b & 0x1f) << shift;
+                shift += 5;
+            } while (b >= 0x20);
+            lat += (result & 1) != 0 ? ~(result >> 1) : (result >> 1);
+            shift = 0;
+            result = 0;
+            do {
+                b = encoded.charAt(index++) - 63;
+                result |= (b & 0x1f) << shift;
+                shift += 5;
+            } while (b >= 0x20);
+            lng += (result & 1) != 0 ? ~(result >> 1) : (result >> 1);
+            points.add(new double[] {lat / 1e5, lng / 1e5});
+        }
+        return points;
+    }
+
+    @Test
+    public void benchmarkDecode() {
+        Random random = new Random(3);
+        for (int count : new int[] {1000, 10000, 50000}) {
+            String encoded = PolylineCodec.encode(randomRoute(random, count, 5));
+            int runs = Math.max(5, 500000 / count);
+
+            long objectsNanos = Long.MAX_VALUE;
+            long decoderNanos = Long.MAX_VALUE;
+            long routeNanos = Long.MAX_VALUE;
+            int sink = 0;
+            // Best of several rounds, after the first has warmed everything up
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int run = 0; run < runs; run++) {
+                    sink += decodeWithObjects(encoded).size();
+                }
+                objectsNanos = Math.min(objectsNanos, (System.nanoTime() - start) / runs);
+
+                start = System.nanoTime();
+                for (int run = 0; run < runs; run++) {
+                    PolylineCodec.Decoder decoder = new PolylineCodec.Decoder(5, count);
+                    decoder.feed(encoded);
+                    sink += decoder.getPointCount();
+                }
+                decoderNanos = Math.min(decoderNanos, (System.nanoTime() - start) / runs);
+
+                // Including the prefix sums and projection of the Route
+                start = System.nanoTime();
+                for (int run = 0; run < runs; run++) {
+                    sink += PolylineCodec.decode(encoded).size();
+                }
+                routeNanos = Math.min(routeNanos, (System.nanoTime() - start) / runs);
+            }
+            assertEquals(9 * runs * count, sink);
+            System.out.println(String.format(Locale.US,
+                "PolylineCodec: %d points, objects %d us, arrays %d us, arrays and Route %d us",
+                count, objectsNanos / 1000, decoderNanos / 1000, routeNanos / 1000));
+        }
+    }
+}
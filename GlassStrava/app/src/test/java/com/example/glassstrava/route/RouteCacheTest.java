@@ -0,0 +1,234 @@
+package com.example.glassstrava.route;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RouteCacheTest {
+    private static final long BUDGET = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * A ride of {@code count} vertices about 10 m apart, crossing the
+     * equator and the antimeridian if it starts near them
+     */
+    private static CachedRoute ride(long id, int count, double latitude, double longitude) {
+        Random random = new Random(id);
+        double[] lat = new double[count];
+        double[] lng = new double[count];
+        float[] elevation = new float[count];
+        for (int i = 0; i < count; i++) {
+            lat[i] = latitude;
+            lng[i] = longitude;
+            elevation[i] = (float) (-20 + 40 * Math.sin(i * 0.01) + random.nextGaussian());
+            latitude += random.nextGaussian() * 1e-4;
+            longitude += random.nextGaussian() * 1e-4;
+            if (longitude > 180) longitude -= 360;
+            if (longitude < -180) longitude += 360;
+        }
+        CachedRoute cached = new CachedRoute();
+        cached.id = id;
+        cached.version = "2024-05-0" + (id % 10) + "T08:00:00Z";
+        cached.name = "Côte de " + id;
+        cached.distance = count * 10.0;
+        cached.estimatedMovingTime = count;
+        cached.route = new Route(lat, lng);
+        cached.elevation = elevation;
+        return cached;
+    }
+
+    private static CachedRoute ride(long id) {
+        return ride(id, 1000, 37.7749, -122.4194);
+    }
+
+    private File file(long id) {
+        return new File(mFolder.getRoot(), id + ".route");
+    }
+
+    private static void assertSameRoute(CachedRoute expected, CachedRoute actual) {
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.version, actual.version);
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.distance, actual.distance, 0);
+        assertEquals(expected.estimatedMovingTime, actual.estimatedMovingTime);
+        assertEquals(expected.route.size(), actual.route.size());
+        for (int i = 0; i < expected.route.size(); i++) {
+            // Stored to five decimal places, about a meter
+            assertEquals(expected.route.getLatitude(i), actual.route.getLatitude(i), 0.5e-5);
+            assertEquals(expected.route.getLongitude(i), actual.route.getLongitude(i), 0.5e-5);
+            // and elevation to the decimeter
+            assertEquals(expected.elevation[i], actual.elevation[i], 0.05 + 1e-4);
+        }
+    }
+
+    @Test
+    public void roundTripsCompactly() throws IOException {
+        RouteCache cache = new RouteCache(mFolder.getRoot(), BUDGET);
+        CachedRoute[] rides = {
+            ride(1),
+            // Across the equator and the antimeridian
+            ride(2, 1000, 0.001, 179.999),
+            ride(3, 1000, -0.001, -179.999),
+            ride(4, 1, -90, 180),
+            ride(5, 0, 0, 0),
+        };
+        for (CachedRoute cached : rides) {
+            cache.put(cached);
+        }
+        for (CachedRoute cached : rides) {
+            assertSameRoute(cached, cache.get(cached.id));
+            assertEquals(cached.version, cache.getVersion(cached.id));
+        }
+
+        CachedRoute flat = ride(6);
+        flat.elevation = null;
+        flat.version = null;
+        cache.put(flat);
+        CachedRoute read = cache.get(6);
+        assertNull(read.elevation);
+        assertEquals("", read.version);
+        assertEquals(1000, read.route.size());
+
+        // A vertex every 10 m takes a byte per coordinate and per elevation,
+        // rather than the 20 of two doubles and a float
+        assertTrue(file(1).length() < 1000 * 4);
+        assertEquals(file(1).length() + file(2).length() + file(3).length() + file(4).length()
+            + file(5).length() + file(6).length(), cache.getSize());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        RouteCache cache = new RouteCache(mFolder.getRoot(), BUDGET);
+        cache.put(ride(1));
+        long size = cache.getSize();
+        cache = new RouteCache(mFolder.getRoot(), size * 5 / 2);
+        cache.put(ride(2));
+        assertTrue(cache.contains(1));
+
+        // Reading 1 makes 2 the oldest; contains() doesn't count
+        assertNotNull(cache.get(1));
+        assertTrue(cache.contains(2));
+        cache.put(ride(3));
+        assertFalse(cache.contains(2));
+        assertFalse(file(2).exists());
+        assertTrue(cache.contains(1));
+        assertTrue(cache.contains(3));
+        assertTrue(cache.getSize() <= size * 5 / 2);
+
+        // The order survives a restart
+        cache = new RouteCache(mFolder.getRoot(), size * 5 / 2);
+        cache.put(ride(4));
+        assertFalse(cache.contains(1));
+        assertTrue(cache.contains(3));
+        assertTrue(cache.contains(4));
+
+        // A route larger than the whole budget still replaces everything else
+        cache.put(ride(5, 4000, 37.7749, -122.4194));
+        assertTrue(cache.contains(5));
+        assertFalse(cache.contains(3));
+        assertFalse(cache.contains(4));
+        assertNotNull(cache.get(5));
+    }
+
+    @Test
+    public void dropsCorruptAndOldFormatFiles() throws IOException {
+        RouteCache cache = new RouteCache(mFolder.getRoot(), BUDGET);
+        cache.put(ride(1));
+        cache.put(ride(2));
+        cache.put(ride(3));
+
+        // An older format version
+        RandomAccessFile raf = new RandomAccessFile(file(1), "rw");
+        raf.seek(4);
+        raf.write(2);
+        raf.close();
+        // Cut short
+        raf = new RandomAccessFile(file(2), "rw");
+        raf.setLength(raf.length() / 2);
+        raf.close();
+        // Not a route at all
+        FileOutputStream out = new FileOutputStream(file(3));
+        out.write("<html>".getBytes("US-ASCII"));
+        out.close();
+
+        for (long id = 1; id <= 3; id++) {
+            assertTrue(cache.contains(id));
+            assertNull(cache.get(id));
+            assertFalse(cache.contains(id));
+            assertFalse(file(id).exists());
+        }
+        assertEquals(0, cache.getSize());
+        assertNull(new RouteCache(mFolder.getRoot(), BUDGET).get(1));
+    }
+
+    @Test
+    public void rebuildsAMissingOrCorruptIndex() throws IOException {
+        RouteCache cache = new RouteCache(mFolder.getRoot(), BUDGET);
+        cache.put(ride(1));
+        cache.put(ride(2));
+        long size = cache.getSize();
+        File index = new File(mFolder.getRoot(), "index");
+        assertTrue(index.exists());
+
+        assertTrue(index.delete());
+        cache = new RouteCache(mFolder.getRoot(), BUDGET);
+        assertTrue(cache.contains(1));
+        assertTrue(cache.contains(2));
+        assertEquals(size, cache.getSize());
+        assertSameRoute(ride(2), cache.get(2));
+
+        FileOutputStream out = new FileOutputStream(index);
+        out.write(new byte[] {0, 0, 0, 9, 1});
+        out.close();
+        cache = new RouteCache(mFolder.getRoot(), BUDGET);
+        assertTrue(cache.contains(1));
+        assertTrue(cache.contains(2));
+        assertEquals(size, cache.getSize());
+
+        // Entries whose file has gone are dropped
+        assertTrue(file(1).delete());
+        cache = new RouteCache(mFolder.getRoot(), BUDGET);
+        assertFalse(cache.contains(1));
+        assertTrue(cache.contains(2));
+    }
+
+    @Test
+    public void writesThroughATempFile() throws IOException {
+        RouteCache cache = new RouteCache(mFolder.getRoot(), BUDGET);
+        cache.put(ride(1));
+        for (String name : mFolder.getRoot().list()) {
+            assertFalse(name, name.endsWith(".tmp"));
+        }
+
+        // A newer version whose write was cut off before the rename
+        File temp = new File(mFolder.getRoot(), "1.route.tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        out.write(new byte[] {0x47, 0x53, 0x52});
+        out.close();
+
+        cache = new RouteCache(mFolder.getRoot(), BUDGET);
+        assertSameRoute(ride(1), cache.get(1));
+        assertFalse(temp.exists());
+
+        // Replacing a route leaves one file of the new size
+        CachedRoute longer = ride(1, 2000, 37.7749, -122.4194);
+        cache.put(longer);
+        assertSameRoute(longer, cache.get(1));
+        assertEquals(file(1).length(), cache.getSize());
+        assertEquals(2, mFolder.getRoot().list().length);
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.glassstrava.tracking;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FitWriterTest {
+    private static final long FIT_EPOCH_SECONDS = 631065600L;
+
+    /**
+     * A decoded data message: global message number and fields by number
+     */
+    private static class Message {
+        int global;
+        final Map<Integer, Long> fields = new HashMap<>();
+    }
+
+    private static byte[] write(ActivityInfo info, TrackBuffer track) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FitWriter().write(info, track, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * FIT CRC-16, computed bit by bit rather than with the writer's table
+     */
+    private static int crc(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+        }
+        return crc;
+    }
+
+    private static long read(byte[] data, int offset, int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Walks the definition and data messages between header and CRC
+     */
+    private static List<Message> decode(byte[] fit) {
+        Map<Integer, int[][]> definitions = new HashMap<>();
+        Map<Integer, Integer> globals = new HashMap<>();
+        List<Message> messages = new ArrayList<>();
+        int offset = 14;
+        int end = fit.length - 2;
+        while (offset < end) {
+            int header = fit[offset++] & 0xFF;
+            int local = header & 0x0F;
+            if ((header & 0x40) != 0) {
+                assertEquals("little-endian", 0, fit[offset + 1]);
+                globals.put(local, (int) read(fit, offset + 2, 2));
+                int count = fit[offset + 4] & 0xFF;
+                offset += 5;
+                int[][] fields = new int[count][];
+                for (int i = 0; i < count; i++) {
+                    fields[i] = new int[] {fit[offset] & 0xFF, fit[offset + 1] & 0xFF};
+                    offset += 3;
+                }
+                definitions.put(local, fields);
+            } else {
+                Message message = new Message();
+                message.global = globals.get(local);
+                for (int[] field : definitions.get(local)) {
+                    message.fields.put(field[0], read(fit, offset, field[1]));
+                    offset += field[1];
+                }
+                messages.add(message);
+            }
+        }
+        assertEquals("messages end at the CRC", end, offset);
+        return messages;
+    }
+
+    @Test
+    public void headerAndCrcsAreValid() throws IOException {
+        byte[] fit = write(GpxWriterTest.info(), GpxWriterTest.track(50));
+
+        assertEquals(14, fit[0]);
+        assertEquals(".FIT", new String(fit, 8, 4, "US-ASCII"));
+        assertEquals(fit.length - 14 - 2, read(fit, 4, 4));
+        assertEquals(crc(fit, 12), read(fit, 12, 2));
+        assertEquals(crc(fit, fit.length - 2), read(fit, fit.length - 2, 2));
+        // The CRC of a file including its own CRC is zero
+        assertEquals(0, crc(fit, fit.length));
+    }
+
+    @Test
+    public void writesARecordPerFixThenTheSummaries() throws IOException {
+        ActivityInfo info = GpxWriterTest.info();
+        TrackBuffer track = GpxWriterTest.track(5);
+        List<Message> messages = decode(write(info, track));
+
+        assertEquals(1 + 5 + 3, messages.size());
+        assertEquals(0, messages.get(0).global);
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(20, messages.get(i).global);
+        }
+        assertEquals(19, messages.get(6).global);
+        assertEquals(18, messages.get(7).global);
+        assertEquals(34, messages.get(8).global);
+
+        long start = info.startTime / 1000 - FIT_EPOCH_SECONDS;
+        Message first = messages.get(1);
+        assertEquals(start, (long) first.fields.get(253));
+        assertEquals(Math.round(37.7749 * 2147483648.0 / 180), (long) first.fields.get(0));
+        // Negative longitude as a two's complement sint32
+        assertEquals(Math.round(-122.4194 * 2147483648.0 / 180) & 0xFFFFFFFFL,
+            (long) first.fields.get(1));
+        assertEquals(Math.round((10.25 + 500) * 5), (long) first.fields.get(2));
+        assertEquals(4500, (long) first.fields.get(6));
+        // Missing altitude is FIT's invalid value
+        assertEquals(0xFFFF, (long) messages.get(2).fields.get(2));
+        assertEquals(start + 4, (long) messages.get(5).fields.get(253));
+
+        Message session = messages.get(7);
+        assertEquals(start, (long) session.fields.get(2));
+        assertEquals(start + 4, (long) session.fields.get(253));
+        assertEquals(4000, (long) session.fields.get(7));
+        assertEquals(info.elapsedTime, (long) session.fields.get(8));
+        assertEquals(123450, (long) session.fields.get(9));
+        assertEquals(42, (long) session.fields.get(22));
+        assertEquals(2, (long) session.fields.get(5));
+    }
+
+    @Test
+    public void costsAFixedSizePerPoint() throws IOException {
+        ActivityInfo info = GpxWriterTest.info();
+        int empty = write(info, new TrackBuffer()).length;
+        int thousand = write(info, GpxWriterTest.track(1000)).length;
+        assertEquals(21 * 1000, thousand - empty);
+
+        ByteArrayOutputStream gpx = new ByteArrayOutputStream();
+        new GpxWriter().write(info, GpxWriterTest.track(1000), gpx);
+        assertTrue(thousand * 4 < gpx.size());
+    }
+
+    @Test
+    public void canBeReused() throws IOException {
+        FitWriter writer = new FitWriter();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        writer.write(GpxWriterTest.info(), GpxWriterTest.track(10), first);
+        writer.write(GpxWriterTest.info(), GpxWriterTest.track(10), second);
+
+        assertEquals(0, crc(second.toByteArray(), second.size()));
+        assertEquals(first.size(), second.size());
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.glassstrava.tracking;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.assertEquals;
+
+public class GpxWriterTest {
+    private static final long START = 1398929400000L; // 2014-05-01T07:30:00Z
+
+    static ActivityInfo info() {
+        ActivityInfo info = new ActivityInfo();
+        info.name = "Morning <Ride> & \"coffee\"";
+        info.type = "Ride";
+        info.deviceName = "Google Glass";
+        info.startTime = START;
+        info.elapsedTime = 125500;
+        info.distance = 1234.5;
+        info.elevationGain = 42;
+        return info;
+    }
+
+    /**
+     * A fix every second heading north; the second fix has no altitude
+     */
+    static TrackBuffer track(int count) {
+        TrackBuffer track = new TrackBuffer();
+        for (int i = 0; i < count; i++) {
+            track.append(37.7749 + i * 0.0001, -122.4194, i == 1 ? Double.NaN : 10.25 + i,
+                START + 1000L * i, 4.5f, 5);
+        }
+        return track;
+    }
+
+    static Document parse(byte[] xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    }
+
+    @Test
+    public void writesAValidTrackOfEveryFix() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new GpxWriter().write(info(), track(3), out);
+        Document gpx = parse(out.toByteArray());
+
+        Element root = gpx.getDocumentElement();
+        assertEquals("gpx", root.getLocalName());
+        assertEquals("http://www.topografix.com/GPX/1/1", root.getNamespaceURI());
+        assertEquals("1.1", root.getAttribute("version"));
+        assertEquals("Morning <Ride> & \"coffee\"",
+            gpx.getElementsByTagName("name").item(0).getTextContent());
+        assertEquals("Ride", gpx.getElementsByTagName("type").item(0).getTextContent());
+        assertEquals("2014-05-01T07:30:00Z",
+            gpx.getElementsByTagName("metadata").item(0).getTextContent());
+
+        NodeList points = gpx.getElementsByTagName("trkpt");
+        assertEquals(3, points.getLength());
+        Element first = (Element) points.item(0);
+        assertEquals("37.7749000", first.getAttribute("lat"));
+        assertEquals("-122.4194000", first.getAttribute("lon"));
+        assertEquals("10.3", first.getElementsByTagName("ele").item(0).getTextContent());
+        assertEquals("2014-05-01T07:30:00Z",
+            first.getElementsByTagName("time").item(0).getTextContent());
+        // No altitude, no ele
+        assertEquals(0, ((Element) points.item(1)).getElementsByTagName("ele").getLength());
+        assertEquals("2014-05-01T07:30:02Z",
+            ((Element) points.item(2)).getElementsByTagName("time").item(0).getTextContent());
+    }
+
+    @Test
+    public void writesAnEmptySegmentForAnEmptyTrack() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new GpxWriter().write(info(), new TrackBuffer(), out);
+        Document gpx = parse(out.toByteArray());
+
+        assertEquals(1, gpx.getElementsByTagName("trkseg").getLength());
+        assertEquals(0, gpx.getElementsByTagName("trkpt").getLength());
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.glassstrava.tracking;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class TcxWriterTest {
+
+    private static Document write(ActivityInfo info, TrackBuffer track) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TcxWriter().write(info, track, out);
+        return GpxWriterTest.parse(out.toByteArray());
+    }
+
+    @Test
+    public void writesOneLapWithEveryFix() throws Exception {
+        Document tcx = write(GpxWriterTest.info(), GpxWriterTest.track(3));
+
+        assertEquals("http://www.garmin.com/xmlschemas/TrainingCenterDatabase/v2",
+            tcx.getDocumentElement().getNamespaceURI());
+        Element activity = (Element) tcx.getElementsByTagName("Activity").item(0);
+        assertEquals("Biking", activity.getAttribute("Sport"));
+        assertEquals("2014-05-01T07:30:00Z",
+            tcx.getElementsByTagName("Id").item(0).getTextContent());
+        assertEquals(1, tcx.getElementsByTagName("Lap").getLength());
+        assertEquals("125.5", tcx.getElementsByTagName("TotalTimeSeconds").item(0).getTextContent());
+        assertEquals("1234.5", tcx.getElementsByTagName("DistanceMeters").item(0).getTextContent());
+
+        NodeList points = tcx.getElementsByTagName("Trackpoint");
+        assertEquals(3, points.getLength());
+        Element first = (Element) points.item(0);
+        assertEquals("37.7749000",
+            first.getElementsByTagName("LatitudeDegrees").item(0).getTextContent());
+        assertEquals("-122.4194000",
+            first.getElementsByTagName("LongitudeDegrees").item(0).getTextContent());
+        assertEquals("10.3", first.getElementsByTagName("AltitudeMeters").item(0).getTextContent());
+        assertEquals("0.0", first.getElementsByTagName("DistanceMeters").item(0).getTextContent());
+        assertEquals(0,
+            ((Element) points.item(1)).getElementsByTagName("AltitudeMeters").getLength());
+        assertEquals("Google Glass", tcx.getElementsByTagName("Name").item(0).getTextContent());
+    }
+
+    @Test
+    public void mapsActivityTypesToSports() throws Exception {
+        ActivityInfo info = GpxWriterTest.info();
+        info.type = "Run";
+        assertEquals("Running", ((Element) write(info, new TrackBuffer())
+            .getElementsByTagName("Activity").item(0)).getAttribute("Sport"));
+        info.type = "Walk";
+        assertEquals("Other", ((Element) write(info, new TrackBuffer())
+            .getElementsByTagName("Activity").item(0)).getAttribute("Sport"));
+    }
+}
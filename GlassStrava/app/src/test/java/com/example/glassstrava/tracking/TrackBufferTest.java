@@ -0,0 +1,63 @@
+package com.example.glassstrava.tracking;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrackBufferTest {
+
+    private static void fill(TrackBuffer buffer, int count) {
+        for (int i = 0; i < count; i++) {
+            buffer.append(37.0 + i * 1e-5, -122.0 - i * 1e-5, 10 + i, 1000L * i, i % 7, 3 + i % 5);
+        }
+    }
+
+    @Test
+    public void keepsEveryFieldAcrossChunkBoundaries() {
+        TrackBuffer buffer = new TrackBuffer();
+        // Past the initial chunk directory, so it has to grow too
+        int count = 1024 * 9 + 17;
+        fill(buffer, count);
+
+        assertEquals(count, buffer.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(37.0 + i * 1e-5, buffer.getLatitude(i), 0);
+            assertEquals(-122.0 - i * 1e-5, buffer.getLongitude(i), 0);
+            assertEquals(10 + i, buffer.getAltitude(i), 0);
+            assertEquals(1000L * i, buffer.getTime(i));
+            assertEquals(i % 7, buffer.getSpeed(i), 0);
+            assertEquals(3 + i % 5, buffer.getAccuracy(i), 0);
+        }
+    }
+
+    @Test
+    public void storesMissingValuesAsNaN() {
+        TrackBuffer buffer = new TrackBuffer();
+        buffer.append(1, 2, Double.NaN, 5, Float.NaN, Float.NaN);
+        buffer.append(1, 2, 3, 6, 4, 5);
+
+        assertFalse(buffer.hasAltitude(0));
+        assertFalse(buffer.hasSpeed(0));
+        assertFalse(buffer.hasAccuracy(0));
+        assertTrue(buffer.hasAltitude(1));
+        assertTrue(buffer.hasSpeed(1));
+        assertTrue(buffer.hasAccuracy(1));
+    }
+
+    @Test
+    public void clearEmptiesAndCanBeRefilled() {
+        TrackBuffer buffer = new TrackBuffer();
+        fill(buffer, 3000);
+        buffer.clear();
+
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.size());
+
+        buffer.append(5, 6, 7, 8, 9, 10);
+        assertEquals(1, buffer.size());
+        assertEquals(5, buffer.getLatitude(0), 0);
+        assertEquals(8, buffer.getTime(0));
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.glassstrava.tracking;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TrackExportersTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void picksTheExporterByFormat() {
+        assertTrue(TrackExporters.forFormat("gpx") instanceof GpxWriter);
+        assertTrue(TrackExporters.forFormat("tcx") instanceof TcxWriter);
+        assertTrue(TrackExporters.forFormat("json") instanceof ActivityJsonWriter);
+        assertTrue(TrackExporters.forFormat("fit") instanceof FitWriter);
+        // Unknown or missing preferences fall back to FIT
+        assertTrue(TrackExporters.forFormat(null) instanceof FitWriter);
+        assertEquals("fit", TrackExporters.forFormat(TrackExporters.DEFAULT_FORMAT).getDataType());
+    }
+
+    @Test
+    public void writeToFileReplacesTheTargetAtomically() throws IOException {
+        File file = new File(mFolder.getRoot(), "activity.gpx");
+        TrackExporters.writeToFile(new FixedExporter(new byte[] {1, 2, 3}), new ActivityInfo(),
+            new TrackBuffer(), file);
+
+        assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(file.toPath()));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void writeToFileRemovesTheTempFileWhenTheExporterFails() {
+        File file = new File(mFolder.getRoot(), "activity.fit");
+        TrackExporter failing = new FixedExporter(new byte[] {1, 2, 3}) {
+            @Override
+            public void write(ActivityInfo info, TrackBuffer track, OutputStream out)
+                    throws IOException {
+                super.write(info, track, out);
+                throw new IOException("disk full");
+            }
+        };
+        try {
+            TrackExporters.writeToFile(failing, new ActivityInfo(), new TrackBuffer(), file);
+            fail();
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void writeToFileRemovesTheTempFileOnRuntimeExceptions() throws IOException {
+        File file = new File(mFolder.getRoot(), "activity.fit");
+        TrackExporter failing = new FixedExporter(new byte[0]) {
+            @Override
+            public void write(ActivityInfo info, TrackBuffer track, OutputStream out) {
+                throw new IllegalStateException();
+            }
+        };
+        try {
+            TrackExporters.writeToFile(failing, new ActivityInfo(), new TrackBuffer(), file);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        assertEquals(0, mFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void appendsIsoTimesInUtc() {
+        StringBuilder out = new StringBuilder();
+        TrackExporters.appendIsoTime(1398929400000L, TrackExporters.newUtcCalendar(), out);
+        assertEquals("2014-05-01T07:30:00Z", out.toString());
+
+        out.setLength(0);
+        TrackExporters.appendIsoTime(0, TrackExporters.newUtcCalendar(), out);
+        assertEquals("1970-01-01T00:00:00Z", out.toString());
+    }
+
+    @Test
+    public void appendsFixedDecimalsLikeStringFormat() {
+        double[] values = {0, 1.5, -1.5, 37.7749295, -122.4194155, 0.0000004, -0.00000004,
+            12.05, 99.99999999, 1e6 + 0.25};
+        for (double value : values) {
+            for (int decimals : new int[] {0, 1, 7}) {
+                StringBuilder out = new StringBuilder();
+                TrackExporters.appendFixed(out, value, decimals);
+                String expected = String.format(Locale.US, "%." + decimals + "f", value);
+                // String.format keeps the sign of a value that rounds to zero
+                if (expected.matches("-0\\.?0*")) expected = expected.substring(1);
+                assertEquals(value + " to " + decimals, expected, out.toString());
+            }
+        }
+    }
+
+    @Test
+    public void escapesXmlSpecialCharacters() {
+        StringBuilder out = new StringBuilder();
+        TrackExporters.appendXmlEscaped(out, "<Tom & \"Jerry's\">");
+        assertEquals("&lt;Tom &amp; &quot;Jerry&apos;s&quot;&gt;", out.toString());
+
+        out.setLength(0);
+        TrackExporters.appendXmlEscaped(out, null);
+        assertEquals("", out.toString());
+    }
+
+    /**
+     * Counts what is written and throws it away
+     */
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * File size and serialization speed of each upload format for a long ride
+     */
+    @Test
+    public void benchmarkFormats() throws IOException {
+        // Five hours at one fix per second, wandering and climbing
+        Random random = new Random(5);
+        TrackBuffer track = new TrackBuffer();
+        double latitude = 37.7749;
+        double longitude = -122.4194;
+        double altitude = 20;
+        for (int i = 0; i < 5 * 3600; i++) {
+            latitude += 0.00005 + random.nextGaussian() * 0.00001;
+            longitude += random.nextGaussian() * 0.00003;
+            altitude += random.nextGaussian() * 0.3;
+            track.append(latitude, longitude, altitude, 1398929400000L + 1000L * i,
+                5.5f + (float) random.nextGaussian(), 4 + random.nextInt(8));
+        }
+        ActivityInfo info = GpxWriterTest.info();
+
+        long fitBytes = 0;
+        for (String format : new String[] {"fit", "gpx", "tcx"}) {
+            TrackExporter exporter = TrackExporters.forFormat(format);
+            long bytes = 0;
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 5; run++) {
+                CountingStream out = new CountingStream();
+                long start = System.nanoTime();
+                exporter.write(info, track, out);
+                best = Math.min(best, System.nanoTime() - start);
+                bytes = out.count;
+            }
+            System.out.println(String.format(Locale.US,
+                "%s: %d fixes in %d KB (%.1f bytes per fix), %d ms, %.1f MB/s, %d ns per fix",
+                format, track.size(), bytes / 1024, (double) bytes / track.size(),
+                best / 1000000, bytes * 1000.0 / best, best / track.size()));
+
+            if (format.equals("fit")) {
+                fitBytes = bytes;
+            } else {
+                // Binary records against a few hundred characters of XML per fix
+                assertTrue(format + " " + bytes, bytes > 4 * fitBytes);
+            }
+        }
+    }
+
+    private static class FixedExporter implements TrackExporter {
+        private final byte[] mContent;
+
+        FixedExporter(byte[] content) {
+            mContent = content;
+        }
+
+        @Override
+        public String getDataType() {
+            return "test";
+        }
+
+        @Override
+        public void write(ActivityInfo info, TrackBuffer track, OutputStream out)
+                throws IOException {
+            out.write(mContent);
+        }
+    }
+}
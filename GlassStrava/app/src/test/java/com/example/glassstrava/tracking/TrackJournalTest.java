@@ -0,0 +1,237 @@
+package com.example.glassstrava.tracking;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrackJournalTest {
+    private static final long START = 1500000000000L;
+    // Header of a "Run" journal: magic, version, start time, UTF length and bytes
+    private static final int HEADER = 4 + 4 + 8 + 2 + 3;
+    private static final int FIX = 29;
+    private static final int EVENT = 9;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Records what a replay delivered, one line per record
+     */
+    private static class Recorder implements TrackJournal.ReplayListener {
+        final List<String> records = new ArrayList<>();
+        String activityType;
+        long startTime;
+
+        @Override
+        public void onHeader(long startTime, String activityType) {
+            this.startTime = startTime;
+            this.activityType = activityType;
+        }
+
+        @Override
+        public void onFix(double latitude, double longitude, double altitude,
+                          long time, float speed, float accuracy) {
+            records.add(String.format(Locale.US, "fix %.7f %.7f %.1f %d %.1f %.1f",
+                latitude, longitude, altitude, time, speed, accuracy));
+        }
+
+        @Override
+        public void onPause(long time) {
+            records.add("pause " + time);
+        }
+
+        @Override
+        public void onResume(long time) {
+            records.add("resume " + time);
+        }
+    }
+
+    private static TrackBuffer track(int count) {
+        TrackBuffer track = new TrackBuffer();
+        for (int i = 0; i < count; i++) {
+            track.append(37.1234567 + i * 1e-5, -122.7654321, 12.5 + i, START + 1000L * i,
+                3.5f, 4);
+        }
+        return track;
+    }
+
+    /**
+     * Writes 5 fixes, a pause, a resume and 5 more fixes
+     */
+    private File writeJournal() throws IOException {
+        File file = mFolder.newFile("journal.bin");
+        TrackBuffer track = track(10);
+        TrackJournal journal = TrackJournal.create(file, START, "Run");
+        for (int i = 0; i < 5; i++) journal.appendFix(track, i);
+        journal.appendPause(START + 5000);
+        journal.appendResume(START + 9000);
+        for (int i = 5; i < 10; i++) journal.appendFix(track, i);
+        journal.close();
+        return file;
+    }
+
+    private static Recorder replay(File file, long[] validLength) throws IOException {
+        Recorder recorder = new Recorder();
+        validLength[0] = TrackJournal.replay(file, recorder);
+        return recorder;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void replaysEverythingWritten() throws IOException {
+        File file = writeJournal();
+        long[] validLength = new long[1];
+        Recorder recorder = replay(file, validLength);
+
+        assertEquals("Run", recorder.activityType);
+        assertEquals(START, recorder.startTime);
+        assertEquals(12, recorder.records.size());
+        assertEquals("fix 37.1234567 -122.7654321 12.5 " + START + " 3.5 4.0",
+            recorder.records.get(0));
+        assertEquals("pause " + (START + 5000), recorder.records.get(5));
+        assertEquals("resume " + (START + 9000), recorder.records.get(6));
+        assertEquals(HEADER + 10 * FIX + 2 * EVENT, validLength[0]);
+        assertEquals(file.length(), validLength[0]);
+    }
+
+    @Test
+    public void killAtEveryByteKeepsTheCompleteRecords() throws IOException {
+        File full = writeJournal();
+        long[] fullLength = new long[1];
+        List<String> all = replay(full, fullLength).records;
+
+        // Record boundaries in the order written
+        List<Long> boundaries = new ArrayList<>();
+        long offset = HEADER;
+        boundaries.add(offset);
+        for (int i = 0; i < 12; i++) {
+            offset += i == 5 || i == 6 ? EVENT : FIX;
+            boundaries.add(offset);
+        }
+
+        byte[] content = Files.readAllBytes(full.toPath());
+        for (int length = HEADER; length <= content.length; length++) {
+            File torn = mFolder.newFile("torn" + length + ".bin");
+            FileOutputStream out = new FileOutputStream(torn);
+            out.write(content, 0, length);
+            out.close();
+
+            long[] validLength = new long[1];
+            Recorder recorder = replay(torn, validLength);
+            int complete = 0;
+            while (complete + 1 < boundaries.size() && boundaries.get(complete + 1) <= length) {
+                complete++;
+            }
+            assertEquals("records surviving a kill at byte " + length,
+                all.subList(0, complete), recorder.records);
+            assertEquals((long) boundaries.get(complete), validLength[0]);
+        }
+    }
+
+    @Test
+    public void reopenDropsTheTornTailAndAppends() throws IOException {
+        File file = writeJournal();
+        // Killed halfway through the last fix
+        truncate(file, file.length() - FIX / 2);
+
+        long[] validLength = new long[1];
+        assertEquals(11, replay(file, validLength).records.size());
+
+        TrackJournal journal = TrackJournal.reopen(file, validLength[0]);
+        journal.appendPause(START + 20000);
+        journal.close();
+
+        Recorder recorder = replay(file, validLength);
+        assertEquals(12, recorder.records.size());
+        assertEquals("pause " + (START + 20000), recorder.records.get(11));
+        assertEquals(file.length(), validLength[0]);
+    }
+
+    @Test
+    public void pauseAndResumeFitInAFullRing() throws IOException {
+        File file = mFolder.newFile("journal.bin");
+        int capacity = TrackJournal.RING_CAPACITY;
+        TrackBuffer track = track(capacity + 10);
+        // The writer stalled, as behind a slow fsync
+        TrackJournal journal = TrackJournal.createStopped(file, START, "Run");
+        assertTrue(journal.appendPause(START));
+        for (int i = 0; i < capacity - 1; i++) {
+            assertTrue(journal.appendFix(track, i));
+        }
+        // Further fixes are dropped, but the events push out the oldest fixes
+        assertFalse(journal.appendFix(track, capacity - 1));
+        assertTrue(journal.appendResume(START + 1000));
+        assertFalse(journal.appendFix(track, capacity));
+        assertTrue(journal.appendPause(START + 2000));
+        journal.startWriter();
+        journal.close();
+
+        List<String> records = replay(file, new long[1]).records;
+        Recorder all = new Recorder();
+        for (int i = 0; i < capacity; i++) {
+            all.onFix(track.getLatitude(i), track.getLongitude(i), track.getAltitude(i),
+                track.getTime(i), track.getSpeed(i), track.getAccuracy(i));
+        }
+        assertEquals(capacity, records.size());
+        // Still first, ahead of the fixes that were dropped to make room
+        assertEquals("pause " + START, records.get(0));
+        assertEquals(all.records.subList(2, capacity - 1), records.subList(1, capacity - 2));
+        assertEquals("resume " + (START + 1000), records.get(capacity - 2));
+        assertEquals("pause " + (START + 2000), records.get(capacity - 1));
+    }
+
+    @Test
+    public void ignoresAZeroFilledTail() throws IOException {
+        File file = writeJournal();
+        long written = file.length();
+        // Some file systems leave zeroed blocks after a crash
+        truncate(file, written + 4096);
+
+        long[] validLength = new long[1];
+        assertEquals(12, replay(file, validLength).records.size());
+        assertEquals(written, validLength[0]);
+    }
+
+    @Test
+    public void rejectsAFileWithoutAHeader() throws IOException {
+        File file = mFolder.newFile("garbage.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        out.close();
+
+        long[] validLength = new long[1];
+        replay(file, validLength);
+        assertEquals(-1, validLength[0]);
+    }
+
+    @Test
+    public void tornHeaderIsNotValid() throws IOException {
+        File file = writeJournal();
+        truncate(file, HEADER - 1);
+
+        long[] validLength = new long[1];
+        assertEquals(0, replay(file, validLength).records.size());
+        assertEquals(-1, validLength[0]);
+    }
+}
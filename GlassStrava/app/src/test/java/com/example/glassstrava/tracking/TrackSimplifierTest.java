@@ -0,0 +1,239 @@
+package com.example.glassstrava.tracking;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrackSimplifierTest {
+    private static final double LATITUDE = 37.7749;
+    private static final double LONGITUDE = -122.4194;
+    private static final double METERS_PER_DEGREE = 111319.49;
+    private static final double METERS_PER_DEGREE_LON =
+        METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+    private static final double TOLERANCE = 2.0;
+
+    /**
+     * Raw track given as {north, east} meters, one fix per second
+     */
+    private static TrackBuffer track(double[][] points) {
+        TrackBuffer track = new TrackBuffer();
+        for (int i = 0; i < points.length; i++) {
+            track.append(LATITUDE + points[i][0] / METERS_PER_DEGREE,
+                LONGITUDE + points[i][1] / METERS_PER_DEGREE_LON, Double.NaN, 1000L * i,
+                Float.NaN, Float.NaN);
+        }
+        return track;
+    }
+
+    private static TrackBuffer simplify(TrackBuffer track, long maxInterval) {
+        TrackBuffer output = new TrackBuffer();
+        TrackSimplifier simplifier = new TrackSimplifier(track, output, TOLERANCE, maxInterval);
+        for (int i = 0; i < track.size(); i++) {
+            simplifier.add(i);
+        }
+        simplifier.flush();
+        return output;
+    }
+
+    private static double north(TrackBuffer track, int index) {
+        return (track.getLatitude(index) - LATITUDE) * METERS_PER_DEGREE;
+    }
+
+    private static double east(TrackBuffer track, int index) {
+        return (track.getLongitude(index) - LONGITUDE) * METERS_PER_DEGREE_LON;
+    }
+
+    /**
+     * Largest distance of a raw fix from the simplified segment spanning its time
+     */
+    private static double maxError(TrackBuffer raw, TrackBuffer simplified) {
+        double max = 0;
+        int segment = 0;
+        for (int i = 0; i < raw.size(); i++) {
+            while (segment + 2 < simplified.size()
+                    && simplified.getTime(segment + 1) <= raw.getTime(i)) {
+                segment++;
+            }
+            max = Math.max(max, distanceToSegment(north(raw, i), east(raw, i),
+                north(simplified, segment), east(simplified, segment),
+                north(simplified, segment + 1), east(simplified, segment + 1)));
+        }
+        return max;
+    }
+
+    private static double distanceToSegment(double y, double x, double y1, double x1,
+                                            double y2, double x2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared > 0 ? ((x - x1) * dx + (y - y1) * dy) / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        double ex = x - (x1 + t * dx);
+        double ey = y - (y1 + t * dy);
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    /**
+     * A road of straights and bends at riding speed with GPS-like jitter
+     */
+    private static double[][] road(int seconds, long seed) {
+        Random random = new Random(seed);
+        double[][] points = new double[seconds][];
+        double north = 0;
+        double east = 0;
+        double heading = 0;
+        double turnRate = 0;
+        for (int i = 0; i < seconds; i++) {
+            if (i % 60 == 0) {
+                // A minute of straight road, or a bend
+                turnRate = random.nextBoolean() ? 0 : random.nextGaussian() * 0.05;
+            }
+            heading += turnRate;
+            north += 7 * Math.cos(heading);
+            east += 7 * Math.sin(heading);
+            points[i] = new double[] {north + random.nextGaussian() * 0.3,
+                east + random.nextGaussian() * 0.3};
+        }
+        return points;
+    }
+
+    @Test
+    public void straightLineKeepsItsEnds() {
+        double[][] points = new double[100][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new double[] {i * 3, i * 4};
+        }
+        TrackBuffer simplified = simplify(track(points), Long.MAX_VALUE);
+
+        assertEquals(2, simplified.size());
+        assertEquals(0, simplified.getTime(0));
+        assertEquals(99000, simplified.getTime(1));
+    }
+
+    @Test
+    public void keepsTheTurnOfAnOutAndBack() {
+        double[][] points = new double[41][];
+        for (int i = 0; i <= 40; i++) {
+            points[i] = new double[] {(20 - Math.abs(20 - i)) * 5, 0};
+        }
+        TrackBuffer raw = track(points);
+        TrackBuffer simplified = simplify(raw, Long.MAX_VALUE);
+
+        // Every fix lies on the ray from the start, but not on the line back to it
+        assertEquals(3, simplified.size());
+        assertEquals(20000, simplified.getTime(1));
+        assertTrue(maxError(raw, simplified) <= TOLERANCE);
+    }
+
+    @Test
+    public void keepsATurnBackNearTheAnchor() {
+        TrackBuffer raw = track(new double[][] {
+            {0, 0}, {1.5, 0}, {3.5, 0.2}, {1.9, 0.5}, {1, 0},
+        });
+        TrackBuffer simplified = simplify(raw, Long.MAX_VALUE);
+
+        assertTrue(maxError(raw, simplified) <= TOLERANCE);
+    }
+
+    @Test
+    public void keepsAFixAtLeastEveryMaxInterval() {
+        double[][] points = new double[61][];
+        for (int i = 0; i <= 60; i++) {
+            points[i] = new double[] {i * 3, 0};
+        }
+        TrackBuffer simplified = simplify(track(points), 10000);
+
+        assertTrue(simplified.size() >= 7);
+        for (int i = 1; i < simplified.size(); i++) {
+            assertTrue(simplified.getTime(i) - simplified.getTime(i - 1) <= 10000);
+        }
+    }
+
+    @Test
+    public void breakSegmentKeepsTheLastFixBeforeAPause() {
+        TrackBuffer raw = track(new double[][] {{0, 0}, {5, 0}, {10, 0}, {10, 50}, {10, 55}});
+        TrackBuffer simplified = new TrackBuffer();
+        TrackSimplifier simplifier = new TrackSimplifier(raw, simplified, TOLERANCE,
+            Long.MAX_VALUE);
+        for (int i = 0; i < 3; i++) simplifier.add(i);
+        simplifier.breakSegment();
+        for (int i = 3; i < 5; i++) simplifier.add(i);
+        simplifier.flush();
+
+        assertEquals(4, simplified.size());
+        assertEquals(2000, simplified.getTime(1));
+        assertEquals(3000, simplified.getTime(2));
+    }
+
+    @Test
+    public void resetClearsTheOutput() {
+        TrackBuffer raw = track(new double[][] {{0, 0}, {5, 0}, {10, 0}});
+        TrackBuffer simplified = new TrackBuffer();
+        TrackSimplifier simplifier = new TrackSimplifier(raw, simplified, TOLERANCE,
+            Long.MAX_VALUE);
+        simplifier.add(0);
+        simplifier.add(1);
+        simplifier.reset();
+        simplifier.add(2);
+        simplifier.flush();
+
+        assertEquals(1, simplified.size());
+        assertEquals(2000, simplified.getTime(0));
+    }
+
+    @Test
+    public void staysWithinTheToleranceOfRandomTracks() {
+        for (long seed = 1; seed <= 20; seed++) {
+            Random random = new Random(seed);
+            double[][] points = new double[500][];
+            double north = 0;
+            double east = 0;
+            for (int i = 0; i < points.length; i++) {
+                // Wandering, doubling back and standing still
+                north += random.nextGaussian() * 3;
+                east += random.nextGaussian() * 3;
+                points[i] = new double[] {north, east};
+            }
+            TrackBuffer raw = track(points);
+            TrackBuffer simplified = simplify(raw, Long.MAX_VALUE);
+            // Cross-track within the tolerance, overshooting a kept end by at most as much
+            double error = maxError(raw, simplified);
+            assertTrue("seed " + seed + " error " + error, error <= TOLERANCE * Math.sqrt(2));
+        }
+    }
+
+    /**
+     * Compression ratio, error and CPU cost per fix on a long ride
+     */
+    @Test
+    public void benchmarkLongRide() {
+        // Five hours at one fix per second
+        TrackBuffer raw = track(road(5 * 3600, 42));
+        TrackBuffer output = new TrackBuffer();
+        TrackSimplifier simplifier = new TrackSimplifier(raw, output, TOLERANCE, 10000);
+
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            simplifier.reset();
+            long start = System.nanoTime();
+            for (int i = 0; i < raw.size(); i++) {
+                simplifier.add(i);
+            }
+            simplifier.flush();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double ratio = (double) raw.size() / output.size();
+        double error = maxError(raw, output);
+        System.out.println(String.format(Locale.US,
+            "TrackSimplifier: %d fixes to %d (%.1fx), max error %.2f m, %d ns per fix",
+            raw.size(), output.size(), ratio, error, best / raw.size()));
+
+        // The ten second cap alone allows at most 10x
+        assertTrue("ratio " + ratio, ratio > 4);
+        assertTrue("error " + error, error <= TOLERANCE * Math.sqrt(2));
+    }
+}